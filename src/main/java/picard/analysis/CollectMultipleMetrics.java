@@ -360,6 +360,11 @@ public class CollectMultipleMetrics extends CommandLineProgram {
     @Option(shortName = "UNPAIRED", doc = "Include unpaired reads in CollectSequencingArtifactMetrics. If set to true then all paired reads will be included as well - " +
             "MINIMUM_INSERT_SIZE and MAXIMUM_INSERT_SIZE will be ignored in CollectSequencingArtifactMetrics.")
     public boolean INCLUDE_UNPAIRED = false;
+
+    @Option(doc = "The number of threads used to run the PROGRAMs. Records are decoded on one thread and handed to the PROGRAMs, each of " +
+            "which is run on a single worker thread, so the metrics are identical to those of a single-threaded run.")
+    public int THREADS = 1;
+
     /**
      * Contents of PROGRAM set is transferred to this set during command-line validation, so that an outside
      * developer can invoke this class programmatically and provide alternative Programs to run by calling
@@ -379,6 +384,9 @@ public class CollectMultipleMetrics extends CommandLineProgram {
         if (PROGRAM.isEmpty()) {
             return new String[]{"No programs specified with PROGRAM"};
         }
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1"};
+        }
         programsToRun = new LinkedHashSet<>(PROGRAM);
 
         return super.customCommandLineValidation();
@@ -421,7 +429,7 @@ public class CollectMultipleMetrics extends CommandLineProgram {
 
             programs.add(instance);
         }
-        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs);
+        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs, THREADS);
 
         return 0;
     }
@@ -24,13 +24,18 @@
 package picard.analysis;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.FilteringSamIterator;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.filter.SecondaryAlignmentFilter;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
 import htsjdk.samtools.util.*;
 import picard.PicardException;
@@ -43,6 +48,7 @@ import picard.filter.CountingDuplicateFilter;
 import picard.filter.CountingFilter;
 import picard.filter.CountingMapQFilter;
 import picard.filter.CountingPairedFilter;
+import picard.util.IntervalListScatterer;
 import picard.util.MathUtil;
 
 import java.io.File;
@@ -50,6 +56,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.LongStream;
 
 import static picard.cmdline.StandardOptionDefinitions.MINIMUM_MAPPING_QUALITY_SHORT_NAME;
@@ -125,8 +136,23 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
             optional = true, overridable = true)
     public File INTERVALS = null;
 
+    @Option(doc = "The number of threads to use. If greater than one, the genome (or INTERVALS) is split into contiguous shards that " +
+            "are processed in parallel, each with its own reader of the INPUT, and the results are merged. Requires an indexed INPUT " +
+            "and is ignored when STOP_AFTER is used. Not supported by tools that choose the loci to examine themselves, such as " +
+            "CollectWgsMetricsFromSampledSites.")
+    public int THREADS = 1;
+
+    @Option(doc = "If true, count coverage by walking the alignment blocks of each read into primitive per-position counters " +
+            "instead of building a pileup for every locus. This produces identical metrics using far less memory and CPU. " +
+            "Ignored when STOP_AFTER is used, and by tools that choose the loci to examine themselves, such as " +
+            "CollectWgsMetricsFromSampledSites.")
+    public boolean USE_FAST_ALGORITHM = false;
+
     private SAMFileHeader header = null;
 
+    /** The number of shards to create per thread, so that threads finishing early can pick up more work. */
+    private static final int SHARDS_PER_THREAD = 4;
+
     private final Log log = Log.getInstance(CollectWgsMetrics.class);
     private static final double LOG_ODDS_THRESHOLD = 3.0;
 
@@ -433,51 +459,49 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
             LOCUS_ACCUMULATION_CAP = COVERAGE_CAP;
         }
 
-        // Setup all the inputs
-        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
-        final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
-        final SamReader in = getSamReader();
-        final SamLocusIterator iterator = getLocusIterator(in);
-
-        final List<SamRecordFilter> filters = new ArrayList<>();
+        final boolean useFastAlgorithm = USE_FAST_ALGORITHM && STOP_AFTER <= 0 && supportsFastAlgorithm();
+        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", useFastAlgorithm ? "reads" : "loci");
         final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
         final CountingFilter dupeFilter = new CountingDuplicateFilter();
         final CountingPairedFilter pairFilter = new CountingPairedFilter();
-        // The order in which filters are added matters!
-        filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
-        filters.add(mapqFilter);
-        filters.add(dupeFilter);
-        if (!COUNT_UNPAIRED) {
-            filters.add(pairFilter);
-        }
-        iterator.setSamFilters(filters);
-        iterator.setEmitUncoveredLoci(true);
-        iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
-        iterator.setQualityScoreCutoff(0);        // Handled separately because we want to count bases
-        iterator.setIncludeNonPfReads(false);
-        iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
+        final WgsMetricsCollector collector;
+
+        if (THREADS > 1 && STOP_AFTER <= 0) {
+            collector = collectSharded(mapqFilter, dupeFilter, pairFilter, useFastAlgorithm);
+        } else if (useFastAlgorithm) {
+            final SamReader in = getSamReader();
+            collector = getCollector(COVERAGE_CAP, getIntervalsToExamine());
+            final IntervalList recordIntervals = (INTERVALS != null) ? IntervalList.fromFile(INTERVALS) : null;
+            countLoci(in, recordIntervals, getIntervalsToExamine(), collector, progress, mapqFilter, dupeFilter, pairFilter);
+        } else {
+            // Setup all the inputs
+            final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
+            final SamReader in = getSamReader();
+            final SamLocusIterator iterator = getLocusIterator(in);
+            configureLocusIterator(iterator, mapqFilter, dupeFilter, pairFilter);
 
-        final WgsMetricsCollector collector = getCollector(COVERAGE_CAP, getIntervalsToExamine());
+            collector = getCollector(COVERAGE_CAP, getIntervalsToExamine());
 
-        final boolean usingStopAfter = STOP_AFTER > 0;
-        final long stopAfter = STOP_AFTER - 1;
-        long counter = 0;
+            final boolean usingStopAfter = STOP_AFTER > 0;
+            final long stopAfter = STOP_AFTER - 1;
+            long counter = 0;
 
-        // Loop through all the loci
-        while (iterator.hasNext()) {
-            final SamLocusIterator.LocusInfo info = iterator.next();
-            final ReferenceSequence ref = refWalker.get(info.getSequenceIndex());
+            // Loop through all the loci
+            while (iterator.hasNext()) {
+                final SamLocusIterator.LocusInfo info = iterator.next();
+                final ReferenceSequence ref = refWalker.get(info.getSequenceIndex());
 
-            // Check that the reference is not N
-            final byte base = ref.getBases()[info.getPosition() - 1];
-            if (SequenceUtil.isNoCall(base)) continue;
+                // Check that the reference is not N
+                final byte base = ref.getBases()[info.getPosition() - 1];
+                if (SequenceUtil.isNoCall(base)) continue;
 
-            // add to the collector
-            collector.addInfo(info);
+                // add to the collector
+                collector.addInfo(info);
 
-            // Record progress and perhaps stop
-            progress.record(info.getSequenceName(), info.getPosition());
-            if (usingStopAfter && ++counter > stopAfter) break;
+                // Record progress and perhaps stop
+                progress.record(info.getSequenceName(), info.getPosition());
+                if (usingStopAfter && ++counter > stopAfter) break;
+            }
         }
 
         // check that we added the same number of bases to the raw coverage histogram and the base quality histograms
@@ -494,6 +518,255 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
         return 0;
     }
 
+    /**
+     * Applies the read filters and settings shared by the serial and sharded code paths to a locus iterator.
+     * The order in which the filters are given matters, since each counting filter only sees reads passed by the previous ones.
+     */
+    private void configureLocusIterator(final SamLocusIterator iterator,
+                                        final SamRecordFilter mapqFilter,
+                                        final SamRecordFilter dupeFilter,
+                                        final SamRecordFilter pairFilter) {
+        iterator.setSamFilters(makeFilters(mapqFilter, dupeFilter, pairFilter));
+        iterator.setEmitUncoveredLoci(true);
+        iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
+        iterator.setQualityScoreCutoff(0);        // Handled separately because we want to count bases
+        iterator.setIncludeNonPfReads(false);
+        iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
+    }
+
+    private List<SamRecordFilter> makeFilters(final SamRecordFilter mapqFilter,
+                                              final SamRecordFilter dupeFilter,
+                                              final SamRecordFilter pairFilter) {
+        final List<SamRecordFilter> filters = new ArrayList<>();
+        filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
+        filters.add(mapqFilter);
+        filters.add(dupeFilter);
+        if (!COUNT_UNPAIRED) {
+            filters.add(pairFilter);
+        }
+        return filters;
+    }
+
+    /**
+     * Counts coverage with a {@link FastWgsLocusCounter}, feeding it the same filtered records that a locus iterator
+     * configured by {@link #configureLocusIterator} would see.
+     *
+     * @param recordIntervals the intervals used to query records, or null to read the whole input
+     * @param intervals the intervals over which loci are reported to the collector
+     */
+    private void countLoci(final SamReader in,
+                           final IntervalList recordIntervals,
+                           final IntervalList intervals,
+                           final WgsMetricsCollector collector,
+                           final ProgressLogger progress,
+                           final SamRecordFilter mapqFilter,
+                           final SamRecordFilter dupeFilter,
+                           final SamRecordFilter pairFilter) {
+        final CloseableIterator<SAMRecord> records = (recordIntervals == null) ? in.iterator() :
+                new SamRecordIntervalIteratorFactory().makeSamRecordIntervalIterator(in, recordIntervals.uniqued().getIntervals(), in.hasIndex());
+        final FilteringSamIterator iterator = new FilteringSamIterator(records,
+                new AggregateFilter(makeFilters(mapqFilter, dupeFilter, pairFilter)));
+        final ReferenceSequenceFile refFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE_SEQUENCE);
+        final FastWgsLocusCounter counter = new FastWgsLocusCounter(collector, intervals, refFile,
+                MINIMUM_BASE_QUALITY, COVERAGE_CAP, LOCUS_ACCUMULATION_CAP);
+
+        while (!counter.isFinished() && iterator.hasNext()) {
+            final SAMRecord rec = iterator.next();
+            counter.addRecord(rec);
+            progress.record(rec);
+        }
+        counter.finish();
+
+        iterator.close();
+        CloserUtil.close(refFile);
+    }
+
+    /**
+     * Splits the intervals to examine into contiguous shards, runs each one on a pool of THREADS threads with its own
+     * reader, locus iterator, filters and collector, and merges the per-shard counts into the collector and filters
+     * that are used to produce the metrics.
+     */
+    private WgsMetricsCollector collectSharded(final CountingFilter mapqFilter,
+                                               final CountingFilter dupeFilter,
+                                               final CountingPairedFilter pairFilter,
+                                               final boolean useFastAlgorithm) {
+        final SamReader in = getSamReader();
+        if (!in.hasIndex()) {
+            throw new PicardException("THREADS > 1 requires an indexed INPUT, but no index was found for " + INPUT.getAbsolutePath());
+        }
+
+        final IntervalList intervals = getIntervalsToExamine().uniqued();
+        final WgsMetricsCollector collector = getCollector(COVERAGE_CAP, intervals);
+        final List<IntervalList> shardIntervals = new IntervalListScatterer(IntervalListScatterer.Mode.INTERVAL_SUBDIVISION)
+                .scatter(intervals, THREADS * SHARDS_PER_THREAD, true);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final List<Future<Shard>> futures = new ArrayList<>();
+        Interval previous = null;
+        for (final IntervalList shardInterval : shardIntervals) {
+            if (shardInterval.getIntervals().isEmpty()) continue;
+            final Interval first = shardInterval.getIntervals().get(0);
+            final int precedingEnd = (previous != null && previous.getContig().equals(first.getContig())) ? previous.getEnd() : 0;
+            futures.add(executor.submit(new Shard(shardInterval, precedingEnd, useFastAlgorithm)));
+            previous = shardInterval.getIntervals().get(shardInterval.getIntervals().size() - 1);
+        }
+        executor.shutdown();
+
+        try {
+            for (final Future<Shard> future : futures) {
+                final Shard shard = future.get();
+                collector.addCounts(shard.collector);
+                mapqFilter.addCounts(shard.mapqFilter);
+                dupeFilter.addCounts(shard.dupeFilter);
+                pairFilter.addCounts(shard.pairFilter);
+            }
+        } catch (final InterruptedException ie) {
+            executor.shutdownNow();
+            throw new PicardException("Interrupted while collecting metrics over shards.", ie);
+        } catch (final ExecutionException ee) {
+            executor.shutdownNow();
+            throw new PicardException("Error while collecting metrics over a shard.", ee.getCause());
+        }
+        return collector;
+    }
+
+    /**
+     * A contiguous piece of the intervals to examine, processed independently of the other shards.
+     *
+     * Reads that overlap the end of the previous shard are seen by both shards. They are filtered in both, but their
+     * bases are only counted by the filters of the first shard that sees them so that the PCT_EXC_* metrics match
+     * those of a serial run.
+     */
+    private class Shard implements Callable<Shard> {
+        final IntervalList intervals;
+        final int precedingEnd;
+        final String precedingContig;
+        final ProgressLogger progress;
+        final boolean useFastAlgorithm;
+        final WgsMetricsCollector collector;
+        final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
+        final CountingFilter dupeFilter = new CountingDuplicateFilter();
+        final CountingPairedFilter pairFilter = new CountingPairedFilter();
+
+        /**
+         * @param precedingEnd the end of the last interval of the previous shard if it is on the same contig as the first
+         *                     interval of this shard, otherwise 0
+         */
+        Shard(final IntervalList intervals, final int precedingEnd, final boolean useFastAlgorithm) {
+            this.intervals = intervals;
+            this.precedingEnd = precedingEnd;
+            this.precedingContig = intervals.getIntervals().get(0).getContig();
+            // Shards walk different regions at once, so a shared logger would report interleaved, meaningless positions.
+            this.progress = new ProgressLogger(log, 10000000, "Processed", useFastAlgorithm ? "reads" : "loci");
+            this.useFastAlgorithm = useFastAlgorithm;
+            this.collector = new WgsMetricsCollector(COVERAGE_CAP, intervals);
+        }
+
+        @Override
+        public Shard call() {
+            final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
+            if (useFastAlgorithm) {
+                countLoci(in, intervals, intervals, collector, progress,
+                        new OwnedReadsFilter(mapqFilter), new OwnedReadsFilter(dupeFilter), new OwnedReadsFilter(pairFilter));
+                CloserUtil.close(in);
+                return this;
+            }
+
+            final ReferenceSequenceFile refFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE_SEQUENCE);
+            final SamLocusIterator iterator = new SamLocusIterator(in, intervals);
+            configureLocusIterator(iterator, new OwnedReadsFilter(mapqFilter), new OwnedReadsFilter(dupeFilter), new OwnedReadsFilter(pairFilter));
+
+            int currentIndex = -1;
+            byte[] bases = null;
+            int offset = 0;
+            while (iterator.hasNext()) {
+                final SamLocusIterator.LocusInfo info = iterator.next();
+
+                // Only load the span of each contig that this shard covers
+                if (info.getSequenceIndex() != currentIndex) {
+                    currentIndex = info.getSequenceIndex();
+                    final ReferenceSequence ref = getShardReference(refFile, info.getSequenceName());
+                    bases = ref.getBases();
+                    offset = getShardStart(info.getSequenceName());
+                }
+
+                // Check that the reference is not N
+                final byte base = bases[info.getPosition() - offset];
+                if (SequenceUtil.isNoCall(base)) continue;
+
+                collector.addInfo(info);
+                progress.record(info.getSequenceName(), info.getPosition());
+            }
+
+            iterator.close();
+            CloserUtil.close(in);
+            CloserUtil.close(refFile);
+            return this;
+        }
+
+        private int getShardStart(final String contig) {
+            int start = Integer.MAX_VALUE;
+            for (final Interval interval : intervals) {
+                if (interval.getContig().equals(contig)) start = Math.min(start, interval.getStart());
+            }
+            return start;
+        }
+
+        private ReferenceSequence getShardReference(final ReferenceSequenceFile refFile, final String contig) {
+            int end = 0;
+            for (final Interval interval : intervals) {
+                if (interval.getContig().equals(contig)) end = Math.max(end, interval.getEnd());
+            }
+            if (refFile.isIndexed()) {
+                return refFile.getSubsequenceAt(contig, getShardStart(contig), end);
+            }
+            throw new PicardException("THREADS > 1 requires an indexed REFERENCE_SEQUENCE, but no index was found for " +
+                    REFERENCE_SEQUENCE.getAbsolutePath());
+        }
+
+        /** Filters as its delegate does, but only counts reads that were not already seen by the previous shard. */
+        private class OwnedReadsFilter implements SamRecordFilter {
+            private final CountingFilter delegate;
+
+            OwnedReadsFilter(final CountingFilter delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public boolean filterOut(final SAMRecord record) {
+                final boolean seenByPreviousShard = record.getAlignmentStart() <= precedingEnd &&
+                        precedingContig.equals(record.getReferenceName());
+                return seenByPreviousShard ? delegate.reallyFilterOut(record) : delegate.filterOut(record);
+            }
+
+            @Override
+            public boolean filterOut(final SAMRecord first, final SAMRecord second) {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+
+    @Override
+    protected String[] customCommandLineValidation() {
+        if (THREADS > 1 && !supportsSharding()) {
+            return new String[]{"THREADS > 1 is not supported by " + getClass().getSimpleName() +
+                    ", which chooses the loci to examine itself"};
+        }
+        return super.customCommandLineValidation();
+    }
+
+    /**
+     * Can be overridden and set to false by subclasses that choose the loci to examine in {@link #getLocusIterator(SamReader)},
+     * since the sharded code path builds its own locus iterator for each shard.
+     */
+    protected boolean supportsSharding() { return true; }
+
+    /**
+     * Can be overridden and set to false by subclasses that choose the loci to examine in {@link #getLocusIterator(SamReader)},
+     * since the fast algorithm walks the reads directly and uses no locus iterator.
+     */
+    protected boolean supportsFastAlgorithm() { return true; }
+
     /** Gets the intervals over which we will calculate metrics. */
     protected IntervalList getIntervalsToExamine() {
         final IntervalList intervals;
@@ -666,6 +939,45 @@ static final String USAGE_DETAILS = "<p>This tool collects metrics about the fra
             unfilteredDepthHistogramArray[unfilteredDepth]++;
         }
 
+        /**
+         * Adds a locus given as a summary of its bases rather than as a LocusInfo, as done by {@link FastWgsLocusCounter}.
+         * The qualities of the unfiltered bases must be added separately through {@link #addUnfilteredBaseQuality(byte)}.
+         *
+         * @param pileupSize the number of high quality bases, not counting the second observation of overlapping reads
+         * @param unfilteredDepth the number of bases with quality above 2, up to the coverage cap
+         * @param excludedByBaseq the number of bases excluded for low quality or being no-calls
+         * @param excludedByOverlap the number of high quality bases excluded for being the second observation from an insert
+         */
+        public void addLocus(final int pileupSize, final int unfilteredDepth, final int excludedByBaseq, final int excludedByOverlap) {
+            basesExcludedByBaseq += excludedByBaseq;
+            basesExcludedByOverlap += excludedByOverlap;
+
+            final int highQualityDepth = Math.min(pileupSize, coverageCap);
+            if (highQualityDepth < pileupSize) basesExcludedByCapping += pileupSize - coverageCap;
+            highQualityDepthHistogramArray[highQualityDepth]++;
+            unfilteredDepthHistogramArray[unfilteredDepth]++;
+        }
+
+        /** Counts a base with quality above 2 towards the unfiltered base quality histogram. */
+        public void addUnfilteredBaseQuality(final byte quality) {
+            unfilteredBaseQHistogramArray[quality]++;
+        }
+
+        /** Adds the histogram counts and excluded bases collected by another collector, e.g. over a different shard of the genome. */
+        public void addCounts(final WgsMetricsCollector other) {
+            if (other.coverageCap != coverageCap) throw new PicardException("Cannot combine collectors with different coverage caps.");
+            for (int i = 0; i <= coverageCap; ++i) {
+                unfilteredDepthHistogramArray[i] += other.unfilteredDepthHistogramArray[i];
+                highQualityDepthHistogramArray[i] += other.highQualityDepthHistogramArray[i];
+            }
+            for (int i = 0; i < unfilteredBaseQHistogramArray.length; ++i) {
+                unfilteredBaseQHistogramArray[i] += other.unfilteredBaseQHistogramArray[i];
+            }
+            basesExcludedByBaseq += other.basesExcludedByBaseq;
+            basesExcludedByOverlap += other.basesExcludedByOverlap;
+            basesExcludedByCapping += other.basesExcludedByCapping;
+        }
+
         public void addToMetricsFile(final MetricsFile<WgsMetrics, Integer> file,
                                      final boolean includeBQHistogram,
                                      final CountingFilter dupeFilter,
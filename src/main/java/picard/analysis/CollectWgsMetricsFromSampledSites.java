@@ -69,6 +69,14 @@ public class CollectWgsMetricsFromSampledSites extends CollectWgsMetrics {
         return new SamLocusIterator(in, IntervalList.fromFile(INTERVALS));
     }
 
+    /** The sampled sites come from {@link #getLocusIterator(SamReader)}, which the shards do not use. */
+    @Override
+    protected boolean supportsSharding() { return false; }
+
+    /** The sampled sites come from {@link #getLocusIterator(SamReader)}, which the fast algorithm does not use. */
+    @Override
+    protected boolean supportsFastAlgorithm() { return false; }
+
     /**
      * By design we want to count just those bases at the positions we care about, not across the entire read.
      * Therefore, we call filter.getFilteredRecords() so that only the bases in the pileup at a given position
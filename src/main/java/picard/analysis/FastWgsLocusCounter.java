@@ -0,0 +1,400 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.analysis;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.SequenceUtil;
+import picard.PicardException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An alternative to driving a {@link CollectWgsMetrics.WgsMetricsCollector} with a {@link htsjdk.samtools.util.SamLocusIterator}.
+ * Rather than building a LocusInfo holding a RecordAndOffset for every aligned base of every read, each read's alignment
+ * blocks are walked once and the bases are tallied into primitive per-position counters held in a circular buffer. Once
+ * no more reads can overlap a position its counts are handed to the collector via
+ * {@link CollectWgsMetrics.WgsMetricsCollector#addLocus(int, int, int, int)}.
+ *
+ * The counter reproduces the behaviour of the locus iterator as it is configured by CollectWgsMetrics: reads are expected
+ * to have already been through the record filters, non-PF and unmapped reads are skipped, reads starting at a locus that
+ * already has LOCUS_ACCUMULATION_CAP bases are ignored, only loci within the intervals and with a non-N reference base
+ * are reported, and the base quality, overlap and coverage cap exclusions are applied in the same order and with the same
+ * precedence as in {@link CollectWgsMetrics.WgsMetricsCollector#addInfo}.
+ *
+ * Reads must be given in coordinate order.
+ */
+final class FastWgsLocusCounter {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final CollectWgsMetrics.WgsMetricsCollector collector;
+    private final ReferenceSequenceFile referenceFile;
+    private final SAMSequenceDictionary dictionary;
+    private final int minimumBaseQuality;
+    private final int coverageCap;
+    private final int locusAccumulationCap;
+
+    /** For each contig, the starts and ends of the (uniqued, sorted) intervals on it. */
+    private final int[][] intervalStarts;
+    private final int[][] intervalEnds;
+
+    // The contig currently being counted, the index of the next interval on it to be reported, and its reference bases
+    private int contig = -1;
+    private int intervalCursor = 0;
+    private byte[] refBases = null;
+    private int refOffset = 0;
+
+    // Per-position counters, indexed by position & mask, valid for positions in [headPosition, maxPosition]
+    private int mask;
+    private int[] accumulatedBases;
+    private int[] unfilteredDepth;
+    private int[] pileupSize;
+    private int[] excludedByBaseq;
+    private int[] excludedByOverlap;
+    private int headPosition = 1;
+    private int maxPosition = 0;
+
+    /** High quality bases seen so far for read names whose records may still overlap later ones. */
+    private final Map<String, ReadBases> readBases = new HashMap<>();
+    private final ArrayDeque<ReadBases> readBasesByStart = new ArrayDeque<>();
+
+    private boolean finished = false;
+
+    /**
+     * @param collector            the collector to report loci to
+     * @param intervals            the intervals over which loci are reported
+     * @param referenceFile        the reference, used to skip loci with N bases; it is read sequentially unless indexed
+     * @param minimumBaseQuality   the MINIMUM_BASE_QUALITY of CollectWgsMetrics
+     * @param coverageCap          the COVERAGE_CAP of CollectWgsMetrics
+     * @param locusAccumulationCap the LOCUS_ACCUMULATION_CAP of CollectWgsMetrics
+     */
+    FastWgsLocusCounter(final CollectWgsMetrics.WgsMetricsCollector collector,
+                        final IntervalList intervals,
+                        final ReferenceSequenceFile referenceFile,
+                        final int minimumBaseQuality,
+                        final int coverageCap,
+                        final int locusAccumulationCap) {
+        this.collector = collector;
+        this.referenceFile = referenceFile;
+        this.dictionary = intervals.getHeader().getSequenceDictionary();
+        this.minimumBaseQuality = minimumBaseQuality;
+        this.coverageCap = coverageCap;
+        this.locusAccumulationCap = locusAccumulationCap;
+
+        final int nContigs = dictionary.size();
+        final List<List<Interval>> byContig = new ArrayList<>(nContigs);
+        for (int i = 0; i < nContigs; ++i) byContig.add(new ArrayList<>());
+        for (final Interval interval : intervals.uniqued()) {
+            byContig.get(dictionary.getSequenceIndex(interval.getContig())).add(interval);
+        }
+        intervalStarts = new int[nContigs][];
+        intervalEnds = new int[nContigs][];
+        for (int i = 0; i < nContigs; ++i) {
+            final List<Interval> list = byContig.get(i);
+            intervalStarts[i] = new int[list.size()];
+            intervalEnds[i] = new int[list.size()];
+            for (int j = 0; j < list.size(); ++j) {
+                intervalStarts[i][j] = list.get(j).getStart();
+                intervalEnds[i][j] = list.get(j).getEnd();
+            }
+        }
+
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /** Counts the aligned bases of a record, reporting all loci before its alignment start. */
+    void addRecord(final SAMRecord rec) {
+        if (finished) throw new IllegalStateException("Cannot add records after finish() has been called.");
+        if (rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+            // Mapped reads are over; the locus iterator does not look at any further records
+            finish();
+            return;
+        }
+        if (rec.getReadUnmappedFlag() || rec.getReadFailsVendorQualityCheckFlag()) return;
+
+        final int start = rec.getAlignmentStart();
+        final int recContig = rec.getReferenceIndex();
+        if (recContig < contig || (recContig == contig && start < headPosition)) {
+            throw new PicardException("Records must be coordinate sorted, but found " + rec.getSAMString().trim() + " out of order.");
+        }
+        while (contig < recContig) {
+            finishContig();
+            startContig(contig + 1);
+        }
+        reportUpTo(start - 1);
+        pruneReadBases(start);
+
+        // Mirrors the per-locus accumulation cap of the locus iterator, which is checked at the start of each read
+        if (locusAccumulationCap > 0 && start <= maxPosition && accumulatedBases[start & mask] >= locusAccumulationCap) return;
+
+        ensureCapacity(rec.getAlignmentEnd());
+        maxPosition = Math.max(maxPosition, rec.getAlignmentEnd());
+
+        final int[] starts = intervalStarts[contig];
+        final int[] ends = intervalEnds[contig];
+        final byte[] bases = rec.getReadBases();
+        final byte[] quals = rec.getBaseQualities();
+        final String name = rec.getReadName();
+        final ReadBases previous = readBases.get(name);
+        ReadBases current = previous;
+
+        for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
+            final int refStart = block.getReferenceStart();
+            final int readStart = block.getReadStart() - 1;
+            final int length = block.getLength();
+
+            for (int i = 0; i < length; ++i) {
+                accumulatedBases[(refStart + i) & mask]++;
+            }
+
+            // Only count the parts of the block that lie within the intervals
+            int j = firstIntervalEndingAtOrAfter(ends, refStart);
+            for (; j < starts.length && starts[j] < refStart + length; ++j) {
+                final int from = Math.max(refStart, starts[j]);
+                final int to = Math.min(refStart + length - 1, ends[j]);
+
+                for (int pos = from; pos <= to; ++pos) {
+                    if (SequenceUtil.isNoCall(refBases[pos - refOffset])) continue;
+
+                    final int idx = pos & mask;
+                    final int readOffset = readStart + pos - refStart;
+                    final byte quality = quals[readOffset];
+                    if (quality <= 2) { excludedByBaseq[idx]++; continue; }
+
+                    // the raw depth may exceed the coverageCap before the high-quality depth does
+                    if (unfilteredDepth[idx] < coverageCap) {
+                        collector.addUnfilteredBaseQuality(quality);
+                        unfilteredDepth[idx]++;
+                    }
+
+                    if (quality < minimumBaseQuality || SequenceUtil.isNoCall(bases[readOffset])) { excludedByBaseq[idx]++; continue; }
+
+                    if (current == null) {
+                        current = new ReadBases(name, start);
+                        readBases.put(name, current);
+                        readBasesByStart.add(current);
+                    }
+                    if (current.add(pos)) {
+                        pileupSize[idx]++;
+                    } else {
+                        excludedByOverlap[idx]++;
+                    }
+                }
+            }
+        }
+        if (current != null) current.end = Math.max(current.end, rec.getAlignmentEnd());
+    }
+
+    /** True once all loci have been reported, after which no more records should be added. */
+    boolean isFinished() {
+        return finished;
+    }
+
+    /** Reports all remaining loci, including those of contigs without any reads. */
+    void finish() {
+        if (finished) return;
+        finished = true;
+        while (contig < dictionary.size()) {
+            finishContig();
+            if (contig + 1 < dictionary.size()) {
+                startContig(contig + 1);
+            } else {
+                break;
+            }
+        }
+        readBases.clear();
+        readBasesByStart.clear();
+    }
+
+    private void startContig(final int index) {
+        contig = index;
+        intervalCursor = 0;
+        headPosition = 1;
+        maxPosition = 0;
+        readBases.clear();
+        readBasesByStart.clear();
+        loadReference();
+    }
+
+    private void finishContig() {
+        if (contig < 0) return;
+        final int[] ends = intervalEnds[contig];
+        reportUpTo(Math.max(ends.length > 0 ? ends[ends.length - 1] : 0, maxPosition));
+        refBases = null;
+    }
+
+    /** Loads the reference bases spanned by the intervals on the current contig. */
+    private void loadReference() {
+        final int[] starts = intervalStarts[contig];
+        final int[] ends = intervalEnds[contig];
+        if (starts.length == 0) {
+            refBases = new byte[0];
+            refOffset = 1;
+            return;
+        }
+        final SAMSequenceRecord sequence = dictionary.getSequence(contig);
+        final ReferenceSequence ref;
+        if (referenceFile.isIndexed()) {
+            ref = referenceFile.getSubsequenceAt(sequence.getSequenceName(), starts[0], ends[ends.length - 1]);
+            refOffset = starts[0];
+        } else {
+            ReferenceSequence next;
+            do {
+                next = referenceFile.nextSequence();
+                if (next == null) throw new PicardException("Reference sequence " + sequence.getSequenceName() + " not found.");
+            } while (!next.getName().equals(sequence.getSequenceName()));
+            ref = next;
+            refOffset = 1;
+        }
+        refBases = ref.getBases();
+    }
+
+    /** Reports all loci up to and including the given position on the current contig, and clears their counters. */
+    private void reportUpTo(final int position) {
+        if (contig < 0 || position < headPosition) return;
+        final int[] starts = intervalStarts[contig];
+        final int[] ends = intervalEnds[contig];
+
+        int pos = headPosition;
+        while (pos <= position) {
+            while (intervalCursor < ends.length && ends[intervalCursor] < pos) intervalCursor++;
+            if (intervalCursor == ends.length || starts[intervalCursor] > position) {
+                clear(pos, position);
+                break;
+            }
+            if (starts[intervalCursor] > pos) {
+                clear(pos, starts[intervalCursor] - 1);
+                pos = starts[intervalCursor];
+            }
+
+            final int to = Math.min(position, ends[intervalCursor]);
+            for (; pos <= to; ++pos) {
+                if (SequenceUtil.isNoCall(refBases[pos - refOffset])) {
+                    clear(pos, pos);
+                } else if (pos <= maxPosition) {
+                    final int idx = pos & mask;
+                    collector.addLocus(pileupSize[idx], unfilteredDepth[idx], excludedByBaseq[idx], excludedByOverlap[idx]);
+                    clear(pos, pos);
+                } else {
+                    collector.addLocus(0, 0, 0, 0);
+                }
+            }
+        }
+        headPosition = position + 1;
+    }
+
+    /** Zeroes the counters for the given range of positions. */
+    private void clear(final int from, final int to) {
+        for (int pos = from; pos <= Math.min(to, maxPosition); ++pos) {
+            final int idx = pos & mask;
+            accumulatedBases[idx] = 0;
+            unfilteredDepth[idx] = 0;
+            pileupSize[idx] = 0;
+            excludedByBaseq[idx] = 0;
+            excludedByOverlap[idx] = 0;
+        }
+    }
+
+    /** Drops the bases of reads that end before the given position, as no later read can overlap them. */
+    private void pruneReadBases(final int position) {
+        while (!readBasesByStart.isEmpty() && readBasesByStart.peekFirst().end < position) {
+            readBases.remove(readBasesByStart.pollFirst().name);
+        }
+    }
+
+    private static int firstIntervalEndingAtOrAfter(final int[] ends, final int position) {
+        final int i = Arrays.binarySearch(ends, position);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private void allocate(final int capacity) {
+        mask = capacity - 1;
+        accumulatedBases = new int[capacity];
+        unfilteredDepth = new int[capacity];
+        pileupSize = new int[capacity];
+        excludedByBaseq = new int[capacity];
+        excludedByOverlap = new int[capacity];
+    }
+
+    /** Grows the circular buffer, if needed, so that it can hold all positions from the head up to the given position. */
+    private void ensureCapacity(final int position) {
+        final int needed = position - headPosition + 1;
+        if (needed <= mask + 1) return;
+
+        int capacity = mask + 1;
+        while (capacity < needed) capacity <<= 1;
+
+        final int oldMask = mask;
+        final int[] oldAccumulated = accumulatedBases, oldUnfiltered = unfilteredDepth, oldPileup = pileupSize,
+                oldBaseq = excludedByBaseq, oldOverlap = excludedByOverlap;
+        allocate(capacity);
+        for (int pos = headPosition; pos <= maxPosition; ++pos) {
+            final int from = pos & oldMask, to = pos & mask;
+            accumulatedBases[to] = oldAccumulated[from];
+            unfilteredDepth[to] = oldUnfiltered[from];
+            pileupSize[to] = oldPileup[from];
+            excludedByBaseq[to] = oldBaseq[from];
+            excludedByOverlap[to] = oldOverlap[from];
+        }
+    }
+
+    /**
+     * The positions at which records with a given read name have contributed high quality bases, used in place of the
+     * per-locus set of read names to exclude the second observation of a base from overlapping mates.
+     */
+    private static final class ReadBases {
+        final String name;
+        final int start;
+        int end;
+        long[] positions = new long[4];
+
+        ReadBases(final String name, final int start) {
+            this.name = name;
+            this.start = start;
+            this.end = start;
+        }
+
+        /** Marks the given position, returning false if it had already been marked. */
+        boolean add(final int position) {
+            final int offset = position - start;
+            final int word = offset >>> 6;
+            if (word >= positions.length) positions = Arrays.copyOf(positions, Math.max(word + 1, positions.length * 2));
+            final long bit = 1L << (offset & 63);
+            if ((positions[word] & bit) != 0) return false;
+            positions[word] |= bit;
+            return true;
+        }
+    }
+}
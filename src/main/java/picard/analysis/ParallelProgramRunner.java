@@ -0,0 +1,202 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.BAMRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fans records decoded on the calling thread out to a set of {@link SinglePassSamProgram}s, each of which
+ * is driven by exactly one worker thread. Records are handed over in batches through a bounded queue per
+ * worker, so every program sees the same records in the same order as it would in a serial run and keeps
+ * its own single-threaded state.
+ *
+ * Since SAMRecords decode many of their fields lazily, every record is fully decoded on the calling thread
+ * before it is shared with the workers; the programs must treat records and reference sequences as read-only.
+ * Some programs upper-case reference and read bases in place, so those bases are upper-cased here, once, before
+ * they are handed out; the programs' own upper-casing then finds nothing to change and never writes to them.
+ */
+class ParallelProgramRunner {
+    static final int BATCH_SIZE = 1000;
+    static final int QUEUE_BATCHES = 8;
+
+    /** Pushed onto every queue to signal that no more records are coming. */
+    private static final List<RecordAndReference> END_OF_INPUT = Collections.emptyList();
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final AtomicReference<Throwable> ex = new AtomicReference<>(null);
+    private List<RecordAndReference> batch = new ArrayList<>(BATCH_SIZE);
+    private ReferenceSequence lastRef = null;
+
+    /**
+     * @param programs   the programs to drive; each is assigned round-robin to one of the worker threads
+     * @param numThreads the number of worker threads to use, capped at the number of programs
+     */
+    ParallelProgramRunner(final Collection<SinglePassSamProgram> programs, final int numThreads) {
+        final int nWorkers = Math.max(1, Math.min(numThreads, programs.size()));
+        for (int i = 0; i < nWorkers; ++i) workers.add(new Worker(i));
+
+        int i = 0;
+        for (final SinglePassSamProgram program : programs) {
+            workers.get(i++ % nWorkers).programs.add(program);
+        }
+        for (final Worker worker : workers) worker.thread.start();
+    }
+
+    /** Queues a record and its (possibly null) reference sequence for all of the programs. */
+    void add(final SAMRecord rec, final ReferenceSequence ref) {
+        decode(rec);
+        if (ref != null && ref != lastRef) {
+            StringUtil.toUpperCase(ref.getBases());
+            lastRef = ref;
+        }
+        batch.add(new RecordAndReference(rec, ref));
+        if (batch.size() >= BATCH_SIZE) {
+            dispatch(batch);
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    /** Flushes any remaining records, waits for all workers to finish and rethrows the first error encountered. */
+    void finish() {
+        if (!batch.isEmpty()) dispatch(batch);
+        batch = null;
+        dispatch(END_OF_INPUT);
+
+        for (final Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted waiting on metrics worker thread.", ie);
+            }
+        }
+        checkAndRethrow();
+    }
+
+    private void dispatch(final List<RecordAndReference> records) {
+        checkAndRethrow();
+        for (final Worker worker : workers) {
+            try {
+                worker.queue.put(records);
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted queueing records for metrics worker thread.", ie);
+            }
+        }
+    }
+
+    /**
+     * Checks to see if an exception has been raised in a worker thread and if so rethrows it as an Error
+     * or RuntimeException as appropriate.
+     */
+    private void checkAndRethrow() {
+        final Throwable t = ex.get();
+        if (t != null) {
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            else throw new PicardException("Exception in metrics worker thread.", t);
+        }
+    }
+
+    /**
+     * Forces all lazily decoded and cached fields of the record to be populated before it is shared across threads,
+     * and upper-cases the bases of non-BAM records, which programs such as AlignmentSummaryMetricsCollector would
+     * otherwise rewrite in place.
+     */
+    private static void decode(final SAMRecord rec) {
+        rec.getReadName();
+        rec.getReadLength();
+        if (!(rec instanceof BAMRecord)) StringUtil.toUpperCase(rec.getReadBases());
+        else rec.getReadBases();
+        rec.getBaseQualities();
+        rec.getCigar();
+        rec.getCigarString();
+        rec.getAttributes();
+        rec.getReferenceIndex();
+        rec.getMateReferenceIndex();
+        if (!rec.getReadUnmappedFlag()) {
+            rec.getAlignmentEnd();
+            rec.getAlignmentBlocks();
+        }
+    }
+
+    private static class RecordAndReference {
+        final SAMRecord rec;
+        final ReferenceSequence ref;
+
+        RecordAndReference(final SAMRecord rec, final ReferenceSequence ref) {
+            this.rec = rec;
+            this.ref = ref;
+        }
+    }
+
+    /**
+     * Drains the batches queued for its programs. After a failure the worker keeps draining its queue
+     * without processing so that the decoding thread never blocks on a full queue.
+     */
+    private class Worker implements Runnable {
+        final List<SinglePassSamProgram> programs = new ArrayList<>();
+        final BlockingQueue<List<RecordAndReference>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        final Thread thread;
+
+        Worker(final int index) {
+            this.thread = new Thread(this, "SinglePassSamProgramWorker-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final List<RecordAndReference> records = queue.take();
+                    if (records == END_OF_INPUT) break;
+                    if (ex.get() != null) continue;
+
+                    try {
+                        for (final RecordAndReference rr : records) {
+                            for (final SinglePassSamProgram program : programs) {
+                                program.acceptRead(rr.rec, rr.ref);
+                            }
+                        }
+                    } catch (final Throwable t) {
+                        ex.compareAndSet(null, t);
+                    }
+                }
+            } catch (final InterruptedException ie) {
+                ex.compareAndSet(null, ie);
+            }
+        }
+    }
+}
@@ -83,6 +83,20 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
                                 final boolean assumeSorted,
                                 final long stopAfter,
                                 final Collection<SinglePassSamProgram> programs) {
+        makeItSo(input, referenceSequence, assumeSorted, stopAfter, programs, 1);
+    }
+
+    /**
+     * Runs the programs over the input in a single pass. If numThreads is greater than one, records are decoded on
+     * the calling thread and handed off in batches to up to numThreads worker threads, each of which drives its own
+     * subset of the programs; every program still sees all records in file order, so results match a serial run.
+     */
+    public static void makeItSo(final File input,
+                                final File referenceSequence,
+                                final boolean assumeSorted,
+                                final long stopAfter,
+                                final Collection<SinglePassSamProgram> programs,
+                                final int numThreads) {
 
         // Setup the standard inputs
         IOUtil.assertFileIsReadable(input);
@@ -125,6 +139,7 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
 
 
         final ProgressLogger progress = new ProgressLogger(log);
+        final ParallelProgramRunner runner = (numThreads > 1 && programs.size() > 1) ? new ParallelProgramRunner(programs, numThreads) : null;
 
         for (final SAMRecord rec : in) {
             final ReferenceSequence ref;
@@ -134,8 +149,12 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
                 ref = walker.get(rec.getReferenceIndex());
             }
 
-            for (final SinglePassSamProgram program : programs) {
-                program.acceptRead(rec, ref);
+            if (runner != null) {
+                runner.add(rec, ref);
+            } else {
+                for (final SinglePassSamProgram program : programs) {
+                    program.acceptRead(rec, ref);
+                }
             }
 
             progress.record(rec);
@@ -151,6 +170,7 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
             }
         }
 
+        if (runner != null) runner.finish();
         CloserUtil.close(in);
 
         for (final SinglePassSamProgram program : programs) {
@@ -43,6 +43,12 @@ public abstract class CountingFilter implements SamRecordFilter {
     /** Gets the number of bases that have been filtered out thus far. */
     public long getFilteredBases() { return this.filteredBases; }
 
+    /** Adds the records and bases filtered out by another filter, e.g. one that was applied to a different shard of the input. */
+    public void addCounts(final CountingFilter other) {
+        this.filteredRecords += other.filteredRecords;
+        this.filteredBases += other.filteredBases;
+    }
+
     @Override
     public final boolean filterOut(final SAMRecord record) {
         final boolean filteredOut = reallyFilterOut(record);
@@ -115,6 +115,10 @@ public class CheckFingerprint extends CommandLineProgram {
             "ignoring RG annotations, and producing a single fingerprint metric for the entire BAM.")
     public boolean IGNORE_READ_GROUPS = false;
 
+    @Option(optional = true, doc = "A directory in which to store the fingerprints of SAM/BAM inputs. Inputs that were already " +
+            "fingerprinted with the same haplotype map and settings, and have not changed since, are not read again.")
+    public File FINGERPRINT_CACHE;
+
     private final Log log = Log.getInstance(CheckFingerprint.class);
 
     public static final String FINGERPRINT_SUMMARY_FILE_SUFFIX = "fingerprinting_summary_metrics";
@@ -144,8 +148,10 @@ public class CheckFingerprint extends CommandLineProgram {
         IOUtil.assertFileIsReadable(GENOTYPES);
         IOUtil.assertFileIsWritable(outputDetailMetricsFile);
         IOUtil.assertFileIsWritable(outputSummaryMetricsFile);
+        if (FINGERPRINT_CACHE != null) IOUtil.assertDirectoryIsWritable(FINGERPRINT_CACHE);
 
         final FingerprintChecker checker = new FingerprintChecker(HAPLOTYPE_MAP);
+        checker.setFingerprintCacheDirectory(FINGERPRINT_CACHE);
         List<FingerprintResults> results;
 
         String observedSampleAlias = null;
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.fingerprint;
+
+import picard.PicardException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the LOD scores of every fingerprint in a set against every other, with the same results as calling
+ * {@link FingerprintChecker#calculateMatchResults(Fingerprint, Fingerprint, double, double)} on each pair.
+ *
+ * Each fingerprint is first flattened into primitive arrays holding, for each haplotype block at which it has evidence and
+ * in block order, the values that the comparison needs from it as either the observed or the expected fingerprint.  A pair is
+ * then compared by merging the block indices of the two fingerprints.  Rows of the matrix are computed in bands of
+ * {@link #TILE_SIZE} rows across a thread pool, one tile of columns at a time so that a tile's fingerprints stay in cache while
+ * each row of the band is compared to them, and are handed back in order as each band completes.
+ */
+class CrosscheckMatrix {
+    /** The number of rows in each band of work, and the number of columns compared to a band at a time. */
+    static final int TILE_SIZE = 32;
+
+    /** Receives the LOD scores of one row of the matrix. */
+    interface RowConsumer {
+        /**
+         * @param row             the index of the observed fingerprint
+         * @param lods            the LOD that the observed fingerprint comes from the same individual as each expected fingerprint
+         * @param lodsTumorNormal the LOD when assuming that the observed fingerprint is from a tumor and the expected one from a normal
+         * @param lodsNormalTumor the LOD when assuming that the observed fingerprint is from a normal and the expected one from a tumor
+         */
+        void accept(int row, double[] lods, double[] lodsTumorNormal, double[] lodsNormalTumor);
+    }
+
+    private static final int NUM_GENOTYPES = 3;
+
+    private final int numFingerprints;
+    private final double lMinPExpected;
+
+    /** For each fingerprint, the indices of the blocks at which it has evidence, in increasing order. */
+    private final int[][] blocks;
+
+    // The values used when the fingerprint is the observed one, per block.
+    private final double[][] likelihoods;
+    private final double[][] tumorLikelihoods;
+    private final double[][] logEvidence;
+    private final double[][] tumorLogEvidence;
+
+    // The values used when the fingerprint is the expected one, per block.
+    private final double[][] posteriors;
+    private final double[][] tumorPosteriors;
+
+    /**
+     * @param fingerprints the fingerprints to compare, in the order of the rows and columns of the matrix
+     * @param minPExpected the floor on the probability of the observed evidence given the expected fingerprint at each block
+     * @param pLoH         the rate at which a het in a normal sample turns into a hom in the tumor
+     */
+    CrosscheckMatrix(final List<Fingerprint> fingerprints, final double minPExpected, final double pLoH) {
+        this.numFingerprints = fingerprints.size();
+        this.lMinPExpected = Math.log10(minPExpected);
+
+        // Number the blocks in their natural order, which is the order in which calculateMatchResults sums over them.
+        final SortedSet<HaplotypeBlock> allBlocks = new TreeSet<>();
+        for (final Fingerprint fp : fingerprints) allBlocks.addAll(fp.keySet());
+        final HaplotypeBlock[] blockOrder = allBlocks.toArray(new HaplotypeBlock[allBlocks.size()]);
+
+        blocks = new int[numFingerprints][];
+        likelihoods = new double[numFingerprints][];
+        tumorLikelihoods = new double[numFingerprints][];
+        logEvidence = new double[numFingerprints][];
+        tumorLogEvidence = new double[numFingerprints][];
+        posteriors = new double[numFingerprints][];
+        tumorPosteriors = new double[numFingerprints][];
+
+        for (int f = 0; f < numFingerprints; f++) {
+            final Fingerprint fp = fingerprints.get(f);
+            int numWithEvidence = 0;
+            for (final HaplotypeProbabilities probs : fp.values()) {
+                if (probs.hasEvidence()) ++numWithEvidence;
+            }
+
+            blocks[f] = new int[numWithEvidence];
+            likelihoods[f] = new double[numWithEvidence * NUM_GENOTYPES];
+            tumorLikelihoods[f] = new double[numWithEvidence * NUM_GENOTYPES];
+            logEvidence[f] = new double[numWithEvidence];
+            tumorLogEvidence[f] = new double[numWithEvidence];
+            posteriors[f] = new double[numWithEvidence * NUM_GENOTYPES];
+            tumorPosteriors[f] = new double[numWithEvidence * NUM_GENOTYPES];
+
+            int i = 0;
+            for (final HaplotypeProbabilities probs : fp.values()) {
+                if (!probs.hasEvidence()) continue;
+                final HaplotypeProbabilities probsAssumingDataFromTumor = new HaplotypeProbabilityOfNormalGivenTumor(probs, pLoH);
+
+                blocks[f][i] = Arrays.binarySearch(blockOrder, probs.getHaplotype());
+                System.arraycopy(probs.getLikelihoods(), 0, likelihoods[f], i * NUM_GENOTYPES, NUM_GENOTYPES);
+                System.arraycopy(probsAssumingDataFromTumor.getLikelihoods(), 0, tumorLikelihoods[f], i * NUM_GENOTYPES, NUM_GENOTYPES);
+                logEvidence[f][i] = probs.shiftedLogEvidenceProbability();
+                tumorLogEvidence[f][i] = probsAssumingDataFromTumor.shiftedLogEvidenceProbability();
+                System.arraycopy(probs.getPosteriorProbabilities(), 0, posteriors[f], i * NUM_GENOTYPES, NUM_GENOTYPES);
+                System.arraycopy(probsAssumingDataFromTumor.getPosteriorProbabilities(), 0, tumorPosteriors[f], i * NUM_GENOTYPES, NUM_GENOTYPES);
+                ++i;
+            }
+        }
+    }
+
+    /**
+     * Computes the rows of the matrix and passes them to the consumer in order, on the calling thread.
+     *
+     * @param numThreads        the number of threads to compute rows on
+     * @param upperTriangleOnly if true only the entries to the right of the diagonal are computed, and the others are NaN
+     * @param consumer          receives each row
+     */
+    void computeRows(final int numThreads, final boolean upperTriangleOnly, final RowConsumer consumer) {
+        if (numThreads <= 1) {
+            for (int firstRow = 0; firstRow < numFingerprints; firstRow += TILE_SIZE) {
+                consumeBand(firstRow, computeBand(firstRow, upperTriangleOnly), consumer);
+            }
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            // Keep a few bands per thread queued so that the threads stay busy while completed bands wait to be consumed in order.
+            final Deque<Future<double[][][]>> pending = new ArrayDeque<>();
+            int nextBand = 0;
+            for (int firstRow = 0; firstRow < numFingerprints; firstRow += TILE_SIZE) {
+                while (nextBand < numFingerprints && pending.size() < 2 * numThreads) {
+                    final int bandStart = nextBand;
+                    pending.add(executor.submit(() -> computeBand(bandStart, upperTriangleOnly)));
+                    nextBand += TILE_SIZE;
+                }
+                consumeBand(firstRow, pending.remove().get(), consumer);
+            }
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while crosschecking fingerprints.", e);
+        } catch (final ExecutionException e) {
+            throw new PicardException("Error while crosschecking fingerprints.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void consumeBand(final int firstRow, final double[][][] band, final RowConsumer consumer) {
+        for (int r = 0; r < band.length; r++) {
+            consumer.accept(firstRow + r, band[r][0], band[r][1], band[r][2]);
+        }
+    }
+
+    /** Returns, for each row of the band starting at firstRow, the LODs, tumor-normal LODs and normal-tumor LODs of the row. */
+    private double[][][] computeBand(final int firstRow, final boolean upperTriangleOnly) {
+        final int lastRow = Math.min(firstRow + TILE_SIZE, numFingerprints);
+        final double[][][] band = new double[lastRow - firstRow][3][numFingerprints];
+        if (upperTriangleOnly) {
+            for (final double[][] row : band) {
+                for (final double[] values : row) Arrays.fill(values, Double.NaN);
+            }
+        }
+
+        final double[] result = new double[3];
+        for (int firstColumn = upperTriangleOnly ? firstRow + 1 : 0; firstColumn < numFingerprints; firstColumn += TILE_SIZE) {
+            final int lastColumn = Math.min(firstColumn + TILE_SIZE, numFingerprints);
+            for (int row = firstRow; row < lastRow; row++) {
+                final double[][] values = band[row - firstRow];
+                for (int column = upperTriangleOnly ? Math.max(firstColumn, row + 1) : firstColumn; column < lastColumn; column++) {
+                    compare(row, column, result);
+                    values[0][column] = result[0];
+                    values[1][column] = result[1];
+                    values[2][column] = result[2];
+                }
+            }
+        }
+        return band;
+    }
+
+    /**
+     * Compares the observed fingerprint to the expected one, summing over the blocks at which both have evidence in the same
+     * order and with the same arithmetic as calculateMatchResults so that the results are identical.
+     */
+    private void compare(final int observed, final int expected, final double[] result) {
+        final int[] observedBlocks = blocks[observed];
+        final int[] expectedBlocks = blocks[expected];
+        final double[] observedLikelihoods = likelihoods[observed];
+        final double[] observedTumorLikelihoods = tumorLikelihoods[observed];
+        final double[] observedLogEvidence = logEvidence[observed];
+        final double[] observedTumorLogEvidence = tumorLogEvidence[observed];
+        final double[] expectedPosteriors = posteriors[expected];
+        final double[] expectedTumorPosteriors = tumorPosteriors[expected];
+
+        double llThisSample = 0;
+        double llOtherSample = 0;
+        double lodExpectedSampleTumorNormal = 0;
+        double lodExpectedSampleNormalTumor = 0;
+
+        int i = 0;
+        int j = 0;
+        while (i < observedBlocks.length && j < expectedBlocks.length) {
+            if (observedBlocks[i] < expectedBlocks[j]) {
+                ++i;
+            } else if (observedBlocks[i] > expectedBlocks[j]) {
+                ++j;
+            } else {
+                final int o = i * NUM_GENOTYPES;
+                final int e = j * NUM_GENOTYPES;
+                final double lExpected = Math.log10(dot(observedLikelihoods, o, expectedPosteriors, e));
+                final double lRandom = observedLogEvidence[i];
+
+                llThisSample += Math.max(lMinPExpected, lExpected);
+                llOtherSample += lRandom;
+                lodExpectedSampleTumorNormal += Math.log10(dot(observedTumorLikelihoods, o, expectedPosteriors, e)) - observedTumorLogEvidence[i];
+                lodExpectedSampleNormalTumor += Math.log10(dot(observedLikelihoods, o, expectedTumorPosteriors, e)) - lRandom;
+                ++i;
+                ++j;
+            }
+        }
+
+        result[0] = llThisSample - llOtherSample;
+        result[1] = lodExpectedSampleTumorNormal;
+        result[2] = lodExpectedSampleNormalTumor;
+    }
+
+    /** The same sum as HaplotypeProbabilities.scaledEvidenceProbabilityUsingGenotypeFrequencies. */
+    private static double dot(final double[] likelihoods, final int likelihoodsOffset, final double[] frequencies, final int frequenciesOffset) {
+        double result = 0;
+        for (int k = 0; k < NUM_GENOTYPES; k++) {
+            result += likelihoods[likelihoodsOffset + k] * frequencies[frequenciesOffset + k];
+        }
+        return result;
+    }
+}
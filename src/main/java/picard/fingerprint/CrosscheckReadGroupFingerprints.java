@@ -40,6 +40,7 @@ import java.io.File;
 import java.io.PrintStream;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Program to check that all read groups within the set of BAM files appear to come from the same
@@ -81,7 +82,7 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
             "and print out a library x library matrix with LOD scores.")
     public boolean CROSSCHECK_LIBRARIES = false;
 
-	@Option(doc="The number of threads to use to process BAM files and generate Fingerprints.")
+	@Option(doc="The number of threads to use to process BAM files and generate Fingerprints, and then to compare them.")
 	public int NUM_THREADS = 1;
 
     @Option(doc="Allow the use of duplicate reads in performing the comparison. Can be useful when duplicate " +
@@ -106,6 +107,10 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
     @Option(doc="When one or more mismatches between read groups are detected, exit with this value instead of 0.")
     public int EXIT_CODE_WHEN_MISMATCH = 1;
 
+    @Option(optional = true, doc = "A directory in which to store the fingerprints of the INPUT files. Files that were already " +
+            "fingerprinted with the same haplotype map and settings, and have not changed since, are not read again.")
+    public File FINGERPRINT_CACHE;
+
     private final Log log = Log.getInstance(CrosscheckReadGroupFingerprints.class);
 
     private final FormatUtil formatUtil = new FormatUtil();
@@ -126,11 +131,13 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
         for (final File f : INPUT) IOUtil.assertFileIsReadable(f);
         IOUtil.assertFileIsReadable(HAPLOTYPE_MAP);
         if (OUTPUT != null) IOUtil.assertFileIsWritable(OUTPUT);
+        if (FINGERPRINT_CACHE != null) IOUtil.assertDirectoryIsWritable(FINGERPRINT_CACHE);
 
         final HaplotypeMap map = new HaplotypeMap(HAPLOTYPE_MAP);
         final FingerprintChecker checker = new FingerprintChecker(map);
 
         checker.setAllowDuplicateReads(ALLOW_DUPLICATE_READS);
+        checker.setFingerprintCacheDirectory(FINGERPRINT_CACHE);
 
 		log.info("Done checking input files, moving onto fingerprinting files.");
 
@@ -176,18 +183,18 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
 		out.println();
 
 		// Print results rows
-		for (final String sample : samples) {
-			out.print(sample);
-			final Fingerprint fp = sampleFps.get(sample);
+		final List<String> sampleList = new ArrayList<>(samples);
+		final CrosscheckMatrix matrix = new CrosscheckMatrix(new ArrayList<>(sampleFps.values()), GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE);
+		matrix.computeRows(NUM_THREADS, false, (row, lods, lodsTumorNormal, lodsNormalTumor) -> {
+			out.print(sampleList.get(row));
 
-			for (final String otherSample : samples) {
-				final MatchResults results = FingerprintChecker.calculateMatchResults(fp, sampleFps.get(otherSample), GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE);
+			for (final double lod : lods) {
 				out.print("\t");
-				out.print(formatUtil.format(results.getLOD()));
+				out.print(formatUtil.format(lod));
 			}
 
 			out.println();
-		}
+		});
 	}
 
     /**
@@ -213,40 +220,44 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
 	 * coming from the same sample.
 	 */
 	private int crossCheckReadGroups(final Map<SAMReadGroupRecord,Fingerprint> fingerprints, final PrintStream out) {
-		int mismatches = 0;
-		int unexpectedMatches = 0;
+		final AtomicInteger mismatches = new AtomicInteger(0);
+		final AtomicInteger unexpectedMatches = new AtomicInteger(0);
 
 		final List<SAMReadGroupRecord> readGroupRecords = new ArrayList<>(fingerprints.keySet());
 		final List<String> output = new ArrayList<>();
 
-		for (int i = 0; i < readGroupRecords.size(); i++) {
+		final List<Fingerprint> readGroupFingerprints = new ArrayList<>(readGroupRecords.size());
+		for (final SAMReadGroupRecord rg : readGroupRecords) readGroupFingerprints.add(fingerprints.get(rg));
+
+		final CrosscheckMatrix matrix = new CrosscheckMatrix(readGroupFingerprints, GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE);
+		matrix.computeRows(NUM_THREADS, true, (i, lods, lodsTumorNormal, lodsNormalTumor) -> {
 			final SAMReadGroupRecord lhsRg = readGroupRecords.get(i);
 			for (int j= i+1; j < readGroupRecords.size(); j++) {
 				final SAMReadGroupRecord rhsRg = readGroupRecords.get(j);
 				final boolean expectedToMatch = EXPECT_ALL_READ_GROUPS_TO_MATCH || lhsRg.getSample().equals(rhsRg.getSample());
 
-				final MatchResults results = FingerprintChecker.calculateMatchResults(fingerprints.get(lhsRg), fingerprints.get(rhsRg), GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE);
+				final double lod = lods[j];
                 if (expectedToMatch) {
-                    if (results.getLOD() < LOD_THRESHOLD) {
-                        mismatches++;
-                        output.add(getMatchDetails(UNEXPECTED_MISMATCH, results, lhsRg, rhsRg));
+                    if (lod < LOD_THRESHOLD) {
+                        mismatches.incrementAndGet();
+                        output.add(getMatchDetails(UNEXPECTED_MISMATCH, lod, lodsTumorNormal[j], lodsNormalTumor[j], lhsRg, rhsRg));
                     } else {
                         if (!OUTPUT_ERRORS_ONLY) {
-                            output.add(getMatchDetails(EXPECTED_MATCH, results, lhsRg, rhsRg));
+                            output.add(getMatchDetails(EXPECTED_MATCH, lod, lodsTumorNormal[j], lodsNormalTumor[j], lhsRg, rhsRg));
                         }
                     }
                 } else {
-                    if (results.getLOD() > -LOD_THRESHOLD) {
-                        unexpectedMatches++;
-                        output.add(getMatchDetails(UNEXPECTED_MATCH, results, lhsRg, rhsRg));
+                    if (lod > -LOD_THRESHOLD) {
+                        unexpectedMatches.incrementAndGet();
+                        output.add(getMatchDetails(UNEXPECTED_MATCH, lod, lodsTumorNormal[j], lodsNormalTumor[j], lhsRg, rhsRg));
                     } else {
                         if (!OUTPUT_ERRORS_ONLY) {
-                            output.add(getMatchDetails(EXPECTED_MISMATCH, results, lhsRg, rhsRg));
+                            output.add(getMatchDetails(EXPECTED_MISMATCH, lod, lodsTumorNormal[j], lodsNormalTumor[j], lhsRg, rhsRg));
                         }
                     }
                 }
 			}
-		}
+		});
 
 		if (!output.isEmpty()) {
 			out.println("RESULT\tLOD_SCORE\tLOD_SCORE_TUMOR_NORMAL\tLOD_SCORE_NORMAL_TUMOR\tLEFT_RUN_BARCODE\tLEFT_LANE\tLEFT_MOLECULAR_BARCODE_SEQUENCE\tLEFT_LIBRARY\tLEFT_SAMPLE\t" +
@@ -254,7 +265,7 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
 			out.println(String.join("\n", output));
 		}
 
-		if (mismatches + unexpectedMatches > 0) {
+		if (mismatches.get() + unexpectedMatches.get() > 0) {
 			log.info("WARNING: At least two read groups did not relate as expected.");
 			return EXIT_CODE_WHEN_MISMATCH;
 		}
@@ -267,17 +278,20 @@ public class CrosscheckReadGroupFingerprints extends CommandLineProgram {
     /**
      * Generates tab delimited string containing details about a possible match between fingerprints on two different SAMReadGroupRecords
      * @param matchResult String describing the match type.
-     * @param results MatchResults object
+     * @param lod the LOD score that the two read groups come from the same individual
+     * @param lodTumorNormal the LOD score when assuming that the left read group is from a tumor and the right from a normal
+     * @param lodNormalTumor the LOD score when assuming that the left read group is from a normal and the right from a tumor
      * @param left left hand side SAMReadGroupRecord
      * @param right right hand side SAMReadGroupRecord
      * @return tab delimited string containing details about a possible match
      */
-    private String getMatchDetails(final String matchResult, final MatchResults results, final SAMReadGroupRecord left, final SAMReadGroupRecord right) {
+    private String getMatchDetails(final String matchResult, final double lod, final double lodTumorNormal, final double lodNormalTumor,
+                                   final SAMReadGroupRecord left, final SAMReadGroupRecord right) {
         final List<String> elements = new ArrayList<>(4);
         elements.add(matchResult);
-        elements.add(formatUtil.format(results.getLOD()));
-        elements.add(formatUtil.format(results.getLodTN()));
-        elements.add(formatUtil.format(results.getLodNT()));
+        elements.add(formatUtil.format(lod));
+        elements.add(formatUtil.format(lodTumorNormal));
+        elements.add(formatUtil.format(lodNormalTumor));
         elements.add(getReadGroupDetails(left));
         elements.add(getReadGroupDetails(right));
         return String.join("\t", elements);
@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.fingerprint;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A directory of stored per-read-group fingerprints of SAM/BAM files, so that a file that has already been fingerprinted
+ * does not need to be read again.
+ *
+ * Each entry is keyed by the MD5 of everything that determines the fingerprints: the file's canonical path, size and
+ * modification time, the MD5 of its header, the haplotype map, the loci that were examined and the settings used to filter
+ * reads and bases.  An entry whose key does not match, or that cannot be read, is treated as missing.
+ *
+ * Entry file format (all values little-endian)
+ * bytes 0-3   : the magic number "FPC" followed by the format version, 1
+ * bytes 4-19  : the MD5 of the key
+ * 32-bit integer - the number of read groups, then for each read group:
+ *   a 32-bit integer length followed by that many bytes of the read group ID
+ *   32-bit integer - the number of haplotype blocks stored, then for each of them:
+ *     32-bit integer - the index of the block in the haplotype map
+ *     3 32-bit integers - the observations of allele 1, of allele 2 and of other alleles
+ *     3 doubles - the log likelihoods of the three diploid haplotypes
+ */
+class FingerprintCache {
+    static final byte[] MAGIC_NUMBER = new byte[]{'F', 'P', 'C', 1};
+    static final String ENTRY_EXTENSION = ".fp";
+
+    private static final int NUM_GENOTYPES = 3;
+
+    private final File directory;
+    private final List<HaplotypeBlock> haplotypeBlocks;
+    private final String haplotypeMapDigest;
+
+    private final Log log = Log.getInstance(FingerprintCache.class);
+
+    FingerprintCache(final File directory, final HaplotypeMap haplotypes) {
+        this.directory = directory;
+        this.haplotypeBlocks = haplotypes.getHaplotypes();
+
+        final StringBuilder map = new StringBuilder();
+        for (final HaplotypeBlock block : haplotypeBlocks) {
+            map.append(block.getMaf()).append('\n');
+            for (final Snp snp : block.getSnps()) {
+                map.append(snp.getName()).append('\t').append(snp.getChrom()).append('\t').append(snp.getPos()).append('\t')
+                        .append(snp.getAlleleString()).append('\t').append(snp.getMaf()).append('\n');
+            }
+        }
+        this.haplotypeMapDigest = md5Hex(map.toString());
+    }
+
+    /**
+     * Returns the key of the fingerprints of a file.
+     *
+     * @param settings describes the settings that were used to filter reads and bases
+     */
+    byte[] key(final File samFile, final SAMFileHeader header, final IntervalList loci, final String settings) {
+        final StringWriter headerText = new StringWriter();
+        new SAMTextHeaderCodec().encode(headerText, header);
+
+        final StringBuilder lociText = new StringBuilder();
+        for (final Interval interval : loci) {
+            lociText.append(interval.getContig()).append(':').append(interval.getStart()).append('-').append(interval.getEnd()).append('\n');
+        }
+
+        final String canonicalPath;
+        try {
+            canonicalPath = samFile.getCanonicalPath();
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Could not resolve the path of " + samFile, e);
+        }
+
+        return md5(canonicalPath + '\n' + samFile.length() + '\n' + samFile.lastModified() + '\n' +
+                md5Hex(headerText.toString()) + '\n' + haplotypeMapDigest + '\n' + md5Hex(lociText.toString()) + '\n' + settings);
+    }
+
+    /**
+     * Returns the stored fingerprints with the given key, built the same way as FingerprintChecker builds them from the file,
+     * or null if there are none.
+     */
+    Map<SAMReadGroupRecord, Fingerprint> read(final byte[] key, final File samFile, final SAMFileHeader header) {
+        final File entry = entryFile(key);
+        if (!entry.exists()) return null;
+
+        final Map<String, SAMReadGroupRecord> readGroupsById = new HashMap<>();
+        for (final SAMReadGroupRecord rg : header.getReadGroups()) readGroupsById.put(rg.getId(), rg);
+
+        BinaryCodec codec = null;
+        try {
+            codec = new BinaryCodec(new BufferedInputStream(new FileInputStream(entry)));
+            final byte[] magicNumber = new byte[MAGIC_NUMBER.length];
+            codec.readBytes(magicNumber);
+            final byte[] storedKey = new byte[key.length];
+            codec.readBytes(storedKey);
+            if (!Arrays.equals(magicNumber, MAGIC_NUMBER) || !Arrays.equals(storedKey, key)) return null;
+
+            final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup = new HashMap<>();
+            final int numReadGroups = codec.readInt();
+            for (int i = 0; i < numReadGroups; i++) {
+                final SAMReadGroupRecord rg = readGroupsById.get(codec.readLengthAndString(false));
+                if (rg == null) return null;
+                final Fingerprint fingerprint = FingerprintChecker.newReadGroupFingerprint(samFile, rg, haplotypeBlocks);
+                fingerprintsByReadGroup.put(rg, fingerprint);
+
+                final int numBlocks = codec.readInt();
+                final double[] logLikelihoods = new double[NUM_GENOTYPES];
+                for (int j = 0; j < numBlocks; j++) {
+                    final int blockIndex = codec.readInt();
+                    if (blockIndex < 0 || blockIndex >= haplotypeBlocks.size()) return null;
+                    final HaplotypeProbabilitiesFromSequence probs =
+                            (HaplotypeProbabilitiesFromSequence) fingerprint.get(haplotypeBlocks.get(blockIndex));
+                    probs.obsAllele1 = codec.readInt();
+                    probs.obsAllele2 = codec.readInt();
+                    probs.obsAlleleOther = codec.readInt();
+                    for (int g = 0; g < NUM_GENOTYPES; g++) logLikelihoods[g] = codec.readDouble();
+                    probs.setLogLikelihoods(logLikelihoods);
+                }
+            }
+            if (fingerprintsByReadGroup.size() != header.getReadGroups().size()) return null;
+            return fingerprintsByReadGroup;
+        } catch (final SAMException | IOException e) {
+            log.warn(e, "Could not read stored fingerprints from " + entry + ", fingerprinting " + samFile + " instead.");
+            return null;
+        } finally {
+            if (codec != null) codec.close();
+        }
+    }
+
+    /** Stores the fingerprints of a file under the given key, replacing any stored with the same key. */
+    void write(final byte[] key, final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup) {
+        final File entry = entryFile(key);
+        try {
+            // Write to a temporary file first so that concurrent readers never see a partial entry.
+            final File tmp = File.createTempFile(entry.getName(), ".tmp", directory);
+            try {
+                final BinaryCodec codec = new BinaryCodec(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    codec.writeBytes(MAGIC_NUMBER);
+                    codec.writeBytes(key);
+                    codec.writeInt(fingerprintsByReadGroup.size());
+                    for (final Map.Entry<SAMReadGroupRecord, Fingerprint> readGroupAndFingerprint : fingerprintsByReadGroup.entrySet()) {
+                        codec.writeString(readGroupAndFingerprint.getKey().getId(), true, false);
+
+                        final Fingerprint fingerprint = readGroupAndFingerprint.getValue();
+                        int numBlocks = 0;
+                        for (final HaplotypeBlock block : haplotypeBlocks) {
+                            if (isStored((HaplotypeProbabilitiesFromSequence) fingerprint.get(block))) ++numBlocks;
+                        }
+                        codec.writeInt(numBlocks);
+                        for (int i = 0; i < haplotypeBlocks.size(); i++) {
+                            final HaplotypeProbabilitiesFromSequence probs = (HaplotypeProbabilitiesFromSequence) fingerprint.get(haplotypeBlocks.get(i));
+                            if (!isStored(probs)) continue;
+                            codec.writeInt(i);
+                            codec.writeInt(probs.obsAllele1);
+                            codec.writeInt(probs.obsAllele2);
+                            codec.writeInt(probs.obsAlleleOther);
+                            for (final double logLikelihood : probs.getLogLikelihoods()) codec.writeDouble(logLikelihood);
+                        }
+                    }
+                } finally {
+                    codec.close();
+                }
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                // Only left behind if the entry could not be written or moved into place.
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (final SAMException | IOException e) {
+            log.warn(e, "Could not store fingerprints in " + entry + ".");
+        }
+    }
+
+    /** Blocks that saw no bases are not stored, since they are recreated as they were. */
+    private static boolean isStored(final HaplotypeProbabilitiesFromSequence probs) {
+        return probs.getTotalObs() > 0 || probs.hasEvidence();
+    }
+
+    private File entryFile(final byte[] key) {
+        final StringBuilder name = new StringBuilder();
+        for (final byte b : key) name.append(String.format("%02x", b & 0xFF));
+        return new File(directory, name + ENTRY_EXTENSION);
+    }
+
+    private static String md5Hex(final String s) {
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : md5(s)) hex.append(String.format("%02x", b & 0xFF));
+        return hex.toString();
+    }
+
+    private static byte[] md5(final String s) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new PicardException("MD5 algorithm not found", e);
+        }
+    }
+}
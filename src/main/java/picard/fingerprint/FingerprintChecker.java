@@ -63,6 +63,7 @@ public class FingerprintChecker {
 
     private boolean allowDuplicateReads = false;
     private double pLossofHet = 0;
+    private FingerprintCache fingerprintCache = null;
 
     private final Log log = Log.getInstance(FingerprintChecker.class);
 
@@ -111,6 +112,14 @@ public class FingerprintChecker {
         this.allowDuplicateReads = allowDuplicateReads;
     }
 
+    /**
+     * Sets a directory in which to store the fingerprints of SAM files, so that a SAM file whose fingerprints are already
+     * stored there, for the same loci and settings, is not read again.  Null, the default, disables storing fingerprints.
+     */
+    public void setFingerprintCacheDirectory(final File directory) {
+        this.fingerprintCache = directory == null ? null : new FingerprintCache(directory, this.haplotypes);
+    }
+
     //sets the value of the probability that a genotype underwent a Loss of Hetrozygosity (for Tumors)
     public void setpLossofHet(final double pLossofHet) {
         this.pLossofHet = pLossofHet;
@@ -287,24 +296,31 @@ public class FingerprintChecker {
             iterator.setSamFilters(filters);
         }
 
+        final byte[] cacheKey;
+        if (this.fingerprintCache != null) {
+            cacheKey = this.fingerprintCache.key(samFile, in.getFileHeader(), loci, "MINIMUM_MAPPING_QUALITY=" + this.minimumMappingQuality +
+                    " MINIMUM_BASE_QUALITY=" + this.minimumBaseQuality + " ALLOW_DUPLICATE_READS=" + this.allowDuplicateReads);
+            final Map<SAMReadGroupRecord, Fingerprint> cached = this.fingerprintCache.read(cacheKey, samFile, in.getFileHeader());
+            if (cached != null) {
+                CloserUtil.close(in);
+                return cached;
+            }
+        }
+        else {
+            cacheKey = null;
+        }
+
         final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup = new HashMap<>();
         final List<SAMReadGroupRecord> rgs = in.getFileHeader().getReadGroups();
 
         for (final SAMReadGroupRecord rg : rgs) {
-            final Fingerprint fingerprint = new Fingerprint(rg.getSample(),
-                                                            samFile,
-                                                            rg.getPlatformUnit() != null ? rg.getPlatformUnit() : rg.getId());
-            fingerprintsByReadGroup.put(rg, fingerprint);
-
-            for (final HaplotypeBlock h : this.haplotypes.getHaplotypes()) {
-                fingerprint.add(new HaplotypeProbabilitiesFromSequence(h));
-            }
+            fingerprintsByReadGroup.put(rg, newReadGroupFingerprint(samFile, rg, this.haplotypes.getHaplotypes()));
         }
 
         // Set of read/template names from which we have already sampled a base and a qual. Since we assume
         // that all evidence for a haplotype is independent we can't sample two or more bases from a single
-        // read or read-pair because they would not be independent!
-        final Set<String> usedReadNames = new HashSet<String>(10000);
+        // read or read-pair because they would not be independent!  Names are dropped once no more reads can share them.
+        final RetiringReadNameSet usedReadNames = new RetiringReadNameSet();
 
         // Now go through the data at each locus and figure stuff out!
         for (final SamLocusIterator.LocusInfo info : iterator) {
@@ -315,6 +331,7 @@ public class FingerprintChecker {
             // Find the matching Snp and HaplotypeProbs
             final HaplotypeBlock haplotypeBlock = this.haplotypes.getHaplotype(info.getSequenceName(), info.getPosition());
             final Snp snp = this.haplotypes.getSnp(info.getSequenceName(), info.getPosition());
+            usedReadNames.retireBefore(info.getSequenceIndex(), info.getPosition());
 
             for (final SamLocusIterator.RecordAndOffset rec : info.getRecordAndOffsets()) {
                 final SAMReadGroupRecord rg = rec.getRecord().getReadGroup();
@@ -324,22 +341,35 @@ public class FingerprintChecker {
                     throw e;
                 }
                 else {
-                    final String readName = rec.getRecord().getReadName();
-                    if (!usedReadNames.contains(readName)) {
+                    if (usedReadNames.add(rec.getRecord())) {
                         final HaplotypeProbabilitiesFromSequence probs = (HaplotypeProbabilitiesFromSequence) fingerprintsByReadGroup.get(rg).get(haplotypeBlock);
                         final byte base = StringUtil.toUpperCase(rec.getReadBase());
                         final byte qual = rec.getBaseQuality();
 
                         probs.addToProbs(snp, base, qual);
-                        usedReadNames.add(readName);
                     }
                 }
             }
         }
 
+        if (this.fingerprintCache != null) {
+            this.fingerprintCache.write(cacheKey, fingerprintsByReadGroup);
+        }
+
         return fingerprintsByReadGroup;
     }
 
+    /** Creates the fingerprint of a read group in a SAM file, with no evidence yet for any of the haplotype blocks. */
+    static Fingerprint newReadGroupFingerprint(final File samFile, final SAMReadGroupRecord rg, final List<HaplotypeBlock> haplotypeBlocks) {
+        final Fingerprint fingerprint = new Fingerprint(rg.getSample(),
+                                                        samFile,
+                                                        rg.getPlatformUnit() != null ? rg.getPlatformUnit() : rg.getId());
+        for (final HaplotypeBlock h : haplotypeBlocks) {
+            fingerprint.add(new HaplotypeProbabilitiesFromSequence(h));
+        }
+        return fingerprint;
+    }
+
     /**
      * Generates a per-sample Fingerprint for the contaminant in the supplied SAM file.
      * Data is aggregated by sample, not read-group.
@@ -379,8 +409,8 @@ public class FingerprintChecker {
 
         // Set of read/template names from which we have already sampled a base and a qual. Since we assume
         // that all evidence for a haplotype is independent we can't sample two or more bases from a single
-        // read or read-pair because they would not be independent!
-        final Set<String> usedReadNames = new HashSet<>(10000);
+        // read or read-pair because they would not be independent!  Names are dropped once no more reads can share them.
+        final RetiringReadNameSet usedReadNames = new RetiringReadNameSet();
 
         // Now go through the data at each locus and figure stuff out!
         for (final SamLocusIterator.LocusInfo info : iterator) {
@@ -388,6 +418,7 @@ public class FingerprintChecker {
             // Find the matching Snp and HaplotypeProbs
             final HaplotypeBlock haplotypeBlock = this.haplotypes.getHaplotype(info.getSequenceName(), info.getPosition());
             final Snp snp = this.haplotypes.getSnp(info.getSequenceName(), info.getPosition());
+            usedReadNames.retireBefore(info.getSequenceIndex(), info.getPosition());
 
             // randomly select locusMaxReads elements from the list
             final List<SamLocusIterator.RecordAndOffset> recordAndOffsetList = randomSublist(info.getRecordAndOffsets(), locusMaxReads);
@@ -399,15 +430,13 @@ public class FingerprintChecker {
                     log.error(e);
                     throw e;
                 } else {
-                    final String readName = rec.getRecord().getReadName();
-                    if (!usedReadNames.contains(readName)) {
+                    if (usedReadNames.add(rec.getRecord())) {
                         final HaplotypeProbabilitiesFromContaminatorSequence probs =
                                 (HaplotypeProbabilitiesFromContaminatorSequence) fingerprintsBySample.get(rg.getSample()).get(haplotypeBlock);
                         final byte base = StringUtil.toUpperCase(rec.getReadBase());
                         final byte qual = rec.getBaseQuality();
 
                         probs.addToProbs(snp, base, qual);
-                        usedReadNames.add(readName);
                     }
                 }
             }
@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.fingerprint;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.SAMUtils;
+
+import java.util.Arrays;
+
+/**
+ * The set of names of the reads (or read pairs) that have already been used as evidence while walking loci in coordinate
+ * order.  Names are held as 64-bit hashes in a primitive open-addressing table, and each is retired once the walk has moved
+ * past the last position at which a record with that name could still be seen, so that the set only holds the names of
+ * reads near the current locus rather than every read in the file.
+ *
+ * A name is kept until the walk passes the end of the record and the end of its mate.  The mate's end is taken from its
+ * MC tag; without one the name is kept until the walk leaves the mate's reference sequence.  Names of records that are, or
+ * that have, supplementary alignments are never retired, since those can appear anywhere.  Only a supplementary alignment
+ * of a mate that never overlapped a locus can therefore be counted after its name was retired.
+ */
+class RetiringReadNameSet {
+    /** The retirement key of names that are never retired. */
+    private static final long NEVER = Long.MAX_VALUE;
+    /** Marks an empty slot in the table; hashes that happen to equal it are stored as EMPTY + 1. */
+    private static final long EMPTY = 0;
+
+    private long[] hashes = new long[1 << 10];
+    /** The key (see {@link #key(int, int)}) of the position after which each name may be retired. */
+    private long[] retireAfter = new long[1 << 10];
+    private int size = 0;
+
+    /** A binary min-heap of retirement keys and the names that they retire. */
+    private long[] heapKeys = new long[1 << 10];
+    private long[] heapHashes = new long[1 << 10];
+    private int heapSize = 0;
+
+    private long lastRetiredBefore = Long.MIN_VALUE;
+
+    /**
+     * Adds the name of the record if it is not already in the set.
+     *
+     * @return true if the name was not already present, i.e. if the record may be used as evidence
+     */
+    boolean add(final SAMRecord rec) {
+        final long hash = hash(rec.getReadName());
+        final long retireKey = retireKey(rec);
+        final int slot = findSlot(hash);
+        if (hashes[slot] != EMPTY) {
+            // A later record may extend how long the name must be kept, e.g. if it has supplementary alignments.
+            if (retireKey > retireAfter[slot]) {
+                retireAfter[slot] = retireKey;
+                pushHeap(retireKey, hash);
+            }
+            return false;
+        }
+
+        hashes[slot] = hash;
+        retireAfter[slot] = retireKey;
+        ++size;
+        pushHeap(retireKey, hash);
+        if (size > hashes.length / 2) rehash(hashes.length * 2);
+        return true;
+    }
+
+    /** Retires every name that cannot be seen at or after the given locus.  Loci must be visited in coordinate order. */
+    void retireBefore(final int referenceIndex, final int position) {
+        final long locusKey = key(referenceIndex, position);
+        if (locusKey <= lastRetiredBefore) return;
+        lastRetiredBefore = locusKey;
+
+        while (heapSize > 0 && heapKeys[0] < locusKey) {
+            final long key = heapKeys[0];
+            final long hash = heapHashes[0];
+            popHeap();
+            final int slot = findSlot(hash);
+            // Skip stale heap entries for names whose retirement was pushed back.
+            if (hashes[slot] != EMPTY && retireAfter[slot] == key) remove(slot);
+        }
+    }
+
+    /** Returns the number of names currently held. */
+    int size() {
+        return size;
+    }
+
+    private static long key(final int referenceIndex, final int position) {
+        return ((long) referenceIndex << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    /** The key of the last position at which a record with the same name as rec could be seen. */
+    private static long retireKey(final SAMRecord rec) {
+        if (rec.getSupplementaryAlignmentFlag() || rec.getAttribute(SAMTag.SA.name()) != null) return NEVER;
+
+        long retireKey = key(rec.getReferenceIndex(), rec.getAlignmentEnd());
+        if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag()) {
+            final int mateEnd = SAMUtils.hasMateCigar(rec) ? SAMUtils.getMateAlignmentEnd(rec) : Integer.MAX_VALUE;
+            retireKey = Math.max(retireKey, key(rec.getMateReferenceIndex(), mateEnd));
+        }
+        return retireKey;
+    }
+
+    private static long hash(final String readName) {
+        // 64-bit FNV-1a over the characters, followed by the MurmurHash3 finalizer to spread the bits.
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < readName.length(); i++) {
+            h ^= readName.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == EMPTY ? EMPTY + 1 : h;
+    }
+
+    /** Returns the slot holding hash, or the empty slot where it would be inserted. */
+    private int findSlot(final long hash) {
+        final int mask = hashes.length - 1;
+        int slot = (int) hash & mask;
+        while (hashes[slot] != EMPTY && hashes[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /** Removes the entry in slot, shifting back any later entries of the same probe sequence. */
+    private void remove(int slot) {
+        final int mask = hashes.length - 1;
+        hashes[slot] = EMPTY;
+        --size;
+        int next = (slot + 1) & mask;
+        while (hashes[next] != EMPTY) {
+            final int home = (int) hashes[next] & mask;
+            // Move the entry back if its home slot is not cyclically within (slot, next].
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                hashes[slot] = hashes[next];
+                retireAfter[slot] = retireAfter[next];
+                hashes[next] = EMPTY;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldHashes = hashes;
+        final long[] oldRetireAfter = retireAfter;
+        hashes = new long[capacity];
+        retireAfter = new long[capacity];
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] == EMPTY) continue;
+            final int slot = findSlot(oldHashes[i]);
+            hashes[slot] = oldHashes[i];
+            retireAfter[slot] = oldRetireAfter[i];
+        }
+    }
+
+    private void pushHeap(final long key, final long hash) {
+        if (key == NEVER) return;
+        if (heapSize == heapKeys.length) {
+            heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+            heapHashes = Arrays.copyOf(heapHashes, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            final int parent = (i - 1) / 2;
+            if (heapKeys[parent] <= key) break;
+            heapKeys[i] = heapKeys[parent];
+            heapHashes[i] = heapHashes[parent];
+            i = parent;
+        }
+        heapKeys[i] = key;
+        heapHashes[i] = hash;
+    }
+
+    private void popHeap() {
+        final long key = heapKeys[--heapSize];
+        final long hash = heapHashes[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) ++child;
+            if (heapKeys[child] >= key) break;
+            heapKeys[i] = heapKeys[child];
+            heapHashes[i] = heapHashes[child];
+            i = child;
+        }
+        heapKeys[i] = key;
+        heapHashes[i] = hash;
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina;
+
+import htsjdk.samtools.util.SequenceUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the expected barcode that best matches the barcode bases of a read, along with the number of mismatches to the best and
+ * second best barcodes, exactly as comparing the read to every expected barcode base by base would.
+ *
+ * When every expected barcode is made of A, C, G and T and the barcodes total at most 32 bases, they are packed two bits per base
+ * into longs, so that the number of mismatches to a barcode is the bit count of an XOR.  Reads without no-calls or low quality bases
+ * are then looked up in a sorted index of every sequence within a few mismatches of an expected barcode, and the second best barcode
+ * is found by walking the best barcode's neighbors in order of their distance to it, stopping once the triangle inequality rules out
+ * the remaining ones.  Everything else falls back to comparing the read to every barcode.
+ *
+ * Instances are immutable once built, so one can be shared by every tile's extractor.
+ */
+class BarcodeMatcher {
+    /** The most sequences that will be placed in the mismatch neighborhood index. */
+    static final int MAX_NEIGHBORHOOD_SIZE = 1 << 20;
+    /** The most barcodes for which the pairwise distances between barcodes will be kept. */
+    static final int MAX_BARCODES_FOR_NEIGHBOR_LISTS = 2048;
+
+    private static final int MAX_PACKED_BASES = 32;
+    private static final long LOW_BITS = 0x5555555555555555L;
+    /** The two bit code for each base, or -1 for bytes that are not A, C, G or T. */
+    private static final byte[] BASE_CODES = new byte[256];
+    static {
+        Arrays.fill(BASE_CODES, (byte) -1);
+        final String bases = "ACGT";
+        for (int i = 0; i < bases.length(); i++) {
+            BASE_CODES[bases.charAt(i)] = (byte) i;
+            BASE_CODES[Character.toLowerCase(bases.charAt(i))] = (byte) i;
+        }
+    }
+
+    /** The result of matching a read. */
+    static class Match {
+        /** The index of the best matching barcode, or -1 if there are no barcodes. */
+        int bestBarcode;
+        int mismatchesInBest;
+        int mismatchesInSecondBest;
+    }
+
+    private final byte[][][] barcodes;
+    private final int minimumBaseQuality;
+
+    /** The lengths of the barcode reads if all barcodes can be packed, or null. */
+    private final int[] packedLengths;
+    private final long[] packedBarcodes;
+
+    /** The sorted distinct sequences in the neighborhood index, or null if there is no index. */
+    private final long[] neighborhoodSequences;
+    /** The barcodes near neighborhoodSequences[i] are in neighborhoodBarcodes[neighborhoodOffsets[i] ... neighborhoodOffsets[i + 1]). */
+    private final int[] neighborhoodOffsets;
+    private final int[] neighborhoodBarcodes;
+
+    /** For each barcode, the other barcodes in increasing order of their distance to it, or null. */
+    private final int[][] neighbors;
+    /** neighborDistances[i][j] is the number of mismatches between barcode i and barcode neighbors[i][j]. */
+    private final byte[][] neighborDistances;
+
+    /**
+     * @param barcodes           the bases of each expected barcode read of each expected barcode, in the order that ties should be broken
+     * @param maxMismatches      the most mismatches a match may have, used to decide how far the neighborhood index should reach
+     * @param minimumBaseQuality bases with lower qualities count as mismatches when qualities are provided
+     */
+    BarcodeMatcher(final List<byte[][]> barcodes, final int maxMismatches, final int minimumBaseQuality) {
+        this.barcodes = barcodes.toArray(new byte[barcodes.size()][][]);
+        this.minimumBaseQuality = minimumBaseQuality;
+
+        this.packedLengths = findPackedLengths(this.barcodes);
+        if (packedLengths == null) {
+            packedBarcodes = null;
+            neighborhoodSequences = null;
+            neighborhoodOffsets = null;
+            neighborhoodBarcodes = null;
+            neighbors = null;
+            neighborDistances = null;
+            return;
+        }
+
+        int totalLength = 0;
+        for (final int length : packedLengths) totalLength += length;
+
+        packedBarcodes = new long[this.barcodes.length];
+        for (int i = 0; i < this.barcodes.length; i++) {
+            long packed = 0;
+            int position = 0;
+            for (final byte[] bases : this.barcodes[i]) {
+                for (final byte base : bases) {
+                    packed |= (long) BASE_CODES[base & 0xFF] << (2 * position++);
+                }
+            }
+            packedBarcodes[i] = packed;
+        }
+
+        // Use the largest neighborhood that stays within bounds.
+        int radius = Math.min(maxMismatches, totalLength);
+        while (radius >= 0 && neighborhoodSize(totalLength, radius) * this.barcodes.length > MAX_NEIGHBORHOOD_SIZE) {
+            --radius;
+        }
+        if (radius >= 0) {
+            final int size = (int) (neighborhoodSize(totalLength, radius) * this.barcodes.length);
+            final long[] sequences = new long[size];
+            final int[] sequenceBarcodes = new int[size];
+            int n = 0;
+            for (int i = 0; i < packedBarcodes.length; i++) {
+                n = addNeighborhood(packedBarcodes[i], i, 0, totalLength, radius, sequences, sequenceBarcodes, n);
+            }
+
+            final long[] distinct = sequences.clone();
+            Arrays.sort(distinct);
+            int numDistinct = 0;
+            for (int i = 0; i < distinct.length; i++) {
+                if (i == 0 || distinct[i] != distinct[i - 1]) distinct[numDistinct++] = distinct[i];
+            }
+            neighborhoodSequences = Arrays.copyOf(distinct, numDistinct);
+
+            // Barcodes are added in increasing order, so each sequence's barcodes end up in increasing order as well.
+            neighborhoodOffsets = new int[numDistinct + 1];
+            for (int i = 0; i < size; i++) {
+                ++neighborhoodOffsets[Arrays.binarySearch(neighborhoodSequences, sequences[i]) + 1];
+            }
+            for (int i = 0; i < numDistinct; i++) {
+                neighborhoodOffsets[i + 1] += neighborhoodOffsets[i];
+            }
+            final int[] next = Arrays.copyOf(neighborhoodOffsets, numDistinct);
+            neighborhoodBarcodes = new int[size];
+            for (int i = 0; i < size; i++) {
+                neighborhoodBarcodes[next[Arrays.binarySearch(neighborhoodSequences, sequences[i])]++] = sequenceBarcodes[i];
+            }
+        } else {
+            neighborhoodSequences = null;
+            neighborhoodOffsets = null;
+            neighborhoodBarcodes = null;
+        }
+
+        if (this.barcodes.length <= MAX_BARCODES_FOR_NEIGHBOR_LISTS) {
+            neighbors = new int[this.barcodes.length][];
+            neighborDistances = new byte[this.barcodes.length][];
+            final int[] distances = new int[this.barcodes.length];
+            for (int i = 0; i < this.barcodes.length; i++) {
+                // Counting sort by distance, which keeps barcodes at the same distance in their original order.
+                final int[] countsAtDistance = new int[totalLength + 2];
+                for (int j = 0; j < this.barcodes.length; j++) {
+                    if (j == i) continue;
+                    distances[j] = distance(packedBarcodes[i], packedBarcodes[j], 0L, 0L);
+                    ++countsAtDistance[distances[j] + 1];
+                }
+                for (int d = 0; d <= totalLength; d++) {
+                    countsAtDistance[d + 1] += countsAtDistance[d];
+                }
+                neighbors[i] = new int[this.barcodes.length - 1];
+                neighborDistances[i] = new byte[this.barcodes.length - 1];
+                for (int j = 0; j < this.barcodes.length; j++) {
+                    if (j == i) continue;
+                    final int slot = countsAtDistance[distances[j]]++;
+                    neighbors[i][slot] = j;
+                    neighborDistances[i][slot] = (byte) distances[j];
+                }
+            }
+        } else {
+            neighbors = null;
+            neighborDistances = null;
+        }
+    }
+
+    /**
+     * Finds the best and second best barcodes for a read.
+     *
+     * @param readSubsequences the bases of each barcode read
+     * @param qualities        the qualities of each barcode read, or null if qualities should not be considered
+     * @param match            receives the result
+     */
+    void findBestBarcode(final byte[][] readSubsequences, final byte[][] qualities, final Match match) {
+        int totalBarcodeReadBases = 0;
+        for (final byte[] bc : readSubsequences) totalBarcodeReadBases += bc.length;
+
+        // PIC-506 When forcing all reads to match a single barcode, allow a read to match even if every
+        // base is a mismatch.
+        match.bestBarcode = -1;
+        match.mismatchesInBest = totalBarcodeReadBases + 1;
+        match.mismatchesInSecondBest = totalBarcodeReadBases + 1;
+
+        if (packedLengths == null || !hasPackedLengths(readSubsequences)) {
+            for (int i = 0; i < barcodes.length; i++) {
+                update(match, i, countMismatches(barcodes[i], readSubsequences, qualities));
+            }
+            return;
+        }
+
+        long read = 0;
+        long noCalls = 0;
+        long alwaysMismatched = 0;
+        int position = 0;
+        for (int j = 0; j < readSubsequences.length; j++) {
+            for (int i = 0; i < readSubsequences[j].length; i++, position++) {
+                final byte base = readSubsequences[j][i];
+                final int code = BASE_CODES[base & 0xFF];
+                if (SequenceUtil.isNoCall(base)) {
+                    noCalls |= 1L << (2 * position);
+                } else if (code < 0 || (qualities != null && qualities[j][i] < minimumBaseQuality)) {
+                    alwaysMismatched |= 1L << (2 * position);
+                } else {
+                    read |= (long) code << (2 * position);
+                }
+            }
+        }
+
+        if (neighborhoodSequences != null && noCalls == 0 && alwaysMismatched == 0) {
+            final int index = Arrays.binarySearch(neighborhoodSequences, read);
+            if (index >= 0) {
+                for (int k = neighborhoodOffsets[index]; k < neighborhoodOffsets[index + 1]; k++) {
+                    final int barcode = neighborhoodBarcodes[k];
+                    update(match, barcode, distance(read, packedBarcodes[barcode], 0L, 0L));
+                }
+
+                // Every barcode outside the neighborhood is further away than every barcode in it, so two barcodes in the
+                // neighborhood are the best two, and with one the second best only needs to be looked for among its neighbors.
+                final int numInNeighborhood = neighborhoodOffsets[index + 1] - neighborhoodOffsets[index];
+                if (numInNeighborhood > 1) return;
+                if (neighbors != null) {
+                    final int best = match.bestBarcode;
+                    final int[] bestNeighbors = neighbors[best];
+                    final byte[] bestNeighborDistances = neighborDistances[best];
+                    for (int k = 0; k < bestNeighbors.length; k++) {
+                        if (bestNeighborDistances[k] - match.mismatchesInBest >= match.mismatchesInSecondBest) break;
+                        final int numMismatches = distance(read, packedBarcodes[bestNeighbors[k]], 0L, 0L);
+                        if (numMismatches < match.mismatchesInSecondBest) match.mismatchesInSecondBest = numMismatches;
+                    }
+                    return;
+                }
+                match.bestBarcode = -1;
+                match.mismatchesInBest = totalBarcodeReadBases + 1;
+                match.mismatchesInSecondBest = totalBarcodeReadBases + 1;
+            }
+        }
+
+        for (int i = 0; i < packedBarcodes.length; i++) {
+            update(match, i, distance(read, packedBarcodes[i], noCalls, alwaysMismatched));
+        }
+    }
+
+    /** Accounts for a barcode, keeping the first of the barcodes with the fewest mismatches as the best. */
+    private static void update(final Match match, final int barcode, final int numMismatches) {
+        if (numMismatches < match.mismatchesInBest) {
+            if (match.bestBarcode != -1) {
+                match.mismatchesInSecondBest = match.mismatchesInBest;
+            }
+            match.mismatchesInBest = numMismatches;
+            match.bestBarcode = barcode;
+        } else if (numMismatches < match.mismatchesInSecondBest) {
+            match.mismatchesInSecondBest = numMismatches;
+        }
+    }
+
+    /** The number of mismatching bases between two packed sequences, ignoring no-calls. */
+    private static int distance(final long read, final long barcode, final long noCalls, final long alwaysMismatched) {
+        final long difference = read ^ barcode;
+        return Long.bitCount((((difference | (difference >>> 1)) & LOW_BITS) | alwaysMismatched) & ~noCalls);
+    }
+
+    /**
+     * Compare barcode sequence to bases from read
+     *
+     * @return how many bases did not match
+     */
+    private int countMismatches(final byte[][] barcodeBytes, final byte[][] readSubsequence, final byte[][] qualities) {
+        int numMismatches = 0;
+        // Read sequence and barcode length may not be equal, so we just use the shorter of the two
+        for (int j = 0; j < barcodeBytes.length; j++) {
+            final int basesToCheck = Math.min(barcodeBytes[j].length, readSubsequence[j].length);
+            for (int i = 0; i < basesToCheck; ++i) {
+                if (!SequenceUtil.isNoCall(readSubsequence[j][i])) {
+                    if (!SequenceUtil.basesEqual(barcodeBytes[j][i], readSubsequence[j][i])) ++numMismatches;
+                    else if (qualities != null && qualities[j][i] < minimumBaseQuality) ++numMismatches;
+                }
+            }
+        }
+        return numMismatches;
+    }
+
+    private boolean hasPackedLengths(final byte[][] readSubsequences) {
+        if (readSubsequences.length != packedLengths.length) return false;
+        for (int j = 0; j < packedLengths.length; j++) {
+            if (readSubsequences[j].length != packedLengths[j]) return false;
+        }
+        return true;
+    }
+
+    /** Returns the lengths of the barcode reads if every barcode has the same lengths and fits in a long, otherwise null. */
+    private static int[] findPackedLengths(final byte[][][] barcodes) {
+        if (barcodes.length == 0) return null;
+        final int[] lengths = new int[barcodes[0].length];
+        int totalLength = 0;
+        for (int j = 0; j < lengths.length; j++) {
+            lengths[j] = barcodes[0][j].length;
+            totalLength += lengths[j];
+        }
+        if (totalLength > MAX_PACKED_BASES) return null;
+
+        for (final byte[][] barcode : barcodes) {
+            if (barcode.length != lengths.length) return null;
+            for (int j = 0; j < lengths.length; j++) {
+                if (barcode[j].length != lengths[j]) return null;
+                for (final byte base : barcode[j]) {
+                    if (BASE_CODES[base & 0xFF] < 0) return null;
+                }
+            }
+        }
+        return lengths;
+    }
+
+    /** The number of sequences of the given length within radius mismatches of a sequence. */
+    private static long neighborhoodSize(final int length, final int radius) {
+        long size = 0;
+        long sequencesWithMismatches = 1;
+        for (int mismatches = 0; mismatches <= radius; mismatches++) {
+            size += sequencesWithMismatches;
+            if (size > MAX_NEIGHBORHOOD_SIZE) return MAX_NEIGHBORHOOD_SIZE + 1;
+            sequencesWithMismatches = sequencesWithMismatches * (length - mismatches) / (mismatches + 1) * 3;
+        }
+        return size;
+    }
+
+    /** Adds the sequence and every sequence that differs from it at up to radius positions at or after start. */
+    private static int addNeighborhood(final long sequence, final int barcode, final int start, final int length, final int radius,
+                                       final long[] sequences, final int[] sequenceBarcodes, int n) {
+        sequences[n] = sequence;
+        sequenceBarcodes[n++] = barcode;
+        if (radius == 0) return n;
+        for (int position = start; position < length; position++) {
+            final int shift = 2 * position;
+            final long cleared = sequence & ~(3L << shift);
+            final long code = (sequence >>> shift) & 3L;
+            for (long other = 0; other < 4; other++) {
+                if (other == code) continue;
+                n = addNeighborhood(cleared | (other << shift), barcode, position + 1, length, radius - 1, sequences, sequenceBarcodes, n);
+            }
+        }
+        return n;
+    }
+}
@@ -25,6 +25,7 @@ package picard.illumina;
 
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.BinaryCodec;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.SequenceUtil;
@@ -42,11 +43,14 @@ import picard.illumina.parser.ReadDescriptor;
 import picard.illumina.parser.ReadStructure;
 import picard.illumina.parser.ReadType;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.BinaryBarcodeFileReader;
 import picard.util.IlluminaUtil;
 import picard.util.TabbedTextFileWithHeaderParser;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -70,6 +74,9 @@ import java.util.concurrent.TimeUnit;
  * but we're close to the threshold of calling it a match we output the barcode that would have been
  * matched but in lower case
  *
+ * With BARCODE_FILE_FORMAT=BINARY, s_<lane>_<tile>_barcode.bin files are written instead, in the format described by
+ * {@link BinaryBarcodeFileReader}.
+ *
  * @author jburke@broadinstitute.org
  */
 @CommandLineProgramProperties(
@@ -130,7 +137,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
     @Option(doc = "The Illumina basecalls directory. ", shortName = "B")
     public File BASECALLS_DIR;
 
-    @Option(doc = "Where to write _barcode.txt files.  By default, these are written to BASECALLS_DIR.", optional = true)
+    @Option(doc = "Where to write _barcode.txt or _barcode.bin files.  By default, these are written to BASECALLS_DIR.", optional = true)
     public File OUTPUT_DIR;
 
     @Option(doc = "Lane number. ", shortName = StandardOptionDefinitions.LANE_SHORT_NAME)
@@ -170,6 +177,16 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
     @Option(shortName = "GZIP", doc = "Compress output s_l_t_barcode.txt files using gzip and append a .gz extension to the file names.")
     public boolean COMPRESS_OUTPUTS = false;
 
+    @Option(doc = "The format of the per-tile barcode files.  TEXT writes s_l_t_barcode.txt files.  BINARY writes smaller, fixed-width " +
+            "s_l_t_barcode.bin files that can be read by the basecalls conversion programs, but that do not include the read bases " +
+            "at the barcode position.  COMPRESS_OUTPUTS may only be used with TEXT.")
+    public BarcodeFileFormat BARCODE_FILE_FORMAT = BarcodeFileFormat.TEXT;
+
+    /** The formats in which per-tile barcode files can be written. */
+    public enum BarcodeFileFormat {
+        TEXT, BINARY
+    }
+
     @Option(doc = "Run this many PerTileBarcodeExtractors in parallel.  If NUM_PROCESSORS = 0, number of cores is automatically set to " +
             "the number of cores available on the machine. If NUM_PROCESSORS < 0 then the number of cores used will be " +
             "the number available on the machine less NUM_PROCESSORS.")
@@ -224,6 +241,12 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         LOG.info("Processing with " + numProcessors + " PerTileBarcodeExtractor(s).");
         final ExecutorService pool = Executors.newFixedThreadPool(numProcessors);
 
+        final List<byte[][]> barcodeBytes = new ArrayList<byte[][]>(barcodeToMetrics.size());
+        for (final BarcodeMetric barcodeMetric : barcodeToMetrics.values()) {
+            barcodeBytes.add(barcodeMetric.barcodeBytes);
+        }
+        final BarcodeMatcher barcodeMatcher = new BarcodeMatcher(barcodeBytes, MAX_MISMATCHES, MINIMUM_BASE_QUALITY);
+
         // TODO: This is terribly inefficient; we're opening a huge number of files via the extractor constructor and we never close them.
         final List<PerTileBarcodeExtractor> extractors = new ArrayList<PerTileBarcodeExtractor>(factory.getAvailableTiles().size());
         for (final int tile : factory.getAvailableTiles()) {
@@ -233,6 +256,8 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                     barcodeToMetrics,
                     noMatchMetric,
                     factory,
+                    barcodeMatcher,
+                    BARCODE_FILE_FORMAT,
                     MINIMUM_BASE_QUALITY,
                     MAX_NO_CALLS,
                     MAX_MISMATCHES,
@@ -352,7 +377,8 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
     /** Create a barcode filename corresponding to the given tile qseq file. */
     private File getBarcodeFile(final int tile) {
         return new File(OUTPUT_DIR,
-                "s_" + LANE + "_" + tileNumberFormatter.format(tile) + "_barcode.txt" + (COMPRESS_OUTPUTS ? ".gz" : ""));
+                "s_" + LANE + "_" + tileNumberFormatter.format(tile) +
+                        (BARCODE_FILE_FORMAT == BarcodeFileFormat.BINARY ? "_barcode.bin" : "_barcode.txt" + (COMPRESS_OUTPUTS ? ".gz" : "")));
     }
 
     /**
@@ -394,6 +420,9 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         if (barcodeToMetrics.keySet().isEmpty()) {
             messages.add("No barcodes have been specified.");
         }
+        if (COMPRESS_OUTPUTS && BARCODE_FILE_FORMAT != BarcodeFileFormat.TEXT) {
+            messages.add("COMPRESS_OUTPUTS may only be used with BARCODE_FILE_FORMAT=" + BarcodeFileFormat.TEXT + ".");
+        }
         if (messages.isEmpty()) {
             return null;
         }
@@ -551,17 +580,24 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         private final int tile;
         private final File barcodeFile;
         private final Map<String, BarcodeMetric> metrics;
+        /** The metrics in the same order as the barcodes given to the barcodeMatcher. */
+        private final BarcodeMetric[] metricsByIndex;
+        private final BarcodeMatcher barcodeMatcher;
+        private final BarcodeMatcher.Match barcodeMatcherMatch = new BarcodeMatcher.Match();
+        private final BarcodeFileFormat barcodeFileFormat;
         private final BarcodeMetric noMatch;
         private Exception exception = null;
         private final boolean usingQualityScores;
         private final IlluminaDataProvider provider;
         private final ReadStructure outputReadStructure;
-        private final int maxNoCalls, maxMismatches, minMismatchDelta, minimumBaseQuality;
+        private final int maxNoCalls, maxMismatches, minMismatchDelta;
 
         /** Utility class to hang onto data about the best match for a given barcode */
         class BarcodeMatch {
             boolean matched;
             String barcode;
+            /** The index of barcode in the barcodeMatcher, or -1 if barcode is empty. */
+            int barcodeIndex;
             int mismatches;
             int mismatchesToSecondBest;
         }
@@ -573,6 +609,8 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
          * @param barcodeFile      The file to write the barcodes to
          * @param noMatchMetric    A "template" metric that is cloned and the clone is stored internally for accumulating data
          * @param barcodeToMetrics A "template" metric map whose metrics are cloned, and the clones are stored internally for accumulating data
+         * @param barcodeMatcher   Matches reads to the barcodes of barcodeToMetrics, in the same order
+         * @param barcodeFileFormat The format in which to write the barcode file
          */
         public PerTileBarcodeExtractor(
                 final int tile,
@@ -580,6 +618,8 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 final Map<String, BarcodeMetric> barcodeToMetrics,
                 final BarcodeMetric noMatchMetric,
                 final IlluminaDataProviderFactory factory,
+                final BarcodeMatcher barcodeMatcher,
+                final BarcodeFileFormat barcodeFileFormat,
                 final int minimumBaseQuality,
                 final int maxNoCalls,
                 final int maxMismatches,
@@ -591,11 +631,13 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
             this.maxNoCalls = maxNoCalls;
             this.maxMismatches = maxMismatches;
             this.minMismatchDelta = minMismatchDelta;
-            this.minimumBaseQuality = minimumBaseQuality;
             this.metrics = new LinkedHashMap<String, BarcodeMetric>(barcodeToMetrics.size());
             for (final String key : barcodeToMetrics.keySet()) {
                 this.metrics.put(key, BarcodeMetric.copy(barcodeToMetrics.get(key)));
             }
+            this.metricsByIndex = this.metrics.values().toArray(new BarcodeMetric[this.metrics.size()]);
+            this.barcodeMatcher = barcodeMatcher;
+            this.barcodeFileFormat = barcodeFileFormat;
             this.noMatch = BarcodeMetric.copy(noMatchMetric);
             this.provider = factory.makeDataProvider(Arrays.asList(tile));
             this.outputReadStructure = factory.getOutputReadStructure();
@@ -623,7 +665,8 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 //Most likely we have SKIPS in our read structure since we replace all template reads with skips in the input data structure
                 //(see customCommnandLineValidation), therefore we must use the outputReadStructure to index into the output cluster data
                 final int[] barcodeIndices = outputReadStructure.sampleBarcodes.getIndices();
-                final BufferedWriter writer = IOUtil.openFileForBufferedWriting(barcodeFile);
+                final BarcodeFileWriter writer = barcodeFileFormat == BarcodeFileFormat.BINARY ?
+                        new BinaryBarcodeFileWriter(barcodeFile, tile, metricsByIndex) : new TextBarcodeFileWriter(barcodeFile);
                 final byte[][] barcodeSubsequences = new byte[barcodeIndices.length][];
                 final byte[][] qualityScores = usingQualityScores ? new byte[barcodeIndices.length][] : null;
                 while (provider.hasNext()) {
@@ -634,16 +677,8 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                         if (usingQualityScores) qualityScores[i] = cluster.getRead(barcodeIndices[i]).getQualities();
                     }
                     final boolean passingFilter = cluster.isPf();
-                    final BarcodeMatch match = findBestBarcodeAndUpdateMetrics(barcodeSubsequences, qualityScores, passingFilter, metrics, noMatch);
-
-                    final String yOrN = (match.matched ? "Y" : "N");
-
-                    for (final byte[] bc : barcodeSubsequences) {
-                        writer.write(StringUtil.bytesToString(bc));
-                    }
-                    writer.write("\t" + yOrN + "\t" + match.barcode + "\t" + String.valueOf(match.mismatches) +
-                            "\t" + String.valueOf(match.mismatchesToSecondBest));
-                    writer.newLine();
+                    final BarcodeMatch match = findBestBarcodeAndUpdateMetrics(barcodeSubsequences, qualityScores, passingFilter, noMatch);
+                    writer.write(barcodeSubsequences, match);
                 }
                 writer.close();
             } catch (final Exception e) {
@@ -665,9 +700,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         private BarcodeMatch findBestBarcodeAndUpdateMetrics(final byte[][] readSubsequences,
                                                              final byte[][] qualityScores,
                                                              final boolean passingFilter,
-                                                             final Map<String, BarcodeMetric> metrics,
                                                              final BarcodeMetric noMatchBarcodeMetric) {
-            BarcodeMetric bestBarcodeMetric = null;
             int totalBarcodeReadBases = 0;
             int numNoCalls = 0; // NoCalls are calculated for all the barcodes combined
 
@@ -676,23 +709,11 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 for (final byte b : bc) if (SequenceUtil.isNoCall(b)) ++numNoCalls;
             }
 
-            // PIC-506 When forcing all reads to match a single barcode, allow a read to match even if every
-            // base is a mismatch.
-            int numMismatchesInBestBarcode = totalBarcodeReadBases + 1;
-            int numMismatchesInSecondBestBarcode = totalBarcodeReadBases + 1;
-
-            for (final BarcodeMetric barcodeMetric : metrics.values()) {
-                final int numMismatches = countMismatches(barcodeMetric.barcodeBytes, readSubsequences, qualityScores);
-                if (numMismatches < numMismatchesInBestBarcode) {
-                    if (bestBarcodeMetric != null) {
-                        numMismatchesInSecondBestBarcode = numMismatchesInBestBarcode;
-                    }
-                    numMismatchesInBestBarcode = numMismatches;
-                    bestBarcodeMetric = barcodeMetric;
-                } else if (numMismatches < numMismatchesInSecondBestBarcode) {
-                    numMismatchesInSecondBestBarcode = numMismatches;
-                }
-            }
+            barcodeMatcher.findBestBarcode(readSubsequences, qualityScores, barcodeMatcherMatch);
+            final int numMismatchesInBestBarcode = barcodeMatcherMatch.mismatchesInBest;
+            final int numMismatchesInSecondBestBarcode = barcodeMatcherMatch.mismatchesInSecondBest;
+            final BarcodeMetric bestBarcodeMetric =
+                    barcodeMatcherMatch.bestBarcode == -1 ? null : metricsByIndex[barcodeMatcherMatch.bestBarcode];
 
             final boolean matched = bestBarcodeMetric != null &&
                     numNoCalls <= maxNoCalls &&
@@ -707,9 +728,11 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 match.mismatches = numMismatchesInBestBarcode;
                 match.mismatchesToSecondBest = numMismatchesInSecondBestBarcode;
                 match.barcode = bestBarcodeMetric.BARCODE.toLowerCase().replaceAll(IlluminaUtil.BARCODE_DELIMITER, "");
+                match.barcodeIndex = barcodeMatcherMatch.bestBarcode;
             } else {
                 match.mismatches = totalBarcodeReadBases;
                 match.barcode = "";
+                match.barcodeIndex = -1;
             }
 
             if (matched) {
@@ -731,6 +754,7 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
 
                 match.matched = true;
                 match.barcode = bestBarcodeMetric.BARCODE.replaceAll(IlluminaUtil.BARCODE_DELIMITER, "");
+                match.barcodeIndex = barcodeMatcherMatch.bestBarcode;
             } else {
                 ++noMatchBarcodeMetric.READS;
                 if (passingFilter) {
@@ -741,24 +765,69 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
             return match;
         }
 
-        /**
-         * Compare barcode sequence to bases from read
-         *
-         * @return how many bases did not match
-         */
-        private int countMismatches(final byte[][] barcodeBytes, final byte[][] readSubsequence, final byte[][] qualities) {
-            int numMismatches = 0;
-            // Read sequence and barcode length may not be equal, so we just use the shorter of the two
-            for (int j = 0; j < barcodeBytes.length; j++) {
-                final int basesToCheck = Math.min(barcodeBytes[j].length, readSubsequence[j].length);
-                for (int i = 0; i < basesToCheck; ++i) {
-                    if (!SequenceUtil.isNoCall(readSubsequence[j][i])) {
-                        if (!SequenceUtil.basesEqual(barcodeBytes[j][i], readSubsequence[j][i])) ++numMismatches;
-                        else if (qualities != null && qualities[j][i] < minimumBaseQuality) ++numMismatches;
-                    }
+        /** Writes one tile's barcode file, one cluster at a time. */
+        private interface BarcodeFileWriter {
+            void write(byte[][] barcodeSubsequences, BarcodeMatch match) throws IOException;
+
+            void close() throws IOException;
+        }
+
+        /** Writes a tab-delimited line per cluster, as described in the class documentation. */
+        private static class TextBarcodeFileWriter implements BarcodeFileWriter {
+            private final BufferedWriter writer;
+
+            TextBarcodeFileWriter(final File barcodeFile) {
+                this.writer = IOUtil.openFileForBufferedWriting(barcodeFile);
+            }
+
+            @Override
+            public void write(final byte[][] barcodeSubsequences, final BarcodeMatch match) throws IOException {
+                for (final byte[] bc : barcodeSubsequences) {
+                    writer.write(StringUtil.bytesToString(bc));
+                }
+                writer.write('\t');
+                writer.write(match.matched ? "Y" : "N");
+                writer.write('\t');
+                writer.write(match.barcode);
+                writer.write('\t');
+                writer.write(Integer.toString(match.mismatches));
+                writer.write('\t');
+                writer.write(Integer.toString(match.mismatchesToSecondBest));
+                writer.newLine();
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        }
+
+        /** Writes a fixed-width record per cluster, in the format read by {@link BinaryBarcodeFileReader}. */
+        private static class BinaryBarcodeFileWriter implements BarcodeFileWriter {
+            private final BinaryCodec codec;
+
+            BinaryBarcodeFileWriter(final File barcodeFile, final int tile, final BarcodeMetric[] barcodeMetrics) {
+                this.codec = new BinaryCodec(new BufferedOutputStream(IOUtil.openFileForWriting(barcodeFile)));
+                codec.writeBytes(BinaryBarcodeFileReader.MAGIC_NUMBER);
+                codec.writeInt(tile);
+                codec.writeInt(barcodeMetrics.length);
+                for (final BarcodeMetric barcodeMetric : barcodeMetrics) {
+                    codec.writeString(barcodeMetric.BARCODE.replaceAll(IlluminaUtil.BARCODE_DELIMITER, ""), true, false);
                 }
             }
-            return numMismatches;
+
+            @Override
+            public void write(final byte[][] barcodeSubsequences, final BarcodeMatch match) {
+                codec.writeInt(match.barcodeIndex);
+                codec.writeByte(match.matched ? 1 : 0);
+                codec.writeShort((short) match.mismatches);
+                codec.writeShort((short) match.mismatchesToSecondBest);
+            }
+
+            @Override
+            public void close() {
+                codec.close();
+            }
         }
     }
 }
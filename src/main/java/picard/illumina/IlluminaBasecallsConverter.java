@@ -43,6 +43,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -56,6 +57,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
@@ -125,6 +127,8 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
     private ClusterDataConverter<CLUSTER_OUTPUT_RECORD> converter = null;
     private final ProgressLogger readProgressLogger = new ProgressLogger(log, 1000000, "Read");
     private final ProgressLogger writeProgressLogger = new ProgressLogger(log, 1000000, "Write");
+    /** Reader and writer threads report progress in batches of this many records to limit contention on the loggers. */
+    private static final int PROGRESS_BATCH_SIZE = 1000;
     private int numThreads;
     // If FORCE_GC, this is non-null.  For production this is not necessary because it will run until the JVM
     // ends, but for unit testing it is desirable to stop the task when done with this instance.
@@ -132,6 +136,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
     private List<Integer> tiles;
     private final boolean includeNonPfReads;
     private final boolean ignoreUnexpectedBarcodes;
+    private boolean bufferTilesInMemory = false;
 
     private final SortingCollection.Codec<CLUSTER_OUTPUT_RECORD> codecPrototype;
     // Annoying that we need this.
@@ -290,6 +295,16 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         this.converter = converter;
     }
 
+    /**
+     * If true, each tile's records are held in memory and sorted there when the tile has been read, instead of being
+     * added to SortingCollections that spill to tmpDirs.  The output is the same.  To bound memory, no more tiles are
+     * read ahead than there are threads, so the heap must be able to hold that many tiles' records.  Must be called
+     * before doTileProcessing.
+     */
+    public void setBufferTilesInMemory(final boolean bufferTilesInMemory) {
+        this.bufferTilesInMemory = bufferTilesInMemory;
+    }
+
     /**
      * In case caller needs to get some info from factory.
      */
@@ -397,41 +412,101 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
     }
 
 
+    /**
+     * The records read from one tile for one barcode, handed back in the order given by outputRecordComparator.
+     */
+    private interface TileBarcodeRecords<RECORD> extends Iterable<RECORD> {
+        void add(final RECORD record);
+
+        /** Called once all of the records have been added, and before iterating. */
+        void doneAdding();
+
+        /** Called once the records have been written, to free memory and temporary files. */
+        void cleanup();
+    }
+
+    /**
+     * Sorts the records with a SortingCollection, which spills to tmpDirs once it holds more than its share of
+     * maxReadsInRamPerTile.
+     */
+    private class SortingCollectionRecords implements TileBarcodeRecords<CLUSTER_OUTPUT_RECORD> {
+        private final SortingCollection<CLUSTER_OUTPUT_RECORD> records;
+
+        SortingCollectionRecords() {
+            final int maxRecordsInRam =
+                    Math.max(1, maxReadsInRamPerTile /
+                            barcodeRecordWriterMap.size());
+            this.records = SortingCollection.newInstance(
+                    outputRecordClass,
+                    codecPrototype.clone(),
+                    outputRecordComparator,
+                    maxRecordsInRam,
+                    tmpDirs);
+        }
+
+        public void add(final CLUSTER_OUTPUT_RECORD record) { records.add(record); }
+
+        public void doneAdding() { records.doneAdding(); }
+
+        public Iterator<CLUSTER_OUTPUT_RECORD> iterator() { return records.iterator(); }
+
+        public void cleanup() { records.cleanup(); }
+    }
+
+    /**
+     * Holds the records in a list which is sorted in memory once they have all been added.
+     */
+    private class InMemoryRecords implements TileBarcodeRecords<CLUSTER_OUTPUT_RECORD> {
+        private List<CLUSTER_OUTPUT_RECORD> records = new ArrayList<CLUSTER_OUTPUT_RECORD>();
+
+        public void add(final CLUSTER_OUTPUT_RECORD record) { records.add(record); }
+
+        public void doneAdding() { Collections.sort(records, outputRecordComparator); }
+
+        public Iterator<CLUSTER_OUTPUT_RECORD> iterator() { return records.iterator(); }
+
+        public void cleanup() { records = null; }
+    }
+
     /**
      * Represents the state of a tile's processing and encapsulates the data collected from that tile.
      * <p/>
-     * TileProcessingRecords are accessed from each worker thread to assess the progress of the run, so its methods
-     * are synchronized.
+     * Each tile is read by exactly one TileReader, which owns the tile's record collections until it marks the tile
+     * DONE_READING, so adding records takes no locks.  Other threads only look at the collections and barcode states
+     * after seeing that state, and the volatile write of the state publishes everything the reader did before it.
+     * The set of barcodes is fixed from then on, but their states change concurrently, so each is held in an
+     * AtomicReference.
      */
     private class TileProcessingRecord {
-        final private Map<String, SortingCollection<CLUSTER_OUTPUT_RECORD>> barcodeToRecordCollection =
-                new HashMap<String, SortingCollection<CLUSTER_OUTPUT_RECORD>>();
-        final private Map<String, TileBarcodeProcessingState> barcodeToProcessingState = new HashMap<String, TileBarcodeProcessingState>();
-        private TileProcessingState state = TileProcessingState.NOT_DONE_READING;
+        final private Map<String, TileBarcodeRecords<CLUSTER_OUTPUT_RECORD>> barcodeToRecordCollection =
+                new HashMap<String, TileBarcodeRecords<CLUSTER_OUTPUT_RECORD>>();
+        final private Map<String, AtomicReference<TileBarcodeProcessingState>> barcodeToProcessingState =
+                new HashMap<String, AtomicReference<TileBarcodeProcessingState>>();
+        private volatile TileProcessingState state = TileProcessingState.NOT_DONE_READING;
         private long recordCount = 0;
 
         /**
          * Returns the state of this tile's processing.
          */
-        public synchronized TileProcessingState getState() {
+        public TileProcessingState getState() {
             return this.state;
         }
 
         /**
          * Sets the state of this tile's processing.
          */
-        public synchronized void setState(final TileProcessingState state) {
+        public void setState(final TileProcessingState state) {
             this.state = state;
         }
 
         /**
-         * Adds the provided record to this tile.
+         * Adds the provided record to this tile.  Only to be called by the tile's reader.
          */
-        public synchronized void addRecord(final String barcode, final CLUSTER_OUTPUT_RECORD record) {
+        public void addRecord(final String barcode, final CLUSTER_OUTPUT_RECORD record) {
             this.recordCount += 1;
 
             // Grab the existing collection, or initialize it if it doesn't yet exist
-            SortingCollection<CLUSTER_OUTPUT_RECORD> recordCollection = this.barcodeToRecordCollection.get(barcode);
+            TileBarcodeRecords<CLUSTER_OUTPUT_RECORD> recordCollection = this.barcodeToRecordCollection.get(barcode);
             if (recordCollection == null) {
                 // TODO: The implementation here for supporting ignoreUnexpectedBarcodes is not efficient,
                 // but the alternative is an extensive rewrite.  We are living with the inefficiency for
@@ -442,43 +517,57 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                     }
                     throw new PicardException(String.format("Read records with barcode %s, but this barcode was not expected.  (Is it referenced in the parameters file?)", barcode));
                 }
-                recordCollection = this.newSortingCollection();
+                recordCollection = this.newRecordCollection();
                 this.barcodeToRecordCollection.put(barcode, recordCollection);
-                this.barcodeToProcessingState.put(barcode, null);
             }
             recordCollection.add(record);
         }
 
-        private synchronized SortingCollection<CLUSTER_OUTPUT_RECORD> newSortingCollection() {
-            final int maxRecordsInRam =
-                    Math.max(1, maxReadsInRamPerTile /
-                            barcodeRecordWriterMap.size());
-            return SortingCollection.newInstance(
-                    outputRecordClass,
-                    codecPrototype.clone(),
-                    outputRecordComparator,
-                    maxRecordsInRam,
-                    tmpDirs);
+        private TileBarcodeRecords<CLUSTER_OUTPUT_RECORD> newRecordCollection() {
+            return bufferTilesInMemory ? new InMemoryRecords() : new SortingCollectionRecords();
+        }
+
+        /**
+         * Finishes adding to each barcode's records, marks each barcode READ and then marks this tile DONE_READING.
+         * Only to be called by the tile's reader, once it has added all of the tile's records.
+         */
+        public void completeReading() {
+            for (final Map.Entry<String, TileBarcodeRecords<CLUSTER_OUTPUT_RECORD>> entry : this.barcodeToRecordCollection.entrySet()) {
+                entry.getValue().doneAdding();
+                this.barcodeToProcessingState.put(entry.getKey(), new AtomicReference<TileBarcodeProcessingState>(TileBarcodeProcessingState.READ));
+            }
+            this.setState(TileProcessingState.DONE_READING);
+        }
+
+        /**
+         * Returns true if this tile has been read and all of its barcodes' records have been written.
+         */
+        public boolean isWritten() {
+            if (this.getState() != TileProcessingState.DONE_READING) return false;
+            for (final String barcode : this.getBarcodes()) {
+                if (this.getBarcodeState(barcode) != TileBarcodeProcessingState.WRITTEN) return false;
+            }
+            return true;
         }
 
         /**
          * Returns the number of unique barcodes read.
          */
-        public synchronized long getBarcodeCount() {
+        public long getBarcodeCount() {
             return this.barcodeToRecordCollection.size();
         }
 
         /**
          * Returns the number of records read.
          */
-        public synchronized long getRecordCount() {
+        public long getRecordCount() {
             return recordCount;
         }
 
         /**
          * Returns the mapping of barcodes to records associated with them.
          */
-        public synchronized Map<String, SortingCollection<CLUSTER_OUTPUT_RECORD>> getBarcodeRecords() {
+        public Map<String, TileBarcodeRecords<CLUSTER_OUTPUT_RECORD>> getBarcodeRecords() {
             return barcodeToRecordCollection;
         }
 
@@ -488,21 +577,14 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
          *
          * @throws IllegalStateException When a barcode is queried before the tile is in the DONE_READING state
          */
-        public synchronized TileBarcodeProcessingState getBarcodeState(final String barcode) {
+        public TileBarcodeProcessingState getBarcodeState(final String barcode) {
             if (this.getState() == TileProcessingState.NOT_DONE_READING) {
                 throw new IllegalStateException(
                         "A tile's barcode data's state cannot be queried until the tile has been completely read.");
             }
 
-            if (this.barcodeToProcessingState.containsKey(barcode)) {
-                return this.barcodeToProcessingState.get(barcode);
-            } else {
-                return TileBarcodeProcessingState.NA;
-            }
-        }
-
-        public synchronized Map<String, TileBarcodeProcessingState> getBarcodeProcessingStates() {
-            return this.barcodeToProcessingState;
+            final AtomicReference<TileBarcodeProcessingState> state = this.barcodeToProcessingState.get(barcode);
+            return state == null ? TileBarcodeProcessingState.NA : state.get();
         }
 
         /**
@@ -510,12 +592,12 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
          *
          * @throws java.util.NoSuchElementException When the provided barcode is not one associated with this record.
          */
-        public synchronized void setBarcodeState(final String barcode, final TileBarcodeProcessingState state) {
-            if (this.barcodeToProcessingState.containsKey(barcode)) {
-                this.barcodeToProcessingState.put(barcode, state);
-            } else {
+        public void setBarcodeState(final String barcode, final TileBarcodeProcessingState state) {
+            final AtomicReference<TileBarcodeProcessingState> barcodeState = this.barcodeToProcessingState.get(barcode);
+            if (barcodeState == null) {
                 throw new NoSuchElementException(String.format("No record of the provided barcode, %s.", barcode));
             }
+            barcodeState.set(state);
         }
 
         /**
@@ -523,7 +605,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
          *
          * @return
          */
-        public synchronized Set<String> getBarcodes() {
+        public Set<String> getBarcodes() {
             return this.getBarcodeRecords().keySet();
         }
     }
@@ -551,15 +633,20 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             final IlluminaDataProvider dataProvider = factory.makeDataProvider(Arrays.asList(this.tile.getNumber()));
             log.debug(String.format("Reading data from tile %s ...", tile.getNumber()));
 
+            int unrecordedReads = 0;
             while (dataProvider.hasNext()) {
                 final ClusterData cluster = dataProvider.next();
-                readProgressLogger.record(null, 0);
+                if (++unrecordedReads == PROGRESS_BATCH_SIZE) {
+                    recordProgress(readProgressLogger, unrecordedReads);
+                    unrecordedReads = 0;
+                }
                 // If this cluster is passing, or we do NOT want to ONLY emit passing reads, then add it to the next
                 if (cluster.isPf() || includeNonPfReads) {
                     final String barcode = (demultiplex ? cluster.getMatchedBarcode() : null);
                     this.processingRecord.addRecord(barcode, converter.convertClusterToOutputRecord(cluster));
                 }
             }
+            recordProgress(readProgressLogger, unrecordedReads);
 
             this.handler.completeTile(this.tile);
             dataProvider.close();
@@ -615,6 +702,14 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         private final Object workEnqueueMonitor = new Object();
         private final AtomicBoolean submitted = new AtomicBoolean(false);
 
+        /**
+         * Tile readers waiting to be submitted, in tile order.  When tiles are buffered in memory, only as many tiles
+         * as there are threads may be read ahead of the writing; otherwise every reader is submitted at once.
+         */
+        private final Queue<Runnable> unsubmittedReaders = new LinkedList<Runnable>();
+        private final int maxTilesInFlight = bufferTilesInMemory ? numThreads : Integer.MAX_VALUE;
+        private int numTilesSubmitted = 0;
+
 
         /**
          * Creates a TileReadAggregator that reads from the provided tiles.
@@ -650,7 +745,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             int priority = 0;
             for (final Tile tile : this.tileRecords.keySet()) {
                 final TileReader reader = new TileReader(tile, this, this.tileRecords.get(tile));
-                this.prioritizingThreadPool.execute(new PriorityRunnable(--priority) {
+                this.unsubmittedReaders.add(new PriorityRunnable(--priority) {
                     @Override
                     public void run() {
                         try {
@@ -670,6 +765,28 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                     }
                 });
             }
+
+            synchronized (this.workEnqueueMonitor) {
+                this.submitReaders();
+            }
+        }
+
+        /**
+         * Submits tile readers, in tile order, until as many tiles are in flight (submitted for reading but not yet
+         * completely written) as are allowed.  Must be called while holding workEnqueueMonitor.
+         */
+        private void submitReaders() {
+            int numTilesWritten = 0;
+            if (this.maxTilesInFlight != Integer.MAX_VALUE) {
+                for (final TileProcessingRecord tileRecord : this.tileRecords.values()) {
+                    if (tileRecord.isWritten()) ++numTilesWritten;
+                }
+            }
+
+            while (!this.unsubmittedReaders.isEmpty() && this.numTilesSubmitted - numTilesWritten < this.maxTilesInFlight) {
+                this.prioritizingThreadPool.execute(this.unsubmittedReaders.remove());
+                ++this.numTilesSubmitted;
+            }
         }
 
         /**
@@ -686,11 +803,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             }
 
             // Update all of the barcodes and the tile to be marked as read
-            for (final String barcode : tileRecord.getBarcodes()) {
-                tileRecord.setBarcodeState(barcode, TileBarcodeProcessingState.READ);
-                tileRecord.barcodeToRecordCollection.get(barcode).doneAdding();
-            }
-            tileRecord.setState(TileProcessingState.DONE_READING);
+            tileRecord.completeReading();
 
             log.debug(String.format("Completed reading tile %s; collected %s reads spanning %s barcodes.",
                     tile.getNumber(), tileRecord.getRecordCount(), tileRecord.getBarcodeCount()));
@@ -778,6 +891,7 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                     for (final Runnable task : tasks) {
                         this.prioritizingThreadPool.execute(task);
                     }
+                    this.submitReaders();
                 }
             }
         }
@@ -796,12 +910,13 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                 @Override
                 public void run() {
                     try {
-                        final SortingCollection<CLUSTER_OUTPUT_RECORD> records = tileRecord.getBarcodeRecords().get(barcode);
+                        final TileBarcodeRecords<CLUSTER_OUTPUT_RECORD> records = tileRecord.getBarcodeRecords().get(barcode);
                         final ConvertedClusterDataWriter<CLUSTER_OUTPUT_RECORD> writer = barcodeRecordWriterMap.get(barcode);
 
                         log.debug(String.format("Writing records from tile %s with barcode %s ...", tile.getNumber(), barcode));
 
                         final PeekIterator<CLUSTER_OUTPUT_RECORD> it = new PeekIterator<CLUSTER_OUTPUT_RECORD>(records.iterator());
+                        int unrecordedWrites = 0;
                         while (it.hasNext()) {
                             final CLUSTER_OUTPUT_RECORD rec = it.next();
 
@@ -829,9 +944,14 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                             }
 
                             writer.write(rec);
-                            writeProgressLogger.record(null, 0);
+                            if (++unrecordedWrites == PROGRESS_BATCH_SIZE) {
+                                recordProgress(writeProgressLogger, unrecordedWrites);
+                                unrecordedWrites = 0;
+                            }
                         }
+                        recordProgress(writeProgressLogger, unrecordedWrites);
 
+                        records.cleanup();
                         tileRecord.setBarcodeState(barcode, TileBarcodeProcessingState.WRITTEN);
                         findAndEnqueueWorkOrSignalCompletion();
 
@@ -866,10 +986,10 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
                     log.debug(String.format("Work is not completed because a tile isn't done being read: %s.", entry.getKey().getNumber()));
                     return false;
                 } else {
-                    for (final Map.Entry<String, TileBarcodeProcessingState> barcodeStateEntry : tileProcessingRecord.getBarcodeProcessingStates().entrySet()) {
-                        final TileBarcodeProcessingState barcodeProcessingState = barcodeStateEntry.getValue();
+                    for (final String barcode : tileProcessingRecord.getBarcodes()) {
+                        final TileBarcodeProcessingState barcodeProcessingState = tileProcessingRecord.getBarcodeState(barcode);
                         if (barcodeProcessingState != TileBarcodeProcessingState.WRITTEN) {
-                            log.debug(String.format("Work is not completed because a tile isn't done being read: Tile %s, Barcode %s, Processing State %s.", entry.getKey().getNumber(), barcodeStateEntry.getKey(), barcodeProcessingState));
+                            log.debug(String.format("Work is not completed because a tile isn't done being read: Tile %s, Barcode %s, Processing State %s.", entry.getKey().getNumber(), barcode, barcodeProcessingState));
                             return false;
                         }
                     }
@@ -887,6 +1007,16 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
         }
     }
 
+    /**
+     * Records the given number of items against a progress logger shared between threads, taking the logger's lock
+     * once for the whole batch rather than once per item.
+     */
+    private static void recordProgress(final ProgressLogger progress, final int count) {
+        synchronized (progress) {
+            for (int i = 0; i < count; ++i) progress.record(null, 0);
+        }
+    }
+
     /**
      * Given a read structure return the data types that need to be parsed for this run
      */
@@ -119,7 +119,7 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
     @Option(doc = "The basecalls directory. ", shortName = "B")
     public File BASECALLS_DIR;
     
-    @Option(doc = "The barcodes directory with _barcode.txt files (generated by ExtractIlluminaBarcodes). If not set, use BASECALLS_DIR. ", shortName = "BCD", optional = true)
+    @Option(doc = "The barcodes directory with _barcode.txt or _barcode.bin files (generated by ExtractIlluminaBarcodes). If not set, use BASECALLS_DIR. ", shortName = "BCD", optional = true)
     public File BARCODES_DIR;
 
     @Option(doc = "Lane number. ", shortName = StandardOptionDefinitions.LANE_SHORT_NAME)
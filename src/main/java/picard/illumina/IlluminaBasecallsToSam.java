@@ -136,7 +136,7 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
     @Option(doc = "The basecalls directory. ", shortName = "B")
     public File BASECALLS_DIR;
     
-    @Option(doc = "The barcodes directory with _barcode.txt files (generated by ExtractIlluminaBarcodes). If not set, use BASECALLS_DIR. ", shortName = "BCD", optional = true)
+    @Option(doc = "The barcodes directory with _barcode.txt or _barcode.bin files (generated by ExtractIlluminaBarcodes). If not set, use BASECALLS_DIR. ", shortName = "BCD", optional = true)
     public File BARCODES_DIR;
 
     @Option(doc = "Lane number. ", shortName = StandardOptionDefinitions.LANE_SHORT_NAME)
@@ -226,6 +226,12 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
             " run, each SortingCollection gets this value/number of indices.")
     public int MAX_READS_IN_RAM_PER_TILE = 1200000;
 
+    @Option(doc = "If true, hold each tile's reads in memory and sort them there rather than in SortingCollections that " +
+            "spill to TMP_DIR, so reads are not written to and reread from temporary files.  The output is the same.  " +
+            "No more tiles are read ahead than there are threads, but each of those tiles is held in memory in full, " +
+            "so MAX_READS_IN_RAM_PER_TILE does not apply.")
+    public boolean BUFFER_TILES_IN_MEMORY = false;
+
     @Option(doc="The minimum quality (after transforming 0s to 1s) expected from reads.  If qualities are lower than this value, an error is thrown." +
             "The default of 2 is what the Illumina's spec describes as the minimum, but in practice the value has been observed lower.")
     public int MINIMUM_QUALITY = BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY;
@@ -299,6 +305,7 @@ public class IlluminaBasecallsToSam extends CommandLineProgram {
                 .withMolecularIndexQualityTag(MOLECULAR_INDEX_BASE_QUALITY_TAG)
                 .withTagPerMolecularIndex(TAG_PER_MOLECULAR_INDEX);
         basecallsConverter.setConverter(converter);
+        basecallsConverter.setBufferTilesInMemory(BUFFER_TILES_IN_MEMORY);
 
     }
 
@@ -26,6 +26,7 @@ package picard.illumina.parser;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CollectionUtil;
 import picard.illumina.parser.readers.BarcodeFileReader;
+import picard.illumina.parser.readers.BinaryBarcodeFileReader;
 
 import java.io.File;
 import java.util.Collections;
@@ -56,9 +57,13 @@ class BarcodeParser extends PerTileParser<BarcodeData> {
     }
 
     private static class BarcodeDataIterator implements CloseableIterator<BarcodeData>{
-        private final BarcodeFileReader bfr;
+        private final CloseableIterator<String> bfr;
         public BarcodeDataIterator(final File file) {
-            bfr = new BarcodeFileReader(file);
+            if (file.getName().endsWith(".bin")) {
+                bfr = new BinaryBarcodeFileReader(file);
+            } else {
+                bfr = new BarcodeFileReader(file);
+            }
         }
 
         public void close() {
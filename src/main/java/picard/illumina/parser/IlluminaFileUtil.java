@@ -27,6 +27,7 @@ import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import picard.PicardException;
 import picard.illumina.parser.fakers.BarcodeFileFaker;
+import picard.illumina.parser.fakers.BinaryBarcodeFileFaker;
 import picard.illumina.parser.fakers.BclFileFaker;
 import picard.illumina.parser.fakers.ClocsFileFaker;
 import picard.illumina.parser.fakers.FilterFileFaker;
@@ -142,7 +143,17 @@ public class IlluminaFileUtil {
                     utils.put(SupportedIlluminaFormat.Filter, parameterizedFileUtil);
                     break;
                 case Barcode:
-                    parameterizedFileUtil = new PerTileFileUtil("_barcode.txt", barcodeDir != null ? barcodeDir : basecallDir, new BarcodeFileFaker(), lane, false);
+                    final File barcodeFileDir = barcodeDir != null ? barcodeDir : basecallDir;
+                    final ParameterizedFileUtil textBarcodeFileUtil = new PerTileFileUtil("_barcode.txt", barcodeFileDir, new BarcodeFileFaker(), lane, false);
+                    final ParameterizedFileUtil binaryBarcodeFileUtil = new PerTileFileUtil("_barcode.bin", barcodeFileDir, new BinaryBarcodeFileFaker(), lane, false);
+                    if (binaryBarcodeFileUtil.filesAvailable() && !textBarcodeFileUtil.filesAvailable()) {
+                        parameterizedFileUtil = binaryBarcodeFileUtil;
+                    } else if (!binaryBarcodeFileUtil.filesAvailable()) {
+                        parameterizedFileUtil = textBarcodeFileUtil;
+                    } else {
+                        throw new PicardException(
+                                "Both text and binary barcode files were found in " + barcodeFileDir.getAbsolutePath() + "; only one format may be present!");
+                    }
                     utils.put(SupportedIlluminaFormat.Barcode, parameterizedFileUtil);
                     break;
                 case MultiTileFilter:
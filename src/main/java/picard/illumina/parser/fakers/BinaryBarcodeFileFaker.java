@@ -0,0 +1,33 @@
+package picard.illumina.parser.fakers;
+
+import picard.illumina.parser.readers.BinaryBarcodeFileReader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fakes a binary barcode file with no barcodes and a single unmatched cluster.
+ */
+public class BinaryBarcodeFileFaker extends FileFaker {
+
+    @Override
+    protected void fakeFile(final ByteBuffer buffer) {
+        buffer.put(BinaryBarcodeFileReader.MAGIC_NUMBER);
+        buffer.putInt(tiles.get(0));
+        buffer.putInt(0);
+
+        buffer.putInt(-1);
+        buffer.put((byte) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+    }
+
+    @Override
+    protected boolean addLeadingZeros() {
+        return false;
+    }
+
+    @Override
+    protected int bufferSize() {
+        return BinaryBarcodeFileReader.MAGIC_NUMBER.length + 8 + BinaryBarcodeFileReader.RECORD_SIZE;
+    }
+}
@@ -3,12 +3,13 @@ package picard.illumina.parser.readers;
 import htsjdk.samtools.util.CollectionUtil;
 import picard.PicardException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Describes a mechanism for revising and evaluating qualities read from a BCL file.  This class accumulates observations about low quality
@@ -17,7 +18,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * The mechanism for revising qualities is not configurable.  The qualities that are less than 1 are revised to 1, and other qualities are
  * not affected.
  *
- * This class is thread-safe and a single instance can and should be passed to {@link BclReader}s running in separate threads.
+ * This class is thread-safe and a single instance can and should be passed to {@link BclReader}s running in separate threads.  Each
+ * thread counts its low quality observations into its own array, and the arrays are only merged when the observations are requested,
+ * so observations made by a thread are guaranteed to be included once that thread's work has been joined (e.g. via
+ * {@link java.util.concurrent.Future#get()} or {@link java.util.concurrent.ExecutorService#awaitTermination}).
  * 
  * To replicate the functionality of {@link BclReader}s prior to the introduction of this class, create a single instance passing 
  * {@link #ILLUMINA_ALLEGED_MINIMUM_QUALITY} to the constructor, and then call {@link #assertMinimumQualities()} once the readers finish
@@ -27,15 +31,33 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class BclQualityEvaluationStrategy {
     public static final int ILLUMINA_ALLEGED_MINIMUM_QUALITY = 2;
+
+    /** The revised quality for each observed quality, indexed by the observed quality as an unsigned byte. */
+    private static final byte[] REVISED_QUALITIES = new byte[256];
+    /** 1 for each observed quality that should be counted as low, 0 otherwise, indexed like {@link #REVISED_QUALITIES}. */
+    private static final int[] LOW_QUALITY_INCREMENTS = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            final byte quality = (byte) i;
+            REVISED_QUALITIES[i] = generateRevisedQuality(quality);
+            LOW_QUALITY_INCREMENTS[i] = quality < ILLUMINA_ALLEGED_MINIMUM_QUALITY ? 1 : 0;
+        }
+    }
+
     private final int minimumRevisedQuality;
-    /** A thread-safe defaulting map that injects an AtomicInteger starting at 0 when a uninitialized key is get-ted. */
-    private final  Map<Byte, AtomicInteger> qualityCountMap = Collections.synchronizedMap(new CollectionUtil.DefaultingMap<Byte, AtomicInteger>(
-            new CollectionUtil.DefaultingMap.Factory<AtomicInteger, Byte>() {
-                @Override
-                public AtomicInteger make(final Byte key) {
-                    return new AtomicInteger(0);
-                }
-            }, true));
+
+    /** The low quality counts of every thread that has used this instance, indexed like {@link #REVISED_QUALITIES}. */
+    private final List<int[]> qualityCounts = new ArrayList<int[]>();
+    private final ThreadLocal<int[]> threadQualityCounts = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            final int[] counts = new int[256];
+            synchronized (qualityCounts) {
+                qualityCounts.add(counts);
+            }
+            return counts;
+        }
+    };
 
     /**
      * @param minimumRevisedQuality The minimum quality that should be seen from revised qualities; controls whether or not an exception
@@ -56,11 +78,25 @@ public class BclQualityEvaluationStrategy {
      * @return The revised new quality score
      */
     public byte reviseAndConditionallyLogQuality(final byte quality) {
-        final byte revisedQuality = generateRevisedQuality(quality);
-        if (quality < ILLUMINA_ALLEGED_MINIMUM_QUALITY) {
-            qualityCountMap.get(quality).incrementAndGet();
-        }
-        return revisedQuality;
+        return reviseAndConditionallyLogQuality(quality, threadQualityCounts.get());
+    }
+
+    /**
+     * Returns the low quality counts for the calling thread, so that a reader revising many qualities can look them up once and pass
+     * them to {@link #reviseAndConditionallyLogQuality(byte, int[])}.  The returned array must not be shared with other threads.
+     */
+    int[] getQualityCountsForCurrentThread() {
+        return threadQualityCounts.get();
+    }
+
+    /**
+     * As {@link #reviseAndConditionallyLogQuality(byte)}, but counts low qualities into counts obtained from
+     * {@link #getQualityCountsForCurrentThread()}.
+     */
+    static byte reviseAndConditionallyLogQuality(final byte quality, final int[] qualityCounts) {
+        final int index = quality & 0xFF;
+        qualityCounts[index] += LOW_QUALITY_INCREMENTS[index];
+        return REVISED_QUALITIES[index];
     }
 
     /**
@@ -68,9 +104,9 @@ public class BclQualityEvaluationStrategy {
      */
     public void assertMinimumQualities() {
         final Collection<String> errorTokens = new LinkedList<String>();
-        for (final Map.Entry<Byte, AtomicInteger> entry : this.qualityCountMap.entrySet()) {
+        for (final Map.Entry<Byte, Integer> entry : getPoorQualityFrequencies().entrySet()) {
             /**
-             * We're comparing revised qualities here, not observed, but the qualities that are logged in qualityCountMap are observed
+             * We're comparing revised qualities here, not observed, but the qualities that are logged in qualityCounts are observed
              * qualities.  So as we iterate through it, convert observed qualities into their revised value. 
              */
             if (generateRevisedQuality(entry.getKey()) < minimumRevisedQuality) { 
@@ -90,9 +126,20 @@ public class BclQualityEvaluationStrategy {
      * Returns a view of number of qualities that failed, where the key is the quality score and the value is the number of observations.
      */
     public Map<Byte, Integer> getPoorQualityFrequencies() {
+        final int[] mergedCounts = new int[256];
+        synchronized (qualityCounts) {
+            for (final int[] counts : qualityCounts) {
+                for (int i = 0; i < mergedCounts.length; i++) {
+                    mergedCounts[i] += counts[i];
+                }
+            }
+        }
+
         final Map<Byte, Integer> qualityCountMapCopy = new HashMap<Byte, Integer>();
-        for (final Map.Entry<Byte, AtomicInteger> entry : qualityCountMap.entrySet()) {
-            qualityCountMapCopy.put(entry.getKey(), entry.getValue().intValue());
+        for (int i = 0; i < mergedCounts.length; i++) {
+            if (mergedCounts[i] > 0) {
+                qualityCountMapCopy.put((byte) i, mergedCounts[i]);
+            }
         }
         return Collections.unmodifiableMap(qualityCountMapCopy);
     }
@@ -77,6 +77,16 @@ public class BclReader implements CloseableIterator<BclData> {
     private static final int HEADER_SIZE = 4;
     private static final byte[] BASE_LOOKUP = new byte[]{'A', 'C', 'G', 'T'};
 
+    /** The base for each possible BCL byte, with 0 being a no call. */
+    private static final byte[] BASE_FOR_BYTE = new byte[256];
+    static {
+        BASE_FOR_BYTE[0] = (byte) '.';
+        for (int i = 1; i < BASE_FOR_BYTE.length; ++i) BASE_FOR_BYTE[i] = BASE_LOOKUP[i & BASE_MASK];
+    }
+
+    /** The number of clusters read from each cycle's file at a time. */
+    private static final int CLUSTERS_PER_BLOCK = 4096;
+
     private final InputStream[] streams;
     private final File[] streamFiles;
     private final int[] outputLengths;
@@ -85,6 +95,11 @@ public class BclReader implements CloseableIterator<BclData> {
     private final BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
     private BclData queue = null;
 
+    // A block of clusters read from each cycle's file, and how far through the block we are
+    private byte[][] blocks = null;
+    private int numClustersInBlock = 0;
+    private int nextClusterInBlock = 0;
+
     public BclReader(final List<File> bclsForOneTile, final int[] outputLengths,
                      final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean seekable) {
         try {
@@ -286,49 +301,74 @@ public class BclReader implements CloseableIterator<BclData> {
     }
 
     void advance() {
+        if (nextClusterInBlock == numClustersInBlock && !readBlock()) {
+            queue = null;
+            return;
+        }
+
+        final int cluster = nextClusterInBlock++;
         int totalCycleCount = 0;
         final BclData data = new BclData(outputLengths);
+        final int[] qualityCounts = bclQualityEvaluationStrategy.getQualityCountsForCurrentThread();
         for (int read = 0; read < outputLengths.length; read++) {
+            final byte[] bases = data.bases[read];
+            final byte[] qualities = data.qualities[read];
             for (int cycle = 0; cycle < outputLengths[read]; ++cycle) {
-                try {
-
-                    final int readByte;
-                    try {
-                        readByte = this.streams[totalCycleCount].read();
-                    } catch (IOException e) {
-                        // when logging the error, increment cycle by 1, since totalCycleCount is zero-indexed but Illumina directories are 1-indexed.
-                        throw new IOException(String.format("Error while reading from BCL file for cycle %d. Offending file on disk is %s",
-                                (totalCycleCount+1), this.streamFiles[totalCycleCount].getAbsolutePath()), e);
-                    }
-
-                    if (readByte == -1) {
-                        queue = null;
-                        return;
-                    }
-
-                    if (readByte == 0) {
-                        //NO CALL, don't confuse with an A call
-                        data.bases[read][cycle] = (byte) '.';
-                        data.qualities[read][cycle] = (byte) 2;
-                    } else {
-                        data.bases[read][cycle] = BASE_LOOKUP[readByte & BASE_MASK];
-                        data.qualities[read][cycle] = bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) (readByte >>> 2));
-                    }
-                    totalCycleCount++;
-                } catch (final IOException ioe) {
-                    throw new RuntimeIOException(ioe);
+                final int readByte = blocks[totalCycleCount++][cluster] & 0xFF;
+                bases[cycle] = BASE_FOR_BYTE[readByte];
+                if (readByte == 0) {
+                    //NO CALL, don't confuse with an A call
+                    qualities[cycle] = (byte) 2;
+                } else {
+                    qualities[cycle] = BclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) (readByte >>> 2), qualityCounts);
                 }
-
             }
         }
         this.queue = data;
     }
 
+    /**
+     * Reads the next block of clusters from every cycle's file with bulk reads, rather than reading one byte per
+     * cycle per cluster.  As when reading cluster by cluster, the clusters end at the end of the shortest file.
+     *
+     * @return false if there were no more clusters
+     */
+    private boolean readBlock() {
+        if (blocks == null) blocks = new byte[streams.length][CLUSTERS_PER_BLOCK];
+
+        int numClusters = CLUSTERS_PER_BLOCK;
+        for (int cycle = 0; cycle < streams.length; ++cycle) {
+            final byte[] block = blocks[cycle];
+            int numRead = 0;
+            try {
+                while (numRead < numClusters) {
+                    final int n = this.streams[cycle].read(block, numRead, numClusters - numRead);
+                    if (n == -1) break;
+                    numRead += n;
+                }
+            } catch (final IOException e) {
+                // when logging the error, increment cycle by 1, since cycle is zero-indexed but Illumina directories are 1-indexed.
+                throw new RuntimeIOException(new IOException(String.format("Error while reading from BCL file for cycle %d. Offending file on disk is %s",
+                        (cycle + 1), this.streamFiles[cycle].getAbsolutePath()), e));
+            }
+            numClusters = numRead;
+        }
+
+        numClustersInBlock = numClusters;
+        nextClusterInBlock = 0;
+        return numClusters > 0;
+    }
+
     public static BclReader makeSeekable(final List<File> files, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final int[] outputLengths) {
         return new BclReader(files, outputLengths, bclQualityEvaluationStrategy, true);
     }
 
     public int seek(final List<File> files, final TileIndex tileIndex, final int currentTile) {
+        // Drop any clusters already read from the previous position
+        queue = null;
+        numClustersInBlock = 0;
+        nextClusterInBlock = 0;
+
         int count = 0;
         int numClustersInTile = 0;
         for (final InputStream inputStream : streams) {
@@ -0,0 +1,115 @@
+package picard.illumina.parser.readers;
+
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a single binary barcode file record by record and returns the barcode if there was a match or NULL otherwise.
+ *
+ * Binary barcode file format (all values little-endian)
+ * Header:
+ * bytes 0-3   : the magic number "BBC" followed by the format version, 1
+ * bytes 4-7   : unsigned 32-bit integer, the tile number
+ * bytes 8-11  : unsigned 32-bit integer, the number of barcodes
+ * then, for each barcode, a 32-bit integer length followed by that many bytes of the barcode sequence (with no delimiters)
+ *
+ * Followed by one fixed-width record per cluster, until the end of the file:
+ * 32-bit integer - the index of the best matching barcode, or -1 if the read was too far from every barcode to report one
+ * byte           - 1 if there was a barcode match, otherwise 0
+ * 16-bit integer - the number of mismatches to the best matching barcode
+ * 16-bit integer - the number of mismatches to the second best matching barcode
+ *
+ * These are the same values as the columns of the text barcode files read by {@link BarcodeFileReader}, except that the
+ * bases at the barcode position are not stored.
+ */
+public class BinaryBarcodeFileReader implements CloseableIterator<String> {
+    public static final byte[] MAGIC_NUMBER = new byte[]{'B', 'B', 'C', 1};
+    public static final int RECORD_SIZE = 9;
+
+    private final File file;
+    private final BinaryCodec codec;
+    private final int tile;
+    private final String[] barcodes;
+
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+    private boolean recordRead = false;
+    private boolean atEnd = false;
+
+    public BinaryBarcodeFileReader(final File barcodeFile) {
+        this.file = barcodeFile;
+        this.codec = new BinaryCodec(new BufferedInputStream(IOUtil.openFileForReading(barcodeFile)));
+
+        final byte[] magicNumber = new byte[MAGIC_NUMBER.length];
+        codec.readBytes(magicNumber);
+        if (!Arrays.equals(magicNumber, MAGIC_NUMBER)) {
+            codec.close();
+            throw new PicardException("Binary barcode file " + barcodeFile.getAbsolutePath() + " does not start with the expected magic number.");
+        }
+        this.tile = codec.readInt();
+        this.barcodes = new String[codec.readInt()];
+        for (int i = 0; i < barcodes.length; i++) {
+            barcodes[i] = codec.readLengthAndString(false);
+        }
+    }
+
+    /** Returns the tile that this file's records describe. */
+    public int getTile() {
+        return tile;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more records in " + file.getAbsolutePath());
+        }
+        recordRead = false;
+
+        final int barcodeIndex = recordBuffer.getInt(0);
+        final boolean matched = record[4] != 0;
+        if (!matched) {
+            return null;
+        }
+        if (barcodeIndex < 0 || barcodeIndex >= barcodes.length) {
+            throw new PicardException("Barcode index " + barcodeIndex + " out of range in " + file.getAbsolutePath());
+        }
+        return barcodes[barcodeIndex];
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!recordRead && !atEnd) {
+            int numRead = 0;
+            while (numRead < RECORD_SIZE) {
+                final int n = codec.readBytesOrFewer(record, numRead, RECORD_SIZE - numRead);
+                if (n <= 0) break;
+                numRead += n;
+            }
+            if (numRead == 0) {
+                atEnd = true;
+            } else if (numRead < RECORD_SIZE) {
+                throw new PicardException("Binary barcode file " + file.getAbsolutePath() + " ends with a truncated record.");
+            } else {
+                recordRead = true;
+            }
+        }
+        return recordRead;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Remove is not supported by " + BinaryBarcodeFileReader.class.getName());
+    }
+
+    public void close() {
+        codec.close();
+    }
+}
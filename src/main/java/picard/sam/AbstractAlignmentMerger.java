@@ -33,6 +33,13 @@ import picard.PicardException;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract class that coordinates the general task of taking in a set of alignment information,
@@ -45,9 +52,12 @@ import java.util.*;
  * 2.  Merge the alignment information and public tags ONLY from the aligned SAMRecords
  * 3.  Do additional modifications -- handle clipping, trimming, etc.
  * 4.  Fix up mate information on paired reads
- * 5.  Do a final calculation of the NM and UQ tags (coordinate sorted only)
+ * 5.  Do a final calculation of the NM and UQ tags (coordinate sorted only, on several threads if setNumThreads was called)
  * 6.  Write the records to the output file.
  * <p/>
+ * Records are paired up with their alignments on the calling thread, steps 2 through 4 may be done for batches of reads
+ * on several threads (see setNumThreads), and the merged records are written in the order of the unmapped reads.
+ * <p/>
  * Concrete subclasses which extend AbstractAlignmentMerger should implement getQueryNameSortedAlignedRecords.
  * If these records are not in queryname order, mergeAlignment will throw an IllegalStateException.
  * <p/>
@@ -58,9 +68,13 @@ import java.util.*;
 public abstract class AbstractAlignmentMerger {
 
     public static final int MAX_RECORDS_IN_RAM = 500000;
+    /** The default number of reads or read pairs merged by a thread at a time. */
+    static final int TEMPLATE_BATCH_SIZE = 1000;
+    /** The default most coordinate-sorted records whose NM, MD and UQ tags are calculated by a thread at a time. */
+    static final int TAG_BATCH_SIZE = 10000;
 
     private static final char[] RESERVED_ATTRIBUTE_STARTS = {'X', 'Y', 'Z'};
-    private int crossSpeciesReads = 0;
+    private final AtomicInteger crossSpeciesReads = new AtomicInteger(0);
 
     private final Log log = Log.getInstance(AbstractAlignmentMerger.class);
     private final ProgressLogger progress = new ProgressLogger(this.log, 1000000, "Merged", "records");
@@ -85,6 +99,9 @@ public abstract class AbstractAlignmentMerger {
     private MultiHitAlignedReadIterator alignedIterator = null;
     private boolean clipOverlappingReads = true;
     private int maxRecordsInRam = MAX_RECORDS_IN_RAM;
+    private int numThreads = 1;
+    private int templateBatchSize = TEMPLATE_BATCH_SIZE;
+    private int tagBatchSize = TAG_BATCH_SIZE;
     private final PrimaryAlignmentSelectionStrategy primaryAlignmentSelectionStrategy;
     private boolean keepAlignerProperPairFlags = false;
     private boolean addMateCigar = false;
@@ -134,6 +151,23 @@ public abstract class AbstractAlignmentMerger {
         }
     }
 
+    /** An unmapped read or read pair, its alignments, and the records that merging them produced. */
+    private static class Template {
+        private final SAMRecord rec;
+        private final SAMRecord secondOfPair;
+        /** The alignments of the read or read pair, or null if it was not aligned. */
+        private final HitsForInsert hits;
+        private final List<SAMRecord> merged = new ArrayList<>();
+        private int aligned = 0;
+        private int unmapped = 0;
+
+        Template(final SAMRecord rec, final SAMRecord secondOfPair, final HitsForInsert hits) {
+            this.rec = rec;
+            this.secondOfPair = secondOfPair;
+            this.hits = hits;
+        }
+    }
+
     public enum UnmappingReadStrategy {
         // Leave on record, and copy to tag
         COPY_TO_TAG(false, true),
@@ -313,6 +347,25 @@ public abstract class AbstractAlignmentMerger {
         this.maxRecordsInRam = maxRecordsInRam;
     }
 
+    /**
+     * Sets the number of threads on which to merge reads with their alignments and to calculate the NM, MD and UQ tags
+     * of coordinate sorted output.  Reading the inputs and writing the output are always done on the calling thread,
+     * and the output is the same for any number of threads.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /** Sets the number of reads or read pairs merged by a thread at a time, so that tests can merge several batches. */
+    void setTemplateBatchSize(final int templateBatchSize) {
+        this.templateBatchSize = templateBatchSize;
+    }
+
+    /** Sets the most coordinate-sorted records whose tags are calculated by a thread at a time, so that tests can use several batches. */
+    void setTagBatchSize(final int tagBatchSize) {
+        this.tagBatchSize = tagBatchSize;
+    }
+
     /**
      * Do this unconditionally, not just for aligned records, for two reasons:
      * - An unaligned read has been processed by the aligner, so it is more truthful.
@@ -376,143 +429,93 @@ public abstract class AbstractAlignmentMerger {
             sink = new Sink(writer);
         }
 
-        while (unmappedIterator.hasNext()) {
-            // Load next unaligned read or read pair.
-            final SAMRecord rec = unmappedIterator.next();
-
-            rec.setHeader(this.header);
-            maybeSetPgTag(rec);
-
-            final SAMRecord secondOfPair;
-            if (rec.getReadPairedFlag()) {
-                secondOfPair = unmappedIterator.next();
-                secondOfPair.setHeader(this.header);
-                maybeSetPgTag(secondOfPair);
-
-                // Validate that paired reads arrive as first of pair followed by second of pair
-                if (!rec.getReadName().equals(secondOfPair.getReadName()))
-                    throw new PicardException("Second read from pair not found in unmapped bam: " + rec.getReadName() + ", " + secondOfPair.getReadName());
-
-                if (!rec.getFirstOfPairFlag())
-                    throw new PicardException("First record in unmapped bam is not first of pair: " + rec.getReadName());
-                if (!secondOfPair.getReadPairedFlag())
-                    throw new PicardException("Second record in unmapped bam is not marked as paired: " + secondOfPair.getReadName());
-                if (!secondOfPair.getSecondOfPairFlag())
-                    throw new PicardException("Second record in unmapped bam is not second of pair: " + secondOfPair.getReadName());
-            } else {
-                secondOfPair = null;
-            }
-
-            // See if there are alignments for current unaligned read or read pair.
-            if (nextAligned != null && rec.getReadName().equals(nextAligned.getReadName())) {
-                // If there are multiple alignments for a read (pair), then the unaligned SAMRecord must be cloned
-                // before copying info from the aligned record to the unaligned.
-                final boolean clone = nextAligned.numHits() > 1 || nextAligned.hasSupplementalHits();
-                SAMRecord r1Primary = null, r2Primary = null;
-
-                // by this point there should be a single chosen primary alignment, which we will use to determine whether the read is contaminant.
-                // this must be done before the main iteration, since secondary / supplementary alignments will be affected by the primary.
-                final boolean unmapDueToContaminant = this.unmapContaminantReads && isContaminant(nextAligned);
-
-                if (rec.getReadPairedFlag()) {
-                    for (int i = 0; i < nextAligned.numHits(); ++i) {
-                        // firstAligned or secondAligned may be null, if there wasn't an alignment for the end,
-                        // or if the alignment was rejected by ignoreAlignment.
-                        final SAMRecord firstAligned = nextAligned.getFirstOfPair(i);
-                        final SAMRecord secondAligned = nextAligned.getSecondOfPair(i);
-
-                        final boolean isPrimaryAlignment = (firstAligned != null && !firstAligned.isSecondaryOrSupplementary()) ||
-                                (secondAligned != null && !secondAligned.isSecondaryOrSupplementary());
-
-                        final SAMRecord firstToWrite;
-                        final SAMRecord secondToWrite;
-                        if (clone) {
-                            firstToWrite = clone(rec);
-                            secondToWrite = clone(secondOfPair);
+        final ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        final Deque<Future<List<Template>>> pending = new ArrayDeque<>();
+        try {
+            while (unmappedIterator.hasNext() || !pending.isEmpty()) {
+                // Keep a few batches per thread in flight, writing the oldest once there are enough or the input is exhausted.
+                if (unmappedIterator.hasNext() && (executor == null ? pending.isEmpty() : pending.size() < 2 * numThreads)) {
+                    final List<Template> batch = new ArrayList<>(templateBatchSize);
+                    while (unmappedIterator.hasNext() && batch.size() < templateBatchSize) {
+                        // Load next unaligned read or read pair.
+                        final SAMRecord rec = unmappedIterator.next();
+
+                        rec.setHeader(this.header);
+                        maybeSetPgTag(rec);
+
+                        final SAMRecord secondOfPair;
+                        if (rec.getReadPairedFlag()) {
+                            secondOfPair = unmappedIterator.next();
+                            secondOfPair.setHeader(this.header);
+                            maybeSetPgTag(secondOfPair);
+
+                            // Validate that paired reads arrive as first of pair followed by second of pair
+                            if (!rec.getReadName().equals(secondOfPair.getReadName()))
+                                throw new PicardException("Second read from pair not found in unmapped bam: " + rec.getReadName() + ", " + secondOfPair.getReadName());
+
+                            if (!rec.getFirstOfPairFlag())
+                                throw new PicardException("First record in unmapped bam is not first of pair: " + rec.getReadName());
+                            if (!secondOfPair.getReadPairedFlag())
+                                throw new PicardException("Second record in unmapped bam is not marked as paired: " + secondOfPair.getReadName());
+                            if (!secondOfPair.getSecondOfPairFlag())
+                                throw new PicardException("Second record in unmapped bam is not second of pair: " + secondOfPair.getReadName());
                         } else {
-                            firstToWrite = rec;
-                            secondToWrite = secondOfPair;
-                        }
-
-                        // If these are the primary alignments then stash them for use on any supplemental alignments
-                        if (isPrimaryAlignment) {
-                            r1Primary = firstToWrite;
-                            r2Primary = secondToWrite;
+                            secondOfPair = null;
                         }
 
-                        transferAlignmentInfoToPairedRead(firstToWrite, secondToWrite, firstAligned, secondAligned, unmapDueToContaminant, clone);
-
-                        // Only write unmapped read when it has the mate info from the primary alignment.
-                        // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
-                        if (!firstToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
-                            addIfNotFiltered(sink, firstToWrite);
-                            if (firstToWrite.getReadUnmappedFlag()) ++unmapped;
-                            else ++aligned;
-                        }
-                        if (!secondToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
-                            addIfNotFiltered(sink, secondToWrite);
-                            if (!secondToWrite.getReadUnmappedFlag()) ++aligned;
-                            else ++unmapped;
+                        // See if there are alignments for current unaligned read or read pair.
+                        if (nextAligned != null && rec.getReadName().equals(nextAligned.getReadName())) {
+                            batch.add(new Template(rec, secondOfPair, nextAligned));
+                            nextAligned = nextAligned();
+                        } else {
+                            // There was no alignment for this read or read pair.
+                            if (nextAligned != null &&
+                                    SAMRecordQueryNameComparator.compareReadNames(rec.getReadName(), nextAligned.getReadName()) > 0) {
+                                throw new IllegalStateException("Aligned record iterator (" + nextAligned.getReadName() +
+                                        ") is behind the unmapped reads (" + rec.getReadName() + ")");
+                            }
+                            batch.add(new Template(rec, secondOfPair, null));
                         }
                     }
-
-                    // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
-                    for (final boolean isRead1 : new boolean[]{true, false}) {
-                        final List<SAMRecord> supplementals = isRead1 ? nextAligned.getSupplementalFirstOfPairOrFragment() : nextAligned.getSupplementalSecondOfPair();
-                        final SAMRecord sourceRec = isRead1 ? rec : secondOfPair;
-                        final SAMRecord matePrimary = isRead1 ? r2Primary : r1Primary;
-
-                        for (final SAMRecord supp : supplementals) {
-                            final SAMRecord out = clone(sourceRec);
-                            transferAlignmentInfoToFragment(out, supp, unmapDueToContaminant, clone);
-                            if (matePrimary != null) SamPairUtil.setMateInformationOnSupplementalAlignment(out, matePrimary, addMateCigar);
-                            // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
-                            if (!out.getReadUnmappedFlag()) {
-                                addIfNotFiltered(sink, out);
-                                ++aligned;
-                            } else ++unmapped;
+                    final Callable<List<Template>> task = () -> {
+                        for (final Template template : batch) {
+                            if (template.hits != null) mergeTemplate(template);
                         }
+                        return batch;
+                    };
+                    if (executor == null) {
+                        final FutureTask<List<Template>> future = new FutureTask<>(task);
+                        future.run();
+                        pending.add(future);
+                    } else {
+                        pending.add(executor.submit(task));
                     }
-                } else {
-                    for (int i = 0; i < nextAligned.numHits(); ++i) {
-                        final SAMRecord recToWrite = clone ? clone(rec) : rec;
-                        final boolean isPrimary = !nextAligned.getFragment(i).isSecondaryOrSupplementary();
-                        transferAlignmentInfoToFragment(recToWrite, nextAligned.getFragment(i), unmapDueToContaminant, clone);
-                        // Only write unmapped read if it was originally the primary.
-                        // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
-                        if (!recToWrite.getReadUnmappedFlag() || isPrimary) addIfNotFiltered(sink, recToWrite);
-                        if (recToWrite.getReadUnmappedFlag()) ++unmapped;
-                        else ++aligned;
-                    }
-                    // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
-                    for (final SAMRecord supplementalRec : nextAligned.getSupplementalFirstOfPairOrFragment()) {
-                        final SAMRecord recToWrite = clone(rec);
-                        transferAlignmentInfoToFragment(recToWrite, supplementalRec, unmapDueToContaminant, clone);
-                        // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
-                        if (!recToWrite.getReadUnmappedFlag()) {
-                            addIfNotFiltered(sink, recToWrite);
-                            ++aligned;
-                        } else ++unmapped;
-                    }
-                }
-                nextAligned = nextAligned();
-            } else {
-                // There was no alignment for this read or read pair.
-                if (nextAligned != null &&
-                        SAMRecordQueryNameComparator.compareReadNames(rec.getReadName(), nextAligned.getReadName()) > 0) {
-                    throw new IllegalStateException("Aligned record iterator (" + nextAligned.getReadName() +
-                            ") is behind the unmapped reads (" + rec.getReadName() + ")");
+                    continue;
                 }
-                // No matching read from alignedIterator -- just output reads as is.
-                if (!alignedReadsOnly) {
-                    sink.add(rec);
-                    ++unmapped;
-                    if (secondOfPair != null) {
-                        sink.add(secondOfPair);
+
+                for (final Template template : pending.remove().get()) {
+                    if (template.hits != null) {
+                        for (final SAMRecord rec : template.merged) addIfNotFiltered(sink, rec);
+                        aligned += template.aligned;
+                        unmapped += template.unmapped;
+                    } else if (!alignedReadsOnly) {
+                        // No matching read from alignedIterator -- just output reads as is.
+                        sink.add(template.rec);
                         ++unmapped;
+                        if (template.secondOfPair != null) {
+                            sink.add(template.secondOfPair);
+                            ++unmapped;
+                        }
                     }
                 }
             }
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while merging alignments.", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new PicardException("Error while merging alignments.", e.getCause());
+        } finally {
+            if (executor != null) executor.shutdownNow();
         }
         unmappedIterator.close();
         if (alignedIterator.hasNext()) {
@@ -528,13 +531,7 @@ public abstract class AbstractAlignmentMerger {
             writer.setProgressLogger(new ProgressLogger(log, (int) 1e7, "Wrote", "records from a sorting collection"));
             final ProgressLogger finalProgress = new ProgressLogger(log, 10000000, "Written in coordinate order to output", "records");
 
-            for (final SAMRecord rec : sink.sorter) {
-                if (!rec.getReadUnmappedFlag() && refSeq != null) {
-                    fixNmMdAndUq(rec, refSeq, bisulfiteSequence);
-                }
-                writer.addAlignment(rec);
-                finalProgress.record(rec);
-            }
+            writeWithNmMdAndUq(sink.sorter.iterator(), writer, finalProgress);
             writer.close();
             sink.sorter.cleanup();
         }
@@ -543,6 +540,168 @@ public abstract class AbstractAlignmentMerger {
         log.info("Wrote " + aligned + " alignment records and " + (alignedReadsOnly ? 0 : unmapped) + " unmapped reads.");
     }
 
+    /**
+     * Copies the alignments of a read or read pair onto clones of its unmapped records, as needed, collecting the records
+     * to write in template.merged.  May be called concurrently for different templates.
+     */
+    private void mergeTemplate(final Template template) {
+        final HitsForInsert hits = template.hits;
+        // If there are multiple alignments for a read (pair), then the unaligned SAMRecord must be cloned
+        // before copying info from the aligned record to the unaligned.
+        final boolean clone = hits.numHits() > 1 || hits.hasSupplementalHits();
+        SAMRecord r1Primary = null, r2Primary = null;
+
+        // by this point there should be a single chosen primary alignment, which we will use to determine whether the read is contaminant.
+        // this must be done before the main iteration, since secondary / supplementary alignments will be affected by the primary.
+        final boolean unmapDueToContaminant = this.unmapContaminantReads && isContaminant(hits);
+
+        if (template.rec.getReadPairedFlag()) {
+            for (int i = 0; i < hits.numHits(); ++i) {
+                // firstAligned or secondAligned may be null, if there wasn't an alignment for the end,
+                // or if the alignment was rejected by ignoreAlignment.
+                final SAMRecord firstAligned = hits.getFirstOfPair(i);
+                final SAMRecord secondAligned = hits.getSecondOfPair(i);
+
+                final boolean isPrimaryAlignment = (firstAligned != null && !firstAligned.isSecondaryOrSupplementary()) ||
+                        (secondAligned != null && !secondAligned.isSecondaryOrSupplementary());
+
+                final SAMRecord firstToWrite;
+                final SAMRecord secondToWrite;
+                if (clone) {
+                    firstToWrite = clone(template.rec);
+                    secondToWrite = clone(template.secondOfPair);
+                } else {
+                    firstToWrite = template.rec;
+                    secondToWrite = template.secondOfPair;
+                }
+
+                // If these are the primary alignments then stash them for use on any supplemental alignments
+                if (isPrimaryAlignment) {
+                    r1Primary = firstToWrite;
+                    r2Primary = secondToWrite;
+                }
+
+                transferAlignmentInfoToPairedRead(firstToWrite, secondToWrite, firstAligned, secondAligned, unmapDueToContaminant, clone);
+
+                // Only write unmapped read when it has the mate info from the primary alignment.
+                // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
+                if (!firstToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
+                    template.merged.add(firstToWrite);
+                    if (firstToWrite.getReadUnmappedFlag()) ++template.unmapped;
+                    else ++template.aligned;
+                }
+                if (!secondToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
+                    template.merged.add(secondToWrite);
+                    if (!secondToWrite.getReadUnmappedFlag()) ++template.aligned;
+                    else ++template.unmapped;
+                }
+            }
+
+            // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
+            for (final boolean isRead1 : new boolean[]{true, false}) {
+                final List<SAMRecord> supplementals = isRead1 ? hits.getSupplementalFirstOfPairOrFragment() : hits.getSupplementalSecondOfPair();
+                final SAMRecord sourceRec = isRead1 ? template.rec : template.secondOfPair;
+                final SAMRecord matePrimary = isRead1 ? r2Primary : r1Primary;
+
+                for (final SAMRecord supp : supplementals) {
+                    final SAMRecord out = clone(sourceRec);
+                    transferAlignmentInfoToFragment(out, supp, unmapDueToContaminant, clone);
+                    if (matePrimary != null) SamPairUtil.setMateInformationOnSupplementalAlignment(out, matePrimary, addMateCigar);
+                    // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
+                    if (!out.getReadUnmappedFlag()) {
+                        template.merged.add(out);
+                        ++template.aligned;
+                    } else ++template.unmapped;
+                }
+            }
+        } else {
+            for (int i = 0; i < hits.numHits(); ++i) {
+                final SAMRecord recToWrite = clone ? clone(template.rec) : template.rec;
+                final boolean isPrimary = !hits.getFragment(i).isSecondaryOrSupplementary();
+                transferAlignmentInfoToFragment(recToWrite, hits.getFragment(i), unmapDueToContaminant, clone);
+                // Only write unmapped read if it was originally the primary.
+                // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
+                if (!recToWrite.getReadUnmappedFlag() || isPrimary) template.merged.add(recToWrite);
+                if (recToWrite.getReadUnmappedFlag()) ++template.unmapped;
+                else ++template.aligned;
+            }
+            // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
+            for (final SAMRecord supplementalRec : hits.getSupplementalFirstOfPairOrFragment()) {
+                final SAMRecord recToWrite = clone(template.rec);
+                transferAlignmentInfoToFragment(recToWrite, supplementalRec, unmapDueToContaminant, clone);
+                // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
+                if (!recToWrite.getReadUnmappedFlag()) {
+                    template.merged.add(recToWrite);
+                    ++template.aligned;
+                } else ++template.unmapped;
+            }
+        }
+    }
+
+    /**
+     * Writes coordinate-sorted records, first calculating the NM, MD and UQ tags of the mapped ones if there is a reference.
+     * Records are gathered into batches that each lie on a single reference sequence, the tags are calculated for up to
+     * numThreads batches at a time against that sequence's bases, and the batches are written in order.
+     */
+    private void writeWithNmMdAndUq(final Iterator<SAMRecord> records, final SAMFileWriter writer, final ProgressLogger progress) {
+        final ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        final Deque<Future<List<SAMRecord>>> pending = new ArrayDeque<>();
+        SAMRecord next = records.hasNext() ? records.next() : null;
+        try {
+            while (next != null || !pending.isEmpty()) {
+                // Keep a few batches per thread in flight, writing the oldest once there are enough or the input is exhausted.
+                if (next != null && (executor == null ? pending.isEmpty() : pending.size() < 2 * numThreads)) {
+                    final List<SAMRecord> batch = new ArrayList<>(tagBatchSize);
+                    int referenceIndex = -1;
+                    byte[] referenceBases = null;
+                    while (next != null && batch.size() < tagBatchSize) {
+                        if (!next.getReadUnmappedFlag() && refSeq != null) {
+                            // The walker only moves forward, so the bases are fetched here, in coordinate order.
+                            final int index = refSeq.getSequenceDictionary().getSequenceIndex(next.getReferenceName());
+                            if (referenceBases == null) {
+                                referenceIndex = index;
+                                referenceBases = refSeq.get(index).getBases();
+                            } else if (index != referenceIndex) {
+                                break;
+                            }
+                        }
+                        batch.add(next);
+                        next = records.hasNext() ? records.next() : null;
+                    }
+                    final byte[] bases = referenceBases;
+                    final Callable<List<SAMRecord>> task = () -> {
+                        if (bases != null) {
+                            for (final SAMRecord rec : batch) {
+                                if (!rec.getReadUnmappedFlag()) fixNmMdAndUq(rec, bases, bisulfiteSequence);
+                            }
+                        }
+                        return batch;
+                    };
+                    if (executor == null) {
+                        final FutureTask<List<SAMRecord>> future = new FutureTask<>(task);
+                        future.run();
+                        pending.add(future);
+                    } else {
+                        pending.add(executor.submit(task));
+                    }
+                    continue;
+                }
+
+                for (final SAMRecord rec : pending.remove().get()) {
+                    writer.addAlignment(rec);
+                    progress.record(rec);
+                }
+            }
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while calculating NM, MD and UQ tags.", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new PicardException("Error while calculating NM, MD and UQ tags.", e.getCause());
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+    }
+
     /** Calculates and sets the NM, MD, and and UQ tags from the record and the reference
      *
      * @param record the record to be fixed
@@ -554,6 +713,14 @@ public abstract class AbstractAlignmentMerger {
      */
     public static void fixNmMdAndUq(final SAMRecord record, final ReferenceSequenceFileWalker refSeqWalker, final boolean isBisulfiteSequence) {
         final byte[] referenceBases = refSeqWalker.get(refSeqWalker.getSequenceDictionary().getSequenceIndex(record.getReferenceName())).getBases();
+        fixNmMdAndUq(record, referenceBases, isBisulfiteSequence);
+    }
+
+    /**
+     * Calculates and sets the NM, MD, and and UQ tags from the record and the bases of the reference sequence to which it is
+     * aligned.  Only reads referenceBases, so may be called concurrently for different records.
+     */
+    static void fixNmMdAndUq(final SAMRecord record, final byte[] referenceBases, final boolean isBisulfiteSequence) {
         // only recalculate NM if it isn't bisulfite, since it needs to be treated specially below
         SequenceUtil.calculateMdAndNmTags(record, referenceBases, true, !isBisulfiteSequence);
         if (isBisulfiteSequence) {  // recalculate the NM tag for bisulfite data
@@ -570,8 +737,8 @@ public abstract class AbstractAlignmentMerger {
     private void addIfNotFiltered(final Sink out, final SAMRecord rec) {
         if (includeSecondaryAlignments || !rec.getNotPrimaryAlignmentFlag()) {
             out.add(rec);
-            if (this.progress.record(rec) && crossSpeciesReads > 0) {
-                log.info(String.format("%d Reads have been unmapped due to being suspected of being Cross-species contamination.", crossSpeciesReads));
+            if (this.progress.record(rec) && crossSpeciesReads.get() > 0) {
+                log.info(String.format("%d Reads have been unmapped due to being suspected of being Cross-species contamination.", crossSpeciesReads.get()));
             }
         }
     }
@@ -621,7 +788,7 @@ public abstract class AbstractAlignmentMerger {
             SAMUtils.makeReadUnmapped(unaligned);
         } else if (isContaminant) {
 
-            crossSpeciesReads++;
+            crossSpeciesReads.incrementAndGet();
 
             if (unmappingReadsStrategy.isPopulatePaTag()) {
                 unaligned.setAttribute("PA", encodeMappingInformation(aligned));
@@ -52,8 +52,14 @@ import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.SamOrBam;
 
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Converts a fastq file to an unaligned BAM/SAM format.
@@ -152,6 +158,13 @@ public class FastqToSam extends CommandLineProgram {
     @Option(doc="Allow (and ignore) empty lines")
     public Boolean ALLOW_AND_IGNORE_EMPTY_LINES = false;
 
+    @Option(doc="The number of threads used to build SAM records.  If greater than 1, each input FASTQ is also read on a thread " +
+            "of its own, and the output is written asynchronously; the output is the same for any number of threads.")
+    public int THREADS = 1;
+
+    /** The number of reads (or pairs) read and converted to SAM records at a time when THREADS is greater than 1. */
+    private static final int PIPELINE_BATCH_SIZE = 1000;
+
     private static final SolexaQualityConverter solexaQualityConverter = SolexaQualityConverter.getSingleton();
 
     /**
@@ -244,7 +257,7 @@ public class FastqToSam extends CommandLineProgram {
         IOUtil.assertFileIsWritable(OUTPUT);
 
         final SAMFileHeader header = createSamFileHeader();
-        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, false, OUTPUT);
+        final SAMFileWriter writer = new SAMFileWriterFactory().setUseAsyncIo(THREADS > 1).makeSAMOrBAMWriter(header, false, OUTPUT);
 
         // Set the quality format
         QUALITY_FORMAT = FastqToSam.determineQualityFormat(fileToFastqReader(FASTQ),
@@ -305,7 +318,9 @@ public class FastqToSam extends CommandLineProgram {
      *
      */
     public void makeItSo(final FastqReader reader1, final FastqReader reader2, final SAMFileWriter writer) {
-        final int readCount = (reader2 == null) ?  doUnpaired(reader1, writer) : doPaired(reader1, reader2, writer);
+        final int readCount;
+        if (THREADS > 1) readCount = doPipelined(reader1, reader2, writer);
+        else readCount = (reader2 == null) ?  doUnpaired(reader1, writer) : doPaired(reader1, reader2, writer);
         LOG.info("Processed " + readCount + " fastq reads");
     }
 
@@ -356,6 +371,120 @@ public class FastqToSam extends CommandLineProgram {
         return readCount;
     }
 
+    /**
+     * Does the same as {@link #doUnpaired} or {@link #doPaired}, but reads each fastq on a thread of its own and builds the SAM
+     * records in batches on a pool of THREADS threads.  The batches are written in order, so the output does not change.
+     */
+    protected int doPipelined(final FastqReader freader1, final FastqReader freader2, final SAMFileWriter writer) {
+        final SAMFileHeader header = writer.getFileHeader();
+        final ExecutorService readerExecutor1 = Executors.newSingleThreadExecutor();
+        final ExecutorService readerExecutor2 = freader2 == null ? null : Executors.newSingleThreadExecutor();
+        final ExecutorService builderExecutor = Executors.newFixedThreadPool(THREADS);
+        final Deque<Future<RecordBatch>> pending = new ArrayDeque<>();
+        int readCount = 0;
+        final ProgressLogger progress = new ProgressLogger(LOG);
+        try {
+            // Each reader reads its batches in order on its own thread, and each batch of SAM records waits for its fastq batches.
+            boolean inputExhausted = false;
+            while (true) {
+                while (!inputExhausted && pending.size() < 2 * THREADS) {
+                    final Future<FastqBatch> batch1 = readerExecutor1.submit(() -> new FastqBatch(freader1));
+                    final Future<FastqBatch> batch2 = freader2 == null ? null : readerExecutor2.submit(() -> new FastqBatch(freader2));
+                    pending.add(builderExecutor.submit(() -> buildRecords(header, batch1.get(), batch2 == null ? null : batch2.get())));
+                }
+                if (pending.isEmpty()) break;
+
+                final RecordBatch batch = pending.remove().get();
+                for (final SAMRecord srec : batch.records) {
+                    writer.addAlignment(srec);
+                    progress.record(srec);
+                }
+                readCount += batch.readCount;
+                // Batches submitted after the end of the input are empty.
+                if (batch.readCount < PIPELINE_BATCH_SIZE) inputExhausted = true;
+            }
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while converting fastq reads.", e);
+        } catch (final ExecutionException e) {
+            // Errors in reading the fastqs reach here through the batches that were waiting for them.
+            Throwable cause = e.getCause();
+            while (cause instanceof ExecutionException) cause = cause.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new PicardException("Error while converting fastq reads.", cause);
+        } finally {
+            builderExecutor.shutdownNow();
+            readerExecutor1.shutdownNow();
+            if (readerExecutor2 != null) readerExecutor2.shutdownNow();
+        }
+
+        return readCount;
+    }
+
+    /** Builds the SAM records for a batch of unpaired reads, or of pairs if batch2 is not null, as doUnpaired and doPaired do. */
+    private RecordBatch buildRecords(final SAMFileHeader header, final FastqBatch batch1, final FastqBatch batch2) {
+        final List<SAMRecord> records = new ArrayList<>(batch2 == null ? batch1.records.size() : 2 * batch1.records.size());
+        if (batch2 == null) {
+            for (final FastqRecord frec : batch1.records) {
+                final SAMRecord srec = createSamRecord(header, SequenceUtil.getSamReadNameFromFastqHeader(frec.getReadHeader()), frec, false);
+                srec.setReadPairedFlag(false);
+                records.add(srec);
+            }
+            return new RecordBatch(records, batch1.records.size());
+        }
+
+        final int numPairs = Math.min(batch1.records.size(), batch2.records.size());
+        for (int i = 0; i < numPairs; i++) {
+            final FastqRecord frec1 = batch1.records.get(i);
+            final FastqRecord frec2 = batch2.records.get(i);
+
+            final String frec1Name = SequenceUtil.getSamReadNameFromFastqHeader(frec1.getReadHeader());
+            final String frec2Name = SequenceUtil.getSamReadNameFromFastqHeader(frec2.getReadHeader());
+            final String baseName = getBaseName(frec1Name, frec2Name, batch1.file, batch1.lineNumbers[i], batch2.file, batch2.lineNumbers[i]);
+
+            final SAMRecord srec1 = createSamRecord(header, baseName, frec1, true);
+            srec1.setFirstOfPairFlag(true);
+            srec1.setSecondOfPairFlag(false);
+            records.add(srec1);
+
+            final SAMRecord srec2 = createSamRecord(header, baseName, frec2, true);
+            srec2.setFirstOfPairFlag(false);
+            srec2.setSecondOfPairFlag(true);
+            records.add(srec2);
+        }
+
+        if (batch1.records.size() != batch2.records.size()) {
+            throw new PicardException("Input paired fastq files must be the same length");
+        }
+        return new RecordBatch(records, numPairs);
+    }
+
+    /** Up to PIPELINE_BATCH_SIZE consecutive records of a fastq. */
+    private static final class FastqBatch {
+        final File file;
+        final List<FastqRecord> records = new ArrayList<>(PIPELINE_BATCH_SIZE);
+        /** The line number of the reader just after each record was read, for error messages. */
+        final int[] lineNumbers = new int[PIPELINE_BATCH_SIZE];
+
+        FastqBatch(final FastqReader freader) {
+            this.file = freader.getFile();
+            while (records.size() < PIPELINE_BATCH_SIZE && freader.hasNext()) {
+                records.add(freader.next());
+                lineNumbers[records.size() - 1] = freader.getLineNumber();
+            }
+        }
+    }
+
+    /** The SAM records built from a batch of fastq reads, and the number of reads (or pairs) that they came from. */
+    private static final class RecordBatch {
+        final List<SAMRecord> records;
+        final int readCount;
+
+        RecordBatch(final List<SAMRecord> records, final int readCount) {
+            this.records = records;
+            this.readCount = readCount;
+        }
+    }
+
     private FastqReader fileToFastqReader(final File file) {
         return new FastqReader(file, ALLOW_AND_IGNORE_EMPTY_LINES);
     }
@@ -433,11 +562,17 @@ public class FastqToSam extends CommandLineProgram {
      * </ul>
      */
     String getBaseName(final String readName1, final String readName2, final FastqReader freader1, final FastqReader freader2) {
-        String [] toks = getReadNameTokens(readName1, 1, freader1);
+        return getBaseName(readName1, readName2, freader1.getFile(), freader1.getLineNumber(), freader2.getFile(), freader2.getLineNumber());
+    }
+
+    /** As above, with the files and current line numbers of the readers rather than the readers themselves. */
+    private String getBaseName(final String readName1, final String readName2, final File file1, final int lineNumber1,
+                               final File file2, final int lineNumber2) {
+        String [] toks = getReadNameTokens(readName1, 1, file1, lineNumber1);
         final String baseName1 = toks[0] ;
         final String num1 = toks[1] ;
 
-        toks = getReadNameTokens(readName2, 2, freader2);
+        toks = getReadNameTokens(readName2, 2, file2, lineNumber2);
         final String baseName2 = toks[0] ;
         final String num2 = toks[1];
 
@@ -448,19 +583,19 @@ public class FastqToSam extends CommandLineProgram {
         final boolean num1Blank = StringUtil.isBlank(num1);
         final boolean num2Blank = StringUtil.isBlank(num2);
         if (num1Blank || num2Blank) {
-            if(!num1Blank) throw new PicardException(error(freader1,"Pair 1 number is missing (" +readName1+ "). Both pair numbers must be present or neither."));       //num1 != blank and num2   == blank
-            else if(!num2Blank) throw new PicardException(error(freader2, "Pair 2 number is missing (" +readName2+ "). Both pair numbers must be present or neither.")); //num1 == blank and num =2 != blank 
+            if(!num1Blank) throw new PicardException(error(file1, lineNumber1, "Pair 1 number is missing (" +readName1+ "). Both pair numbers must be present or neither."));       //num1 != blank and num2   == blank
+            else if(!num2Blank) throw new PicardException(error(file2, lineNumber2, "Pair 2 number is missing (" +readName2+ "). Both pair numbers must be present or neither.")); //num1 == blank and num =2 != blank 
         } else {
-            if (!num1.equals("1")) throw new PicardException(error(freader1,"Pair 1 number must be 1 ("+readName1+")"));
-            if (!num2.equals("2")) throw new PicardException(error(freader2,"Pair 2 number must be 2 ("+readName2+")"));
+            if (!num1.equals("1")) throw new PicardException(error(file1, lineNumber1, "Pair 1 number must be 1 ("+readName1+")"));
+            if (!num2.equals("2")) throw new PicardException(error(file2, lineNumber2, "Pair 2 number must be 2 ("+readName2+")"));
         }
 
         return baseName1 ;
     }
 
     /** Breaks up read name into baseName and number separated by the last / */
-    private String [] getReadNameTokens(final String readName, final int pairNum, final FastqReader freader) {
-        if(readName.equals("")) throw new PicardException(error(freader,"Pair read name "+pairNum+" cannot be empty: "+readName));
+    private String [] getReadNameTokens(final String readName, final int pairNum, final File file, final int lineNumber) {
+        if(readName.equals("")) throw new PicardException(error(file, lineNumber, "Pair read name "+pairNum+" cannot be empty: "+readName));
 
         final int idx = readName.lastIndexOf('/');
         final String[] result = new String[2];
@@ -484,12 +619,13 @@ public class FastqToSam extends CommandLineProgram {
     }
 
     /** Little utility to give error messages corresponding to line numbers in the input files. */
-    private String error(final FastqReader freader, final String str) {
-        return str +" at line "+freader.getLineNumber() +" in file "+freader.getFile().getAbsolutePath();
+    private String error(final File file, final int lineNumber, final String str) {
+        return str +" at line "+lineNumber +" in file "+file.getAbsolutePath();
     }
 
     @Override
     protected String[] customCommandLineValidation() {
+        if (THREADS < 1) return new String[]{"THREADS must be at least 1"};
         if (MIN_Q < 0) return new String[]{"MIN_Q must be >= 0"};
         if (MAX_Q > SAMUtils.MAX_PHRED_SCORE) return new String[]{"MAX_Q must be <= " + SAMUtils.MAX_PHRED_SCORE};
         return null;
@@ -218,6 +218,10 @@ public class MergeBamAlignment extends CommandLineProgram {
     @Option(doc = "How to deal with alignment information in reads that are being unmapped (e.g. due to cross-species contamination.) Currently ignored unless UNMAP_CONTAMINANT_READS = true", optional = true)
     public AbstractAlignmentMerger.UnmappingReadStrategy UNMAPPED_READ_STRATEGY = AbstractAlignmentMerger.UnmappingReadStrategy.DO_NOT_CHANGE;
 
+    @Option(doc = "The number of threads on which to merge reads with their alignments and, for coordinate sorted output, " +
+            "calculate the NM, MD and UQ tags. The output does not depend on the number of threads.")
+    public int THREADS = 1;
+
     private static final Log log = Log.getInstance(MergeBamAlignment.class);
 
     /**
@@ -279,6 +283,7 @@ public class MergeBamAlignment extends CommandLineProgram {
         merger.setIncludeSecondaryAlignments(INCLUDE_SECONDARY_ALIGNMENTS);
         merger.setAttributesToReverse(ATTRIBUTES_TO_REVERSE);
         merger.setAttributesToReverseComplement(ATTRIBUTES_TO_REVERSE_COMPLEMENT);
+        merger.setNumThreads(THREADS);
         merger.mergeAlignment(REFERENCE_SEQUENCE);
         merger.close();
 
@@ -295,6 +300,10 @@ public class MergeBamAlignment extends CommandLineProgram {
      */
     protected String[] customCommandLineValidation() {
 
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1"};
+        }
+
         if ((PROGRAM_RECORD_ID != null || PROGRAM_GROUP_VERSION != null ||
                 PROGRAM_GROUP_COMMAND_LINE != null) &&
                 (PROGRAM_RECORD_ID == null || PROGRAM_GROUP_VERSION == null ||
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.sam;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import picard.PicardException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a BGZF (block gzip) stream, compressing its blocks on a thread pool that may be shared between several streams.
+ * The output is a series of gzip members followed by the BGZF end-of-file block, so it can be read by any gzip reader as
+ * well as by {@link htsjdk.samtools.util.BlockCompressedInputStream}.
+ *
+ * Blocks are written in the order that their data was written.  At most maxPendingBlocks blocks of a stream are being
+ * compressed at once; once that many are pending, writing waits for the oldest to finish.  Writers such as
+ * {@link java.io.PrintStream} may flush after every record, so {@link #flush()} writes only the blocks that have already
+ * been compressed, without waiting for the rest, and keeps a partly filled block until the stream is closed.
+ *
+ * Instances are not thread safe.
+ */
+class ParallelBlockCompressedOutputStream extends OutputStream {
+    private final OutputStream out;
+    /** The pool on which blocks are compressed, or null to compress them on the writing thread. */
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final int compressionLevel;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    private int numBuffered = 0;
+    private boolean closed = false;
+
+    ParallelBlockCompressedOutputStream(final OutputStream out, final ExecutorService executor, final int maxPendingBlocks,
+                                        final int compressionLevel) {
+        this.out = out;
+        this.executor = executor;
+        this.maxPendingBlocks = maxPendingBlocks;
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        buffer[numBuffered++] = (byte) b;
+        if (numBuffered == buffer.length) submitBlock();
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, buffer.length - numBuffered);
+            System.arraycopy(b, off, buffer, numBuffered, n);
+            numBuffered += n;
+            off += n;
+            len -= n;
+            if (numBuffered == buffer.length) submitBlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty() && pending.peek().isDone()) writeOldestBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (numBuffered > 0) submitBlock();
+        while (!pending.isEmpty()) writeOldestBlock();
+        out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        out.close();
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = buffer;
+        final int length = numBuffered;
+        buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        numBuffered = 0;
+
+        if (executor == null) {
+            out.write(compressBlock(data, length, compressionLevel));
+            return;
+        }
+        pending.add(executor.submit(() -> compressBlock(data, length, compressionLevel)));
+        while (pending.size() > maxPendingBlocks) writeOldestBlock();
+    }
+
+    private void writeOldestBlock() throws IOException {
+        try {
+            out.write(pending.remove().get());
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while compressing output.", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new PicardException("Error while compressing output.", e.getCause());
+        }
+    }
+
+    /** Returns the BGZF block holding the first length bytes of data. */
+    static byte[] compressBlock(final byte[] data, final int length, final int compressionLevel) {
+        final byte[] block = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        int compressedSize = deflate(data, length, compressionLevel, block);
+        if (compressedSize < 0) {
+            // The data did not shrink enough to fit in a block, so store it uncompressed, which always fits.
+            compressedSize = deflate(data, length, Deflater.NO_COMPRESSION, block);
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        final int blockSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + compressedSize +
+                BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+        block[0] = BlockCompressedStreamConstants.GZIP_ID1;
+        block[1] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+        block[2] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+        block[3] = BlockCompressedStreamConstants.GZIP_FLG;
+        // Bytes 4 to 7 are the modification time, which is left as zero.
+        block[8] = BlockCompressedStreamConstants.GZIP_XFL;
+        block[9] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+        putShort(block, 10, BlockCompressedStreamConstants.GZIP_XLEN);
+        block[12] = BlockCompressedStreamConstants.BGZF_ID1;
+        block[13] = BlockCompressedStreamConstants.BGZF_ID2;
+        putShort(block, 14, BlockCompressedStreamConstants.BGZF_LEN);
+        putShort(block, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, blockSize - 1);
+
+        final int footer = blockSize - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        putInt(block, footer, (int) crc.getValue());
+        putInt(block, footer + 4, length);
+        return Arrays.copyOf(block, blockSize);
+    }
+
+    /** Deflates data into block after the header, returning the compressed size or -1 if it does not fit. */
+    private static int deflate(final byte[] data, final int length, final int compressionLevel, final byte[] block) {
+        final Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            final int compressedSize = deflater.deflate(block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH,
+                    BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.GZIP_OVERHEAD);
+            return deflater.finished() ? compressedSize : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void putShort(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putInt(final byte[] bytes, final int offset, final int value) {
+        putShort(bytes, offset, value);
+        putShort(bytes, offset + 2, value >>> 16);
+    }
+}
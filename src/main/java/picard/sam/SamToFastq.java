@@ -23,12 +23,17 @@
  */
 package picard.sam;
 
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordQueryNameComparator;
 import htsjdk.samtools.SAMUtils;
 import htsjdk.samtools.SAMValidationError;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.fastq.AsyncFastqWriter;
+import htsjdk.samtools.fastq.BasicFastqWriter;
 import htsjdk.samtools.fastq.FastqRecord;
 import htsjdk.samtools.fastq.FastqWriter;
 import htsjdk.samtools.fastq.FastqWriterFactory;
@@ -36,8 +41,10 @@ import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Lazy;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.Md5CalculatingOutputStream;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.SequenceUtil;
+import htsjdk.samtools.util.SortingCollection;
 import htsjdk.samtools.util.StringUtil;
 import htsjdk.samtools.util.TrimmingUtil;
 import picard.PicardException;
@@ -48,11 +55,19 @@ import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.SamOrBam;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * <p/>
@@ -105,6 +120,9 @@ public class SamToFastq extends CommandLineProgram {
             optional = true)
     public File OUTPUT_DIR;
 
+    @Option(shortName = "GZOPRG", doc = "Compress output FASTQ files per read group using gzip and append a .gz extension to the file names.")
+    public boolean COMPRESS_OUTPUTS_PER_RG = false;
+
     @Option(shortName = "RC", doc = "Re-reverse bases and qualities of reads with negative strand flag set before writing them to FASTQ",
             optional = true)
     public boolean RE_REVERSE = true;
@@ -156,8 +174,22 @@ public class SamToFastq extends CommandLineProgram {
             "is not comprehensive, so there may be exceptions if this is set to true and there are paired reads with non-primary alignments.")
     public boolean INCLUDE_NON_PRIMARY_ALIGNMENTS = false;
 
+    @Option(doc = "If set, at most this many reads whose mates have not been seen yet are held in memory, half of them waiting " +
+            "for their mates and half buffered on their way to temporary files.  Reads that have waited longest are written to " +
+            "the temporary files and paired up by read name once the whole input has been read, so that memory use does not " +
+            "depend on how far apart mates are in the input.  The pairs found that way are written after all of the others.",
+            optional = true)
+    public Integer MAX_UNPAIRED_RECORDS_IN_RAM;
+
+    @Option(doc = "The number of threads used to compress gzipped output FASTQ files.  If greater than 1, each output FASTQ is also " +
+            "written on its own thread, and gzipped outputs are written as block gzip (BGZF) files, which any gzip reader can read.")
+    public int THREADS = 1;
+
     private final Log log = Log.getInstance(SamToFastq.class);
 
+    /** The pool on which gzipped outputs are compressed when THREADS is greater than 1. */
+    private ExecutorService compressionExecutor;
+
     public static void main(final String[] argv) {
         System.exit(new SamToFastq().instanceMain(argv));
     }
@@ -165,65 +197,127 @@ public class SamToFastq extends CommandLineProgram {
     protected int doWork() {
         IOUtil.assertFileIsReadable(INPUT);
         final SamReader reader = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
-        final Map<String, SAMRecord> firstSeenMates = new HashMap<>();
+        // In insertion order, so that the reads that have waited longest are the first to be spilled.
+        final Map<String, SAMRecord> firstSeenMates = new LinkedHashMap<>();
+        // The sorting collection holds the rest of MAX_UNPAIRED_RECORDS_IN_RAM in its buffer before writing them out.
+        final int maxWaitingMates = MAX_UNPAIRED_RECORDS_IN_RAM == null ? Integer.MAX_VALUE :
+                MAX_UNPAIRED_RECORDS_IN_RAM - maxSpilledMatesInRam();
+        SortingCollection<SAMRecord> spilledMates = null;
         final FastqWriterFactory factory = new FastqWriterFactory();
         factory.setCreateMd5(CREATE_MD5_FILE);
-        final Map<SAMReadGroupRecord, FastqWriters> writers = generateWriters(reader.getFileHeader().getReadGroups(), factory);
-        if (writers.isEmpty()) {
-            final String msgBase = INPUT + " does not contain Read Groups";
-            final String msg = OUTPUT_PER_RG ? msgBase + ", consider not using the OUTPUT_PER_RG option" : msgBase;
-            throw new PicardException(msg);
-        }
+        compressionExecutor = THREADS > 1 ? Executors.newFixedThreadPool(THREADS) : null;
+        try {
+            final Map<SAMReadGroupRecord, FastqWriters> writers = generateWriters(reader.getFileHeader().getReadGroups(), factory);
+            if (writers.isEmpty()) {
+                final String msgBase = INPUT + " does not contain Read Groups";
+                final String msg = OUTPUT_PER_RG ? msgBase + ", consider not using the OUTPUT_PER_RG option" : msgBase;
+                throw new PicardException(msg);
+            }
 
-        final ProgressLogger progress = new ProgressLogger(log);
-        for (final SAMRecord currentRecord : reader) {
-            if (currentRecord.isSecondaryOrSupplementary() && !INCLUDE_NON_PRIMARY_ALIGNMENTS)
-                continue;
-
-            // Skip non-PF reads as necessary
-            if (currentRecord.getReadFailsVendorQualityCheckFlag() && !INCLUDE_NON_PF_READS)
-                continue;
-
-            final FastqWriters fq = writers.get(currentRecord.getReadGroup());
-            if (currentRecord.getReadPairedFlag()) {
-                final String currentReadName = currentRecord.getReadName();
-                final SAMRecord firstRecord = firstSeenMates.remove(currentReadName);
-                if (firstRecord == null) {
-                    firstSeenMates.put(currentReadName, currentRecord);
-                } else {
-                    assertPairedMates(firstRecord, currentRecord);
-
-                    final SAMRecord read1 =
-                            currentRecord.getFirstOfPairFlag() ? currentRecord : firstRecord;
-                    final SAMRecord read2 =
-                            currentRecord.getFirstOfPairFlag() ? firstRecord : currentRecord;
-                    writeRecord(read1, 1, fq.getFirstOfPair(), READ1_TRIM, READ1_MAX_BASES_TO_WRITE);
-                    final FastqWriter secondOfPairWriter = fq.getSecondOfPair();
-                    if (secondOfPairWriter == null) {
-                        throw new PicardException("Input contains paired reads but no SECOND_END_FASTQ specified.");
+            final ProgressLogger progress = new ProgressLogger(log);
+            for (final SAMRecord currentRecord : reader) {
+                if (currentRecord.isSecondaryOrSupplementary() && !INCLUDE_NON_PRIMARY_ALIGNMENTS)
+                    continue;
+
+                // Skip non-PF reads as necessary
+                if (currentRecord.getReadFailsVendorQualityCheckFlag() && !INCLUDE_NON_PF_READS)
+                    continue;
+
+                final FastqWriters fq = writers.get(currentRecord.getReadGroup());
+                if (currentRecord.getReadPairedFlag()) {
+                    final String currentReadName = currentRecord.getReadName();
+                    final SAMRecord firstRecord = firstSeenMates.remove(currentReadName);
+                    if (firstRecord == null) {
+                        firstSeenMates.put(currentReadName, currentRecord);
+                        if (MAX_UNPAIRED_RECORDS_IN_RAM != null && firstSeenMates.size() > maxWaitingMates) {
+                            if (spilledMates == null) spilledMates = newSpilledMates(reader.getFileHeader());
+                            // Spill the older half, which on coordinate sorted input are the reads whose mates are furthest away.
+                            final Iterator<SAMRecord> oldest = firstSeenMates.values().iterator();
+                            while (firstSeenMates.size() > maxWaitingMates / 2) {
+                                spilledMates.add(oldest.next());
+                                oldest.remove();
+                            }
+                        }
+                    } else {
+                        writePair(firstRecord, currentRecord, fq);
                     }
-                    writeRecord(read2, 2, secondOfPairWriter, READ2_TRIM, READ2_MAX_BASES_TO_WRITE);
+                } else {
+                    writeRecord(currentRecord, null, fq.getUnpaired(), READ1_TRIM, READ1_MAX_BASES_TO_WRITE);
                 }
-            } else {
-                writeRecord(currentRecord, null, fq.getUnpaired(), READ1_TRIM, READ1_MAX_BASES_TO_WRITE);
+
+                progress.record(currentRecord);
             }
 
-            progress.record(currentRecord);
-        }
+            CloserUtil.close(reader);
+
+            int unpairedMates = firstSeenMates.size();
+            if (spilledMates != null) {
+                for (final SAMRecord record : firstSeenMates.values()) spilledMates.add(record);
+                firstSeenMates.clear();
+                unpairedMates = writeSpilledPairs(spilledMates, writers);
+                spilledMates.cleanup();
+            }
 
-        CloserUtil.close(reader);
+            // Close all the fastq writers being careful to close each one only once!
+            for (final FastqWriters writerMapping : new HashSet<>(writers.values())) {
+                writerMapping.closeAll();
+            }
+
+            if (unpairedMates > 0) {
+                SAMUtils.processValidationError(new SAMValidationError(SAMValidationError.Type.MATE_NOT_FOUND,
+                        "Found " + unpairedMates + " unpaired mates", null), VALIDATION_STRINGENCY);
+            }
 
-        // Close all the fastq writers being careful to close each one only once!
-        for (final FastqWriters writerMapping : new HashSet<>(writers.values())) {
-            writerMapping.closeAll();
+            return 0;
+        } finally {
+            if (compressionExecutor != null) compressionExecutor.shutdownNow();
         }
+    }
+
+    private SortingCollection<SAMRecord> newSpilledMates(final SAMFileHeader header) {
+        return SortingCollection.newInstance(SAMRecord.class, new BAMRecordCodec(header), new SAMRecordQueryNameComparator(),
+                maxSpilledMatesInRam(), TMP_DIR);
+    }
+
+    /** The number of spilled reads that the sorting collection holds in memory before writing them to a temporary file. */
+    private int maxSpilledMatesInRam() {
+        return Math.max(1, MAX_UNPAIRED_RECORDS_IN_RAM / 2);
+    }
 
-        if (!firstSeenMates.isEmpty()) {
-            SAMUtils.processValidationError(new SAMValidationError(SAMValidationError.Type.MATE_NOT_FOUND,
-                    "Found " + firstSeenMates.size() + " unpaired mates", null), VALIDATION_STRINGENCY);
+    /**
+     * Pairs up the spilled reads, which come out of the sorting collection grouped by read name, and writes the pairs.
+     *
+     * @return the number of reads whose mates were not found
+     */
+    private int writeSpilledPairs(final SortingCollection<SAMRecord> spilledMates, final Map<SAMReadGroupRecord, FastqWriters> writers) {
+        int unpairedMates = 0;
+        SAMRecord firstRecord = null;
+        for (final SAMRecord currentRecord : spilledMates) {
+            if (firstRecord != null && firstRecord.getReadName().equals(currentRecord.getReadName())) {
+                writePair(firstRecord, currentRecord, writers.get(currentRecord.getReadGroup()));
+                firstRecord = null;
+            } else {
+                if (firstRecord != null) ++unpairedMates;
+                firstRecord = currentRecord;
+            }
         }
+        if (firstRecord != null) ++unpairedMates;
+        return unpairedMates;
+    }
 
-        return 0;
+    private void writePair(final SAMRecord firstRecord, final SAMRecord currentRecord, final FastqWriters fq) {
+        assertPairedMates(firstRecord, currentRecord);
+
+        final SAMRecord read1 =
+                currentRecord.getFirstOfPairFlag() ? currentRecord : firstRecord;
+        final SAMRecord read2 =
+                currentRecord.getFirstOfPairFlag() ? firstRecord : currentRecord;
+        writeRecord(read1, 1, fq.getFirstOfPair(), READ1_TRIM, READ1_MAX_BASES_TO_WRITE);
+        final FastqWriter secondOfPairWriter = fq.getSecondOfPair();
+        if (secondOfPairWriter == null) {
+            throw new PicardException("Input contains paired reads but no SECOND_END_FASTQ specified.");
+        }
+        writeRecord(read2, 2, secondOfPairWriter, READ2_TRIM, READ2_MAX_BASES_TO_WRITE);
     }
 
     /**
@@ -237,14 +331,14 @@ public class SamToFastq extends CommandLineProgram {
         final FastqWriters fastqWriters;
         if (!OUTPUT_PER_RG) {
             IOUtil.assertFileIsWritable(FASTQ);
-            final FastqWriter firstOfPairWriter = factory.newWriter(FASTQ);
+            final FastqWriter firstOfPairWriter = newWriter(factory, FASTQ);
 
             final FastqWriter secondOfPairWriter;
             if (INTERLEAVE) {
                 secondOfPairWriter = firstOfPairWriter;
             } else if (SECOND_END_FASTQ != null) {
                 IOUtil.assertFileIsWritable(SECOND_END_FASTQ);
-                secondOfPairWriter = factory.newWriter(SECOND_END_FASTQ);
+                secondOfPairWriter = newWriter(factory, SECOND_END_FASTQ);
             } else {
                 secondOfPairWriter = null;
             }
@@ -252,7 +346,7 @@ public class SamToFastq extends CommandLineProgram {
             /* Prepare the writer that will accept unpaired reads.  If we're emitting a single fastq - and assuming single-ended reads -
              * then this is simply that one fastq writer.  Otherwise, if we're doing paired-end, we emit to a third new writer, since
              * the other two fastqs are accepting only paired end reads. */
-            final FastqWriter unpairedWriter = UNPAIRED_FASTQ == null ? firstOfPairWriter : factory.newWriter(UNPAIRED_FASTQ);
+            final FastqWriter unpairedWriter = UNPAIRED_FASTQ == null ? firstOfPairWriter : newWriter(factory, UNPAIRED_FASTQ);
             fastqWriters = new FastqWriters(firstOfPairWriter, secondOfPairWriter, unpairedWriter);
 
             // For all read groups we may find in the bam, register this single set of writers for them.
@@ -263,16 +357,40 @@ public class SamToFastq extends CommandLineProgram {
         } else {
             // When we're creating a fastq-group per readgroup, by convention we do not emit a special fastq for unpaired reads.
             for (final SAMReadGroupRecord rg : samReadGroupRecords) {
-                final FastqWriter firstOfPairWriter = factory.newWriter(makeReadGroupFile(rg, "_1"));
+                final FastqWriter firstOfPairWriter = newWriter(factory, makeReadGroupFile(rg, "_1"));
                 // Create this writer on-the-fly; if we find no second-of-pair reads, don't bother making a writer (or delegating,
                 // if we're interleaving).
-                final Lazy<FastqWriter> lazySecondOfPairWriter = new Lazy<>(() -> INTERLEAVE ? firstOfPairWriter : factory.newWriter(makeReadGroupFile(rg, "_2")));
+                final Lazy<FastqWriter> lazySecondOfPairWriter = new Lazy<>(() -> INTERLEAVE ? firstOfPairWriter : newWriter(factory, makeReadGroupFile(rg, "_2")));
                 writerMap.put(rg, new FastqWriters(firstOfPairWriter, lazySecondOfPairWriter, firstOfPairWriter));
             }
         }
         return writerMap;
     }
 
+    /**
+     * Opens a writer for the given file.  With more than one thread, each writer formats and writes its records on a thread of
+     * its own, and gzipped files are compressed in blocks on the shared compression pool.
+     */
+    private FastqWriter newWriter(final FastqWriterFactory factory, final File file) {
+        if (compressionExecutor == null) return factory.newWriter(file);
+
+        OutputStream out;
+        try {
+            out = new FileOutputStream(file);
+        } catch (final FileNotFoundException e) {
+            throw new PicardException("Could not open " + file.getAbsolutePath() + " for writing.", e);
+        }
+        if (file.getName().endsWith(".gz")) {
+            out = new ParallelBlockCompressedOutputStream(IOUtil.maybeBufferOutputStream(out), compressionExecutor, 2 * THREADS,
+                    COMPRESSION_LEVEL);
+        } else {
+            out = IOUtil.maybeBufferOutputStream(out);
+        }
+        // As with FastqWriterFactory, the MD5 is of the uncompressed FASTQ.
+        if (CREATE_MD5_FILE) out = new Md5CalculatingOutputStream(out, new File(file.getAbsolutePath() + ".md5"));
+        return new AsyncFastqWriter(new BasicFastqWriter(new PrintStream(out)), AsyncFastqWriter.DEFAULT_QUEUE_SIZE);
+    }
+
     private File makeReadGroupFile(final SAMReadGroupRecord readGroup, final String preExtSuffix) {
         String fileName = null;
         if (RG_TAG.equalsIgnoreCase("PU")){
@@ -285,7 +403,7 @@ public class SamToFastq extends CommandLineProgram {
         }
         fileName = IOUtil.makeFileNameSafe(fileName);
         if (preExtSuffix != null) fileName += preExtSuffix;
-        fileName += ".fastq";
+        fileName += COMPRESS_OUTPUTS_PER_RG ? ".fastq.gz" : ".fastq";
 
         final File result = (OUTPUT_DIR != null)
                 ? new File(OUTPUT_DIR, fileName)
@@ -395,6 +513,18 @@ public class SamToFastq extends CommandLineProgram {
      * messages to be written to the appropriate place.
      */
     protected String[] customCommandLineValidation() {
+        if (THREADS < 1) {
+            return new String[]{
+                    "THREADS must be at least 1"
+            };
+        }
+
+        if (MAX_UNPAIRED_RECORDS_IN_RAM != null && MAX_UNPAIRED_RECORDS_IN_RAM < 1) {
+            return new String[]{
+                    "MAX_UNPAIRED_RECORDS_IN_RAM must be at least 1"
+            };
+        }
+
         if (INTERLEAVE && SECOND_END_FASTQ != null) {
             return new String[]{
                     "Cannot set INTERLEAVE to true and pass in a SECOND_END_FASTQ"
@@ -35,21 +35,25 @@ import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.CloseableIterator;
-import htsjdk.samtools.util.SortingCollection;
+import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.SortingLongCollection;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
-import picard.sam.markduplicates.util.DiskBasedReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.FingerprintReadEndsForMarkDuplicatesMap;
 import picard.sam.markduplicates.util.LibraryIdGenerator;
 import picard.sam.markduplicates.util.ReadEnds;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
-import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesCodec;
-import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesSortingCollection;
 import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
-import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodesCodec;
+import picard.util.AsyncIterator;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A better duplication marking algorithm that handles all cases including clipped
@@ -147,13 +151,15 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     public int MAX_SEQUENCES_FOR_DISK_READ_ENDS_MAP = 50000;
 
     @Option(shortName = "MAX_FILE_HANDLES",
-            doc = "Maximum number of file handles to keep open when spilling read ends to disk. " +
-                    "Set this number a little lower than the per-process maximum number of file that may be open. " +
-                    "This number can be found by executing the 'ulimit -n' command on a Unix system.")
+            doc = "This option is obsolete. Unmatched read ends are spilled to disk in files that are opened one at a time, " +
+                    "only while being written or read back, so the number of open files no longer grows with the number of spills.")
     public int MAX_FILE_HANDLES_FOR_READ_ENDS_MAP = 8000;
 
     @Option(doc = "This number, plus the maximum RAM available to the JVM, determine the memory footprint used by " +
-            "some of the sorting collections.  If you are running out of memory, try reducing this number.")
+            "some of the sorting collections.  If you are running out of memory, try reducing this number.  The pair and " +
+            "fragment sorting collections share this memory budget, now held off-heap in direct buffers on top of the heap " +
+            "and capped by the JVM's maximum direct memory (-XX:MaxDirectMemorySize, which defaults to -Xmx), so the " +
+            "process may use up to (1 + SORTING_COLLECTION_SIZE_RATIO) times -Xmx in total.")
     public double SORTING_COLLECTION_SIZE_RATIO = 0.25;
 
     @Option(doc = "Barcode SAM tag (ex. BC for 10X Genomics)", optional = true)
@@ -173,12 +179,20 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     @Option(doc= "Determines how duplicate types are recorded in the DT optional attribute.")
     public DuplicateTaggingPolicy TAGGING_POLICY = DuplicateTaggingPolicy.DontTag;
 
-    private SortingCollection<ReadEndsForMarkDuplicates> pairSort;
-    private SortingCollection<ReadEndsForMarkDuplicates> fragSort;
+    @Option(doc = "The number of threads used to mark duplicates within sets of duplicate read ends, including finding optical " +
+            "duplicates. If greater than 1, the final pass that writes the output also runs as a pipeline, with records decoded " +
+            "on a reader thread and encoded and compressed on a writer thread. The sorted read ends and the records are still " +
+            "traversed in order on one thread, so the output is identical to that of a single-threaded run.")
+    public int THREADS = 1;
+
+    private ReadEndsForMarkDuplicatesSortingCollection pairSort;
+    private ReadEndsForMarkDuplicatesSortingCollection fragSort;
     private SortingLongCollection duplicateIndexes;
     private SortingLongCollection opticalDuplicateIndexes;
 
     private int numDuplicateIndices = 0;
+    /** The number of read ends in a batch of duplicate sets handed to a worker thread. */
+    private static final int DUPLICATE_SET_BATCH_SIZE = 10000;
     static private final long NO_SUCH_INDEX = Long.MAX_VALUE; // needs to be large so that that >= test fails for query-sorted traversal
 
     protected LibraryIdGenerator libraryIdGenerator = null; // this is initialized in buildSortedReadEndLists
@@ -199,6 +213,14 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         DUPLICATE_SCORING_STRATEGY = ScoringStrategy.SUM_OF_BASE_QUALITIES;
     }
 
+    @Override
+    protected String[] customCommandLineValidation() {
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1"};
+        }
+        return super.customCommandLineValidation();
+    }
+
     /** Stock main method. */
     public static void main(final String[] args) {
         new MarkDuplicates().instanceMainWithExit(args);
@@ -250,9 +272,10 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         // Key: previous PG ID on a SAM Record (or null).  Value: New PG ID to replace it.
         final Map<String, String> chainedPgIds = getChainedPgIds(outputHeader);
 
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,
-                true,
-                OUTPUT);
+        // When pipelining, records are encoded and compressed on the writer's own thread while this thread flags them
+        final SAMFileWriter out = new SAMFileWriterFactory()
+                .setUseAsyncIo(THREADS > 1)
+                .makeSAMOrBAMWriter(outputHeader, true, OUTPUT);
 
         // Now copy over the file while marking all the necessary indexes as duplicates
         long recordInFileIndex = 0;
@@ -260,7 +283,9 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         long nextDuplicateIndex = (this.duplicateIndexes.hasNext() ? this.duplicateIndexes.next() : NO_SUCH_INDEX);
 
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e7, "Written");
-        final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
+        final CloseableIterator<SAMRecord> iterator = THREADS > 1 ?
+                new AsyncIterator<>(headerAndIterator.iterator, AsyncIterator.DEFAULT_QUEUE_SIZE, "MarkDuplicatesReader") :
+                headerAndIterator.iterator;
         String duplicateQueryName = null;
         String opticalDuplicateQueryName = null;
 
@@ -394,36 +419,24 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             sizeInBytes = ReadEndsForMarkDuplicates.getSizeOf();
         }
         MAX_RECORDS_IN_RAM = (int) (Runtime.getRuntime().maxMemory() / sizeInBytes) / 2;
-        final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / sizeInBytes);
-        log.info("Will retain up to " + maxInMemory + " data points before spilling to disk.");
-
-        final ReadEndsForMarkDuplicatesCodec fragCodec, pairCodec, diskCodec;
-        if (useBarcodes) {
-            fragCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            diskCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-        } else {
-            fragCodec = new ReadEndsForMarkDuplicatesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesCodec();
-            diskCodec = new ReadEndsForMarkDuplicatesCodec();
-        }
 
-        this.pairSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                pairCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
+        // The read ends are packed off-heap, so the memory budget goes a good deal further than it would as objects.  The
+        // pairs and fragments share one budget, capped by the JVM's direct memory limit, rather than each having their own.
+        final long maxBytesInMemory = (long) (Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO);
+        final ReadEndsForMarkDuplicatesSortingCollection.OffHeapBudget offHeapBudget =
+                new ReadEndsForMarkDuplicatesSortingCollection.OffHeapBudget(maxBytesInMemory);
+        final int maxPairsInMemory = (int) Math.min(offHeapBudget.getAvailable() / ReadEndsForMarkDuplicatesSortingCollection.getRecordSize(true, useBarcodes), Integer.MAX_VALUE - 1);
+        final int maxFragsInMemory = (int) Math.min(offHeapBudget.getAvailable() / ReadEndsForMarkDuplicatesSortingCollection.getRecordSize(false, useBarcodes), Integer.MAX_VALUE - 1);
+        final int maxUnmatchedInMemory = (int) Math.min(maxBytesInMemory / FingerprintReadEndsForMarkDuplicatesMap.getBytesPerEntry(useBarcodes), Integer.MAX_VALUE - 1);
+        log.info("Will pack up to " + offHeapBudget.getAvailable() + " bytes of pairs and fragments off-heap before spilling to disk.");
 
-        this.fragSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                fragCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
+        this.pairSort = new ReadEndsForMarkDuplicatesSortingCollection(true, useBarcodes, Math.max(1, maxPairsInMemory), offHeapBudget, TMP_DIR);
+        this.fragSort = new ReadEndsForMarkDuplicatesSortingCollection(false, useBarcodes, Math.max(1, maxFragsInMemory), offHeapBudget, TMP_DIR);
 
         final SamHeaderAndIterator headerAndIterator = openInputs();
         final SAMFileHeader.SortOrder assumedSortOrder = headerAndIterator.header.getSortOrder();
         final SAMFileHeader header = headerAndIterator.header;
-        final ReadEndsForMarkDuplicatesMap tmp = new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
+        final FingerprintReadEndsForMarkDuplicatesMap tmp = new FingerprintReadEndsForMarkDuplicatesMap(useBarcodes, maxUnmatchedInMemory, TMP_DIR);
         long index = 0;
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
         final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
@@ -536,6 +549,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
         log.info("Read " + index + " records. " + tmp.size() + " pairs never matched.");
         iterator.close();
+        tmp.cleanup();
 
         // Tell these collections to free up memory if possible.
         this.pairSort.doneAdding();
@@ -610,53 +624,61 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         log.info("Will retain up to " + maxInMemory + " duplicate indices before spilling to disk.");
         this.duplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
 
+        final DuplicateSetMarker marker = new DuplicateSetMarker(THREADS);
         ReadEndsForMarkDuplicates firstOfNextChunk = null;
         final List<ReadEndsForMarkDuplicates> nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
 
-        // First just do the pairs
-        log.info("Traversing read pair information and detecting duplicates.");
-        for (final ReadEndsForMarkDuplicates next : this.pairSort) {
-            if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, true, useBarcodes)) {
-                nextChunk.add(next);
-            } else {
-                if (nextChunk.size() > 1) {
-                    markDuplicatePairs(nextChunk);
+        try {
+            // First just do the pairs
+            log.info("Traversing read pair information and detecting duplicates.");
+            for (final ReadEndsForMarkDuplicates next : this.pairSort) {
+                if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, true, useBarcodes)) {
+                    nextChunk.add(next);
+                } else {
+                    if (nextChunk.size() > 1) {
+                        marker.addPairs(nextChunk);
+                    }
+                    nextChunk.clear();
+                    nextChunk.add(next);
+                    firstOfNextChunk = next;
                 }
-                nextChunk.clear();
-                nextChunk.add(next);
-                firstOfNextChunk = next;
             }
-        }
-        if (nextChunk.size() > 1) markDuplicatePairs(nextChunk);
-        this.pairSort.cleanup();
-        this.pairSort = null;
-
-        // Now deal with the fragments
-        log.info("Traversing fragment information and detecting duplicates.");
-        boolean containsPairs = false;
-        boolean containsFrags = false;
-
-        firstOfNextChunk = null;
-
-        for (final ReadEndsForMarkDuplicates next : this.fragSort) {
-            if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, false, useBarcodes)) {
-                nextChunk.add(next);
-                containsPairs = containsPairs || next.isPaired();
-                containsFrags = containsFrags || !next.isPaired();
-            } else {
-                if (nextChunk.size() > 1 && containsFrags) {
-                    markDuplicateFragments(nextChunk, containsPairs);
+            if (nextChunk.size() > 1) marker.addPairs(nextChunk);
+            marker.flush();
+            this.pairSort.cleanup();
+            this.pairSort = null;
+
+            // Now deal with the fragments
+            log.info("Traversing fragment information and detecting duplicates.");
+            boolean containsPairs = false;
+            boolean containsFrags = false;
+
+            firstOfNextChunk = null;
+            nextChunk.clear();
+
+            for (final ReadEndsForMarkDuplicates next : this.fragSort) {
+                if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, false, useBarcodes)) {
+                    nextChunk.add(next);
+                    containsPairs = containsPairs || next.isPaired();
+                    containsFrags = containsFrags || !next.isPaired();
+                } else {
+                    if (nextChunk.size() > 1 && containsFrags) {
+                        marker.addFragments(nextChunk, containsPairs);
+                    }
+                    nextChunk.clear();
+                    nextChunk.add(next);
+                    firstOfNextChunk = next;
+                    containsPairs = next.isPaired();
+                    containsFrags = !next.isPaired();
                 }
-                nextChunk.clear();
-                nextChunk.add(next);
-                firstOfNextChunk = next;
-                containsPairs = next.isPaired();
-                containsFrags = !next.isPaired();
             }
+            marker.addFragments(nextChunk, containsPairs);
+            marker.flush();
+            this.fragSort.cleanup();
+            this.fragSort = null;
+        } finally {
+            marker.shutdown();
         }
-        markDuplicateFragments(nextChunk, containsPairs);
-        this.fragSort.cleanup();
-        this.fragSort = null;
 
         log.info("Sorting list of duplicate records.");
         this.duplicateIndexes.doneAddingStartIteration();
@@ -688,9 +710,18 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         return areComparable;
     }
 
-    private void addIndexAsDuplicate(final long bamIndex) {
-        this.duplicateIndexes.add(bamIndex);
-        ++this.numDuplicateIndices;
+    /** Adds the duplicate indexes found in a batch of duplicate sets to the sorting collections. */
+    private void addDuplicateIndexes(final DuplicateIndexes indexes) {
+        for (int i = 0; i < indexes.numDuplicates; ++i) {
+            this.duplicateIndexes.add(indexes.duplicates[i]);
+        }
+        this.numDuplicateIndices += indexes.numDuplicates;
+
+        if (this.opticalDuplicateIndexes != null) {
+            for (int i = 0; i < indexes.numOpticalDuplicates; ++i) {
+                this.opticalDuplicateIndexes.add(indexes.opticalDuplicates[i]);
+            }
+        }
     }
 
     /**
@@ -698,8 +729,9 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * not be marked as duplicates.  This assumes that the list contains objects representing pairs.
      *
      * @param list
+     * @param indexes the duplicate indexes to add to
      */
-    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list) {
+    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list, final DuplicateIndexes indexes) {
         short maxScore = 0;
         ReadEndsForMarkDuplicates best = null;
 
@@ -712,20 +744,20 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         }
 
         if (this.READ_NAME_REGEX != null) {
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, libraryIdGenerator);
+            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, indexes.opticalDuplicatesByLibraryId);
         }
 
         for (final ReadEndsForMarkDuplicates end : list) {
             if (end != best) {
-                addIndexAsDuplicate(end.read1IndexInFile);
+                indexes.addDuplicate(end.read1IndexInFile);
 
                 // in query-sorted case, these will be the same.
                 // TODO: also in coordinate sorted, when one read is unmapped
-                if(end.read2IndexInFile != end.read1IndexInFile) addIndexAsDuplicate(end.read2IndexInFile);
+                if(end.read2IndexInFile != end.read1IndexInFile) indexes.addDuplicate(end.read2IndexInFile);
 
-                if (end.isOpticalDuplicate && this.opticalDuplicateIndexes != null) {
-                    this.opticalDuplicateIndexes.add(end.read1IndexInFile);
-                    this.opticalDuplicateIndexes.add(end.read2IndexInFile);
+                if (end.isOpticalDuplicate) {
+                    indexes.addOpticalDuplicate(end.read1IndexInFile);
+                    indexes.addOpticalDuplicate(end.read2IndexInFile);
                 }
             }
         }
@@ -737,11 +769,12 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      *
      * @param list
      * @param containsPairs true if the list also contains objects containing pairs, false otherwise.
+     * @param indexes the duplicate indexes to add to
      */
-    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs, final DuplicateIndexes indexes) {
         if (containsPairs) {
             for (final ReadEndsForMarkDuplicates end : list) {
-                if (!end.isPaired()) addIndexAsDuplicate(end.read1IndexInFile);
+                if (!end.isPaired()) indexes.addDuplicate(end.read1IndexInFile);
             }
         } else {
             short maxScore = 0;
@@ -755,12 +788,141 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
             for (final ReadEndsForMarkDuplicates end : list) {
                 if (end != best) {
-                    addIndexAsDuplicate(end.read1IndexInFile);
+                    indexes.addDuplicate(end.read1IndexInFile);
                 }
             }
         }
     }
 
+    /** The duplicate and optical duplicate indexes, and optical duplicate counts, found in a batch of duplicate sets. */
+    private static class DuplicateIndexes {
+        private long[] duplicates = new long[64];
+        private int numDuplicates = 0;
+        private long[] opticalDuplicates = new long[64];
+        private int numOpticalDuplicates = 0;
+        private final Histogram<Short> opticalDuplicatesByLibraryId;
+
+        DuplicateIndexes(final Histogram<Short> opticalDuplicatesByLibraryId) {
+            this.opticalDuplicatesByLibraryId = opticalDuplicatesByLibraryId;
+        }
+
+        void addDuplicate(final long index) {
+            if (numDuplicates == duplicates.length) duplicates = Arrays.copyOf(duplicates, numDuplicates * 2);
+            duplicates[numDuplicates++] = index;
+        }
+
+        void addOpticalDuplicate(final long index) {
+            if (numOpticalDuplicates == opticalDuplicates.length) opticalDuplicates = Arrays.copyOf(opticalDuplicates, numOpticalDuplicates * 2);
+            opticalDuplicates[numOpticalDuplicates++] = index;
+        }
+
+        void clear() {
+            numDuplicates = 0;
+            numOpticalDuplicates = 0;
+        }
+    }
+
+    /** A batch of sets of duplicate read ends, all pairs or all fragments, to be marked together. */
+    private class DuplicateSetBatch implements Callable<DuplicateIndexes> {
+        private final boolean pairs;
+        private final List<List<ReadEndsForMarkDuplicates>> sets = new ArrayList<>();
+        private final List<Boolean> setsContainPairs = new ArrayList<>();
+        private int numReadEnds = 0;
+
+        DuplicateSetBatch(final boolean pairs) {
+            this.pairs = pairs;
+        }
+
+        void add(final List<ReadEndsForMarkDuplicates> set, final boolean containsPairs) {
+            sets.add(new ArrayList<>(set));
+            setsContainPairs.add(containsPairs);
+            numReadEnds += set.size();
+        }
+
+        @Override
+        public DuplicateIndexes call() {
+            final DuplicateIndexes indexes = new DuplicateIndexes(new Histogram<>());
+            for (int i = 0; i < sets.size(); ++i) {
+                if (pairs) markDuplicatePairs(sets.get(i), indexes);
+                else markDuplicateFragments(sets.get(i), setsContainPairs.get(i), indexes);
+            }
+            return indexes;
+        }
+    }
+
+    /**
+     * Gathers sets of duplicate read ends into batches that are marked either on the calling thread or by a pool of
+     * worker threads.  The indexes found in each batch are added to the sorting collections on the calling thread in
+     * the order the batches were created, so the results do not depend on the number of threads.
+     */
+    private class DuplicateSetMarker {
+        private final ExecutorService executor;
+        private final int maxPendingBatches;
+        private final Deque<Future<DuplicateIndexes>> pending = new ArrayDeque<>();
+        private DuplicateSetBatch batch = null;
+
+        /** Reused when marking on the calling thread, counting optical duplicates straight into the library histogram. */
+        private final DuplicateIndexes indexes = new DuplicateIndexes(libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+
+        DuplicateSetMarker(final int numThreads) {
+            this.executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+            this.maxPendingBatches = 2 * numThreads;
+        }
+
+        void addPairs(final List<ReadEndsForMarkDuplicates> set) {
+            add(set, true, true);
+        }
+
+        void addFragments(final List<ReadEndsForMarkDuplicates> set, final boolean containsPairs) {
+            add(set, false, containsPairs);
+        }
+
+        private void add(final List<ReadEndsForMarkDuplicates> set, final boolean pairs, final boolean containsPairs) {
+            if (executor == null) {
+                // No need to copy or batch anything when marking on this thread
+                if (pairs) markDuplicatePairs(set, indexes);
+                else markDuplicateFragments(set, containsPairs, indexes);
+                addDuplicateIndexes(indexes);
+                indexes.clear();
+                return;
+            }
+
+            if (batch == null) batch = new DuplicateSetBatch(pairs);
+            batch.add(set, containsPairs);
+            if (batch.numReadEnds >= DUPLICATE_SET_BATCH_SIZE) submit();
+        }
+
+        private void submit() {
+            if (batch == null) return;
+            while (pending.size() >= maxPendingBatches) addNext();
+            pending.add(executor.submit(batch));
+            batch = null;
+        }
+
+        private void addNext() {
+            try {
+                final DuplicateIndexes batchIndexes = pending.remove().get();
+                addDuplicateIndexes(batchIndexes);
+                libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap().addHistogram(batchIndexes.opticalDuplicatesByLibraryId);
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted while marking duplicates.", ie);
+            } catch (final ExecutionException ee) {
+                throw new PicardException("Error while marking duplicates.", ee.getCause());
+            }
+        }
+
+        /** Marks any outstanding sets and waits until all of their indexes have been added. */
+        void flush() {
+            if (executor == null) return;
+            submit();
+            while (!pending.isEmpty()) addNext();
+        }
+
+        void shutdown() {
+            if (executor != null) executor.shutdownNow();
+        }
+    }
+
     // To avoid overflows or underflows when subtracting two large (positive and negative) numbers
     static int compareInteger(final int x, final int y) {
         return (x < y) ? -1 : ((x == y) ? 0 : 1);
@@ -243,6 +243,19 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
                                               final ReadEnds keeper,
                                               final OpticalDuplicateFinder opticalDuplicateFinder,
                                               final LibraryIdGenerator libraryIdGenerator) {
+        trackOpticalDuplicates(ends, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+    }
+
+    /**
+     * Looks through the set of reads and identifies how many of the duplicates are
+     * in fact optical duplicates, and stores the counts in the given histogram by library id.
+     * Additionally sets the transient isOpticalDuplicate flag on each read end that is
+     * identified as an optical duplicate.
+     */
+    public static void trackOpticalDuplicates(final List<? extends ReadEnds> ends,
+                                              final ReadEnds keeper,
+                                              final OpticalDuplicateFinder opticalDuplicateFinder,
+                                              final Histogram<Short> opticalDuplicatesByLibraryId) {
         boolean hasFR = false, hasRF = false;
 
         // Check to see if we have a mixture of FR/RF
@@ -272,10 +285,10 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
             }
 
             // track the duplicates
-            trackOpticalDuplicates(trackOpticalDuplicatesF, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
-            trackOpticalDuplicates(trackOpticalDuplicatesR, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+            trackOpticalDuplicatesInSet(trackOpticalDuplicatesF, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
+            trackOpticalDuplicatesInSet(trackOpticalDuplicatesR, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
         } else { // No need to partition
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(ends, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+            trackOpticalDuplicatesInSet(ends, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
         }
     }
 
@@ -289,10 +302,10 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
      * optical duplicate detection, we do not consider them duplicates if one read as FR and the other RF when we order orientation by the
      * first mate sequenced (read #1 of the pair).
      */
-    private static void trackOpticalDuplicates(final List<? extends ReadEnds> list,
-                                               final ReadEnds keeper,
-                                               final OpticalDuplicateFinder opticalDuplicateFinder,
-                                               final Histogram<Short> opticalDuplicatesByLibraryId) {
+    private static void trackOpticalDuplicatesInSet(final List<? extends ReadEnds> list,
+                                                    final ReadEnds keeper,
+                                                    final OpticalDuplicateFinder opticalDuplicateFinder,
+                                                    final Histogram<Short> opticalDuplicatesByLibraryId) {
         final boolean[] opticalDuplicateFlags = opticalDuplicateFinder.findOpticalDuplicates(list, keeper);
 
         int opticalDuplicates = 0;
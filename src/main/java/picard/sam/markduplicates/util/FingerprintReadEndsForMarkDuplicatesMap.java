@@ -0,0 +1,455 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact implementation of ReadEndsForMarkDuplicatesMap.  Keys are not retained; instead each key is reduced to a
+ * 128-bit fingerprint with MurmurHash3_x64_128, and entries are held in a primitive open-addressing table keyed on the
+ * mate sequence index and the fingerprint, with the read ends packed into fixed-size pages of bytes in the layout used
+ * by {@link ReadEndsForMarkDuplicatesSortingCollection}.  Paging the values lets the table grow to 2^30 slots, so
+ * that a sequence with a great many unmatched mates can be read back in full as it can with
+ * {@link DiskBasedReadEndsForMarkDuplicatesMap}.
+ * <p/>
+ * When the table holds more than maxRecordsInRam entries, every entry that is not on the sequence currently being
+ * queried (i.e. the sequence for which remove() has been most recently called) is written to a single temporary
+ * file as a run of fixed-width records grouped by sequence.  When remove() is first called for another sequence,
+ * that sequence's records are read back from each run with positional reads.  Unlike
+ * {@link DiskBasedReadEndsForMarkDuplicatesMap}, a run's file is open only while it is written or while one sequence
+ * is read back from it, so at most one file is open at a time however many spills there are.
+ * <p/>
+ * Two distinct keys are treated as equal only if their fingerprints collide while both are in the map on the same
+ * sequence.  Treating MurmurHash3_x64_128 as a random function, each lookup collides with one of the M entries in
+ * the map with probability at most M / 2^128, so over N reads the chance of any collision is at most N * M / 2^128;
+ * for ten billion reads and a billion unmatched entries that is below 10^-19.  As with the other implementations,
+ * putting a key that is already present replaces the earlier entry.
+ */
+public class FingerprintReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDuplicatesMap {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    /** Marks an empty slot in the table. */
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    /** Size of the fingerprint at the start of each spilled record. */
+    private static final int FINGERPRINT_SIZE = 16;
+
+    /** The number of spilled records read back at a time. */
+    private static final int RECORDS_PER_READ = 4096;
+
+    /** The largest table, limited by the arrays of sequence indices and fingerprints. */
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    /** Each page of packed values holds the values for 2^PAGE_SHIFT slots. */
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    // Constants for MurmurHash3_x64_128
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final boolean useBarcodes;
+    private final int valueSize;
+    private final int maxRecordsInRam;
+    private final File[] tmpDirs;
+
+    // The open-addressing table, with linear probing
+    private int[] sequences;
+    private long[] fingerprintHighs;
+    private long[] fingerprintLows;
+    private byte[][] valuePages;
+    private ByteBuffer[] valueBuffers;
+    private int mask;
+
+    private int numRecordsInRam = 0;
+    private int numRecordsOnDisk = 0;
+    private int spillThreshold;
+    private int currentSequence = EMPTY;
+    private final List<Run> runs = new ArrayList<>();
+
+    // The fingerprint of the key most recently passed to put() or remove()
+    private long keyHigh;
+    private long keyLow;
+
+    /**
+     * @param useBarcodes     true if the read ends are {@link ReadEndsForMarkDuplicatesWithBarcodes}
+     * @param maxRecordsInRam the number of entries to hold in memory before spilling those on other sequences to disk
+     * @param tmpDirs         directories to spill to
+     */
+    public FingerprintReadEndsForMarkDuplicatesMap(final boolean useBarcodes, final int maxRecordsInRam, final Collection<File> tmpDirs) {
+        if (maxRecordsInRam <= 0) throw new IllegalArgumentException("maxRecordsInRam must be > 0");
+        this.useBarcodes = useBarcodes;
+        this.valueSize = ReadEndsForMarkDuplicatesSortingCollection.getRecordSize(true, useBarcodes);
+        this.maxRecordsInRam = Math.min(maxRecordsInRam, MAX_CAPACITY / 2);
+        this.spillThreshold = this.maxRecordsInRam;
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /** Returns the approximate number of bytes of heap used per entry, allowing for the table's empty slots. */
+    public static int getBytesPerEntry(final boolean useBarcodes) {
+        return 2 * (4 + FINGERPRINT_SIZE + ReadEndsForMarkDuplicatesSortingCollection.getRecordSize(true, useBarcodes));
+    }
+
+    public ReadEndsForMarkDuplicates remove(final int mateSequenceIndex, final String key) {
+        if (mateSequenceIndex != currentSequence) {
+            loadSequence(mateSequenceIndex);
+            currentSequence = mateSequenceIndex;
+        }
+
+        fingerprint(key);
+        final int slot = find(mateSequenceIndex, keyHigh, keyLow);
+        if (slot < 0) return null;
+
+        final ReadEndsForMarkDuplicates readEnds = ReadEndsForMarkDuplicatesSortingCollection.unpack(valueBuffers[slot >>> PAGE_SHIFT], valueOffset(slot), true, useBarcodes);
+        delete(slot);
+        return readEnds;
+    }
+
+    public void put(final int mateSequenceIndex, final String key, final ReadEndsForMarkDuplicates readEnds) {
+        fingerprint(key);
+        final int slot = insert(mateSequenceIndex, keyHigh, keyLow);
+        ReadEndsForMarkDuplicatesSortingCollection.pack(valueBuffers[slot >>> PAGE_SHIFT], valueOffset(slot), readEnds, true, useBarcodes);
+
+        if (numRecordsInRam >= spillThreshold) spillToDisk();
+    }
+
+    public int size() {
+        return numRecordsInRam + numRecordsOnDisk;
+    }
+
+    public int sizeInRam() {
+        return numRecordsInRam;
+    }
+
+    /** Deletes any runs that still hold unmatched records. */
+    public void cleanup() {
+        for (final Run run : runs) run.close();
+        runs.clear();
+        numRecordsOnDisk = 0;
+    }
+
+    /**
+     * Computes the two halves of the key's fingerprint into keyHigh and keyLow.  The fingerprint is MurmurHash3_x64_128,
+     * with a seed of zero, of the key's UTF-16 code units in little-endian order, computed without copying the key.
+     */
+    private void fingerprint(final String key) {
+        final int length = key.length();
+        long h1 = 0;
+        long h2 = 0;
+
+        // Each 16-byte block is eight chars
+        final int tail = length & ~7;
+        for (int i = 0; i < tail; i += 8) {
+            h1 ^= mixK1(chars(key, i, 4));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(chars(key, i + 4, 4));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Mixing an absent half of the tail is a no-op, since it is zero
+        final int remaining = length - tail;
+        h2 ^= mixK2(remaining > 4 ? chars(key, tail + 4, remaining - 4) : 0);
+        h1 ^= mixK1(chars(key, tail, Math.min(remaining, 4)));
+
+        h1 ^= 2L * length;
+        h2 ^= 2L * length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        keyHigh = h1;
+        keyLow = h2;
+    }
+
+    /** Packs count (at most four) chars of the key, starting at from, into a long in little-endian order. */
+    private static long chars(final String key, final int from, final int count) {
+        long k = 0;
+        for (int j = 0; j < count; ++j) k |= (long) key.charAt(from + j) << (16 * j);
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    /** The 64-bit finalizer from MurmurHash3. */
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Returns the key's fingerprint as {high, low}.  Package-visible for testing. */
+    long[] getFingerprint(final String key) {
+        fingerprint(key);
+        return new long[]{keyHigh, keyLow};
+    }
+
+    private int home(final int sequence, final long high) {
+        return (int) (high ^ (high >>> 32) ^ (sequence * 0x9e3779b9L)) & mask;
+    }
+
+    private void allocate(final int capacity) {
+        sequences = new int[capacity];
+        Arrays.fill(sequences, EMPTY);
+        fingerprintHighs = new long[capacity];
+        fingerprintLows = new long[capacity];
+        final int slotsPerPage = Math.min(capacity, 1 << PAGE_SHIFT);
+        valuePages = new byte[capacity / slotsPerPage][];
+        valueBuffers = new ByteBuffer[valuePages.length];
+        for (int i = 0; i < valuePages.length; ++i) {
+            valuePages[i] = new byte[slotsPerPage * valueSize];
+            valueBuffers[i] = ByteBuffer.wrap(valuePages[i]);
+        }
+        mask = capacity - 1;
+    }
+
+    /** Returns the offset of the slot's packed value within its page. */
+    private int valueOffset(final int slot) {
+        return (slot & PAGE_MASK) * valueSize;
+    }
+
+    /** Returns the slot holding the entry, or -1 if there is none. */
+    private int find(final int sequence, final long high, final long low) {
+        for (int i = home(sequence, high); sequences[i] != EMPTY; i = (i + 1) & mask) {
+            if (sequences[i] == sequence && fingerprintHighs[i] == high && fingerprintLows[i] == low) return i;
+        }
+        return -1;
+    }
+
+    /** Returns the slot for the entry, claiming an empty one if the entry is not already present. */
+    private int insert(final int sequence, final long high, final long low) {
+        if ((numRecordsInRam + 1) * 4L > sequences.length * 3L) {
+            if (sequences.length >= MAX_CAPACITY) {
+                throw new PicardException("Too many unmatched read ends on sequence " + sequence + " to hold in memory.");
+            }
+            rehash(sequences.length * 2);
+        }
+
+        int i = home(sequence, high);
+        for (; sequences[i] != EMPTY; i = (i + 1) & mask) {
+            if (sequences[i] == sequence && fingerprintHighs[i] == high && fingerprintLows[i] == low) return i;
+        }
+        sequences[i] = sequence;
+        fingerprintHighs[i] = high;
+        fingerprintLows[i] = low;
+        ++numRecordsInRam;
+        return i;
+    }
+
+    /** Empties the slot, shifting back any later entries in its probe sequence so that no tombstones are needed. */
+    private void delete(final int slot) {
+        int hole = slot;
+        for (int i = (slot + 1) & mask; sequences[i] != EMPTY; i = (i + 1) & mask) {
+            // The entry can fill the hole if the hole lies between the entry's home slot and its current slot
+            if (((i - home(sequences[i], fingerprintHighs[i])) & mask) >= ((i - hole) & mask)) {
+                move(i, hole);
+                hole = i;
+            }
+        }
+        sequences[hole] = EMPTY;
+        --numRecordsInRam;
+    }
+
+    private void move(final int from, final int to) {
+        sequences[to] = sequences[from];
+        fingerprintHighs[to] = fingerprintHighs[from];
+        fingerprintLows[to] = fingerprintLows[from];
+        System.arraycopy(valuePages[from >>> PAGE_SHIFT], valueOffset(from), valuePages[to >>> PAGE_SHIFT], valueOffset(to), valueSize);
+    }
+
+    private void rehash(final int capacity) {
+        rehash(capacity, false);
+    }
+
+    /** Rebuilds the table with the given capacity, optionally keeping only the entries on the current sequence. */
+    private void rehash(final int capacity, final boolean onlyCurrentSequence) {
+        final int[] oldSequences = sequences;
+        final long[] oldHighs = fingerprintHighs;
+        final long[] oldLows = fingerprintLows;
+        final byte[][] oldPages = valuePages;
+
+        allocate(capacity);
+        numRecordsInRam = 0;
+        for (int i = 0; i < oldSequences.length; ++i) {
+            if (oldSequences[i] == EMPTY || (onlyCurrentSequence && oldSequences[i] != currentSequence)) continue;
+            final int slot = insert(oldSequences[i], oldHighs[i], oldLows[i]);
+            System.arraycopy(oldPages[i >>> PAGE_SHIFT], valueOffset(i), valuePages[slot >>> PAGE_SHIFT], valueOffset(slot), valueSize);
+        }
+    }
+
+    /**
+     * Writes every entry that is not on the current sequence to a new run, grouped by sequence, and drops them from
+     * the table.  If all the entries are on the current sequence they are kept, and the table is allowed to grow.
+     */
+    private void spillToDisk() {
+        // Sort the slots to spill by sequence, packing each sequence index above its slot
+        final long[] order = new long[numRecordsInRam];
+        int n = 0;
+        for (int i = 0; i < sequences.length; ++i) {
+            if (sequences[i] != EMPTY && sequences[i] != currentSequence) order[n++] = ((long) sequences[i] << 32) | i;
+        }
+        Arrays.sort(order, 0, n);
+
+        if (n > 0) {
+            final Run run = new Run();
+            try {
+                run.file = IOUtil.newTempFile("readendsmap.", ".tmp", tmpDirs);
+                run.file.deleteOnExit();
+
+                try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.file)))) {
+                    long offset = 0;
+                    Segment segment = null;
+                    for (int k = 0; k < n; ++k) {
+                        final int sequence = (int) (order[k] >> 32);
+                        final int slot = (int) order[k];
+                        if (segment == null || sequence != (int) (order[k - 1] >> 32)) {
+                            segment = new Segment(offset);
+                            run.segments.put(sequence, segment);
+                        }
+                        out.writeLong(fingerprintHighs[slot]);
+                        out.writeLong(fingerprintLows[slot]);
+                        out.write(valuePages[slot >>> PAGE_SHIFT], valueOffset(slot), valueSize);
+                        ++segment.count;
+                        offset += FINGERPRINT_SIZE + valueSize;
+                    }
+                }
+            } catch (final IOException ioe) {
+                throw new PicardException("Error spilling ReadEndsForMarkDuplicatesMap to disk.", ioe);
+            }
+            runs.add(run);
+            numRecordsOnDisk += n;
+        }
+
+        final int remaining = numRecordsInRam - n;
+        int capacity = INITIAL_CAPACITY;
+        while (remaining * 4L >= capacity * 3L) capacity *= 2;
+        rehash(capacity, true);
+        spillThreshold = Math.max(maxRecordsInRam, 2 * numRecordsInRam);
+    }
+
+    /**
+     * Reads the entries for the given sequence back from every run.  Runs are read newest first and entries already
+     * in the table are kept, so that the most recent put() for a key wins as it would in an ordinary map.
+     */
+    private void loadSequence(final int sequence) {
+        final int recordSize = FINGERPRINT_SIZE + valueSize;
+        for (int r = runs.size() - 1; r >= 0; --r) {
+            final Run run = runs.get(r);
+            final Segment segment = run.segments.remove(sequence);
+            if (segment == null) continue;
+
+            final ByteBuffer buffer = ByteBuffer.allocate(Math.min(segment.count, RECORDS_PER_READ) * recordSize);
+            try (final FileChannel channel = new RandomAccessFile(run.file, "r").getChannel()) {
+                long position = segment.offset;
+                int remaining = segment.count;
+                while (remaining > 0) {
+                    final int records = Math.min(remaining, RECORDS_PER_READ);
+                    buffer.clear().limit(records * recordSize);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new PicardException("Unexpected end of file reading " + run.file);
+                        }
+                    }
+                    for (int k = 0; k < records; ++k) {
+                        final int off = k * recordSize;
+                        final long high = buffer.getLong(off);
+                        final long low = buffer.getLong(off + 8);
+                        if (find(sequence, high, low) >= 0) continue;
+                        final int slot = insert(sequence, high, low);
+                        System.arraycopy(buffer.array(), off + FINGERPRINT_SIZE, valuePages[slot >>> PAGE_SHIFT], valueOffset(slot), valueSize);
+                    }
+                    position += records * recordSize;
+                    remaining -= records;
+                }
+            } catch (final IOException ioe) {
+                throw new PicardException("Error loading ReadEndsForMarkDuplicatesMap from disk", ioe);
+            }
+            numRecordsOnDisk -= segment.count;
+
+            if (run.segments.isEmpty()) {
+                run.close();
+                runs.remove(r);
+            }
+        }
+    }
+
+    /** Where the records for one sequence are stored within a run. */
+    private static class Segment {
+        final long offset;
+        int count = 0;
+
+        Segment(final long offset) {
+            this.offset = offset;
+        }
+    }
+
+    /** One spilled run, which is kept until all of its sequences have been read back. */
+    private static class Run {
+        File file;
+        final Map<Integer, Segment> segments = new HashMap<>();
+
+        void close() {
+            IOUtil.deleteFiles(file);
+        }
+    }
+}
@@ -29,7 +29,10 @@ import htsjdk.samtools.util.ProgressLogger;
 import picard.sam.util.PhysicalLocation;
 import picard.sam.util.ReadNameParser;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Contains methods for finding optical/co-localized/sequencing duplicates.
@@ -56,6 +59,9 @@ public class OpticalDuplicateFinder extends ReadNameParser {
 
     private int bigDuplicateSetSize = DEFAULT_BIG_DUPLICATE_SET_SIZE;
 
+    /** Duplicate sets at least this large are searched using a spatial index rather than by comparing every pair of reads. */
+    private static final int SPATIAL_INDEX_MIN_SET_SIZE = 100;
+
     /**
      * Uses the default duplicate distance {@value OpticalDuplicateFinder#DEFAULT_OPTICAL_DUPLICATE_DISTANCE} and the default read name regex
      * {@link ReadNameParser#DEFAULT_READ_NAME_REGEX}.
@@ -93,6 +99,21 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         // If there is only one or zero reads passed in, then just return an array of all false
         if (list.size() < 2) return new boolean[list.size()];
 
+        if (list.size() >= SPATIAL_INDEX_MIN_SET_SIZE) {
+            return findOpticalDuplicatesWithSpatialIndex(list, keeper);
+        } else {
+            return findOpticalDuplicatesByPairwiseComparison(list, keeper);
+        }
+    }
+
+    /**
+     * Finds optical duplicates by comparing every pair of reads in the list.
+     *
+     * package-visible for testing
+     */
+    boolean[] findOpticalDuplicatesByPairwiseComparison(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper) {
+        if (list.size() < 2) return new boolean[list.size()];
+
         final int length = list.size();
         final boolean[] opticalDuplicateFlags = new boolean[length];
         final int distance = this.opticalDuplicatePixelDistance;
@@ -160,6 +181,140 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         return opticalDuplicateFlags;
     }
 
+    /**
+     * Finds the same optical duplicates as {@link #findOpticalDuplicatesByPairwiseComparison(List, PhysicalLocation)}, but
+     * only compares each read to the reads that fall in the same or an adjacent cell of a grid, keyed on read group and
+     * tile, whose cells are as wide as the optical duplicate pixel distance.  Since reads in any other cell can never be
+     * close enough, and the remaining pairs are visited in the same order as in the pairwise comparison, the resulting
+     * flags are identical.
+     *
+     * package-visible for testing
+     */
+    boolean[] findOpticalDuplicatesWithSpatialIndex(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper) {
+        final int length = list.size();
+        final boolean[] opticalDuplicateFlags = new boolean[length];
+        if (length < 2) return opticalDuplicateFlags;
+
+        final int distance = this.opticalDuplicatePixelDistance;
+        final PhysicalLocation actualKeeper = keeperOrNull(list, keeper);
+
+        if (length > bigDuplicateSetSize) {
+            Log.getInstance(OpticalDuplicateFinder.class).info("Large duplicate set. size = " + length);
+        }
+
+        // First go through and compare all the reads to the keeper
+        if (actualKeeper != null) {
+            for (int i = 0; i < length; ++i) {
+                opticalDuplicateFlags[i] = closeEnough(actualKeeper, list.get(i), distance);
+            }
+        }
+        if (distance < 0) return opticalDuplicateFlags;
+
+        // Bin the reads with locations into cells, each holding the indices of its reads in increasing order
+        final int cellSize = Math.max(1, distance);
+        final Map<GridCell, IndexList> grid = new HashMap<>();
+        for (int i = 0; i < length; ++i) {
+            final PhysicalLocation loc = list.get(i);
+            if (loc == actualKeeper || !loc.hasLocation()) continue;
+            grid.computeIfAbsent(new GridCell(loc, cellSize), cell -> new IndexList()).add(i);
+        }
+
+        // Now compare each read to the later reads in the neighbouring cells, in the order of the pairwise comparison
+        int[] candidates = new int[16];
+        for (int i = 0; i < length; ++i) {
+            final PhysicalLocation lhs = list.get(i);
+            if (lhs == actualKeeper || !lhs.hasLocation()) continue;
+
+            final GridCell home = new GridCell(lhs, cellSize);
+            int numCandidates = 0;
+            for (int dx = -1; dx <= 1; ++dx) {
+                for (int dy = -1; dy <= 1; ++dy) {
+                    final IndexList cell = grid.get(new GridCell(home.readGroup, home.tile, home.x + dx, home.y + dy));
+                    if (cell == null) continue;
+
+                    final int first = cell.firstGreaterThan(i);
+                    if (numCandidates + cell.size - first > candidates.length) {
+                        candidates = Arrays.copyOf(candidates, Math.max(2 * candidates.length, numCandidates + cell.size - first));
+                    }
+                    System.arraycopy(cell.indices, first, candidates, numCandidates, cell.size - first);
+                    numCandidates += cell.size - first;
+                }
+            }
+            Arrays.sort(candidates, 0, numCandidates);
+
+            for (int k = 0; k < numCandidates; ++k) {
+                final int j = candidates[k];
+                if (opticalDuplicateFlags[i] && opticalDuplicateFlags[j]) continue; // both already marked, no need to check
+
+                if (closeEnough(lhs, list.get(j), distance)) {
+                    final int index = opticalDuplicateFlags[j] ? i : j;
+                    opticalDuplicateFlags[index] = true;
+                }
+            }
+        }
+
+        return opticalDuplicateFlags;
+    }
+
+    /** A cell of the grid used to find reads near one another, identified by read group, tile and cell coordinates. */
+    private static final class GridCell {
+        final short readGroup;
+        final short tile;
+        final int x;
+        final int y;
+
+        GridCell(final PhysicalLocation loc, final int cellSize) {
+            this(loc.getReadGroup(), loc.getTile(), Math.floorDiv(loc.getX(), cellSize), Math.floorDiv(loc.getY(), cellSize));
+        }
+
+        GridCell(final short readGroup, final short tile, final int x, final int y) {
+            this.readGroup = readGroup;
+            this.tile = tile;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof GridCell)) return false;
+            final GridCell that = (GridCell) o;
+            return readGroup == that.readGroup && tile == that.tile && x == that.x && y == that.y;
+        }
+
+        @Override
+        public int hashCode() {
+            // Use a large multiplier since x and y are small, densely packed values
+            int result = readGroup;
+            result = 1000003 * result + tile;
+            result = 1000003 * result + x;
+            result = 1000003 * result + y;
+            return result;
+        }
+    }
+
+    /** A growable list of indices that are added in increasing order. */
+    private static final class IndexList {
+        int[] indices = new int[4];
+        int size = 0;
+
+        void add(final int index) {
+            if (size == indices.length) indices = Arrays.copyOf(indices, 2 * size);
+            indices[size++] = index;
+        }
+
+        /** Returns the position of the first index greater than the given one, or size if there is none. */
+        int firstGreaterThan(final int index) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (indices[mid] <= index) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
     /** Returns the keeper if it is contained within the list and has location information, otherwise null. */
     private PhysicalLocation keeperOrNull(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper) {
         if (keeper != null && keeper.hasLocation()) {
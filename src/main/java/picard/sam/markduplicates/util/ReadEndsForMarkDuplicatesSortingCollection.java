@@ -0,0 +1,587 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * A sorting collection specialised for {@link ReadEndsForMarkDuplicates} that stores each read end as a packed,
+ * fixed-width record in direct (off-heap) {@link ByteBuffer} chunks instead of as a Java object. Records are sorted
+ * in place with a primitive comparator that orders exactly as MarkDuplicates' ReadEndsMDComparator does, and are
+ * spilled to disk as sorted runs in the same binary layout, which are merged again on iteration.
+ *
+ * Fragments and pairs use different layouts: fragments never carry a second read coordinate or file index, so those
+ * fields are only stored for pairs.  Barcodes are only stored when requested.  Records are handed back as freshly
+ * decoded {@link ReadEndsForMarkDuplicates} objects (or {@link ReadEndsForMarkDuplicatesWithBarcodes} when barcodes
+ * are used), one at a time, during iteration.
+ *
+ * Note that the buffers count against the JVM's direct memory limit (-XX:MaxDirectMemorySize), which defaults to
+ * the maximum heap size, and add to the process' memory on top of the heap.  Collections may share an
+ * {@link OffHeapBudget} so that together they stay within a single limit: a collection that cannot reserve another
+ * chunk from the budget spills what it holds instead of growing.
+ */
+public class ReadEndsForMarkDuplicatesSortingCollection implements Iterable<ReadEndsForMarkDuplicates> {
+    /** Size of each direct buffer that records are packed into. */
+    private static final int CHUNK_BYTES = 1 << 23;
+
+    /** Ranges smaller than this are insertion sorted. */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    // Offsets of the fields shared by all layouts
+    private static final int LIBRARY_ID = 0;                          // short
+    private static final int READ1_REFERENCE_INDEX = 2;               // int
+    private static final int READ1_COORDINATE = 6;                    // int
+    private static final int ORIENTATION = 10;                        // byte
+    private static final int READ2_REFERENCE_INDEX = 11;              // int
+    private static final int READ1_INDEX_IN_FILE = 15;                // long
+    private static final int SCORE = 23;                              // short
+    private static final int READ_GROUP = 25;                         // short
+    private static final int TILE = 27;                               // short
+    private static final int X = 29;                                  // short
+    private static final int Y = 31;                                  // short
+    private static final int ORIENTATION_FOR_OPTICAL_DUPLICATES = 33; // byte
+    private static final int FRAGMENT_SIZE = 34;
+
+    // Offsets of the fields only stored for pairs
+    private static final int READ2_COORDINATE = 34;                   // int
+    private static final int READ2_INDEX_IN_FILE = 38;                // long
+    private static final int PAIR_SIZE = 46;
+
+    // Offsets of the barcode fields relative to the end of the fragment or pair fields
+    private static final int BARCODE = 0;                             // int
+    private static final int READ_ONE_BARCODE = 4;                    // int
+    private static final int READ_TWO_BARCODE = 8;                    // int
+    private static final int BARCODES_SIZE = 12;
+
+    private final boolean pairs;
+    private final boolean useBarcodes;
+    private final int recordSize;
+    private final int barcodeOffset;
+    private final int maxRecordsInRam;
+    private final int recordsPerChunk;
+    private final File[] tmpDirs;
+    private final OffHeapBudget budget;
+
+    private final ByteBuffer[] chunks;
+    private long reservedBytes = 0;
+    private int numRecordsInRam = 0;
+    private final List<File> files = new ArrayList<>();
+    private boolean doneAdding = false;
+    private boolean cleanedUp = false;
+
+    // Scratch space used while sorting
+    private final byte[] scratch;
+    private final byte[] swapScratch;
+    private final byte[] pivotBytes;
+    private final ByteBuffer pivot;
+
+    /**
+     * @param pairs           true if the collection holds read pairs, false if it holds fragments
+     * @param useBarcodes     true if the read ends are {@link ReadEndsForMarkDuplicatesWithBarcodes}
+     * @param maxRecordsInRam the number of records to pack into memory before spilling a sorted run to disk
+     * @param tmpDirs         directories to spill to
+     */
+    public ReadEndsForMarkDuplicatesSortingCollection(final boolean pairs, final boolean useBarcodes,
+                                                      final int maxRecordsInRam, final Collection<File> tmpDirs) {
+        this(pairs, useBarcodes, maxRecordsInRam, new OffHeapBudget(Long.MAX_VALUE), tmpDirs);
+    }
+
+    /**
+     * @param pairs           true if the collection holds read pairs, false if it holds fragments
+     * @param useBarcodes     true if the read ends are {@link ReadEndsForMarkDuplicatesWithBarcodes}
+     * @param maxRecordsInRam the most records to pack into memory before spilling a sorted run to disk
+     * @param budget          the off-heap memory budget, possibly shared with other collections, that chunks beyond the
+     *                        first are reserved from; the collection spills early when the budget is exhausted
+     * @param tmpDirs         directories to spill to
+     */
+    public ReadEndsForMarkDuplicatesSortingCollection(final boolean pairs, final boolean useBarcodes,
+                                                      final int maxRecordsInRam, final OffHeapBudget budget,
+                                                      final Collection<File> tmpDirs) {
+        if (maxRecordsInRam <= 0) throw new IllegalArgumentException("maxRecordsInRam must be > 0");
+        this.budget = budget;
+        this.pairs = pairs;
+        this.useBarcodes = useBarcodes;
+        this.recordSize = getRecordSize(pairs, useBarcodes);
+        this.barcodeOffset = pairs ? PAIR_SIZE : FRAGMENT_SIZE;
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.recordsPerChunk = Math.min(maxRecordsInRam, Math.max(1, CHUNK_BYTES / recordSize));
+        this.chunks = new ByteBuffer[(int) ((maxRecordsInRam + (long) recordsPerChunk - 1) / recordsPerChunk)];
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+
+        this.scratch = new byte[recordSize];
+        this.swapScratch = new byte[recordSize];
+        this.pivotBytes = new byte[recordSize];
+        this.pivot = ByteBuffer.wrap(pivotBytes);
+    }
+
+    /** Returns the number of bytes used to store each record with the given layout. */
+    public static int getRecordSize(final boolean pairs, final boolean useBarcodes) {
+        return (pairs ? PAIR_SIZE : FRAGMENT_SIZE) + (useBarcodes ? BARCODES_SIZE : 0);
+    }
+
+    public int getMaxRecordsInRam() { return maxRecordsInRam; }
+
+    /** Packs the read end into memory, spilling a sorted run to disk first if memory is full. */
+    public void add(final ReadEndsForMarkDuplicates read) {
+        if (doneAdding) throw new IllegalStateException("Cannot add after calling doneAdding()");
+        if (!pairs && read.orientation > ReadEnds.R) {
+            throw new IllegalArgumentException("Cannot add a read pair to a collection of fragments.");
+        }
+        if (numRecordsInRam == maxRecordsInRam || !ensureChunk(numRecordsInRam / recordsPerChunk)) spillToDisk();
+
+        final int index = numRecordsInRam++;
+        pack(chunk(index), offset(index), read, pairs, useBarcodes);
+    }
+
+    /**
+     * Makes sure the given chunk has been allocated, reserving its memory from the budget.  The first chunk is always
+     * allocated so that the collection can make progress; returns false if a later chunk does not fit in the budget.
+     */
+    private boolean ensureChunk(final int chunk) {
+        if (chunks[chunk] != null) return true;
+
+        final int bytes = recordsPerChunk * recordSize;
+        if (chunk == 0) {
+            budget.reserve(bytes);
+        } else if (!budget.tryReserve(bytes)) {
+            return false;
+        }
+        reservedBytes += bytes;
+        chunks[chunk] = ByteBuffer.allocateDirect(bytes);
+        return true;
+    }
+
+    /** Signals that no more records will be added. */
+    public void doneAdding() {
+        this.doneAdding = true;
+    }
+
+    /** Deletes any spilled runs and releases the in-memory buffers. */
+    public void cleanup() {
+        this.cleanedUp = true;
+        for (int i = 0; i < chunks.length; ++i) chunks[i] = null;
+        budget.release(reservedBytes);
+        reservedBytes = 0;
+        numRecordsInRam = 0;
+        IOUtil.deleteFiles(files);
+        files.clear();
+    }
+
+    /**
+     * Sorts the records and returns an iterator over them in order.  If any runs have been spilled, the records
+     * still in memory are spilled as well and all runs are merged.
+     */
+    @Override
+    public CloseableIterator<ReadEndsForMarkDuplicates> iterator() {
+        if (cleanedUp) throw new IllegalStateException("Cannot iterate over a collection that has been cleaned up");
+        doneAdding();
+
+        if (files.isEmpty()) {
+            sort(0, numRecordsInRam);
+            return new InMemoryIterator();
+        } else {
+            if (numRecordsInRam > 0) spillToDisk();
+            return new MergingIterator();
+        }
+    }
+
+    /** Sorts the records in memory and writes them out as a run in the packed layout. */
+    private void spillToDisk() {
+        sort(0, numRecordsInRam);
+
+        try {
+            final File f = IOUtil.newTempFile("readends.", ".tmp", tmpDirs);
+            f.deleteOnExit();
+            files.add(f);
+
+            try (final FileOutputStream os = new FileOutputStream(f)) {
+                final FileChannel channel = os.getChannel();
+                int remaining = numRecordsInRam;
+                for (int i = 0; remaining > 0; ++i) {
+                    final int n = Math.min(remaining, recordsPerChunk);
+                    final ByteBuffer out = chunks[i].duplicate();
+                    out.position(0).limit(n * recordSize);
+                    while (out.hasRemaining()) channel.write(out);
+                    remaining -= n;
+                }
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Exception writing ReadEnds to file.", ioe);
+        }
+
+        numRecordsInRam = 0;
+    }
+
+    private int offset(final int index) {
+        return (index % recordsPerChunk) * recordSize;
+    }
+
+    private ByteBuffer chunk(final int index) {
+        return chunks[index / recordsPerChunk];
+    }
+
+    /**
+     * Compares two packed records, ordering exactly as MarkDuplicates' ReadEndsMDComparator orders the
+     * equivalent objects.
+     */
+    private int compare(final ByteBuffer lhs, final int l, final ByteBuffer rhs, final int r) {
+        int compareDifference = lhs.getShort(l + LIBRARY_ID) - rhs.getShort(r + LIBRARY_ID);
+        if (useBarcodes) {
+            if (compareDifference == 0) compareDifference = Integer.compare(lhs.getInt(l + barcodeOffset + BARCODE), rhs.getInt(r + barcodeOffset + BARCODE));
+            if (compareDifference == 0) compareDifference = Integer.compare(lhs.getInt(l + barcodeOffset + READ_ONE_BARCODE), rhs.getInt(r + barcodeOffset + READ_ONE_BARCODE));
+            if (compareDifference == 0) compareDifference = Integer.compare(lhs.getInt(l + barcodeOffset + READ_TWO_BARCODE), rhs.getInt(r + barcodeOffset + READ_TWO_BARCODE));
+        }
+        if (compareDifference == 0) compareDifference = lhs.getInt(l + READ1_REFERENCE_INDEX) - rhs.getInt(r + READ1_REFERENCE_INDEX);
+        if (compareDifference == 0) compareDifference = lhs.getInt(l + READ1_COORDINATE) - rhs.getInt(r + READ1_COORDINATE);
+        if (compareDifference == 0) compareDifference = lhs.get(l + ORIENTATION) - rhs.get(r + ORIENTATION);
+        if (compareDifference == 0) compareDifference = lhs.getInt(l + READ2_REFERENCE_INDEX) - rhs.getInt(r + READ2_REFERENCE_INDEX);
+        // Fragments all have a read2Coordinate and read2IndexInFile of -1, so those only need comparing for pairs
+        if (compareDifference == 0 && pairs) compareDifference = lhs.getInt(l + READ2_COORDINATE) - rhs.getInt(r + READ2_COORDINATE);
+        if (compareDifference == 0) compareDifference = (int) (lhs.getLong(l + READ1_INDEX_IN_FILE) - rhs.getLong(r + READ1_INDEX_IN_FILE));
+        if (compareDifference == 0 && pairs) compareDifference = (int) (lhs.getLong(l + READ2_INDEX_IN_FILE) - rhs.getLong(r + READ2_INDEX_IN_FILE));
+
+        return compareDifference;
+    }
+
+    private int compare(final int i, final int j) {
+        return compare(chunk(i), offset(i), chunk(j), offset(j));
+    }
+
+    private int compareToPivot(final int i) {
+        return compare(chunk(i), offset(i), pivot, 0);
+    }
+
+    private void read(final int index, final byte[] dest) {
+        final ByteBuffer buf = chunk(index);
+        buf.position(offset(index));
+        buf.get(dest);
+    }
+
+    private void write(final int index, final byte[] src) {
+        final ByteBuffer buf = chunk(index);
+        buf.position(offset(index));
+        buf.put(src);
+    }
+
+    private void copy(final int from, final int to) {
+        read(from, scratch);
+        write(to, scratch);
+    }
+
+    private void swap(final int i, final int j) {
+        read(i, scratch);
+        read(j, swapScratch);
+        write(i, swapScratch);
+        write(j, scratch);
+    }
+
+    /** Sorts the records in [from, to) in place using quicksort, recursing only into the smaller partition. */
+    private void sort(int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            final int mid = (from + to - 1) >>> 1;
+            if (compare(mid, from) < 0) swap(mid, from);
+            if (compare(to - 1, mid) < 0) {
+                swap(to - 1, mid);
+                if (compare(mid, from) < 0) swap(mid, from);
+            }
+            read(mid, pivotBytes);
+
+            // Hoare partition around the median of three
+            int i = from - 1;
+            int j = to;
+            while (true) {
+                do { ++i; } while (compareToPivot(i) < 0);
+                do { --j; } while (compareToPivot(j) > 0);
+                if (i >= j) break;
+                swap(i, j);
+            }
+
+            if (j + 1 - from < to - (j + 1)) {
+                sort(from, j + 1);
+                from = j + 1;
+            } else {
+                sort(j + 1, to);
+                to = j + 1;
+            }
+        }
+
+        // Insertion sort the remainder, keeping the record being placed in the pivot buffer
+        for (int i = from + 1; i < to; ++i) {
+            if (compare(i - 1, i) <= 0) continue;
+            read(i, pivotBytes);
+            int j = i - 1;
+            while (j >= from && compareToPivot(j) > 0) {
+                copy(j, j + 1);
+                --j;
+            }
+            write(j + 1, pivotBytes);
+        }
+    }
+
+    /**
+     * Packs the read end into the buffer at the given offset in the fragment or pair layout, optionally followed by
+     * the barcodes.  Package-visible so that other read end containers can share the layout.
+     */
+    static void pack(final ByteBuffer buf, final int off, final ReadEndsForMarkDuplicates read,
+                     final boolean pairs, final boolean useBarcodes) {
+        final int barcodeOffset = pairs ? PAIR_SIZE : FRAGMENT_SIZE;
+
+        buf.putShort(off + LIBRARY_ID, read.libraryId);
+        buf.putInt(off + READ1_REFERENCE_INDEX, read.read1ReferenceIndex);
+        buf.putInt(off + READ1_COORDINATE, read.read1Coordinate);
+        buf.put(off + ORIENTATION, read.orientation);
+        buf.putInt(off + READ2_REFERENCE_INDEX, read.read2ReferenceIndex);
+        buf.putLong(off + READ1_INDEX_IN_FILE, read.read1IndexInFile);
+        buf.putShort(off + SCORE, read.score);
+        buf.putShort(off + READ_GROUP, read.readGroup);
+        buf.putShort(off + TILE, read.tile);
+        buf.putShort(off + X, (short) read.x);
+        buf.putShort(off + Y, (short) read.y);
+        buf.put(off + ORIENTATION_FOR_OPTICAL_DUPLICATES, read.orientationForOpticalDuplicates);
+
+        if (pairs) {
+            buf.putInt(off + READ2_COORDINATE, read.read2Coordinate);
+            buf.putLong(off + READ2_INDEX_IN_FILE, read.read2IndexInFile);
+        }
+
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes readWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) read;
+            buf.putInt(off + barcodeOffset + BARCODE, readWithBarcodes.barcode);
+            buf.putInt(off + barcodeOffset + READ_ONE_BARCODE, readWithBarcodes.readOneBarcode);
+            buf.putInt(off + barcodeOffset + READ_TWO_BARCODE, readWithBarcodes.readTwoBarcode);
+        }
+    }
+
+    /** Unpacks the record at the given offset into a new read ends object. */
+    private ReadEndsForMarkDuplicates decode(final ByteBuffer buf, final int off) {
+        return unpack(buf, off, pairs, useBarcodes);
+    }
+
+    /** Unpacks a record written by {@link #pack} into a new read ends object. */
+    static ReadEndsForMarkDuplicates unpack(final ByteBuffer buf, final int off, final boolean pairs, final boolean useBarcodes) {
+        final int barcodeOffset = pairs ? PAIR_SIZE : FRAGMENT_SIZE;
+        final ReadEndsForMarkDuplicates read = useBarcodes ? new ReadEndsForMarkDuplicatesWithBarcodes() : new ReadEndsForMarkDuplicates();
+
+        read.libraryId = buf.getShort(off + LIBRARY_ID);
+        read.read1ReferenceIndex = buf.getInt(off + READ1_REFERENCE_INDEX);
+        read.read1Coordinate = buf.getInt(off + READ1_COORDINATE);
+        read.orientation = buf.get(off + ORIENTATION);
+        read.read2ReferenceIndex = buf.getInt(off + READ2_REFERENCE_INDEX);
+        read.read1IndexInFile = buf.getLong(off + READ1_INDEX_IN_FILE);
+        read.score = buf.getShort(off + SCORE);
+        read.readGroup = buf.getShort(off + READ_GROUP);
+        read.tile = buf.getShort(off + TILE);
+        read.x = buf.getShort(off + X);
+        read.y = buf.getShort(off + Y);
+        read.orientationForOpticalDuplicates = buf.get(off + ORIENTATION_FOR_OPTICAL_DUPLICATES);
+
+        if (pairs) {
+            read.read2Coordinate = buf.getInt(off + READ2_COORDINATE);
+            read.read2IndexInFile = buf.getLong(off + READ2_INDEX_IN_FILE);
+        }
+
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes readWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) read;
+            readWithBarcodes.barcode = buf.getInt(off + barcodeOffset + BARCODE);
+            readWithBarcodes.readOneBarcode = buf.getInt(off + barcodeOffset + READ_ONE_BARCODE);
+            readWithBarcodes.readTwoBarcode = buf.getInt(off + barcodeOffset + READ_TWO_BARCODE);
+        }
+
+        return read;
+    }
+
+    /** Iterates over the sorted records when nothing has been spilled to disk. */
+    private class InMemoryIterator implements CloseableIterator<ReadEndsForMarkDuplicates> {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() { return next < numRecordsInRam; }
+
+        @Override
+        public ReadEndsForMarkDuplicates next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final int index = next++;
+            return decode(chunk(index), offset(index));
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    /** One spilled run being read back during the merge, holding its current record in a small heap buffer. */
+    private class Run implements Comparable<Run> {
+        final DataInputStream in;
+        final int order;
+        final byte[] bytes = new byte[recordSize];
+        final ByteBuffer current = ByteBuffer.wrap(bytes);
+        long remaining;
+
+        Run(final File file, final int order) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            this.order = order;
+            this.remaining = file.length() / recordSize;
+        }
+
+        /** Reads the next record of the run into the current buffer, returning false when the run is exhausted. */
+        boolean advance() throws IOException {
+            if (remaining == 0) return false;
+            in.readFully(bytes);
+            --remaining;
+            return true;
+        }
+
+        @Override
+        public int compareTo(final Run that) {
+            final int result = compare(this.current, 0, that.current, 0);
+            return result != 0 ? result : Integer.compare(this.order, that.order);
+        }
+    }
+
+    /** Merges the spilled runs, keeping one record per run in memory.  The runs are closed once exhausted. */
+    private class MergingIterator implements CloseableIterator<ReadEndsForMarkDuplicates> {
+        private final PriorityQueue<Run> queue = new PriorityQueue<>();
+        private final List<Run> runs = new ArrayList<>();
+
+        MergingIterator() {
+            try {
+                for (final File f : files) {
+                    final Run run = new Run(f, runs.size());
+                    runs.add(run);
+                    if (run.advance()) queue.add(run);
+                }
+            } catch (final IOException ioe) {
+                close();
+                throw new PicardException("Exception reading ReadEnds from file.", ioe);
+            }
+        }
+
+        @Override
+        public boolean hasNext() { return !queue.isEmpty(); }
+
+        @Override
+        public ReadEndsForMarkDuplicates next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Run run = queue.poll();
+            final ReadEndsForMarkDuplicates read = decode(run.current, 0);
+            try {
+                if (run.advance()) queue.add(run);
+                if (queue.isEmpty()) close();
+            } catch (final IOException ioe) {
+                throw new PicardException("Exception reading ReadEnds from file.", ioe);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() {
+            for (final Run run : runs) {
+                try {
+                    run.in.close();
+                } catch (final IOException ioe) {
+                    throw new PicardException("Exception closing ReadEnds file.", ioe);
+                }
+            }
+            runs.clear();
+            queue.clear();
+        }
+    }
+
+    /**
+     * A number of bytes of off-heap memory that one or more collections reserve their buffers from.  The budget is
+     * never larger than the JVM's maximum direct memory, so that only the first chunk of each collection, which is
+     * reserved regardless, can take the buffers past that limit.
+     */
+    public static class OffHeapBudget {
+        private long available;
+
+        /** Creates a budget of the given number of bytes, capped at the JVM's maximum direct memory. */
+        public OffHeapBudget(final long bytes) {
+            this.available = Math.min(bytes, getMaxDirectMemory());
+        }
+
+        /** Reserves the bytes if they fit in what remains of the budget, returning whether they were reserved. */
+        public synchronized boolean tryReserve(final long bytes) {
+            if (bytes > available) return false;
+            available -= bytes;
+            return true;
+        }
+
+        /** Reserves the bytes whether or not they fit, for allocations a collection cannot do without. */
+        synchronized void reserve(final long bytes) {
+            available -= bytes;
+        }
+
+        /** Returns previously reserved bytes to the budget. */
+        public synchronized void release(final long bytes) {
+            available += bytes;
+        }
+
+        public synchronized long getAvailable() { return available; }
+
+        /**
+         * Returns the JVM's limit on direct buffer memory: the value of -XX:MaxDirectMemorySize if it was given,
+         * otherwise the maximum heap size, which is the JVM's default.
+         */
+        public static long getMaxDirectMemory() {
+            for (final String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (!arg.startsWith("-XX:MaxDirectMemorySize=")) continue;
+                final String value = arg.substring("-XX:MaxDirectMemorySize=".length()).toLowerCase();
+                final long multiplier;
+                switch (value.charAt(value.length() - 1)) {
+                    case 'k': multiplier = 1L << 10; break;
+                    case 'm': multiplier = 1L << 20; break;
+                    case 'g': multiplier = 1L << 30; break;
+                    case 't': multiplier = 1L << 40; break;
+                    default:  multiplier = 1;
+                }
+                try {
+                    final long size = Long.parseLong(multiplier == 1 ? value : value.substring(0, value.length() - 1)) * multiplier;
+                    // Zero also means "use the default"
+                    if (size > 0) return size;
+                } catch (final NumberFormatException e) {
+                    // Unparseable, so fall back to the default
+                }
+            }
+            return Runtime.getRuntime().maxMemory();
+        }
+    }
+}
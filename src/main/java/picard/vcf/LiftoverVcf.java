@@ -1,10 +1,8 @@
 package picard.vcf;
 
 import htsjdk.samtools.Defaults;
-import htsjdk.samtools.SAMSequenceRecord;
-import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.liftover.LiftOver;
-import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.IOUtil;
@@ -12,18 +10,19 @@ import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.SequenceUtil;
-import htsjdk.samtools.util.SortingCollection;
-import htsjdk.samtools.util.StringUtil;
+import htsjdk.tribble.readers.AsciiLineReader;
+import htsjdk.tribble.readers.AsciiLineReaderIterator;
 import htsjdk.variant.variantcontext.*;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFFilterHeaderLine;
 import htsjdk.variant.vcf.VCFHeader;
 import htsjdk.variant.vcf.VCFHeaderLineType;
 import htsjdk.variant.vcf.VCFInfoHeaderLine;
-import htsjdk.variant.vcf.VCFRecordCodec;
+import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -33,10 +32,19 @@ import picard.cmdline.programgroups.VcfOrBcf;
 import java.io.File;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Tool for lifting over a VCF to another genome build and producing a properly header'd,
@@ -101,6 +109,15 @@ public class LiftoverVcf extends CommandLineProgram {
     @Option(doc = "Allow INFO and FORMAT in the records that are not found in the header", optional = true)
     public boolean ALLOW_MISSING_FIELDS_IN_HEADER = false;
 
+    @Option(doc = "The number of threads to lift variants over on. If greater than 1, the input is split into batches of consecutive " +
+            "variants that are decoded (for text VCF inputs), lifted over and sorted in parallel, and the batches are then merged in " +
+            "order, so the outputs are identical to those of a single-threaded run.  The batches in flight count against " +
+            "MAX_RECORDS_IN_RAM, so more threads lift smaller batches.", optional = true)
+    public int THREADS = 1;
+
+    /** The most consecutive input variants lifted over together. */
+    private static final int BATCH_SIZE = 10000;
+
     // When a contig used in the chain is not in the reference, exit with this value instead of 0.
     protected static int EXIT_CODE_WHEN_CONTIG_NOT_IN_REFERENCE = 1;
 
@@ -139,6 +156,14 @@ public class LiftoverVcf extends CommandLineProgram {
         new LiftoverVcf().instanceMainWithExit(args);
     }
 
+    @Override
+    protected String[] customCommandLineValidation() {
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1"};
+        }
+        return super.customCommandLineValidation();
+    }
+
     @Override protected int doWork() {
         IOUtil.assertFileIsReadable(INPUT);
         IOUtil.assertFileIsReadable(REFERENCE_SEQUENCE);
@@ -152,13 +177,8 @@ public class LiftoverVcf extends CommandLineProgram {
         final LiftOver liftOver = new LiftOver(CHAIN);
         final VCFFileReader in = new VCFFileReader(INPUT, false);
 
-        log.info("Loading up the target reference genome.");
-        final ReferenceSequenceFileWalker walker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
-        final Map<String,byte[]> refSeqs = new HashMap<String,byte[]>();
-        for (final SAMSequenceRecord rec: walker.getSequenceDictionary().getSequences()) {
-            refSeqs.put(rec.getSequenceName(), walker.get(rec.getSequenceIndex()).getBases());
-        }
-        CloserUtil.close(walker);
+        log.info("Opening the target reference genome.");
+        final WindowedReferenceSequence refSeq = new WindowedReferenceSequence(REFERENCE_SEQUENCE);
 
 
         ////////////////////////////////////////////////////////////////////////
@@ -166,13 +186,13 @@ public class LiftoverVcf extends CommandLineProgram {
         ////////////////////////////////////////////////////////////////////////
         final VCFHeader inHeader = in.getFileHeader();
         final VCFHeader outHeader = new VCFHeader(inHeader);
-        outHeader.setSequenceDictionary(walker.getSequenceDictionary());
+        outHeader.setSequenceDictionary(refSeq.getSequenceDictionary());
         if (WRITE_ORIGINAL_POSITION) {
             for (final VCFInfoHeaderLine line : ATTRS) outHeader.addMetaDataLine(line);
         }
         final VariantContextWriter out = new VariantContextWriterBuilder().setOption(Options.INDEX_ON_THE_FLY)
                 .modifyOption(Options.ALLOW_MISSING_FIELDS_IN_HEADER, ALLOW_MISSING_FIELDS_IN_HEADER)
-                .setOutputFile(OUTPUT).setReferenceDictionary(walker.getSequenceDictionary()).build();
+                .setOutputFile(OUTPUT).setReferenceDictionary(refSeq.getSequenceDictionary()).build();
         out.writeHeader(outHeader);
 
         final VariantContextWriter rejects = new VariantContextWriterBuilder().setOutputFile(REJECT).unsetOption(Options.INDEX_ON_THE_FLY)
@@ -187,42 +207,186 @@ public class LiftoverVcf extends CommandLineProgram {
 
 
         ////////////////////////////////////////////////////////////////////////
-        // Read the input VCF, lift the records over and write to the sorting
-        // collection.
+        // Read the input VCF, lift the records over and hand the sorted
+        // batches to the merger.
         ////////////////////////////////////////////////////////////////////////
         long failedLiftover = 0, failedAlleleCheck = 0, total = 0;
         log.info("Lifting variants over and sorting.");
 
-        final SortingCollection<VariantContext> sorter = SortingCollection.newInstance(VariantContext.class,
-                new VCFRecordCodec(outHeader, ALLOW_MISSING_FIELDS_IN_HEADER || VALIDATION_STRINGENCY != ValidationStringency.STRICT),
-                outHeader.getVCFRecordComparator(),
-                MAX_RECORDS_IN_RAM,
-                TMP_DIR);
+        // Batches waiting for or being lifted over count against MAX_RECORDS_IN_RAM along with the records held by the merger,
+        // so at most half of it goes to the batches in flight.
+        final int maxBatchesInFlight = THREADS > 1 ? 2 * THREADS : 1;
+        final int batchSize = Math.max(1, Math.min(BATCH_SIZE, MAX_RECORDS_IN_RAM / (2 * maxBatchesInFlight)));
+
+        // Each batch comes out of liftBatch sorted, so the batches only need merging.
+        final VariantBatchMerger sorter = new VariantBatchMerger(outHeader,
+                Math.max(1, MAX_RECORDS_IN_RAM - maxBatchesInFlight * batchSize), TMP_DIR);
+
+        final ProgressLogger readProgress = new ProgressLogger(log, 1000000, "read");
+        final VariantContextComparator comparator = outHeader.getVCFRecordComparator();
+
+        // Text VCF records are read as lines and decoded on the worker threads, each with its own codec.  BCF records are decoded here.
+        final AsciiLineReaderIterator lines = VCFFileReader.isBCF(INPUT) ? null : openInput(new VCFCodec());
+        final ThreadLocal<VCFCodec> codecs = ThreadLocal.withInitial(() -> {
+            final VCFCodec codec = new VCFCodec();
+            CloserUtil.close(openInput(codec));
+            return codec;
+        });
+
+        final ExecutorService executor = THREADS > 1 ? Executors.newFixedThreadPool(THREADS) : null;
+        final Deque<Future<LiftedBatch>> pending = new ArrayDeque<>();
+        try {
+            final CloseableIterator<VariantContext> iterator = lines == null ? in.iterator() : null;
+            final Iterator<?> input = lines == null ? iterator : lines;
+            while (input.hasNext() || !pending.isEmpty()) {
+                // Keep a few batches per thread in flight, consuming the oldest once there are enough or the input is exhausted.
+                if (input.hasNext() && (executor == null ? pending.isEmpty() : pending.size() < maxBatchesInFlight)) {
+                    final Callable<LiftedBatch> task;
+                    if (lines != null) {
+                        final List<String> batchLines = new ArrayList<>(batchSize);
+                        while (lines.hasNext() && batchLines.size() < batchSize) {
+                            final String line = lines.next();
+                            if (!line.isEmpty()) batchLines.add(line);
+                        }
+                        task = () -> liftBatch(decode(batchLines, codecs.get(), readProgress), liftOver, refSeq, comparator);
+                    } else {
+                        final List<VariantContext> variants = new ArrayList<>(batchSize);
+                        while (iterator.hasNext() && variants.size() < batchSize) {
+                            final VariantContext ctx = iterator.next();
+                            // Genotypes are parsed lazily through the reader's codec, which is not thread safe, so parse them here.
+                            if (ctx.getGenotypes() instanceof LazyGenotypesContext) ((LazyGenotypesContext) ctx.getGenotypes()).decode();
+                            variants.add(ctx);
+                            readProgress.record(ctx.getContig(), ctx.getStart());
+                        }
+                        task = () -> liftBatch(variants, liftOver, refSeq, comparator);
+                    }
+
+                    if (executor == null) {
+                        final FutureTask<LiftedBatch> future = new FutureTask<>(task);
+                        future.run();
+                        pending.add(future);
+                    } else {
+                        pending.add(executor.submit(task));
+                    }
+                    continue;
+                }
+
+                final LiftedBatch batch = pending.remove().get();
+                total += batch.total;
+                failedLiftover += batch.failedLiftover;
+                failedAlleleCheck += batch.failedAlleleCheck;
+                for (final VariantContext reject : batch.rejected) rejects.add(reject);
+                sorter.add(batch.lifted);
+
+                if (batch.missingContig != null) {
+                    log.error("Encountered a contig, " + batch.missingContig + " that is not part of the target reference.");
+                    refSeq.close();
+                    sorter.iterator().close();
+                    return EXIT_CODE_WHEN_CONTIG_NOT_IN_REFERENCE;
+                }
+            }
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while lifting variants over.", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new PicardException("Error while lifting variants over.", e.getCause());
+        } finally {
+            if (executor != null) executor.shutdownNow();
+            CloserUtil.close(lines);
+            codecs.remove();
+        }
+
+        final NumberFormat pfmt = new DecimalFormat("0.0000%");
+        final String pct = pfmt.format((failedLiftover + failedAlleleCheck) / (double) total);
+        log.info("Processed ", total, " variants.");
+        log.info(failedLiftover, " variants failed to liftover.");
+        log.info(failedAlleleCheck, " variants lifted over but had mismatching reference alleles after lift over.");
+        log.info(pct, " of variants were not successfully lifted over and written to the output.");
+
+        rejects.close();
+        in.close();
+        refSeq.close();
 
-        ProgressLogger progress = new ProgressLogger(log, 1000000, "read");
+        ////////////////////////////////////////////////////////////////////////
+        // Write the sorted outputs to the final output file
+        ////////////////////////////////////////////////////////////////////////
+        final ProgressLogger progress = new ProgressLogger(log, 1000000, "written");
+        log.info("Writing out sorted records to final VCF.");
+
+        final CloseableIterator<VariantContext> sorted = sorter.iterator();
+        while (sorted.hasNext()) {
+            final VariantContext ctx = sorted.next();
+            out.add(ctx);
+            progress.record(ctx.getContig(), ctx.getStart());
+        }
+        out.close();
+        sorted.close();
+
+        return 0;
+    }
+
+    /** Opens the text VCF input and reads its header into the codec, returning the lines of the input after the header. */
+    private AsciiLineReaderIterator openInput(final VCFCodec codec) {
+        final AsciiLineReaderIterator lines = new AsciiLineReaderIterator(new AsciiLineReader(IOUtil.openFileForReading(INPUT)));
+        codec.readActualHeader(lines);
+        return lines;
+    }
+
+    /**
+     * Decodes a batch of text VCF lines with a codec that belongs to the calling thread.  Genotypes are parsed lazily through the
+     * codec, which is not thread safe, so they are parsed here, before the records can reach another thread.
+     */
+    private static List<VariantContext> decode(final List<String> lines, final VCFCodec codec, final ProgressLogger progress) {
+        final List<VariantContext> variants = new ArrayList<>(lines.size());
+        for (final String line : lines) {
+            final VariantContext ctx = codec.decode(line);
+            if (ctx.getGenotypes() instanceof LazyGenotypesContext) ((LazyGenotypesContext) ctx.getGenotypes()).decode();
+            variants.add(ctx);
+            // Batches are decoded on several threads, and ProgressLogger is not thread safe.
+            synchronized (progress) {
+                progress.record(ctx.getContig(), ctx.getStart());
+            }
+        }
+        return variants;
+    }
+
+    /** The results of lifting a batch of consecutive input variants over. */
+    private static class LiftedBatch {
+        /** The variants that were lifted over, sorted. */
+        final List<VariantContext> lifted = new ArrayList<>();
+        /** The variants that could not be lifted over, in input order. */
+        final List<VariantContext> rejected = new ArrayList<>();
+        long total = 0, failedLiftover = 0, failedAlleleCheck = 0;
+        /** A contig missing from the reference that stopped the batch when WARN_ON_MISSING_CONTIG is false, otherwise null. */
+        String missingContig = null;
+    }
+
+    /** Lifts a batch of variants over. Called concurrently for different batches when THREADS is greater than 1. */
+    private LiftedBatch liftBatch(final List<VariantContext> variants, final LiftOver liftOver, final WindowedReferenceSequence refSeq,
+                                  final VariantContextComparator comparator) {
+        final LiftedBatch batch = new LiftedBatch();
         // a mapping from original allele to reverse complemented allele
         final Map<Allele, Allele> reverseComplementAlleleMap = new HashMap<Allele, Allele>(10);
 
-        for (final VariantContext ctx : in) {
-            ++total;
+        for (final VariantContext ctx : variants) {
+            ++batch.total;
             final Interval source = new Interval(ctx.getContig(), ctx.getStart(), ctx.getEnd(), false, ctx.getContig() + ":" + ctx.getStart() + "-" + ctx.getEnd());
             final Interval target = liftOver.liftOver(source, LIFTOVER_MIN_MATCH);
 
             // if the target is null OR (the target is reverse complemented AND the variant is an indel or mixed), then we cannot lift it over
             if (target == null || (target.isNegativeStrand() && (ctx.isMixed() || ctx.isIndel()))) {
                 final String reason = (target == null) ? FILTER_NO_TARGET : FILTER_CANNOT_LIFTOVER_INDEL;
-                rejects.add(new VariantContextBuilder(ctx).filter(reason).make());
-                failedLiftover++;
-            } else if (!refSeqs.containsKey(target.getContig())) {
-                rejects.add(new VariantContextBuilder(ctx).filter(FILTER_NO_TARGET).make());
-                failedLiftover++;
+                batch.rejected.add(new VariantContextBuilder(ctx).filter(reason).make());
+                batch.failedLiftover++;
+            } else if (!refSeq.hasContig(target.getContig())) {
+                batch.rejected.add(new VariantContextBuilder(ctx).filter(FILTER_NO_TARGET).make());
+                batch.failedLiftover++;
 
-                String missingContigMessage = "Encountered a contig, " + target.getContig() + " that is not part of the target reference.";
                 if(WARN_ON_MISSING_CONTIG) {
-                    log.warn(missingContigMessage);
+                    log.warn("Encountered a contig, " + target.getContig() + " that is not part of the target reference.");
                 } else {
-                    log.error(missingContigMessage);
-                    return EXIT_CODE_WHEN_CONTIG_NOT_IN_REFERENCE;
+                    batch.missingContig = target.getContig();
+                    break;
                 }
             } else {
                 // Fix the alleles if we went from positive to negative strand
@@ -263,8 +427,7 @@ public class LiftoverVcf extends CommandLineProgram {
                 boolean mismatchesReference = false;
                 for (final Allele allele : builder.getAlleles()) {
                     if (allele.isReference()) {
-                        final byte[] ref = refSeqs.get(target.getContig());
-                        final String refString = StringUtil.bytesToString(ref, target.getStart()-1, target.length());
+                        final String refString = refSeq.getBasesAsString(target.getContig(), target.getStart(), target.getEnd());
 
                         if (!refString.equalsIgnoreCase(allele.getBaseString())) {
                             mismatchesReference = true;
@@ -275,42 +438,18 @@ public class LiftoverVcf extends CommandLineProgram {
                 }
 
                 if (mismatchesReference) {
-                    rejects.add(new VariantContextBuilder(ctx).filter(FILTER_MISMATCHING_REF_ALLELE).make());
-                    failedAlleleCheck++;
+                    batch.rejected.add(new VariantContextBuilder(ctx).filter(FILTER_MISMATCHING_REF_ALLELE).make());
+                    batch.failedAlleleCheck++;
                 }
                 else {
-                    sorter.add(builder.make());
+                    batch.lifted.add(builder.make());
                 }
             }
 
-            progress.record(ctx.getContig(), ctx.getStart());
         }
 
-        final NumberFormat pfmt = new DecimalFormat("0.0000%");
-        final String pct = pfmt.format((failedLiftover + failedAlleleCheck) / (double) total);
-        log.info("Processed ", total, " variants.");
-        log.info(failedLiftover, " variants failed to liftover.");
-        log.info(failedAlleleCheck, " variants lifted over but had mismatching reference alleles after lift over.");
-        log.info(pct, " of variants were not successfully lifted over and written to the output.");
-
-        rejects.close();
-        in.close();
-
-        ////////////////////////////////////////////////////////////////////////
-        // Write the sorted outputs to the final output file
-        ////////////////////////////////////////////////////////////////////////
-        sorter.doneAdding();
-        progress = new ProgressLogger(log, 1000000, "written");
-        log.info("Writing out sorted records to final VCF.");
-
-        for (final VariantContext ctx : sorter) {
-            out.add(ctx);
-            progress.record(ctx.getContig(), ctx.getStart());
-        }
-        out.close();
-        sorter.cleanup();
-
-        return 0;
+        batch.lifted.sort(comparator);
+        return batch;
     }
 
     protected static GenotypesContext fixGenotypes(final GenotypesContext originals, final Map<Allele, Allele> reverseComplementAlleleMap) {
@@ -0,0 +1,357 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.vcf;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sorted runs of records for the external merge sorts of VCF records, and the compressed temporary files they are written to.
+ *
+ * Each record carries a key, by which runs are merged, and a sequence number, which breaks ties between equal keys.  A temporary
+ * run holds, for each record, its key, its sequence number and its payload, as encoded by a {@link PayloadCodec}, in a file
+ * compressed with {@link Deflater#BEST_SPEED}.  Temporary runs are merged into larger ones, at most {@link #MAX_RUNS_TO_MERGE} at
+ * a time and without decoding their payloads, until few enough remain to be merged at once, so the number of open files is bounded.
+ *
+ * Writers and runs may be used on different threads, as long as each one is used by a single thread at a time.
+ *
+ * @param <T> the type of the records
+ */
+class RunFiles<T> {
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    /** The most temporary runs open at once in any one merge. */
+    static final int MAX_RUNS_TO_MERGE = 64;
+
+    /** Encodes records as the payloads of a temporary run and decodes them again. */
+    interface PayloadCodec<T> {
+        void encode(T record, DataOutput out) throws IOException;
+
+        T decode(byte[] bytes, int length) throws IOException;
+    }
+
+    /** Orders runs by their current records' keys, breaking ties by sequence number. */
+    private static final Comparator<Run<?>> RUN_ORDER = Comparator.<Run<?>>comparingLong(run -> run.key).thenComparingLong(run -> run.seq);
+
+    private final String tmpPrefix;
+    private final File[] tmpDirs;
+    private final PayloadCodec<T> codec;
+
+    /**
+     * @param tmpPrefix the prefix of the names of temporary runs
+     * @param tmpDirs   the directories in which to write temporary runs
+     * @param codec     encodes and decodes the records of temporary runs
+     */
+    RunFiles(final String tmpPrefix, final List<File> tmpDirs, final PayloadCodec<T> codec) {
+        this.tmpPrefix = tmpPrefix;
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.codec = codec;
+    }
+
+    /** Returns a writer of a new temporary run. */
+    Writer newWriter() {
+        return new Writer();
+    }
+
+    /**
+     * Merges temporary runs, oldest first and at most {@link #MAX_RUNS_TO_MERGE} at a time, into new temporary runs until no
+     * more than {@link #MAX_RUNS_TO_MERGE} remain.  Other runs are kept as they are.  On failure every run is closed.
+     */
+    List<Run<T>> reduce(final List<Run<T>> runs) {
+        final List<Run<T>> result = new ArrayList<>();
+        final ArrayDeque<Run<T>> fileRuns = new ArrayDeque<>();
+        for (final Run<T> run : runs) {
+            if (run instanceof RunFiles.FileRun) fileRuns.add(run);
+            else result.add(run);
+        }
+
+        try {
+            while (fileRuns.size() > MAX_RUNS_TO_MERGE) {
+                final List<Run<T>> group = new ArrayList<>(MAX_RUNS_TO_MERGE);
+                while (group.size() < MAX_RUNS_TO_MERGE) group.add(fileRuns.poll());
+                fileRuns.add(mergeToFile(group));
+            }
+        } catch (final RuntimeException e) {
+            closeRuns(result);
+            closeRuns(new ArrayList<>(fileRuns));
+            throw e;
+        }
+        result.addAll(fileRuns);
+        return result;
+    }
+
+    /** Merges the runs into a single new temporary run, closing them as they are exhausted. */
+    Run<T> mergeToFile(final List<Run<T>> group) {
+        final PriorityQueue<Run<T>> queue = new PriorityQueue<>(Math.max(1, group.size()), RUN_ORDER);
+        try {
+            for (final Run<T> run : group) {
+                if (run.advance()) queue.add(run);
+            }
+            final Writer writer = new Writer();
+            try {
+                while (!queue.isEmpty()) {
+                    final Run<T> run = queue.poll();
+                    run.writeTo(writer);
+                    if (run.advance()) queue.add(run);
+                }
+            } catch (final RuntimeException e) {
+                writer.abandon();
+                throw e;
+            }
+            return writer.finish();
+        } finally {
+            closeRuns(group);
+        }
+    }
+
+    /**
+     * Merges the runs, converting the current record of each to an output record as it comes up.  The iterator must be closed
+     * to delete temporary runs.
+     */
+    static <T, R> CloseableIterator<R> merge(final List<Run<T>> runs, final Function<? super Run<T>, ? extends R> toOutput) {
+        return new MergingIterator<>(runs, toOutput);
+    }
+
+    static void closeRuns(final List<? extends Run<?>> runs) {
+        for (final Run<?> run : runs) run.close();
+    }
+
+    /** Writes records, which must be given in sorted order, to a new compressed temporary run. */
+    class Writer {
+        private final File file;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        private final DataOutputStream encodedOut = new DataOutputStream(encoded);
+        private int size = 0;
+
+        private Writer() {
+            try {
+                this.file = IOUtil.newTempFile(tmpPrefix, ".tmp", tmpDirs);
+                this.file.deleteOnExit();
+                this.out = new DataOutputStream(new BufferedOutputStream(
+                        new DeflaterOutputStream(new FileOutputStream(file), deflater, IO_BUFFER_SIZE), IO_BUFFER_SIZE));
+            } catch (final IOException e) {
+                deflater.end();
+                throw new PicardException("Error creating temporary run of VCF records.", e);
+            }
+        }
+
+        /** Writes a record that has not yet been encoded. */
+        void write(final long key, final long seq, final T record) {
+            try {
+                encoded.reset();
+                codec.encode(record, encodedOut);
+                out.writeLong(key);
+                out.writeLong(seq);
+                out.writeInt(encoded.size());
+                encoded.writeTo(out);
+                ++size;
+            } catch (final IOException e) {
+                throw new PicardException("Error writing temporary run of VCF records.", e);
+            }
+        }
+
+        /** Writes a record that is already encoded. */
+        private void write(final long key, final long seq, final byte[] bytes, final int length) {
+            try {
+                out.writeLong(key);
+                out.writeLong(seq);
+                out.writeInt(length);
+                out.write(bytes, 0, length);
+                ++size;
+            } catch (final IOException e) {
+                throw new PicardException("Error writing temporary run of VCF records.", e);
+            }
+        }
+
+        /** Closes the file and returns it as a run. */
+        Run<T> finish() {
+            try {
+                out.close();
+            } catch (final IOException e) {
+                file.delete();
+                throw new PicardException("Error writing temporary run of VCF records.", e);
+            } finally {
+                deflater.end();
+            }
+            return new FileRun(file, size);
+        }
+
+        /** Closes and deletes the file after a failure. */
+        void abandon() {
+            CloserUtil.close(out);
+            deflater.end();
+            file.delete();
+        }
+    }
+
+    /** A sorted run of records, positioned on its current record once advanced. */
+    abstract static class Run<T> {
+        long key;
+        long seq;
+
+        /** Moves to the next record, returning false if there is none. */
+        abstract boolean advance();
+
+        /** Returns the current record. */
+        abstract T get();
+
+        /** Writes the current record to a temporary run. */
+        void writeTo(final RunFiles<T>.Writer writer) {
+            writer.write(key, seq, get());
+        }
+
+        abstract void close();
+    }
+
+    /** A temporary run, read back one encoded record at a time and decoded only on request. */
+    private class FileRun extends Run<T> {
+        private final File file;
+        private final int size;
+        private Inflater inflater = null;
+        private DataInputStream in = null;
+        private byte[] bytes = new byte[1024];
+        private int length = 0;
+        private int next = 0;
+
+        FileRun(final File file, final int size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        boolean advance() {
+            if (next == size) {
+                close();
+                return false;
+            }
+            try {
+                if (in == null) {
+                    inflater = new Inflater();
+                    in = new DataInputStream(new BufferedInputStream(
+                            new InflaterInputStream(new FileInputStream(file), inflater, IO_BUFFER_SIZE), IO_BUFFER_SIZE));
+                }
+                key = in.readLong();
+                seq = in.readLong();
+                length = in.readInt();
+                if (length > bytes.length) bytes = new byte[Math.max(length, 2 * bytes.length)];
+                in.readFully(bytes, 0, length);
+            } catch (final IOException e) {
+                throw new PicardException("Error reading temporary run " + file.getAbsolutePath(), e);
+            }
+            ++next;
+            return true;
+        }
+
+        @Override
+        T get() {
+            try {
+                return codec.decode(bytes, length);
+            } catch (final IOException e) {
+                throw new PicardException("Error decoding a record from temporary run " + file.getAbsolutePath(), e);
+            }
+        }
+
+        @Override
+        void writeTo(final RunFiles<T>.Writer writer) {
+            writer.write(key, seq, bytes, length);
+        }
+
+        @Override
+        void close() {
+            CloserUtil.close(in);
+            in = null;
+            if (inflater != null) inflater.end();
+            inflater = null;
+            next = size;
+            file.delete();
+        }
+    }
+
+    private static class MergingIterator<T, R> implements CloseableIterator<R> {
+        private final List<Run<T>> runs;
+        private final Function<? super Run<T>, ? extends R> toOutput;
+        private final PriorityQueue<Run<T>> queue;
+        private R next = null;
+
+        MergingIterator(final List<Run<T>> runs, final Function<? super Run<T>, ? extends R> toOutput) {
+            this.runs = runs;
+            this.toOutput = toOutput;
+            this.queue = new PriorityQueue<>(Math.max(1, runs.size()), RUN_ORDER);
+            for (final Run<T> run : runs) {
+                if (run.advance()) queue.add(run);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !queue.isEmpty()) {
+                final Run<T> run = queue.poll();
+                next = toOutput.apply(run);
+                if (run.advance()) queue.add(run);
+            }
+            return next != null;
+        }
+
+        @Override
+        public R next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final R result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            queue.clear();
+            closeRuns(runs);
+        }
+    }
+}
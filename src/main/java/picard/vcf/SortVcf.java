@@ -3,6 +3,7 @@ package picard.vcf;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
@@ -12,6 +13,7 @@ import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
 import htsjdk.variant.vcf.VCFRecordCodec;
@@ -25,7 +27,9 @@ import picard.cmdline.programgroups.VcfOrBcf;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Sorts one or more VCF files according to the order of the contigs in the header/sequence dictionary and then
@@ -63,6 +67,9 @@ public class SortVcf extends CommandLineProgram {
     @Option(shortName = StandardOptionDefinitions.SEQUENCE_DICTIONARY_SHORT_NAME, optional = true)
     public File SEQUENCE_DICTIONARY;
 
+    @Option(doc = "The number of threads with which to read and sort the inputs. Only text VCF inputs are read in parallel.")
+    public int THREADS = 1;
+
     private final Log log = Log.getInstance(SortVcf.class);
 
     private final List<VCFFileReader> inputReaders = new ArrayList<VCFFileReader>();
@@ -97,8 +104,14 @@ public class SortVcf extends CommandLineProgram {
         // Create the merged output header from the input headers
         final VCFHeader outputHeader = new VCFHeader(VCFUtils.smartMergeHeaders(inputHeaders, false), sampleList);
 
-        // Load entries into the sorting collection
-        final SortingCollection<VariantContext> sortedOutput = sortInputs(inputReaders, outputHeader);
+        // Sort the entries, without decoding them until they are written unless some input is a BCF
+        final CloseableIterator<VariantContext> sortedOutput;
+        if (inputsAreText()) {
+            CloserUtil.close(inputReaders);
+            sortedOutput = sortLines(outputHeader);
+        } else {
+            sortedOutput = sortInputs(inputReaders, outputHeader).iterator();
+        }
 
         // Output to the final file
         writeSortedOutput(outputHeader, sortedOutput);
@@ -106,6 +119,21 @@ public class SortVcf extends CommandLineProgram {
         return 0;
     }
 
+    @Override
+    protected String[] customCommandLineValidation() {
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1"};
+        }
+        return super.customCommandLineValidation();
+    }
+
+    private boolean inputsAreText() {
+        for (final File input : INPUT) {
+            if (VCFFileReader.isBCF(input)) return false;
+        }
+        return true;
+    }
+
     private void collectFileReadersAndHeaders(final List<String> sampleList, SAMSequenceDictionary samSequenceDictionary) {
         for (final File input : INPUT) {
             final VCFFileReader in = new VCFFileReader(input, false);
@@ -174,7 +202,23 @@ public class SortVcf extends CommandLineProgram {
         return sorter;
     }
 
-    private void writeSortedOutput(final VCFHeader outputHeader, final SortingCollection<VariantContext> sortedOutput) {
+    /**
+     * Sorts text VCF inputs by their lines, reading inputs on up to THREADS threads.  Records are compared by contig index and
+     * start, as by the output header's VCFRecordComparator, and are only decoded as they are returned.
+     *
+     * @param outputHeader - The merged header whose contig order the output follows
+     */
+    private CloseableIterator<VariantContext> sortLines(final VCFHeader outputHeader) {
+        final ProgressLogger readProgress = new ProgressLogger(log, 25000, "read", "records");
+        final Map<String, Integer> contigIndices = new HashMap<String, Integer>();
+        for (final VCFContigHeaderLine contig : outputHeader.getContigLines()) {
+            contigIndices.put(contig.getID(), contig.getContigIndex());
+        }
+        log.info("Reading entries from " + INPUT.size() + " input file(s)");
+        return new VcfLineSorter(INPUT, contigIndices, MAX_RECORDS_IN_RAM, TMP_DIR, THREADS, readProgress).sort();
+    }
+
+    private void writeSortedOutput(final VCFHeader outputHeader, final CloseableIterator<VariantContext> sortedOutput) {
         final ProgressLogger writeProgress = new ProgressLogger(log, 25000, "wrote", "records");
         final EnumSet<Options> options = CREATE_INDEX ? EnumSet.of(Options.INDEX_ON_THE_FLY) : EnumSet.noneOf(Options.class);
         final VariantContextWriter out = new VariantContextWriterBuilder().
@@ -182,10 +226,12 @@ public class SortVcf extends CommandLineProgram {
                 setOptions(options).
                 setOutputFile(OUTPUT).build();
         out.writeHeader(outputHeader);
-        for (final VariantContext variantContext : sortedOutput) {
+        while (sortedOutput.hasNext()) {
+            final VariantContext variantContext = sortedOutput.next();
             out.add(variantContext);
             writeProgress.record(variantContext.getContig(), variantContext.getStart());
         }
+        sortedOutput.close();
         out.close();
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.vcf;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFHeader;
+import picard.PicardException;
+import picard.vcf.RunFiles.Run;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges batches of VariantContexts, each already sorted by contig and start, into one sorted stream in which ties keep the
+ * order in which they were added, as a {@link htsjdk.samtools.util.SortingCollection} compared by
+ * {@link htsjdk.variant.variantcontext.VariantContextComparator} would return them.
+ *
+ * Batches are kept in RAM as they are until together they hold more than the maximum number of records, when they are merged
+ * into a temporary run of {@link RunFiles} in the binary form of {@link VariantContextBinaryCodec}, so that records are never
+ * written as VCF text and parsed again.  As in {@link VcfLineSorter}, records are keyed by contig index and start, and the
+ * final merge decodes each record only as it is returned.
+ */
+class VariantBatchMerger {
+    private final SAMSequenceDictionary dictionary;
+    private final RunFiles<VariantContext> runFiles;
+    private final int maxRecordsInRam;
+
+    private final List<Run<VariantContext>> batches = new ArrayList<>();
+    private final List<Run<VariantContext>> fileRuns = new ArrayList<>();
+    private int numRecordsInRam = 0;
+    private long nextSeq = 0;
+
+    /**
+     * @param header          the header of the records, whose sequence dictionary orders the contigs
+     * @param maxRecordsInRam the most records to hold in RAM before writing them to a temporary run
+     * @param tmpDirs         the directories in which to write temporary runs
+     */
+    VariantBatchMerger(final VCFHeader header, final int maxRecordsInRam, final List<File> tmpDirs) {
+        this.dictionary = header.getSequenceDictionary();
+        this.maxRecordsInRam = maxRecordsInRam;
+
+        final VariantContextBinaryCodec codec = new VariantContextBinaryCodec(header);
+        this.runFiles = new RunFiles<>("LiftoverVcf.", tmpDirs, new RunFiles.PayloadCodec<VariantContext>() {
+            @Override
+            public void encode(final VariantContext ctx, final DataOutput out) throws IOException {
+                codec.encode(ctx, out);
+            }
+
+            @Override
+            public VariantContext decode(final byte[] bytes, final int length) throws IOException {
+                return codec.decode(new DataInputStream(new ByteArrayInputStream(bytes, 0, length)));
+            }
+        });
+    }
+
+    /** Adds a batch of records, which must be sorted by contig and start, to be merged with the batches added so far. */
+    void add(final List<VariantContext> batch) {
+        if (batch.isEmpty()) return;
+
+        final long[] keys = new long[batch.size()];
+        for (int i = 0; i < keys.length; i++) keys[i] = key(batch.get(i));
+        batches.add(new MemoryRun(batch, keys, nextSeq));
+        nextSeq += keys.length;
+        numRecordsInRam += keys.length;
+
+        if (numRecordsInRam > maxRecordsInRam) {
+            fileRuns.add(runFiles.mergeToFile(new ArrayList<>(batches)));
+            batches.clear();
+            numRecordsInRam = 0;
+        }
+    }
+
+    /** Returns the records in sorted order.  The iterator must be closed to delete temporary runs. */
+    CloseableIterator<VariantContext> iterator() {
+        final List<Run<VariantContext>> runs = new ArrayList<>(fileRuns);
+        runs.addAll(batches);
+        fileRuns.clear();
+        batches.clear();
+        numRecordsInRam = 0;
+        return RunFiles.merge(runFiles.reduce(runs), Run::get);
+    }
+
+    /** The contig index of the record in the high bits and its start, offset to sort as an unsigned value, in the low bits. */
+    private long key(final VariantContext ctx) {
+        final int contigIndex = dictionary.getSequenceIndex(ctx.getContig());
+        if (contigIndex < 0) throw new PicardException("Contig " + ctx.getContig() + " is not in the sequence dictionary.");
+        return ((long) contigIndex << 32) | ((long) ctx.getStart() - Integer.MIN_VALUE);
+    }
+
+    /** One of the added batches, held in RAM as it was added. */
+    private static class MemoryRun extends Run<VariantContext> {
+        private final List<VariantContext> records;
+        private final long[] keys;
+        private final long firstSeq;
+        private int next = 0;
+
+        MemoryRun(final List<VariantContext> records, final long[] keys, final long firstSeq) {
+            this.records = records;
+            this.keys = keys;
+            this.firstSeq = firstSeq;
+        }
+
+        @Override
+        boolean advance() {
+            if (next == keys.length) return false;
+            key = keys[next];
+            seq = firstSeq + next;
+            ++next;
+            return true;
+        }
+
+        @Override
+        VariantContext get() {
+            return records.get(next - 1);
+        }
+
+        @Override
+        void close() {
+            next = keys.length;
+        }
+    }
+}
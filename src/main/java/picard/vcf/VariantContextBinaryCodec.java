@@ -0,0 +1,337 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.vcf;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes VariantContexts to temporary files in a binary form and reads them back, for sorting records that have already been
+ * decoded.  Unlike {@link htsjdk.variant.vcf.VCFRecordCodec}, which writes each record as a VCF line and parses it again, the
+ * fields are written as they are held: alleles as strings, genotypes field by field with their samples and alleles as indices,
+ * and attribute values tagged with their types, so that a record read back is written out exactly as the original would be.
+ * Attribute values of types that VCF writers only ever format with toString() are kept as those strings.
+ */
+class VariantContextBinaryCodec {
+    // Tags for the types of attribute values
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte LONG = 5;
+    private static final byte FLOAT = 6;
+    private static final byte LIST = 7;
+    private static final byte ARRAY = 8;
+    private static final byte INT_ARRAY = 9;
+    private static final byte DOUBLE_ARRAY = 10;
+
+    /** Written in place of an index for a genotype allele that is the no-call allele. */
+    private static final int NO_CALL_ALLELE = -1;
+    /** Written in place of an index for a genotype allele or sample that is written out in full instead. */
+    private static final int NOT_INDEXED = -2;
+
+    private final List<String> samples;
+    private final Map<String, Integer> sampleOffsets;
+
+    /** @param header the header of the records, whose samples are written as indices */
+    VariantContextBinaryCodec(final VCFHeader header) {
+        this.samples = header.getGenotypeSamples();
+        this.sampleOffsets = header.getSampleNameToOffset();
+    }
+
+    void encode(final VariantContext ctx, final DataOutput out) throws IOException {
+        writeString(ctx.getSource(), out);
+        writeString(ctx.getContig(), out);
+        out.writeInt(ctx.getStart());
+        out.writeInt(ctx.getEnd());
+        writeString(ctx.getID(), out);
+
+        final List<Allele> alleles = ctx.getAlleles();
+        out.writeInt(alleles.size());
+        for (final Allele allele : alleles) {
+            writeString(allele.getDisplayString(), out);
+            out.writeBoolean(allele.isReference());
+        }
+
+        out.writeDouble(ctx.getLog10PError());
+        writeStrings(ctx.filtersWereApplied() ? ctx.getFilters() : null, out);
+        writeAttributes(ctx.getAttributes(), out);
+
+        final GenotypesContext genotypes = ctx.getGenotypes();
+        out.writeInt(genotypes.size());
+        for (final Genotype genotype : genotypes) {
+            final Integer offset = sampleOffsets.get(genotype.getSampleName());
+            if (offset != null) {
+                out.writeInt(offset);
+            } else {
+                out.writeInt(NOT_INDEXED);
+                writeString(genotype.getSampleName(), out);
+            }
+
+            out.writeInt(genotype.getAlleles().size());
+            for (final Allele allele : genotype.getAlleles()) {
+                final int index = alleles.indexOf(allele);
+                if (index >= 0) {
+                    out.writeInt(index);
+                } else if (allele.isNoCall()) {
+                    out.writeInt(NO_CALL_ALLELE);
+                } else {
+                    out.writeInt(NOT_INDEXED);
+                    writeString(allele.getDisplayString(), out);
+                    out.writeBoolean(allele.isReference());
+                }
+            }
+
+            out.writeBoolean(genotype.isPhased());
+            out.writeInt(genotype.getGQ());
+            out.writeInt(genotype.getDP());
+            writeIntArray(genotype.getAD(), out);
+            writeIntArray(genotype.getPL(), out);
+            writeString(genotype.getFilters(), out);
+            writeAttributes(genotype.getExtendedAttributes(), out);
+        }
+    }
+
+    VariantContext decode(final DataInput in) throws IOException {
+        final String source = readString(in);
+        final String contig = readString(in);
+        final int start = in.readInt();
+        final int end = in.readInt();
+        final String id = readString(in);
+
+        final int numAlleles = in.readInt();
+        final List<Allele> alleles = new ArrayList<>(numAlleles);
+        for (int i = 0; i < numAlleles; i++) {
+            final String bases = readString(in);
+            alleles.add(Allele.create(bases, in.readBoolean()));
+        }
+
+        final VariantContextBuilder builder = new VariantContextBuilder(source, contig, start, end, alleles);
+        builder.id(id);
+        builder.log10PError(in.readDouble());
+        final Set<String> filters = readStrings(in);
+        if (filters == null) builder.unfiltered();
+        else builder.filters(filters);
+        builder.attributes(readAttributes(in));
+
+        final int numGenotypes = in.readInt();
+        final GenotypesContext genotypes = GenotypesContext.create(numGenotypes);
+        for (int i = 0; i < numGenotypes; i++) {
+            final int offset = in.readInt();
+            final String sample = offset == NOT_INDEXED ? readString(in) : samples.get(offset);
+
+            final int ploidy = in.readInt();
+            final List<Allele> genotypeAlleles = new ArrayList<>(ploidy);
+            for (int j = 0; j < ploidy; j++) {
+                final int index = in.readInt();
+                if (index >= 0) {
+                    genotypeAlleles.add(alleles.get(index));
+                } else if (index == NO_CALL_ALLELE) {
+                    genotypeAlleles.add(Allele.NO_CALL);
+                } else {
+                    final String bases = readString(in);
+                    genotypeAlleles.add(Allele.create(bases, in.readBoolean()));
+                }
+            }
+
+            final GenotypeBuilder genotype = new GenotypeBuilder(sample, genotypeAlleles);
+            genotype.phased(in.readBoolean());
+            genotype.GQ(in.readInt());
+            genotype.DP(in.readInt());
+            genotype.AD(readIntArray(in));
+            genotype.PL(readIntArray(in));
+            genotype.filter(readString(in));
+            genotype.attributes(readAttributes(in));
+            genotypes.add(genotype.make());
+        }
+        builder.genotypes(genotypes);
+
+        return builder.make();
+    }
+
+    private static void writeAttributes(final Map<String, Object> attributes, final DataOutput out) throws IOException {
+        out.writeInt(attributes.size());
+        for (final Map.Entry<String, Object> entry : attributes.entrySet()) {
+            writeString(entry.getKey(), out);
+            writeValue(entry.getValue(), out);
+        }
+    }
+
+    private static Map<String, Object> readAttributes(final DataInput in) throws IOException {
+        final int size = in.readInt();
+        final Map<String, Object> attributes = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            final String key = readString(in);
+            attributes.put(key, readValue(in));
+        }
+        return attributes;
+    }
+
+    private static void writeValue(final Object value, final DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString((String) value, out);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof List) {
+            out.writeByte(LIST);
+            final List<?> list = (List<?>) value;
+            out.writeInt(list.size());
+            for (final Object element : list) writeValue(element, out);
+        } else if (value instanceof Object[]) {
+            out.writeByte(ARRAY);
+            final Object[] array = (Object[]) value;
+            out.writeInt(array.length);
+            for (final Object element : array) writeValue(element, out);
+        } else if (value instanceof int[]) {
+            out.writeByte(INT_ARRAY);
+            writeIntArray((int[]) value, out);
+        } else if (value instanceof double[]) {
+            out.writeByte(DOUBLE_ARRAY);
+            final double[] array = (double[]) value;
+            out.writeInt(array.length);
+            for (final double d : array) out.writeDouble(d);
+        } else {
+            // VCF writers format any other type with toString()
+            out.writeByte(STRING);
+            writeString(value.toString(), out);
+        }
+    }
+
+    private static Object readValue(final DataInput in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case NULL: return null;
+            case STRING: return readString(in);
+            case INTEGER: return in.readInt();
+            case DOUBLE: return in.readDouble();
+            case BOOLEAN: return in.readBoolean();
+            case LONG: return in.readLong();
+            case FLOAT: return in.readFloat();
+            case LIST: {
+                final int size = in.readInt();
+                final List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) list.add(readValue(in));
+                return list;
+            }
+            case ARRAY: {
+                final Object[] array = new Object[in.readInt()];
+                for (int i = 0; i < array.length; i++) array[i] = readValue(in);
+                return array;
+            }
+            case INT_ARRAY: return readIntArray(in);
+            case DOUBLE_ARRAY: {
+                final double[] array = new double[in.readInt()];
+                for (int i = 0; i < array.length; i++) array[i] = in.readDouble();
+                return array;
+            }
+            default: throw new IOException("Unknown attribute type " + type);
+        }
+    }
+
+    private static void writeIntArray(final int[] array, final DataOutput out) throws IOException {
+        if (array == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(array.length);
+            for (final int i : array) out.writeInt(i);
+        }
+    }
+
+    private static int[] readIntArray(final DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) return null;
+        final int[] array = new int[length];
+        for (int i = 0; i < length; i++) array[i] = in.readInt();
+        return array;
+    }
+
+    private static void writeStrings(final Set<String> strings, final DataOutput out) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(strings.size());
+            for (final String s : strings) writeString(s, out);
+        }
+    }
+
+    private static Set<String> readStrings(final DataInput in) throws IOException {
+        final int size = in.readInt();
+        if (size < 0) return null;
+        final Set<String> strings = new LinkedHashSet<>(size * 2);
+        for (int i = 0; i < size; i++) strings.add(readString(in));
+        return strings;
+    }
+
+    private static void writeString(final String s, final DataOutput out) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) return null;
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package picard.vcf;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.ProgressLogger;
+import htsjdk.tribble.readers.AsciiLineReader;
+import htsjdk.tribble.readers.AsciiLineReaderIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import picard.PicardException;
+import picard.vcf.RunFiles.Run;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sorts the records of text VCF files by contig and start without decoding them, returning them in the same order as a
+ * {@link htsjdk.samtools.util.SortingCollection} of decoded records compared by {@link htsjdk.variant.variantcontext.VariantContextComparator}
+ * would, with ties kept in input order.
+ *
+ * Records are held as their lines, keyed by the contig index and start parsed from the first two columns.  Inputs are read on
+ * separate threads, each of which holds its own share of the records in RAM and writes it to a compressed temporary run
+ * when it fills.  The runs are merged as the sorted records are read, and each line is decoded by its input's codec only then.
+ * Since the number of runs grows with the number of threads, temporary runs are first reduced by {@link RunFiles#reduce}, so
+ * the number of open files is bounded.
+ */
+class VcfLineSorter {
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /** Writes lines to temporary runs as they are, one byte per character. */
+    private static final RunFiles.PayloadCodec<String> LINE_CODEC = new RunFiles.PayloadCodec<String>() {
+        @Override
+        public void encode(final String line, final DataOutput out) throws IOException {
+            out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public String decode(final byte[] bytes, final int length) {
+            return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        }
+    };
+
+    private final List<File> inputs;
+    private final Map<String, Integer> contigIndices;
+    private final int maxRecordsInRam;
+    private final RunFiles<String> runFiles;
+    private final int numThreads;
+    private final ProgressLogger progress;
+
+    /** The codec that read the header of each input, which decodes that input's records. */
+    private final VCFCodec[] codecs;
+    /** Runs of records, sequenced by input index in the high bits and line number in the low bits. */
+    private final List<Run<String>> runs = Collections.synchronizedList(new ArrayList<Run<String>>());
+
+    /**
+     * @param inputs          text VCF files
+     * @param contigIndices   the index of each contig in the output header, by name
+     * @param maxRecordsInRam the most records to hold in RAM across all threads
+     * @param tmpDirs         the directories in which to write temporary runs
+     * @param numThreads      the number of threads with which to read inputs
+     * @param progress        records each record as it is read, by whichever thread reads it
+     */
+    VcfLineSorter(final List<File> inputs, final Map<String, Integer> contigIndices, final int maxRecordsInRam,
+                  final List<File> tmpDirs, final int numThreads, final ProgressLogger progress) {
+        this.inputs = inputs;
+        this.contigIndices = contigIndices;
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.runFiles = new RunFiles<>("SortVcf.", tmpDirs, LINE_CODEC);
+        this.numThreads = Math.max(1, Math.min(numThreads, inputs.size()));
+        this.progress = progress;
+        this.codecs = new VCFCodec[inputs.size()];
+    }
+
+    /** Reads every input and returns its records in sorted order.  The iterator must be closed to delete temporary runs. */
+    CloseableIterator<VariantContext> sort() {
+        final AtomicInteger nextInput = new AtomicInteger(0);
+        final int bufferCapacity = Math.max(1, maxRecordsInRam / numThreads);
+        if (numThreads == 1) {
+            readInputs(nextInput, bufferCapacity);
+        } else {
+            final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            try {
+                final List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (int i = 0; i < numThreads; i++) {
+                    futures.add(executor.submit(() -> readInputs(nextInput, bufferCapacity)));
+                }
+                for (final Future<?> future : futures) future.get();
+            } catch (final InterruptedException e) {
+                RunFiles.closeRuns(runs);
+                throw new PicardException("Interrupted while reading VCF inputs.", e);
+            } catch (final ExecutionException e) {
+                RunFiles.closeRuns(runs);
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new PicardException("Error while reading VCF inputs.", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        // Each line is decoded by the codec of the input it came from only as it is returned.
+        return RunFiles.merge(runFiles.reduce(new ArrayList<>(runs)), run -> codecs[(int) (run.seq >>> 40)].decode(run.get()));
+    }
+
+    /**
+     * Reads inputs until there are none left, holding records in a single buffer.  Inputs are taken in increasing order, so
+     * records are added to the buffer in input order and a stable sort by key leaves ties in input order.
+     */
+    private void readInputs(final AtomicInteger nextInput, final int bufferCapacity) {
+        final Buffer buffer = new Buffer(bufferCapacity);
+        for (int i = nextInput.getAndIncrement(); i < inputs.size(); i = nextInput.getAndIncrement()) {
+            final File input = inputs.get(i);
+            final AsciiLineReaderIterator lines = new AsciiLineReaderIterator(new AsciiLineReader(IOUtil.openFileForReading(input)));
+            try {
+                final VCFCodec codec = new VCFCodec();
+                codec.readActualHeader(lines);
+                codecs[i] = codec;
+
+                long lineNumber = 0;
+                while (lines.hasNext()) {
+                    final String line = lines.next();
+                    ++lineNumber;
+                    if (line.isEmpty() || line.charAt(0) == '#') continue;
+
+                    buffer.add(key(input, lineNumber, line), ((long) i << 40) | lineNumber, line);
+                    if (buffer.size == bufferCapacity) runs.add(buffer.spill());
+                }
+            } finally {
+                CloserUtil.close(lines);
+            }
+        }
+        if (buffer.size > 0) runs.add(buffer.toRun());
+    }
+
+    /** The contig index of the record in the high bits and its start, offset to sort as an unsigned value, in the low bits. */
+    private long key(final File input, final long lineNumber, final String line) {
+        final int contigEnd = line.indexOf('\t');
+        final int startEnd = contigEnd < 0 ? -1 : line.indexOf('\t', contigEnd + 1);
+        if (startEnd < 0) {
+            throw new PicardException("Line " + lineNumber + " of " + input.getAbsolutePath() + " is not a VCF record: " + line);
+        }
+        final String contig = line.substring(0, contigEnd);
+        final Integer contigIndex = contigIndices.get(contig);
+        if (contigIndex == null) {
+            throw new PicardException("Contig " + contig + " on line " + lineNumber + " of " + input.getAbsolutePath() +
+                    " is not in the sequence dictionary.");
+        }
+        final int start;
+        try {
+            start = Integer.parseInt(line.substring(contigEnd + 1, startEnd));
+        } catch (final NumberFormatException e) {
+            throw new PicardException("Line " + lineNumber + " of " + input.getAbsolutePath() + " has an invalid position: " + line, e);
+        }
+        // Inputs are read on several threads, and ProgressLogger is not thread safe.
+        synchronized (progress) {
+            progress.record(contig, start);
+        }
+        return ((long) contigIndex << 32) | ((long) start - Integer.MIN_VALUE);
+    }
+
+    /** Records held in RAM by one reading thread, in the order in which they were read. */
+    private class Buffer {
+        private final int capacity;
+        private long[] keys;
+        private long[] seqs;
+        private String[] lines;
+        private int size = 0;
+
+        Buffer(final int capacity) {
+            this.capacity = capacity;
+            allocate(Math.min(capacity, INITIAL_BUFFER_SIZE));
+        }
+
+        private void allocate(final int length) {
+            keys = new long[length];
+            seqs = new long[length];
+            lines = new String[length];
+        }
+
+        void add(final long key, final long seq, final String line) {
+            if (size == keys.length) {
+                final int length = (int) Math.min(capacity, 2L * keys.length);
+                keys = Arrays.copyOf(keys, length);
+                seqs = Arrays.copyOf(seqs, length);
+                lines = Arrays.copyOf(lines, length);
+            }
+            keys[size] = key;
+            seqs[size] = seq;
+            lines[size] = line;
+            ++size;
+        }
+
+        /** Hands the records over to an in-memory run. */
+        Run<String> toRun() {
+            final Run<String> run = new InMemoryRun(keys, seqs, lines, sortedOrder(), size);
+            allocate(0);
+            size = 0;
+            return run;
+        }
+
+        /** Writes the records to a temporary run in sorted order and empties the buffer. */
+        Run<String> spill() {
+            final int[] order = sortedOrder();
+            final RunFiles<String>.Writer writer = runFiles.newWriter();
+            try {
+                for (int i = 0; i < size; i++) {
+                    final int j = order[i];
+                    writer.write(keys[j], seqs[j], lines[j]);
+                }
+            } catch (final RuntimeException e) {
+                writer.abandon();
+                throw e;
+            }
+            final Run<String> run = writer.finish();
+            Arrays.fill(lines, 0, size, null);
+            size = 0;
+            return run;
+        }
+
+        /** Returns the indices of the records stably sorted by key, with a bottom-up merge sort that is linear on sorted input. */
+        private int[] sortedOrder() {
+            final int[] order = new int[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            final int[] scratch = new int[size];
+            for (int width = 1; width < size; width *= 2) {
+                for (int lo = 0; lo < size - width; lo += 2 * width) {
+                    final int mid = lo + width;
+                    final int hi = Math.min(lo + 2 * width, size);
+                    if (keys[order[mid - 1]] <= keys[order[mid]]) continue;
+                    System.arraycopy(order, lo, scratch, lo, width);
+                    int i = lo, j = mid, k = lo;
+                    while (i < mid && j < hi) order[k++] = keys[order[j]] < keys[scratch[i]] ? order[j++] : scratch[i++];
+                    while (i < mid) order[k++] = scratch[i++];
+                }
+            }
+            return order;
+        }
+    }
+
+    private static class InMemoryRun extends Run<String> {
+        private final long[] keys;
+        private final long[] seqs;
+        private final String[] lines;
+        private final int[] order;
+        private final int size;
+        private int next = 0;
+        private String line = null;
+
+        InMemoryRun(final long[] keys, final long[] seqs, final String[] lines, final int[] order, final int size) {
+            this.keys = keys;
+            this.seqs = seqs;
+            this.lines = lines;
+            this.order = order;
+            this.size = size;
+        }
+
+        @Override
+        boolean advance() {
+            if (next == size) return false;
+            final int i = order[next++];
+            key = keys[i];
+            seq = seqs[i];
+            line = lines[i];
+            lines[i] = null;
+            return true;
+        }
+
+        @Override
+        String get() {
+            return line;
+        }
+
+        @Override
+        void close() {
+            line = null;
+            Arrays.fill(lines, null);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.vcf;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Provides the bases of a reference sequence by position, keeping only a bounded number of fixed-size windows of the
+ * reference in memory.  Windows are read through the reference's .fai index as they are needed and the least recently used
+ * window is dropped once there are more than the maximum, so memory use does not depend on the size of the genome.
+ *
+ * References without an index can only be read sequentially, so for those every contig is loaded up front, as LiftoverVcf
+ * has always done.
+ */
+class WindowedReferenceSequence implements Closeable {
+    /** The number of bases in each window. */
+    static final int DEFAULT_WINDOW_SIZE = 1 << 20;
+    /** The most windows kept in memory at once. */
+    static final int DEFAULT_MAX_WINDOWS = 64;
+
+    private final Log log = Log.getInstance(WindowedReferenceSequence.class);
+
+    private final ReferenceSequenceFile reference;
+    private final SAMSequenceDictionary dictionary;
+    private final int windowSize;
+
+    /** The windows in memory, keyed by contig index and window number, in order of least to most recent use. */
+    private final WindowCache windows;
+    /** Every contig, if the reference is not indexed. */
+    private final byte[][] wholeContigs;
+
+    WindowedReferenceSequence(final File referenceFile) {
+        this(referenceFile, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS);
+    }
+
+    WindowedReferenceSequence(final File referenceFile, final int windowSize, final int maxWindows) {
+        this.reference = ReferenceSequenceFileFactory.getReferenceSequenceFile(referenceFile);
+        this.dictionary = reference.getSequenceDictionary();
+        if (dictionary == null) {
+            CloserUtil.close(reference);
+            throw new PicardException("No sequence dictionary found for " + referenceFile.getAbsolutePath());
+        }
+        this.windowSize = windowSize;
+        this.windows = new WindowCache(maxWindows);
+
+        if (reference.isIndexed()) {
+            this.wholeContigs = null;
+        } else {
+            log.info("Reference " + referenceFile.getAbsolutePath() + " is not indexed, loading all of it. " +
+                    "Index it with samtools faidx to only keep parts of it in memory.");
+            this.wholeContigs = new byte[dictionary.size()][];
+            final ReferenceSequenceFileWalker walker = new ReferenceSequenceFileWalker(reference);
+            for (int i = 0; i < dictionary.size(); i++) {
+                wholeContigs[i] = walker.get(i).getBases();
+            }
+        }
+    }
+
+    SAMSequenceDictionary getSequenceDictionary() {
+        return dictionary;
+    }
+
+    /** Returns true if the reference has a contig with the given name. */
+    boolean hasContig(final String contig) {
+        return dictionary.getSequence(contig) != null;
+    }
+
+    /**
+     * Returns the bases of the contig from start to end, both 1-based and inclusive, as they appear in the reference.
+     * Synchronized so that the windows can be shared by threads lifting variants over in parallel.
+     */
+    synchronized String getBasesAsString(final String contig, final int start, final int end) {
+        final SAMSequenceRecord sequence = dictionary.getSequence(contig);
+        if (sequence == null) {
+            throw new PicardException("Contig " + contig + " is not part of the reference.");
+        }
+        if (start < 1 || end > sequence.getSequenceLength() || end < start - 1) {
+            throw new PicardException("Position " + contig + ":" + start + "-" + end + " is outside of the reference.");
+        }
+        if (wholeContigs != null) {
+            return StringUtil.bytesToString(wholeContigs[sequence.getSequenceIndex()], start - 1, end - start + 1);
+        }
+
+        final byte[] bases = new byte[end - start + 1];
+        int position = start - 1;
+        while (position < end) {
+            final int windowNumber = position / windowSize;
+            final byte[] window = getWindow(sequence, windowNumber);
+            final int offset = position - windowNumber * windowSize;
+            final int length = Math.min(window.length - offset, end - position);
+            System.arraycopy(window, offset, bases, position - (start - 1), length);
+            position += length;
+        }
+        return StringUtil.bytesToString(bases);
+    }
+
+    private byte[] getWindow(final SAMSequenceRecord sequence, final int windowNumber) {
+        final long key = ((long) sequence.getSequenceIndex() << 32) | windowNumber;
+        byte[] window = windows.get(key);
+        if (window == null) {
+            final long windowStart = (long) windowNumber * windowSize + 1;
+            final long windowEnd = Math.min(windowStart + windowSize - 1, sequence.getSequenceLength());
+            window = reference.getSubsequenceAt(sequence.getSequenceName(), windowStart, windowEnd).getBases();
+            windows.put(key, window);
+        }
+        return window;
+    }
+
+    @Override
+    public void close() {
+        CloserUtil.close(reference);
+    }
+
+    /** A map in access order that drops its least recently used window once it holds more than maxWindows. */
+    private static class WindowCache extends LinkedHashMap<Long, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxWindows;
+
+        WindowCache(final int maxWindows) {
+            super(16, 0.75f, true);
+            this.maxWindows = maxWindows;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, byte[]> eldest) {
+            return size() > maxWindows;
+        }
+    }
+}
@@ -304,6 +304,43 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    @Test
+    public void testMultiThreadedMatchesSingleThreaded() throws IOException {
+        final String referenceFile = "testdata/picard/quality/chrM.reference.fasta";
+        final String[] extensions = {".alignment_summary_metrics", ".insert_size_metrics", ".gc_bias.summary_metrics",
+                ".quality_by_cycle_metrics", ".quality_distribution_metrics"};
+
+        final File[] outfiles = new File[2];
+        final int[] threads = {1, 3};
+        for (int i = 0; i < threads.length; i++) {
+            outfiles[i] = File.createTempFile("multiThreaded", "");
+            outfiles[i].deleteOnExit();
+            final String[] args = new String[]{
+                    "INPUT=" + tempSamFile.getAbsolutePath(),
+                    "OUTPUT=" + outfiles[i].getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + referenceFile,
+                    "METRIC_ACCUMULATION_LEVEL=" + MetricAccumulationLevel.ALL_READS.name(),
+                    "METRIC_ACCUMULATION_LEVEL=" + MetricAccumulationLevel.READ_GROUP.name(),
+                    "PROGRAM=null",
+                    "PROGRAM=" + CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics.name(),
+                    "PROGRAM=" + CollectMultipleMetrics.Program.CollectInsertSizeMetrics.name(),
+                    "PROGRAM=" + CollectMultipleMetrics.Program.CollectGcBiasMetrics.name(),
+                    "PROGRAM=" + CollectMultipleMetrics.Program.MeanQualityByCycle.name(),
+                    "PROGRAM=" + CollectMultipleMetrics.Program.QualityScoreDistribution.name(),
+                    "THREADS=" + threads[i]
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+        }
+
+        for (final String extension : extensions) {
+            final File serial = new File(outfiles[0] + extension);
+            final File parallel = new File(outfiles[1] + extension);
+            serial.deleteOnExit();
+            parallel.deleteOnExit();
+            Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(serial, parallel), "Mismatch in " + extension);
+        }
+    }
+
     //gcBias multi level collector test creates a sam file from chrM for testing purposes
     //more variables needed for gcbias test to create temp sam file
     private final static String sample1 = "TestSample1";
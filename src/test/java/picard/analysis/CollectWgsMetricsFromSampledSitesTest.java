@@ -126,6 +126,42 @@ public class CollectWgsMetricsFromSampledSitesTest extends CommandLineProgramTes
         }
     }
 
+    @Test
+    public void testFastAlgorithmIsNotUsed() throws IOException {
+        final File[] outfiles = new File[2];
+        for (int i = 0; i < outfiles.length; i++) {
+            outfiles[i] = File.createTempFile("test", ".wgs_metrics");
+            outfiles[i].deleteOnExit();
+            final String[] args = new String[] {
+                    "INPUT="  + new File(TEST_DATA_DIR, "forMetrics.sam").getAbsolutePath(),
+                    "OUTPUT=" + outfiles[i].getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + new File(TEST_DATA_DIR, "merger.fasta").getAbsolutePath(),
+                    "INTERVALS=" + new File(TEST_DATA_DIR, "contiguous.interval_list").getAbsolutePath(),
+                    "INCLUDE_BQ_HISTOGRAM=true",
+                    "USE_FAST_ALGORITHM=" + (i == 1)
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+        }
+
+        // The fast algorithm would examine the whole genome rather than the sampled sites.
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(outfiles[0], outfiles[1]));
+    }
+
+    @Test
+    public void testThreadsAreRejected() throws IOException {
+        final File outfile = File.createTempFile("test", ".wgs_metrics");
+        outfile.deleteOnExit();
+        final String[] args = new String[] {
+                "INPUT="  + new File(TEST_DATA_DIR, "forMetrics.sam").getAbsolutePath(),
+                "OUTPUT=" + outfile.getAbsolutePath(),
+                "REFERENCE_SEQUENCE=" + new File(TEST_DATA_DIR, "merger.fasta").getAbsolutePath(),
+                "INTERVALS=" + new File(TEST_DATA_DIR, "onePos.interval_list").getAbsolutePath(),
+                "THREADS=2"
+        };
+        // The shards would examine the whole genome rather than the sampled sites.
+        Assert.assertNotEquals(runPicardCommandLine(args), 0);
+    }
+
     /*
      * Tests the same inputs for CollectWgsMetrics vs CollectWgsMetricsFromSampledSites in order to make sure the results are different.
      */
@@ -31,8 +31,13 @@ import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamFiles;
+import htsjdk.samtools.SamReader;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.Histogram;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.SamLocusIterator;
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
@@ -42,6 +47,9 @@ import picard.cmdline.CommandLineProgramTest;
 import picard.sam.SortSam;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -187,16 +195,41 @@ public class CollectWgsMetricsTest extends CommandLineProgramTest {
         final String[] args = new String[]{
                 "INPUT=" + tempSamFileUnsorted.getAbsolutePath(),
                 "OUTPUT=" + tempSamFile.getAbsolutePath(),
-                "SORT_ORDER=coordinate"
+                "SORT_ORDER=coordinate",
+                "CREATE_INDEX=true"
         };
 
         sorter.instanceMain(args);
+        SamFiles.findIndex(tempSamFile).deleteOnExit();
 
         //create output files for tests
         outfile = File.createTempFile("testWgsMetrics", ".txt");
         outfile.deleteOnExit();
     }
 
+    @Test
+    public void testShardedMatchesSerial() throws IOException {
+        final String referenceFile = "testdata/picard/quality/chrM.reference.fasta";
+        final int[] threads = {1, 8};
+        final File[] outfiles = new File[threads.length];
+
+        for (int i = 0; i < threads.length; i++) {
+            outfiles[i] = File.createTempFile("testWgsMetricsThreads", ".txt");
+            outfiles[i].deleteOnExit();
+            final String[] args = new String[] {
+                    "INPUT="  + tempSamFile.getAbsolutePath(),
+                    "OUTPUT=" + outfiles[i].getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + referenceFile,
+                    "INCLUDE_BQ_HISTOGRAM=true",
+                    "SAMPLE_SIZE=1000",
+                    "THREADS=" + threads[i]
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+        }
+
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(outfiles[0], outfiles[1]));
+    }
+
     @Test
     public void testLargeIntervals() throws IOException {
         final File input = new File(TEST_DIR, "forMetrics.sam");
@@ -349,4 +382,131 @@ public class CollectWgsMetricsTest extends CommandLineProgramTest {
         Assert.assertEquals(metrics.PCT_EXC_BASEQ, 0.5);
         Assert.assertEquals(metrics.PCT_EXC_CAPPED, 0.0);
     }
+
+    /** Builds a coordinate sorted, indexed BAM on chrM with a mix of cigars, base qualities, N bases and duplicates. */
+    private File makeVariedSamFile() throws IOException {
+        final File reference = new File("testdata/picard/quality/chrM.reference.fasta");
+        final File samFile = File.createTempFile("CollectWgsMetricsVaried", ".bam", TEST_DIR);
+        samFile.deleteOnExit();
+
+        final SAMRecordSetBuilder setBuilder = CollectWgsMetricsTestUtils.createTestSAMBuilder(reference, READ_GROUP_ID, SAMPLE, PLATFORM, LIBRARY);
+        setBuilder.setReadLength(50);
+        final String[] cigars = {"50M", "50M", "10S40M", "20M5D30M", "25M3I22M", "40M10S", "45M2N5M"};
+        final Random rg = new Random(42);
+
+        for (int i = 0; i < 3000; i++) {
+            final int start = rg.nextInt(2000) + 1;
+            final int mateStart = start + rg.nextInt(120);
+            setBuilder.addPair("pair" + i, 0, start, mateStart, false, false,
+                    cigars[rg.nextInt(cigars.length)], cigars[rg.nextInt(cigars.length)], false, true, rg.nextInt(10) - 1);
+        }
+
+        for (final SAMRecord rec : setBuilder.getRecords()) {
+            final byte[] bases = rec.getReadBases();
+            final byte[] quals = rec.getBaseQualities();
+            for (int i = 0; i < quals.length; i++) {
+                quals[i] = (byte) rg.nextInt(41);
+                if (rg.nextInt(50) == 0) bases[i] = 'N';
+            }
+            rec.setReadBases(bases);
+            rec.setBaseQualities(quals);
+            rec.setMappingQuality(rg.nextInt(60));
+            if (rg.nextInt(20) == 0) rec.setDuplicateReadFlag(true);
+        }
+
+        // the builder iterates in coordinate order, so mark the header as sorted to get an index for sharding
+        setBuilder.getHeader().setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        final SAMFileWriter writer = new SAMFileWriterFactory()
+                .setCreateIndex(true).makeBAMWriter(setBuilder.getHeader(), false, samFile);
+        for (final SAMRecord record : setBuilder) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        SamFiles.findIndex(samFile).deleteOnExit();
+        return samFile;
+    }
+
+    @DataProvider(name = "fastAlgorithmArgs")
+    public Object[][] fastAlgorithmArgs() {
+        return new Object[][] {
+                {new String[] {}},
+                {new String[] {"COVERAGE_CAP=5"}},
+                {new String[] {"COVERAGE_CAP=5", "LOCUS_ACCUMULATION_CAP=8"}},
+                {new String[] {"COUNT_UNPAIRED=true", "MINIMUM_MAPPING_QUALITY=0", "MINIMUM_BASE_QUALITY=0"}},
+                {new String[] {"THREADS=4", "COVERAGE_CAP=10"}}
+        };
+    }
+
+    @Test(dataProvider = "fastAlgorithmArgs")
+    public void testFastAlgorithmMatchesLocusIterator(final String[] extraArgs) throws IOException {
+        final File input = makeVariedSamFile();
+        final File[] outfiles = new File[2];
+
+        for (int i = 0; i < outfiles.length; i++) {
+            outfiles[i] = File.createTempFile("testWgsMetricsFast", ".txt");
+            outfiles[i].deleteOnExit();
+            final List<String> args = new ArrayList<>(Arrays.asList(
+                    "INPUT="  + input.getAbsolutePath(),
+                    "OUTPUT=" + outfiles[i].getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=testdata/picard/quality/chrM.reference.fasta",
+                    "INCLUDE_BQ_HISTOGRAM=true",
+                    "USE_FAST_ALGORITHM=" + (i == 1)));
+            args.addAll(Arrays.asList(extraArgs));
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+        }
+
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(outfiles[0], outfiles[1]));
+    }
+
+    @Test
+    public void testFastAlgorithmMatchesLocusIteratorWithIntervals() throws IOException {
+        final File input = new File(TEST_DIR, "forMetrics.sam");
+        final File ref = new File(TEST_DIR, "merger.fasta");
+        final File intervals = new File(TEST_DIR, "largeIntervals.interval_list");
+        final File[] outfiles = new File[2];
+
+        for (int i = 0; i < outfiles.length; i++) {
+            outfiles[i] = File.createTempFile("testWgsMetricsFast", ".txt");
+            outfiles[i].deleteOnExit();
+            final String[] args = new String[] {
+                    "INPUT="  + input.getAbsolutePath(),
+                    "OUTPUT=" + outfiles[i].getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + ref.getAbsolutePath(),
+                    "INTERVALS=" + intervals.getAbsolutePath(),
+                    "INCLUDE_BQ_HISTOGRAM=true",
+                    "USE_FAST_ALGORITHM=" + (i == 1)
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+        }
+
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(outfiles[0], outfiles[1]));
+    }
+
+    @Test
+    public void testFastAlgorithmHonorsLocusIteratorOverride() throws IOException {
+        final File[] outfiles = new File[2];
+        for (int i = 0; i < outfiles.length; i++) {
+            outfiles[i] = File.createTempFile("testWgsMetricsFast", ".txt");
+            outfiles[i].deleteOnExit();
+            // Only examines chr7, which cannot be expressed through INTERVALS.
+            final CollectWgsMetrics chr7Only = new CollectWgsMetrics() {
+                @Override
+                protected SamLocusIterator getLocusIterator(final SamReader in) {
+                    final IntervalList intervals = new IntervalList(in.getFileHeader());
+                    intervals.add(new Interval("chr7", 1, in.getFileHeader().getSequence("chr7").getSequenceLength()));
+                    return new SamLocusIterator(in, intervals);
+                }
+            };
+            final String[] args = new String[] {
+                    "INPUT="  + new File(TEST_DIR, "forMetrics.sam").getAbsolutePath(),
+                    "OUTPUT=" + outfiles[i].getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + new File(TEST_DIR, "merger.fasta").getAbsolutePath(),
+                    "INCLUDE_BQ_HISTOGRAM=true",
+                    "USE_FAST_ALGORITHM=" + (i == 1)
+            };
+            Assert.assertEquals(chr7Only.instanceMain(args), 0);
+        }
+
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(outfiles[0], outfiles[1]));
+    }
 }
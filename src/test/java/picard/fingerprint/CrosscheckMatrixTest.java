@@ -0,0 +1,85 @@
+package picard.fingerprint;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link CrosscheckMatrix} to calling FingerprintChecker.calculateMatchResults on every pair of fingerprints.
+ */
+public class CrosscheckMatrixTest {
+
+    @DataProvider(name = "matrixConfigurations")
+    public Object[][] matrixConfigurations() {
+        return new Object[][]{
+                // number of fingerprints, number of threads, upper triangle only
+                {1, 1, false},
+                {7, 1, false},
+                {CrosscheckMatrix.TILE_SIZE * 2 + 5, 1, false},
+                {CrosscheckMatrix.TILE_SIZE * 2 + 5, 3, false},
+                {CrosscheckMatrix.TILE_SIZE * 3 + 1, 4, true},
+                {CrosscheckMatrix.TILE_SIZE, 2, true}
+        };
+    }
+
+    @Test(dataProvider = "matrixConfigurations")
+    public void testMatchesCalculateMatchResults(final int numFingerprints, final int numThreads, final boolean upperTriangleOnly) {
+        final Random random = new Random(numFingerprints * 7 + numThreads);
+        final List<Snp> snps = new ArrayList<>();
+        final List<HaplotypeBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            final double maf = 0.05 + 0.45 * random.nextDouble();
+            final Snp snp = new Snp("snp" + i, "chr" + (1 + i % 3), 1000 * i + 1, (byte) 'A', (byte) 'C', maf, Collections.singletonList("dummy"));
+            final HaplotypeBlock block = new HaplotypeBlock(maf);
+            block.addSnp(snp);
+            snps.add(snp);
+            blocks.add(block);
+        }
+
+        final List<Fingerprint> fingerprints = new ArrayList<>();
+        for (int f = 0; f < numFingerprints; f++) {
+            final Fingerprint fp = new Fingerprint("sample" + f, null, null);
+            for (int i = 0; i < blocks.size(); i++) {
+                final int kind = random.nextInt(4);
+                if (kind == 0) continue;
+                if (kind == 1) {
+                    final double[] p = {random.nextDouble(), random.nextDouble(), random.nextDouble()};
+                    fp.add(new HaplotypeProbabilitiesFromGenotype(snps.get(i), blocks.get(i), p[0], p[1], p[2]));
+                } else {
+                    // Some of these are left without any evidence.
+                    final HaplotypeProbabilitiesFromSequence probs = new HaplotypeProbabilitiesFromSequence(blocks.get(i));
+                    final int numObservations = random.nextInt(6);
+                    for (int n = 0; n < numObservations; n++) {
+                        probs.addToProbs(snps.get(i), (byte) (random.nextBoolean() ? 'A' : 'C'), (byte) (10 + random.nextInt(30)));
+                    }
+                    fp.add(probs);
+                }
+            }
+            fingerprints.add(fp);
+        }
+
+        final double minPExpected = 0.01;
+        final double pLoH = 0.5;
+        final CrosscheckMatrix matrix = new CrosscheckMatrix(fingerprints, minPExpected, pLoH);
+        final int[] nextRow = {0};
+        matrix.computeRows(numThreads, upperTriangleOnly, (row, lods, lodsTumorNormal, lodsNormalTumor) -> {
+            Assert.assertEquals(row, nextRow[0]++);
+            for (int column = 0; column < numFingerprints; column++) {
+                if (upperTriangleOnly && column <= row) {
+                    Assert.assertTrue(Double.isNaN(lods[column]));
+                    continue;
+                }
+                final MatchResults results = FingerprintChecker.calculateMatchResults(fingerprints.get(row), fingerprints.get(column), minPExpected, pLoH);
+                Assert.assertEquals(lods[column], results.getLOD());
+                Assert.assertEquals(lodsTumorNormal[column], results.getLodTN());
+                Assert.assertEquals(lodsNormalTumor[column], results.getLodNT());
+            }
+        });
+        Assert.assertEquals(nextRow[0], numFingerprints);
+    }
+}
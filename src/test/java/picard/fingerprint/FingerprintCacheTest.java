@@ -0,0 +1,129 @@
+package picard.fingerprint;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.IntervalList;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests that fingerprints read back from a {@link FingerprintCache} are the same as those computed from the SAM file.
+ */
+public class FingerprintCacheTest {
+
+    @Test
+    public void testStoredFingerprintsMatch() throws IOException {
+        final File cacheDir = Files.createTempDirectory("FingerprintCacheTest.").toFile();
+        final File samFile = File.createTempFile("FingerprintCacheTest.", ".sam");
+        samFile.deleteOnExit();
+        try {
+            final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+            final SAMReadGroupRecord rg2 = new SAMReadGroupRecord("2");
+            rg2.setSample("sample2");
+            rg2.setPlatformUnit("run.1.ACGT");
+            builder.getHeader().addReadGroup(rg2);
+            final Random random = new Random(3);
+            for (int i = 0; i < 400; i++) {
+                final SAMRecord rec = builder.addFrag("frag" + i, 0, 1 + random.nextInt(2000), random.nextBoolean());
+                if (random.nextBoolean()) rec.setAttribute("RG", rg2.getId());
+            }
+            final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(builder.getHeader(), false, samFile);
+            for (final SAMRecord rec : builder.getRecords()) writer.addAlignment(rec);
+            writer.close();
+
+            final HaplotypeMap haplotypes = new HaplotypeMap(builder.getHeader());
+            final String chrom = builder.getHeader().getSequence(0).getSequenceName();
+            for (int pos = 25; pos < 2000; pos += 50) {
+                final Snp snp = new Snp("snp" + pos, chrom, pos, (byte) 'A', (byte) 'C', 0.3, Collections.singletonList("dummy"));
+                final HaplotypeBlock block = new HaplotypeBlock(0.3);
+                block.addSnp(snp);
+                haplotypes.addHaplotype(block);
+            }
+
+            final FingerprintChecker uncached = new FingerprintChecker(haplotypes);
+            final Map<SAMReadGroupRecord, Fingerprint> expected = uncached.fingerprintSamFile(samFile, haplotypes.getIntervalList());
+
+            final FingerprintChecker cached = new FingerprintChecker(haplotypes);
+            cached.setFingerprintCacheDirectory(cacheDir);
+            assertSameFingerprints(cached.fingerprintSamFile(samFile, haplotypes.getIntervalList()), expected);
+            Assert.assertEquals(cacheDir.listFiles().length, 1);
+            assertSameFingerprints(cached.fingerprintSamFile(samFile, haplotypes.getIntervalList()), expected);
+
+            // Different settings are stored separately.
+            cached.setMinimumBaseQuality(FingerprintChecker.DEFAULT_MINIMUM_BASE_QUALITY + 1);
+            uncached.setMinimumBaseQuality(FingerprintChecker.DEFAULT_MINIMUM_BASE_QUALITY + 1);
+            assertSameFingerprints(cached.fingerprintSamFile(samFile, haplotypes.getIntervalList()),
+                    uncached.fingerprintSamFile(samFile, haplotypes.getIntervalList()));
+            Assert.assertEquals(cacheDir.listFiles().length, 2);
+
+            // A damaged entry is ignored and replaced.
+            for (final File entry : cacheDir.listFiles()) {
+                final FileOutputStream out = new FileOutputStream(entry);
+                out.write(FingerprintCache.MAGIC_NUMBER);
+                out.close();
+            }
+            assertSameFingerprints(cached.fingerprintSamFile(samFile, haplotypes.getIntervalList()),
+                    uncached.fingerprintSamFile(samFile, haplotypes.getIntervalList()));
+        } finally {
+            IOUtil.deleteDirectoryTree(cacheDir);
+        }
+    }
+
+    @Test
+    public void testFailedWriteLeavesNoTemporaryFile() throws IOException {
+        final File cacheDir = Files.createTempDirectory("FingerprintCacheTest.").toFile();
+        try {
+            final SAMFileHeader header = new SAMRecordSetBuilder().getHeader();
+            final FingerprintCache cache = new FingerprintCache(cacheDir, new HaplotypeMap(header));
+            final byte[] key = cache.key(cacheDir, header, new IntervalList(header), "settings");
+            final Map<SAMReadGroupRecord, Fingerprint> noFingerprints = Collections.emptyMap();
+            cache.write(key, noFingerprints);
+            final File[] entries = cacheDir.listFiles();
+            Assert.assertEquals(entries.length, 1);
+
+            // An entry that cannot be replaced makes the move fail, which should not leave the temporary file behind.
+            Assert.assertTrue(entries[0].delete());
+            Assert.assertTrue(new File(entries[0], "blocker").mkdirs());
+            cache.write(key, noFingerprints);
+            Assert.assertEquals(cacheDir.list(), new String[]{entries[0].getName()});
+        } finally {
+            IOUtil.deleteDirectoryTree(cacheDir);
+        }
+    }
+
+    private static void assertSameFingerprints(final Map<SAMReadGroupRecord, Fingerprint> actual, final Map<SAMReadGroupRecord, Fingerprint> expected) {
+        Assert.assertEquals(actual.keySet(), expected.keySet());
+        boolean sawEvidence = false;
+        for (final SAMReadGroupRecord rg : expected.keySet()) {
+            final Fingerprint actualFp = actual.get(rg);
+            final Fingerprint expectedFp = expected.get(rg);
+            Assert.assertEquals(actualFp.getSample(), expectedFp.getSample());
+            Assert.assertEquals(actualFp.getSource(), expectedFp.getSource());
+            Assert.assertEquals(actualFp.getInfo(), expectedFp.getInfo());
+            Assert.assertEquals(actualFp.keySet(), expectedFp.keySet());
+            for (final HaplotypeBlock block : expectedFp.keySet()) {
+                final HaplotypeProbabilitiesFromSequence actualProbs = (HaplotypeProbabilitiesFromSequence) actualFp.get(block);
+                final HaplotypeProbabilitiesFromSequence expectedProbs = (HaplotypeProbabilitiesFromSequence) expectedFp.get(block);
+                Assert.assertEquals(actualProbs.getObsAllele1(), expectedProbs.getObsAllele1());
+                Assert.assertEquals(actualProbs.getObsAllele2(), expectedProbs.getObsAllele2());
+                Assert.assertEquals(actualProbs.getTotalObs(), expectedProbs.getTotalObs());
+                Assert.assertEquals(actualProbs.getLogLikelihoods(), expectedProbs.getLogLikelihoods());
+                sawEvidence |= expectedProbs.hasEvidence();
+            }
+        }
+        Assert.assertTrue(sawEvidence);
+    }
+}
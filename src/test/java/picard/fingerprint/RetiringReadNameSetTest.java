@@ -0,0 +1,73 @@
+package picard.fingerprint;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SAMTag;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests that retiring read names while walking loci gives the same answers as remembering every name.
+ */
+public class RetiringReadNameSetTest {
+
+    @DataProvider(name = "mateCigars")
+    public Object[][] mateCigars() {
+        return new Object[][]{{true}, {false}};
+    }
+
+    @Test(dataProvider = "mateCigars")
+    public void testMatchesUnboundedSet(final boolean keepMateCigars) {
+        final Random random = new Random(42);
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+        for (int i = 0; i < 3000; i++) {
+            final int contig = random.nextInt(2);
+            final int start = 1 + random.nextInt(20000);
+            builder.addPair("pair" + i, contig, start, start + random.nextInt(400));
+        }
+        // Some fragments, and some chimeric pairs with mates on the other contig.
+        for (int i = 0; i < 200; i++) {
+            builder.addFrag("frag" + i, random.nextInt(2), 1 + random.nextInt(20000), false);
+            final List<SAMRecord> chimera = builder.addPair("chimera" + i, 0, 1 + random.nextInt(20000), 1 + random.nextInt(20000),
+                    false, false, "36M", "36M", false, true, 30);
+            chimera.get(1).setReferenceIndex(1);
+            chimera.get(0).setMateReferenceIndex(1);
+        }
+        final List<SAMRecord> records = new ArrayList<>(builder.getRecords());
+        for (int i = 0; i < 50; i++) {
+            records.get(random.nextInt(records.size())).setAttribute(SAMTag.SA.name(), "chr3,100,+,36M,30,0;");
+        }
+        for (final SAMRecord rec : records) {
+            if (!keepMateCigars) rec.setAttribute(SAMTag.MC.name(), null);
+        }
+        records.sort((lhs, rhs) -> lhs.getReferenceIndex() != rhs.getReferenceIndex() ?
+                Integer.compare(lhs.getReferenceIndex(), rhs.getReferenceIndex()) :
+                Integer.compare(lhs.getAlignmentStart(), rhs.getAlignmentStart()));
+
+        final RetiringReadNameSet retiringSet = new RetiringReadNameSet();
+        final Set<String> unboundedSet = new HashSet<>();
+        int maxSize = 0;
+        for (int contig = 0; contig < 2; contig++) {
+            for (int position = 1; position < 21000; position += 7) {
+                retiringSet.retireBefore(contig, position);
+                for (final SAMRecord rec : records) {
+                    if (rec.getReferenceIndex() != contig || rec.getAlignmentStart() > position || rec.getAlignmentEnd() < position) {
+                        continue;
+                    }
+                    Assert.assertEquals(retiringSet.add(rec), unboundedSet.add(rec.getReadName()), rec.getSAMString());
+                }
+                maxSize = Math.max(maxSize, retiringSet.size());
+            }
+        }
+        if (keepMateCigars) {
+            Assert.assertTrue(maxSize < unboundedSet.size() / 4, "max size " + maxSize + " of " + unboundedSet.size());
+        }
+    }
+}
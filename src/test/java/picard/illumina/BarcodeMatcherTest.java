@@ -0,0 +1,140 @@
+package picard.illumina;
+
+import htsjdk.samtools.util.SequenceUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link BarcodeMatcher} to comparing every read to every barcode base by base, as ExtractIlluminaBarcodes used to.
+ */
+public class BarcodeMatcherTest {
+    private static final byte[] BASES = "ACGT".getBytes();
+    private static final byte[] OTHER_BASES = "Nn.acgtR".getBytes();
+
+    @DataProvider(name = "matcherConfigurations")
+    public Object[][] matcherConfigurations() {
+        return new Object[][]{
+                // barcode lengths, number of barcodes, max mismatches, minimum base quality
+                {new int[]{8}, 96, 1, 0},
+                {new int[]{8, 8}, 384, 0, 0},
+                {new int[]{8, 8}, 384, 1, 0},
+                {new int[]{8, 8}, 384, 2, 0},
+                {new int[]{8, 8}, 384, 3, 20},
+                {new int[]{6}, 1, 1, 0},
+                {new int[]{4}, 200, 1, 0},
+                {new int[]{10, 10}, BarcodeMatcher.MAX_BARCODES_FOR_NEIGHBOR_LISTS + 1, 1, 0},
+                {new int[]{20, 20}, 50, 2, 10}
+        };
+    }
+
+    @Test(dataProvider = "matcherConfigurations")
+    public void testMatchesBruteForce(final int[] lengths, final int numBarcodes, final int maxMismatches, final int minimumBaseQuality) {
+        final Random random = new Random(numBarcodes * 31 + maxMismatches);
+        final List<byte[][]> barcodes = new ArrayList<byte[][]>();
+        for (int i = 0; i < numBarcodes; i++) {
+            final byte[][] barcode = new byte[lengths.length][];
+            for (int j = 0; j < lengths.length; j++) {
+                barcode[j] = new byte[lengths[j]];
+                for (int k = 0; k < lengths[j]; k++) barcode[j][k] = BASES[random.nextInt(BASES.length)];
+            }
+            barcodes.add(barcode);
+        }
+        assertMatchesBruteForce(barcodes, lengths, maxMismatches, minimumBaseQuality, random);
+    }
+
+    @Test
+    public void testUnpackableBarcodes() {
+        final Random random = new Random(5);
+        final List<byte[][]> barcodes = new ArrayList<byte[][]>();
+        for (int i = 0; i < 50; i++) {
+            final byte[] barcode = new byte[8];
+            for (int k = 0; k < barcode.length; k++) barcode[k] = BASES[random.nextInt(BASES.length)];
+            barcodes.add(new byte[][]{barcode});
+        }
+        barcodes.get(7)[0][3] = 'N';
+        assertMatchesBruteForce(barcodes, new int[]{8}, 1, 0, random);
+    }
+
+    @Test
+    public void testReadsOfOtherLengths() {
+        final Random random = new Random(7);
+        final List<byte[][]> barcodes = new ArrayList<byte[][]>();
+        for (int i = 0; i < 50; i++) {
+            final byte[] barcode = new byte[8];
+            for (int k = 0; k < barcode.length; k++) barcode[k] = BASES[random.nextInt(BASES.length)];
+            barcodes.add(new byte[][]{barcode});
+        }
+        assertMatchesBruteForce(barcodes, new int[]{6}, 1, 0, random);
+        assertMatchesBruteForce(barcodes, new int[]{9}, 1, 0, random);
+    }
+
+    private static void assertMatchesBruteForce(final List<byte[][]> barcodes, final int[] readLengths, final int maxMismatches,
+                                                final int minimumBaseQuality, final Random random) {
+        final BarcodeMatcher matcher = new BarcodeMatcher(barcodes, maxMismatches, minimumBaseQuality);
+        final BarcodeMatcher.Match match = new BarcodeMatcher.Match();
+        for (int n = 0; n < 5000; n++) {
+            // Start from a barcode, or from random bases, and sprinkle in errors.
+            final byte[][] template = barcodes.get(random.nextInt(barcodes.size()));
+            final boolean fromBarcode = random.nextInt(4) != 0;
+            final byte[][] read = new byte[readLengths.length][];
+            final byte[][] qualities = minimumBaseQuality > 0 ? new byte[readLengths.length][] : null;
+            for (int j = 0; j < readLengths.length; j++) {
+                read[j] = new byte[readLengths[j]];
+                if (qualities != null) qualities[j] = new byte[readLengths[j]];
+                for (int k = 0; k < readLengths[j]; k++) {
+                    final int error = random.nextInt(40);
+                    if (fromBarcode && k < template[j].length && error > 2) {
+                        read[j][k] = template[j][k];
+                    } else if (error == 0) {
+                        read[j][k] = OTHER_BASES[random.nextInt(OTHER_BASES.length)];
+                    } else {
+                        read[j][k] = BASES[random.nextInt(BASES.length)];
+                    }
+                    if (qualities != null) qualities[j][k] = (byte) (random.nextInt(20) == 0 ? 2 : 30);
+                }
+            }
+
+            matcher.findBestBarcode(read, qualities, match);
+
+            int totalBarcodeReadBases = 0;
+            for (final byte[] bc : read) totalBarcodeReadBases += bc.length;
+            int best = -1;
+            int mismatchesInBest = totalBarcodeReadBases + 1;
+            int mismatchesInSecondBest = totalBarcodeReadBases + 1;
+            for (int i = 0; i < barcodes.size(); i++) {
+                final int numMismatches = countMismatches(barcodes.get(i), read, qualities, minimumBaseQuality);
+                if (numMismatches < mismatchesInBest) {
+                    if (best != -1) mismatchesInSecondBest = mismatchesInBest;
+                    mismatchesInBest = numMismatches;
+                    best = i;
+                } else if (numMismatches < mismatchesInSecondBest) {
+                    mismatchesInSecondBest = numMismatches;
+                }
+            }
+
+            Assert.assertEquals(match.bestBarcode, best);
+            Assert.assertEquals(match.mismatchesInBest, mismatchesInBest);
+            Assert.assertEquals(match.mismatchesInSecondBest, mismatchesInSecondBest);
+        }
+    }
+
+    private static int countMismatches(final byte[][] barcodeBytes, final byte[][] readSubsequence, final byte[][] qualities,
+                                       final int minimumBaseQuality) {
+        int numMismatches = 0;
+        for (int j = 0; j < barcodeBytes.length; j++) {
+            final int basesToCheck = Math.min(barcodeBytes[j].length, readSubsequence[j].length);
+            for (int i = 0; i < basesToCheck; ++i) {
+                if (!SequenceUtil.isNoCall(readSubsequence[j][i])) {
+                    if (!SequenceUtil.basesEqual(barcodeBytes[j][i], readSubsequence[j][i])) ++numMismatches;
+                    else if (qualities != null && qualities[j][i] < minimumBaseQuality) ++numMismatches;
+                }
+            }
+        }
+        return numMismatches;
+    }
+}
@@ -36,7 +36,9 @@ import picard.illumina.parser.IlluminaDataProvider;
 import picard.illumina.parser.IlluminaDataProviderFactory;
 import picard.illumina.parser.IlluminaDataType;
 import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.readers.BarcodeFileReader;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.readers.BinaryBarcodeFileReader;
 import picard.util.BasicInputParser;
 
 import java.io.File;
@@ -236,6 +238,54 @@ public class ExtractIlluminaBarcodesTest extends CommandLineProgramTest {
         testParsing(factory, rs, metricOne, barcodePosition);
     }
 
+    @Test
+    public void testBinaryBarcodeFiles() throws Exception {
+        final int lane = 1;
+        final File textDir = makeTempDir("eib_text.");
+        final File binaryDir = makeTempDir("eib_binary.");
+        try {
+            final MetricsFile<ExtractIlluminaBarcodes.BarcodeMetric, Integer> textMetrics =
+                    runIt(lane, "25T8B25T", "OUTPUT_DIR=" + textDir.getPath());
+            final MetricsFile<ExtractIlluminaBarcodes.BarcodeMetric, Integer> binaryMetrics =
+                    runIt(lane, "25T8B25T", "OUTPUT_DIR=" + binaryDir.getPath(), "BARCODE_FILE_FORMAT=BINARY");
+            Assert.assertEquals(binaryMetrics.getMetrics(), textMetrics.getMetrics());
+
+            final File[] textFiles = IOUtil.getFilesMatchingRegexp(textDir, "s_" + lane + "_\\d{4}_barcode.txt");
+            final File[] binaryFiles = IOUtil.getFilesMatchingRegexp(binaryDir, "s_" + lane + "_\\d{4}_barcode.bin");
+            Arrays.sort(textFiles);
+            Arrays.sort(binaryFiles);
+            Assert.assertEquals(binaryFiles.length, textFiles.length);
+            Assert.assertTrue(textFiles.length > 0);
+
+            for (int i = 0; i < textFiles.length; i++) {
+                final BarcodeFileReader textReader = new BarcodeFileReader(textFiles[i]);
+                final BinaryBarcodeFileReader binaryReader = new BinaryBarcodeFileReader(binaryFiles[i]);
+                Assert.assertEquals(binaryFiles[i].getName(), textFiles[i].getName().replace(".txt", ".bin"));
+                Assert.assertEquals(String.valueOf(binaryReader.getTile()), binaryFiles[i].getName().split("_")[2]);
+                while (textReader.hasNext()) {
+                    Assert.assertTrue(binaryReader.hasNext());
+                    Assert.assertEquals(binaryReader.next(), textReader.next());
+                }
+                Assert.assertFalse(binaryReader.hasNext());
+                textReader.close();
+                binaryReader.close();
+            }
+
+            ExtractIlluminaBarcodes.BarcodeMetric metricOne = null;
+            for (final ExtractIlluminaBarcodes.BarcodeMetric metric : binaryMetrics.getMetrics()) {
+                if (metric.BARCODE.equals(BARCODES[0])) metricOne = metric;
+            }
+            final ReadStructure rs = new ReadStructure("25T8B25T");
+            final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(basecallsDir, binaryDir, lane, rs,
+                    new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY),
+                    IlluminaDataType.BaseCalls, IlluminaDataType.QualityScores, IlluminaDataType.Barcodes);
+            testParsing(factory, rs, metricOne, 26);
+        } finally {
+            IOUtil.deleteDirectoryTree(textDir);
+            IOUtil.deleteDirectoryTree(binaryDir);
+        }
+    }
+
     @Test
     public void testDualBarcodes() throws Exception {
         final File metricsFile = File.createTempFile("dual.", ".metrics");
@@ -310,7 +360,15 @@ public class ExtractIlluminaBarcodesTest extends CommandLineProgramTest {
         dataProvider.close();
     }
 
-    private MetricsFile<ExtractIlluminaBarcodes.BarcodeMetric, Integer> runIt(final int lane, final String readStructure)
+    private File makeTempDir(final String prefix) throws Exception {
+        final File dir = File.createTempFile(prefix, ".tmp");
+        Assert.assertTrue(dir.delete());
+        Assert.assertTrue(dir.mkdir());
+        return dir;
+    }
+
+    private MetricsFile<ExtractIlluminaBarcodes.BarcodeMetric, Integer> runIt(final int lane, final String readStructure,
+                                                                               final String... extraArgs)
             throws Exception {
         final File metricsFile = File.createTempFile("eib.", ".metrics");
         metricsFile.deleteOnExit();
@@ -324,6 +382,7 @@ public class ExtractIlluminaBarcodesTest extends CommandLineProgramTest {
         for (final String barcode : BARCODES) {
             args.add("BARCODE=" + barcode);
         }
+        args.addAll(Arrays.asList(extraArgs));
         return runIt(args, metricsFile);
     }
 
@@ -29,6 +29,7 @@ import htsjdk.samtools.util.LineReader;
 import htsjdk.samtools.util.StringUtil;
 import htsjdk.samtools.util.TestUtil;
 import org.testng.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 
@@ -82,6 +83,31 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         IOUtil.assertFilesEqual(outputBam, new File(TEST_DATA_DIR, "nonBarcoded.sam"));
     }
 
+    @Test(dataProvider = "bufferingThreads")
+    public void testNonBarcodedBufferingTilesInMemory(final int numProcessors) throws Exception {
+        final File outputBam = File.createTempFile("nonBarcodedInMemory.", ".sam");
+        outputBam.deleteOnExit();
+        final int lane = 1;
+
+        Assert.assertEquals(runPicardCommandLine(new String[]{
+                "BASECALLS_DIR=" + BASECALLS_DIR,
+                "LANE=" + lane,
+                "READ_STRUCTURE=25S8S25T",
+                "OUTPUT=" + outputBam,
+                "RUN_BARCODE=HiMom",
+                "SAMPLE_ALIAS=HiDad",
+                "LIBRARY_NAME=Hello, World",
+                "BUFFER_TILES_IN_MEMORY=true",
+                "NUM_PROCESSORS=" + numProcessors
+        }), 0);
+        IOUtil.assertFilesEqual(outputBam, new File(TEST_DATA_DIR, "nonBarcoded.sam"));
+    }
+
+    @DataProvider(name = "bufferingThreads")
+    public Object[][] bufferingThreads() {
+        return new Object[][]{{1}, {2}, {4}};
+    }
+
     @Test
     public void testNonBarcodedWithMolecularIndex() throws Exception {
         final File outputBam = File.createTempFile("nonBarcodedWithMI.", ".sam");
@@ -231,6 +257,12 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         runStandardTest(1, "multiplexedBarcode.", "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR);
     }
 
+    @Test(dataProvider = "bufferingThreads")
+    public void testMultiplexedBufferingTilesInMemory(final int numProcessors) throws Exception {
+        runStandardTest(1, "multiplexedBarcodeInMemory.", "barcode.params", 1, "25T8B25T", BASECALLS_DIR, TEST_DATA_DIR,
+                "BUFFER_TILES_IN_MEMORY=true", "NUM_PROCESSORS=" + numProcessors);
+    }
+
     @Test
     public void testMultiplexedWith4MIndex() throws Exception {
         runStandardTest(1, "multiplexedBarcode.", "barcode.params", 1, "25T8B4M21T", BASECALLS_DIR, TEST_DATA_DIR_WITH_4M_INDEX);
@@ -282,7 +314,7 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
      */
     private void runStandardTest(final int lane, final String jobName, final String libraryParamsFile,
                                  final int concatNColumnFields, final String readStructure,
-                                 final File baseCallsDir, final File testDataDir) throws Exception {
+                                 final File baseCallsDir, final File testDataDir, final String... extraArgs) throws Exception {
         final File outputDir = File.createTempFile(jobName, ".dir");
         outputDir.delete();
         outputDir.mkdir();
@@ -309,13 +341,15 @@ public class IlluminaBasecallsToSamTest extends CommandLineProgramTest {
         writer.close();
         reader.close();
 
-        Assert.assertEquals(runPicardCommandLine(new String[]{
+        final List<String> args = new ArrayList<String>(Arrays.asList(
                 "BASECALLS_DIR=" + baseCallsDir,
                 "LANE=" + lane,
                 "RUN_BARCODE=HiMom",
                 "READ_STRUCTURE=" + readStructure,
                 "LIBRARY_PARAMS=" + libraryParams
-        }), 0);
+        ));
+        args.addAll(Arrays.asList(extraArgs));
+        Assert.assertEquals(runPicardCommandLine(args), 0);
 
         for (final File outputSam : samFiles) {
             IOUtil.assertFilesEqual(outputSam, new File(testDataDir, outputSam.getName()));
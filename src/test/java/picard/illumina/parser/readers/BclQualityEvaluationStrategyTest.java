@@ -0,0 +1,59 @@
+package picard.illumina.parser.readers;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BclQualityEvaluationStrategyTest {
+
+    @Test
+    public void testRevisedQualities() {
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(1);
+        for (int i = Byte.MIN_VALUE; i <= Byte.MAX_VALUE; i++) {
+            Assert.assertEquals(bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) i), (byte) Math.max(i, 1));
+        }
+
+        final Map<Byte, Integer> frequencies = bclQualityEvaluationStrategy.getPoorQualityFrequencies();
+        Assert.assertEquals(frequencies.size(), 130);
+        for (int i = Byte.MIN_VALUE; i < BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY; i++) {
+            Assert.assertEquals((int) frequencies.get((byte) i), 1);
+        }
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testCountsMergedAcrossThreads() throws Exception {
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY);
+        final int numThreads = 8;
+        final ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < numThreads; i++) {
+            futures.add(executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 0; j < 1000; j++) {
+                        bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) (j % 4));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (final Future<Void> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+
+        final Map<Byte, Integer> frequencies = bclQualityEvaluationStrategy.getPoorQualityFrequencies();
+        Assert.assertEquals(frequencies.size(), 2);
+        Assert.assertEquals((int) frequencies.get((byte) 0), numThreads * 250);
+        Assert.assertEquals((int) frequencies.get((byte) 1), numThreads * 250);
+        bclQualityEvaluationStrategy.assertMinimumQualities();
+    }
+}
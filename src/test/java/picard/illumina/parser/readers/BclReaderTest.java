@@ -4,16 +4,24 @@ import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.PicardException;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import picard.illumina.parser.BclData;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 public class BclReaderTest {
 
@@ -169,4 +177,69 @@ public class BclReaderTest {
         Assert.assertEquals((int) bclQualityEvaluationStrategy.getPoorQualityFrequencies().get((byte) 1), 25);
         bclQualityEvaluationStrategy.assertMinimumQualities();
     }
+
+    @DataProvider(name = "multiCycleExtensions")
+    public Object[][] multiCycleExtensions() {
+        return new Object[][]{{".bcl"}, {".bcl.gz"}, {".bcl.bgzf"}};
+    }
+
+    /**
+     * Decodes a synthetic tile that spans several cluster blocks across multiple cycles and reads, and checks each
+     * base and quality against a straightforward per-byte decode.
+     */
+    @Test(dataProvider = "multiCycleExtensions")
+    public void readMultiCycleTile(final String extension) throws IOException {
+        final int numClusters = 10007;
+        final int[] outputLengths = new int[]{3, 2};
+        final int numCycles = outputLengths[0] + outputLengths[1];
+        final Random random = new Random(numClusters);
+
+        final byte[][] cycleBytes = new byte[numCycles][numClusters];
+        final List<File> files = new ArrayList<File>();
+        for (int cycle = 0; cycle < numCycles; cycle++) {
+            random.nextBytes(cycleBytes[cycle]);
+            final File file = File.createTempFile("BclReaderTest.", extension);
+            file.deleteOnExit();
+            writeBcl(file, extension, cycleBytes[cycle]);
+            files.add(file);
+        }
+
+        final BclQualityEvaluationStrategy expectedStrategy = new BclQualityEvaluationStrategy(1);
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(1);
+        final BclReader reader = new BclReader(files, outputLengths, bclQualityEvaluationStrategy, false);
+        final char[] bases = new char[]{'A', 'C', 'G', 'T'};
+
+        for (int cluster = 0; cluster < numClusters; cluster++) {
+            Assert.assertTrue(reader.hasNext(), " On num cluster: " + cluster);
+            final BclData data = reader.next();
+            int cycle = 0;
+            for (int read = 0; read < outputLengths.length; read++) {
+                for (int i = 0; i < outputLengths[read]; i++, cycle++) {
+                    final byte b = cycleBytes[cycle][cluster];
+                    final byte expectedBase = (byte) (b == 0 ? '.' : bases[b & 0x3]);
+                    final byte expectedQual = b == 0 ? 2 : expectedStrategy.reviseAndConditionallyLogQuality((byte) ((b & 0xFF) >>> 2));
+                    Assert.assertEquals(data.bases[read][i], expectedBase, " On num cluster: " + cluster);
+                    Assert.assertEquals(data.qualities[read][i], expectedQual, " On num cluster: " + cluster);
+                }
+            }
+        }
+        Assert.assertFalse(reader.hasNext());
+        reader.close();
+        Assert.assertEquals(bclQualityEvaluationStrategy.getPoorQualityFrequencies(), expectedStrategy.getPoorQualityFrequencies());
+    }
+
+    private static void writeBcl(final File file, final String extension, final byte[] clusterBytes) throws IOException {
+        final OutputStream out;
+        if (extension.endsWith(".gz")) {
+            out = new GZIPOutputStream(new FileOutputStream(file));
+        } else if (extension.endsWith(".bgzf")) {
+            out = new BlockCompressedOutputStream(file);
+        } else {
+            out = new FileOutputStream(file);
+        }
+        final int numClusters = clusterBytes.length;
+        out.write(new byte[]{(byte) numClusters, (byte) (numClusters >>> 8), (byte) (numClusters >>> 16), (byte) (numClusters >>> 24)});
+        out.write(clusterBytes);
+        out.close();
+    }
 }
@@ -38,6 +38,7 @@ import picard.PicardException;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -164,6 +165,46 @@ public class FastqToSamTest extends CommandLineProgramTest {
         convertFile(filename1, filename2, version);
     }
 
+    @DataProvider(name = "threadsFiles")
+    public Object[][] threadsFiles() {
+        return new Object[][] {
+            {"fastq-sanger/5k-v1-Rhodobacter_LW1.sam.fastq", null, FastqQualityFormat.Standard },
+            {"ok-paired/pair1.txt",          "ok-paired/pair2.txt", FastqQualityFormat.Standard },
+            {"fastq-illumina/s_1_1_sequence.txt", "fastq-illumina/s_1_2_sequence.txt", FastqQualityFormat.Illumina}
+        };
+    }
+
+    @Test(dataProvider = "threadsFiles")
+    public void testThreadsGiveIdenticalOutputs(final String filename1, final String filename2, final FastqQualityFormat version) throws IOException {
+        final File serialBam = convertFileWithThreads(filename1, filename2, version, 1);
+        final File pipelinedBam = convertFileWithThreads(filename1, filename2, version, 4);
+        Assert.assertEquals(Files.readAllBytes(pipelinedBam.toPath()), Files.readAllBytes(serialBam.toPath()));
+    }
+
+    @Test(dataProvider = "badPairedFiles", expectedExceptions= PicardException.class)
+    public void testPairedBadWithThreads(final String filename1, final String filename2) throws IOException {
+        convertFileWithThreads(filename1, filename2, FastqQualityFormat.Standard, 4);
+    }
+
+    private File convertFileWithThreads(final String fastqFilename1, final String fastqFilename2, final FastqQualityFormat version,
+                                        final int threads) throws IOException {
+        final File fastq1 = new File(TEST_DATA_DIR, fastqFilename1);
+        final File bamFile = File.createTempFile(fastq1.getName(), ".bam");
+        bamFile.deleteOnExit();
+
+        final List<String> args = new ArrayList<String>();
+        args.add("FASTQ=" + fastq1.getAbsolutePath());
+        if (fastqFilename2 != null) args.add("FASTQ2=" + new File(TEST_DATA_DIR, fastqFilename2).getAbsolutePath());
+        args.add("OUTPUT=" + bamFile.getAbsolutePath());
+        args.add("QUALITY_FORMAT=" + version);
+        args.add("READ_GROUP_NAME=rg");
+        args.add("SAMPLE_NAME=s1");
+        args.add("THREADS=" + threads);
+
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+        return bamFile;
+    }
+
     private File convertFile(final String filename, final FastqQualityFormat version) throws IOException {
         return convertFile(filename, null, version);
     }
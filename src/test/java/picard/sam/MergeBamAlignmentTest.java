@@ -24,8 +24,11 @@
 package picard.sam;
 
 import htsjdk.samtools.*;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
@@ -1723,6 +1726,223 @@ public class MergeBamAlignmentTest extends CommandLineProgramTest {
         IOUtil.assertFilesEqual(expectedSam, mergedSam);
     }
 
+    @DataProvider(name = "threadsData")
+    public Object[][] threadsData() {
+        return new Object[][]{
+                {unmappedBam, alignedBam, fasta, SAMFileHeader.SortOrder.coordinate, false},
+                {unmappedBam, alignedBam, fasta, SAMFileHeader.SortOrder.queryname, false},
+                {unmappedBam, supplementalReadAlignedBam, fasta, SAMFileHeader.SortOrder.coordinate, false},
+                {unmappedBam, supplementalReadAlignedBam, fasta, SAMFileHeader.SortOrder.queryname, false},
+                {new File(TEST_DATA_DIR, "contam.unmapped.sam"), new File(TEST_DATA_DIR, "contam.aligned.sam"),
+                        new File(TEST_DATA_DIR, "cliptest.fasta"), SAMFileHeader.SortOrder.coordinate, true}
+        };
+    }
+
+    @Test(dataProvider = "threadsData")
+    public void testThreadsGiveIdenticalOutputs(final File unmapped, final File aligned, final File reference,
+                                                final SAMFileHeader.SortOrder sortOrder, final boolean unmapContaminantReads) throws IOException {
+        final File singleThreaded = File.createTempFile("mergeSingleThreaded", ".sam");
+        final File multiThreaded = File.createTempFile("mergeMultiThreaded", ".sam");
+        singleThreaded.deleteOnExit();
+        multiThreaded.deleteOnExit();
+
+        for (final File output : new File[]{singleThreaded, multiThreaded}) {
+            final List<String> args = new ArrayList<>(Arrays.asList(
+                    "UNMAPPED_BAM=" + unmapped.getAbsolutePath(),
+                    "ALIGNED_BAM=" + aligned.getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                    "OUTPUT=" + output.getAbsolutePath(),
+                    "SORT_ORDER=" + sortOrder,
+                    "UNMAP_CONTAMINANT_READS=" + unmapContaminantReads,
+                    "THREADS=" + (output == singleThreaded ? 1 : 4)));
+            Assert.assertEquals(runPicardCommandLine(args), 0, "Merge did not succeed");
+        }
+        IOUtil.assertFilesEqual(singleThreaded, multiThreaded);
+    }
+
+    @DataProvider(name = "batchesData")
+    public Object[][] batchesData() {
+        return new Object[][]{{SAMFileHeader.SortOrder.coordinate}, {SAMFileHeader.SortOrder.queryname}};
+    }
+
+    @Test(dataProvider = "batchesData")
+    public void testThreadsGiveIdenticalOutputsAcrossBatches(final SAMFileHeader.SortOrder sortOrder) throws IOException {
+        final File unmapped = File.createTempFile("manyTemplates.unmapped", ".sam");
+        final File aligned = File.createTempFile("manyTemplates.aligned", ".sam");
+        unmapped.deleteOnExit();
+        aligned.deleteOnExit();
+        writeManyTemplates(500, unmapped, aligned);
+
+        final File singleThreaded = File.createTempFile("mergeBatchesSingleThreaded", ".sam");
+        final File multiThreaded = File.createTempFile("mergeBatchesMultiThreaded", ".sam");
+        singleThreaded.deleteOnExit();
+        multiThreaded.deleteOnExit();
+        for (final File output : new File[]{singleThreaded, multiThreaded}) {
+            final SamAlignmentMerger merger = new SamAlignmentMerger(unmapped, output, fasta, null, true, false,
+                    false, Collections.singletonList(aligned), 1, null, null, null, null, null, null,
+                    Collections.singletonList(SamPairUtil.PairOrientation.FR), sortOrder,
+                    new BestMapqPrimaryAlignmentSelectionStrategy(), false, false, 30);
+            // A small batch size so that several batches are merged at once.
+            merger.setTemplateBatchSize(7);
+            merger.setNumThreads(output == singleThreaded ? 1 : 4);
+            merger.mergeAlignment(fasta);
+        }
+
+        int secondary = 0;
+        int unpaired = 0;
+        try (final SamReader reader = SamReaderFactory.makeDefault().open(singleThreaded)) {
+            for (final SAMRecord rec : reader) {
+                if (rec.getNotPrimaryAlignmentFlag()) ++secondary;
+                if (!rec.getReadPairedFlag()) ++unpaired;
+            }
+        }
+        Assert.assertTrue(secondary > 0, "No secondary alignments were merged");
+        Assert.assertTrue(unpaired > 0, "No unpaired reads were merged");
+        IOUtil.assertFilesEqual(singleThreaded, multiThreaded);
+    }
+
+    @Test
+    public void testThreadsGiveIdenticalNmMdAndUq() throws IOException {
+        final File unmapped = File.createTempFile("manyTemplates.unmapped", ".sam");
+        final File aligned = File.createTempFile("manyTemplates.aligned", ".sam");
+        unmapped.deleteOnExit();
+        aligned.deleteOnExit();
+        writeManyTemplates(500, unmapped, aligned);
+
+        final List<List<SAMRecord>> outputs = new ArrayList<>();
+        for (final int threads : new int[]{1, 4}) {
+            final File output = File.createTempFile("mergeTags", ".sam");
+            output.deleteOnExit();
+            final SamAlignmentMerger merger = new SamAlignmentMerger(unmapped, output, fasta, null, true, false,
+                    false, Collections.singletonList(aligned), 1, null, null, null, null, null, null,
+                    Collections.singletonList(SamPairUtil.PairOrientation.FR), SAMFileHeader.SortOrder.coordinate,
+                    new BestMapqPrimaryAlignmentSelectionStrategy(), false, false, 30);
+            // A small batch size so that each contig's records are split across batches calculated at once.
+            merger.setTagBatchSize(5);
+            merger.setNumThreads(threads);
+            merger.mergeAlignment(fasta);
+            try (final SamReader reader = SamReaderFactory.makeDefault().open(output)) {
+                final List<SAMRecord> records = new ArrayList<>();
+                for (final SAMRecord rec : reader) records.add(rec);
+                outputs.add(records);
+            }
+        }
+
+        final List<SAMRecord> expected = outputs.get(0);
+        final List<SAMRecord> actual = outputs.get(1);
+        Assert.assertEquals(actual.size(), expected.size());
+        final Set<String> contigs = new HashSet<>();
+        for (int i = 0; i < expected.size(); i++) {
+            final SAMRecord exp = expected.get(i);
+            final SAMRecord act = actual.get(i);
+            Assert.assertEquals(act.getSAMString(), exp.getSAMString(), "Records differ at " + i);
+            if (!exp.getReadUnmappedFlag()) {
+                Assert.assertNotNull(exp.getAttribute(SAMTag.NM.name()), exp.getSAMString());
+                Assert.assertNotNull(exp.getAttribute(SAMTag.MD.name()), exp.getSAMString());
+                Assert.assertNotNull(exp.getAttribute(SAMTag.UQ.name()), exp.getSAMString());
+                contigs.add(exp.getReferenceName());
+            }
+            for (final SAMTag tag : new SAMTag[]{SAMTag.NM, SAMTag.MD, SAMTag.UQ}) {
+                Assert.assertEquals(act.getAttribute(tag.name()), exp.getAttribute(tag.name()), tag + " differs for " + exp.getSAMString());
+            }
+        }
+        Assert.assertTrue(contigs.size() > 1, "Mapped records should span several contigs");
+    }
+
+    /**
+     * Writes queryname sorted unmapped and aligned inputs for numTemplates reads and read pairs drawn from the merger reference.
+     * One in three templates is an unpaired read, one in five does not align, one in seven pairs has a second read that
+     * does not align, and one in four aligned templates has a secondary alignment.
+     */
+    private static void writeManyTemplates(final int numTemplates, final File unmapped, final File aligned) throws IOException {
+        final int readLength = 36;
+        final Random random = new Random(numTemplates);
+        final SAMSequenceDictionary dictionary = SAMSequenceDictionaryExtractor.extractDictionary(fasta);
+        final byte[][] contigs = new byte[dictionary.size()][];
+        try (final ReferenceSequenceFile reference = ReferenceSequenceFileFactory.getReferenceSequenceFile(fasta)) {
+            for (int i = 0; i < contigs.length; i++) contigs[i] = reference.nextSequence().getBases();
+        }
+
+        final SAMFileHeader unmappedHeader = new SAMFileHeader();
+        unmappedHeader.setSortOrder(SAMFileHeader.SortOrder.queryname);
+        final SAMReadGroupRecord readGroup = new SAMReadGroupRecord("0");
+        readGroup.setSample("sample");
+        unmappedHeader.addReadGroup(readGroup);
+        final SAMFileHeader alignedHeader = new SAMFileHeader();
+        alignedHeader.setSortOrder(SAMFileHeader.SortOrder.queryname);
+        alignedHeader.setSequenceDictionary(dictionary);
+
+        final SAMFileWriterFactory factory = new SAMFileWriterFactory();
+        try (final SAMFileWriter unmappedWriter = factory.makeSAMWriter(unmappedHeader, true, unmapped);
+             final SAMFileWriter alignedWriter = factory.makeSAMWriter(alignedHeader, true, aligned)) {
+            for (int i = 0; i < numTemplates; i++) {
+                final String name = String.format("read%05d", i);
+                final boolean paired = i % 3 != 0;
+                final int numHits = i % 5 == 4 ? 0 : i % 4 == 0 ? 2 : 1;
+                final SAMRecord[][] hits = new SAMRecord[numHits][paired ? 2 : 1];
+                for (int end = 0; end < (paired ? 2 : 1); end++) {
+                    // Each end comes from the reference with a substitution, in the orientation in which it was sequenced.
+                    final int contig = random.nextInt(contigs.length);
+                    final int start = 1 + random.nextInt(contigs[contig].length - readLength + 1);
+                    final boolean negativeStrand = random.nextBoolean();
+                    final byte[] bases = Arrays.copyOfRange(contigs[contig], start - 1, start - 1 + readLength);
+                    bases[random.nextInt(readLength)] = (byte) "ACGT".charAt(random.nextInt(4));
+                    final byte[] qualities = new byte[readLength];
+                    for (int j = 0; j < readLength; j++) qualities[j] = (byte) (10 + random.nextInt(30));
+                    if (negativeStrand) SequenceUtil.reverseComplement(bases);
+
+                    final SAMRecord read = new SAMRecord(unmappedHeader);
+                    read.setReadName(name);
+                    read.setReadBases(bases);
+                    read.setBaseQualities(qualities);
+                    read.setReadUnmappedFlag(true);
+                    read.setAttribute(SAMTag.RG.name(), readGroup.getId());
+                    if (paired) {
+                        read.setReadPairedFlag(true);
+                        read.setMateUnmappedFlag(true);
+                        read.setFirstOfPairFlag(end == 0);
+                        read.setSecondOfPairFlag(end == 1);
+                    }
+                    unmappedWriter.addAlignment(read);
+
+                    for (int hit = 0; hit < numHits; hit++) {
+                        final SAMRecord rec = new SAMRecord(alignedHeader);
+                        rec.setReadName(name);
+                        rec.setReadBases(bases.clone());
+                        rec.setBaseQualities(qualities.clone());
+                        if (negativeStrand) {
+                            SequenceUtil.reverseComplement(rec.getReadBases());
+                            SequenceUtil.reverseQualities(rec.getBaseQualities());
+                        }
+                        if (paired) {
+                            rec.setReadPairedFlag(true);
+                            rec.setFirstOfPairFlag(end == 0);
+                            rec.setSecondOfPairFlag(end == 1);
+                        }
+                        if (paired && end == 1 && i % 7 == 0) {
+                            rec.setReadUnmappedFlag(true);
+                        } else {
+                            // The secondary alignment is to another contig.
+                            final int hitContig = (contig + hit) % contigs.length;
+                            rec.setReferenceIndex(hitContig);
+                            rec.setAlignmentStart(Math.min(start, contigs[hitContig].length - readLength + 1));
+                            rec.setReadNegativeStrandFlag(negativeStrand);
+                            rec.setCigarString(readLength + "M");
+                            rec.setMappingQuality(hit == 0 ? 60 : 10);
+                            rec.setNotPrimaryAlignmentFlag(hit > 0);
+                        }
+                        if (numHits > 1) rec.setAttribute(SAMTag.HI.name(), hit);
+                        hits[hit][end] = rec;
+                    }
+                }
+                for (final SAMRecord[] hit : hits) {
+                    if (paired) SamPairUtil.setMateInfo(hit[0], hit[1], true);
+                    for (final SAMRecord rec : hit) alignedWriter.addAlignment(rec);
+                }
+            }
+        }
+    }
+
     @Test
     public void testRemoveNmMdAndUqOnOverlappingReads() throws IOException {
         final File output = File.createTempFile("testRemoveNmMdAndUqOnOverlappingReads", ".sam");
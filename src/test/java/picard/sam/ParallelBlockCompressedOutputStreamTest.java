@@ -0,0 +1,135 @@
+package picard.sam;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks that {@link ParallelBlockCompressedOutputStream} writes BGZF that reads back as what was written, whether blocks are
+ * compressed on a thread pool or inline, and that it compresses each block exactly as {@link BlockCompressedOutputStream} does.
+ */
+public class ParallelBlockCompressedOutputStreamTest {
+
+    @DataProvider(name = "threads")
+    public Object[][] threads() {
+        return new Object[][]{{1}, {4}};
+    }
+
+    @Test(dataProvider = "threads")
+    public void testRoundTrip(final int threads) throws IOException {
+        // Compressible text followed by random bytes, which do not fit in a block once deflated and so are stored.
+        final Random random = new Random(threads);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 20000; i++) {
+            expected.write(("@read" + i + "/1\nACGTACGTNNACGT\n+\nIIIIIIII#IIIII\n").getBytes());
+        }
+        final byte[] noise = new byte[200000];
+        random.nextBytes(noise);
+        expected.write(noise);
+        final byte[] data = expected.toByteArray();
+
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final ParallelBlockCompressedOutputStream out = new ParallelBlockCompressedOutputStream(compressed, executor, 2 * threads, 5)) {
+            // Write in uneven pieces so that they straddle block boundaries.
+            int offset = 0;
+            while (offset < data.length) {
+                final int length = Math.min(data.length - offset, random.nextInt(10000));
+                if (length == 1) out.write(data[offset]);
+                else out.write(data, offset, length);
+                offset += length;
+            }
+            out.flush();
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+
+        Assert.assertEquals(read(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))), data);
+        Assert.assertEquals(read(new BlockCompressedInputStream(new ByteArrayInputStream(compressed.toByteArray()))), data);
+    }
+
+    @Test
+    public void testFlushDoesNotWaitForPendingBlocks() throws Exception {
+        // Each compression waits until as many as there are threads have started, so a flush() that waited for the pending
+        // blocks would leave only one in flight at a time.
+        final int threads = 4;
+        final CountDownLatch started = new CountDownLatch(threads);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()) {
+            @Override
+            protected void beforeExecute(final Thread t, final Runnable r) {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                started.countDown();
+                try {
+                    started.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            protected void afterExecute(final Runnable r, final Throwable t) {
+                inFlight.decrementAndGet();
+            }
+        };
+
+        final byte[] record = "@read/1\nACGTACGTNNACGT\n+\nIIIIIIII#IIIII\n".getBytes();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final ParallelBlockCompressedOutputStream out = new ParallelBlockCompressedOutputStream(compressed, executor, 2 * threads, 5)) {
+            // Flush after every record, as PrintStream.checkError() does for each record written by BasicFastqWriter.
+            while (expected.size() < 2 * threads * BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE) {
+                out.write(record);
+                out.flush();
+                expected.write(record);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(maxInFlight.get(), threads);
+        Assert.assertEquals(read(new BlockCompressedInputStream(new ByteArrayInputStream(compressed.toByteArray()))), expected.toByteArray());
+    }
+
+    @Test
+    public void testMatchesBlockCompressedOutputStream() throws IOException {
+        final byte[] data = new byte[3 * 65498 + 17];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) "ACGTN\n".charAt(i % 6 == 5 ? 5 : (i * 7 + i / 13) % 5);
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (final BlockCompressedOutputStream out = new BlockCompressedOutputStream(expected, null, 5)) {
+            out.write(data);
+        }
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (final ParallelBlockCompressedOutputStream out = new ParallelBlockCompressedOutputStream(actual, null, 1, 5)) {
+            out.write(data);
+        }
+        Assert.assertEquals(actual.toByteArray(), expected.toByteArray());
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IOUtil.copyStream(in, bytes);
+        in.close();
+        return bytes.toByteArray();
+    }
+}
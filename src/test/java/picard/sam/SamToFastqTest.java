@@ -37,14 +37,21 @@ import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 import picard.PicardException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Tests for SamToFastq
@@ -145,6 +152,85 @@ public class SamToFastqTest extends CommandLineProgramTest {
         verifyFastq(pair1File, pair2File, samFile);
     }
 
+    @Test(dataProvider = "okFiles")
+    public void testOkFileWithSpilledMates(final String samFilename) throws IOException {
+        final File samFile = new File(TEST_DATA_DIR,samFilename);
+        final File pair1File = newTempFastqFile("pair1");
+        final File pair2File = newTempFastqFile("pair2");
+
+        convertFile(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "FASTQ=" + pair1File.getAbsolutePath(),
+                "SECOND_END_FASTQ=" + pair2File.getAbsolutePath(),
+                "MAX_UNPAIRED_RECORDS_IN_RAM=1"
+        });
+
+        verifyFastq(pair1File, pair2File, samFile);
+    }
+
+    @Test
+    public void testSpilledMatesFarApart() throws IOException {
+        // Each far pair's first mate is followed by a pair whose mates are adjacent, and the far pairs' second mates are all
+        // at the end, in reverse order.  With at most four reads waiting, the far first mates are spilled several times over,
+        // while the adjacent pairs and the last far pairs are paired in memory and the rest in the final merge pass.
+        final int numPairs = 30;
+        final StringBuilder sam = new StringBuilder("@HD\tVN:1.0\tSO:unsorted\n@RG\tID:rg1\tSM:s1\tPL:ILLUMINA\n");
+        final String mate1 = "\t77\t*\t0\t0\t*\t*\t0\t0\tAAAAAAAAAAAAA\t1111111111111\tRG:Z:rg1\n";
+        final String mate2 = "\t141\t*\t0\t0\t*\t*\t0\t0\tCCCCCCCCCCCCC\t2222222222222\tRG:Z:rg1\n";
+        for (int i = 0; i < numPairs; i++) {
+            sam.append(String.format("far:%02d", i)).append(mate1);
+            sam.append(String.format("near:%02d", i)).append(mate1);
+            sam.append(String.format("near:%02d", i)).append(mate2);
+        }
+        for (int i = numPairs - 1; i >= 0; i--) sam.append(String.format("far:%02d", i)).append(mate2);
+        final File samFile = File.createTempFile("matesFarApart", ".sam");
+        samFile.deleteOnExit();
+        Files.write(samFile.toPath(), sam.toString().getBytes());
+
+        final File pair1File = newTempFastqFile("pair1");
+        final File pair2File = newTempFastqFile("pair2");
+        convertFile(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "FASTQ=" + pair1File.getAbsolutePath(),
+                "SECOND_END_FASTQ=" + pair2File.getAbsolutePath(),
+                "MAX_UNPAIRED_RECORDS_IN_RAM=8"
+        });
+
+        verifyFastq(pair1File, pair2File, samFile);
+        final List<String> names = new ArrayList<>();
+        for (final FastqRecord record : new FastqReader(pair1File)) names.add(record.getReadHeader());
+        // The adjacent pairs and the three far pairs still waiting in memory come first, then the spilled pairs sorted by name.
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < numPairs; i++) expected.add(String.format("near:%02d/1", i));
+        for (int i = numPairs - 1; i >= numPairs - 3; i--) expected.add(String.format("far:%02d/1", i));
+        for (int i = 0; i < numPairs - 3; i++) expected.add(String.format("far:%02d/1", i));
+        Assert.assertEquals(names, expected);
+    }
+
+    @Test(dataProvider = "okFiles")
+    public void testThreadsAndCompressionGiveIdenticalOutputs(final String samFilename) throws IOException {
+        final File samFile = new File(TEST_DATA_DIR,samFilename);
+        final File pair1File = newTempFastqFile("pair1");
+        final File pair2File = newTempFastqFile("pair2");
+        convertFile(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "FASTQ=" + pair1File.getAbsolutePath(),
+                "SECOND_END_FASTQ=" + pair2File.getAbsolutePath()
+        });
+
+        final File gzippedPair1File = newTempFastqGzFile("pair1");
+        final File gzippedPair2File = newTempFastqGzFile("pair2");
+        convertFile(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "FASTQ=" + gzippedPair1File.getAbsolutePath(),
+                "SECOND_END_FASTQ=" + gzippedPair2File.getAbsolutePath(),
+                "THREADS=4"
+        });
+
+        Assert.assertEquals(readGzipped(gzippedPair1File), Files.readAllBytes(pair1File.toPath()));
+        Assert.assertEquals(readGzipped(gzippedPair2File), Files.readAllBytes(pair2File.toPath()));
+    }
+
     @Test(dataProvider =  "okFiles")
     public void testOkInterleavedFile(final String samFilename) throws IOException {
         final File samFile = new File(TEST_DATA_DIR,samFilename);
@@ -188,6 +274,19 @@ public class SamToFastqTest extends CommandLineProgramTest {
         });
     }
 
+    @Test (dataProvider = "badFiles", expectedExceptions= SAMFormatException.class)
+    public void testBadFileWithSpilledMates(final String samFilename) throws IOException {
+        final File samFile = new File(TEST_DATA_DIR,samFilename);
+        final File pair1 = newTempFastqFile("tt-pair1");
+        final File pair2 = newTempFastqFile("tt-pair2");
+        convertFile(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "FASTQ=" + pair1.getAbsolutePath(),
+                "SECOND_END_FASTQ=" + pair2.getAbsolutePath(),
+                "MAX_UNPAIRED_RECORDS_IN_RAM=1"
+        });
+    }
+
     @DataProvider(name = "okGroupedFiles")
     public Object[][] okGroupedFiles() {
         return new Object[][] {
@@ -196,6 +295,66 @@ public class SamToFastqTest extends CommandLineProgramTest {
     }
 
 
+    @Test(dataProvider = "okGroupedFiles")
+    public void testCompressedGroupedFilesWithThreads(final String samFilename, final String [] groupFiles) throws IOException {
+        final File samFile = new File(TEST_DATA_DIR,samFilename);
+        final File outputDir = Files.createTempDirectory("SamToFastqTest").toFile();
+        outputDir.deleteOnExit();
+
+        runPicardCommandLine(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "OUTPUT_PER_RG=true",
+                "OUTPUT_DIR=" + outputDir.getAbsolutePath()
+        });
+        runPicardCommandLine(new String[]{
+                "INPUT=" + samFile.getAbsolutePath(),
+                "OUTPUT_PER_RG=true",
+                "COMPRESS_OUTPUTS_PER_RG=true",
+                "OUTPUT_DIR=" + outputDir.getAbsolutePath(),
+                "THREADS=2"
+        });
+
+        for (final String groupPUName : groupFiles) {
+            for (final String end : new String[]{"_1", "_2"}) {
+                final File fastq = new File(outputDir, groupPUName + end + ".fastq");
+                final File gzippedFastq = new File(outputDir, groupPUName + end + ".fastq.gz");
+                fastq.deleteOnExit();
+                gzippedFastq.deleteOnExit();
+                Assert.assertEquals(readGzipped(gzippedFastq), Files.readAllBytes(fastq.toPath()));
+            }
+        }
+    }
+
+    @Test
+    public void testMd5FilesDoNotDependOnThreads() throws IOException {
+        final File samFile = new File(TEST_DATA_DIR, CLIPPING_TEST_DATA);
+        final Map<String, String> md5s = new HashMap<>();
+        for (final int threads : new int[]{1, 2}) {
+            final File outputDir = Files.createTempDirectory("SamToFastqTest").toFile();
+            outputDir.deleteOnExit();
+            convertFile(new String[]{
+                    "INPUT=" + samFile.getAbsolutePath(),
+                    "OUTPUT_PER_RG=true",
+                    "RG_TAG=ID",
+                    "COMPRESS_OUTPUTS_PER_RG=true",
+                    "CREATE_MD5_FILE=true",
+                    "OUTPUT_DIR=" + outputDir.getAbsolutePath(),
+                    "THREADS=" + threads
+            });
+
+            final File[] md5Files = outputDir.listFiles((dir, name) -> name.endsWith(".md5"));
+            Assert.assertTrue(md5Files.length > 0);
+            for (final File output : outputDir.listFiles()) output.deleteOnExit();
+            for (final File md5File : md5Files) {
+                // The MD5 is of the uncompressed FASTQ, as without threads, not of the compressed bytes on disk.
+                final String md5 = new String(Files.readAllBytes(md5File.toPath())).trim();
+                if (threads == 1) md5s.put(md5File.getName(), md5);
+                else Assert.assertEquals(md5, md5s.get(md5File.getName()), md5File.getName());
+            }
+            Assert.assertEquals(md5Files.length, md5s.size());
+        }
+    }
+
     @DataProvider(name = "badGroupedFiles")
     public Object[][] badGroupedFiles() {
         return new Object[][] {
@@ -451,6 +610,20 @@ public class SamToFastqTest extends CommandLineProgramTest {
         }
     }
 
+    private File newTempFastqGzFile(final String filename) throws IOException {
+        final File file = File.createTempFile(filename, ".fastq.gz");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static byte[] readGzipped(final File file) throws IOException {
+        try (final InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            IOUtil.copyStream(in, bytes);
+            return bytes.toByteArray();
+        }
+    }
+
     private File newTempFastqFile(final String filename) throws IOException {
         if(filename == null) return null;
         final File file = File.createTempFile(filename,".fastq");
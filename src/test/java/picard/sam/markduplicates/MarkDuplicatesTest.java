@@ -25,11 +25,15 @@
 package picard.sam.markduplicates;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.IOUtil;
@@ -41,11 +45,15 @@ import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * This class defines the individual test cases to run. The actual running of the test is done
@@ -201,6 +209,76 @@ public class MarkDuplicatesTest extends AbstractMarkDuplicatesCommandLineProgram
 
     }
 
+    @Test
+    public void testMultiThreadedMatchesSingleThreaded() throws IOException {
+        final File outputDir = IOUtil.createTempDir(TEST_BASE_NAME + ".", ".tmp");
+        outputDir.deleteOnExit();
+
+        // Lots of small duplicate sets, with read names placing the reads close enough together to be optical duplicates
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        final Random random = new Random(7);
+        for (int i = 0; i < 15000; ++i) {
+            final String name = "RUNID" + i + ":1:" + (1101 + random.nextInt(2)) + ":" + random.nextInt(500) + ":" + random.nextInt(500);
+            final int start = 1 + random.nextInt(300);
+            if (random.nextInt(5) == 0) {
+                builder.addFrag(name, 0, start, random.nextBoolean());
+            } else {
+                builder.addPair(name, 0, start, start + 50 + random.nextInt(3));
+            }
+        }
+        for (final SAMRecord rec : builder.getRecords()) {
+            final byte[] quals = rec.getBaseQualities();
+            for (int i = 0; i < quals.length; ++i) quals[i] = (byte) (20 + random.nextInt(3));
+            rec.setBaseQualities(quals);
+        }
+        final File input = new File(outputDir, "input.sam");
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(builder.getHeader(), true, input);
+        builder.forEach(writer::addAlignment);
+        writer.close();
+
+        final int[] threads = {1, 4};
+        final File[] outputs = new File[threads.length];
+        final File[] metrics = new File[threads.length];
+        for (int i = 0; i < threads.length; ++i) {
+            outputs[i] = new File(outputDir, TEST_BASE_NAME + threads[i] + ".bam");
+            metrics[i] = new File(outputDir, TEST_BASE_NAME + threads[i] + ".duplicate_metrics");
+
+            final MarkDuplicates markDuplicates = new MarkDuplicates();
+            markDuplicates.setupOpticalDuplicateFinder();
+            markDuplicates.INPUT = CollectionUtil.makeList(input.getAbsolutePath());
+            markDuplicates.OUTPUT = outputs[i];
+            markDuplicates.METRICS_FILE = metrics[i];
+            markDuplicates.TMP_DIR = CollectionUtil.makeList(outputDir);
+            markDuplicates.TAGGING_POLICY = MarkDuplicates.DuplicateTaggingPolicy.All;
+            markDuplicates.THREADS = threads[i];
+            // Needed to suppress calling CommandLineProgram.getVersion(), which doesn't work for code not in a jar
+            markDuplicates.PROGRAM_RECORD_ID = null;
+            Assert.assertEquals(markDuplicates.doWork(), 0);
+            Assert.assertTrue(markDuplicates.numOpticalDuplicates() > 0);
+        }
+
+        final SamReader expected = SamReaderFactory.makeDefault().open(outputs[0]);
+        final SamReader actual = SamReaderFactory.makeDefault().open(outputs[1]);
+        final Iterator<SAMRecord> actualIterator = actual.iterator();
+        int numDuplicates = 0;
+        for (final SAMRecord expectedRecord : expected) {
+            final SAMRecord actualRecord = actualIterator.next();
+            Assert.assertEquals(actualRecord.getReadName(), expectedRecord.getReadName());
+            Assert.assertEquals(actualRecord.getFlags(), expectedRecord.getFlags());
+            Assert.assertEquals(actualRecord.getAttribute(MarkDuplicates.DUPLICATE_TYPE_TAG), expectedRecord.getAttribute(MarkDuplicates.DUPLICATE_TYPE_TAG));
+            if (expectedRecord.getDuplicateReadFlag()) ++numDuplicates;
+        }
+        Assert.assertFalse(actualIterator.hasNext());
+        Assert.assertTrue(numDuplicates > 0);
+        CloserUtil.close(expected);
+        CloserUtil.close(actual);
+
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(metrics[0], metrics[1]));
+        // The pipelined write pass must produce exactly the same bytes as the serial one
+        Assert.assertEquals(Files.readAllBytes(outputs[1].toPath()), Files.readAllBytes(outputs[0].toPath()));
+        TestUtil.recursiveDelete(outputDir);
+    }
+
     @DataProvider(name="testOpticalDuplicateDetectionDataProvider")
     public Object[][] testOpticalDuplicateDetectionDataProvider() {
         return new Object[][] {
@@ -0,0 +1,150 @@
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.ReadEnds;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesSortingCollection;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that the packed sorting collection used by MarkDuplicates returns read ends intact and in the same order as
+ * {@link MarkDuplicates.ReadEndsMDComparator}, whether or not it spills to disk.
+ */
+public class ReadEndsForMarkDuplicatesSortingCollectionTest {
+
+    @DataProvider(name = "layouts")
+    public Object[][] layouts() {
+        final List<Object[]> tests = new ArrayList<>();
+        for (final boolean pairs : new boolean[]{true, false}) {
+            for (final boolean useBarcodes : new boolean[]{true, false}) {
+                for (final int maxRecordsInRam : new int[]{1, 37, 5000}) {
+                    tests.add(new Object[]{pairs, useBarcodes, maxRecordsInRam});
+                }
+            }
+        }
+        return tests.toArray(new Object[tests.size()][]);
+    }
+
+    @Test(dataProvider = "layouts")
+    public void testSortedOrderAndContents(final boolean pairs, final boolean useBarcodes, final int maxRecordsInRam) {
+        final Random random = new Random(maxRecordsInRam);
+        final List<ReadEndsForMarkDuplicates> expected = new ArrayList<>();
+        final ReadEndsForMarkDuplicatesSortingCollection collection = new ReadEndsForMarkDuplicatesSortingCollection(
+                pairs, useBarcodes, maxRecordsInRam, Collections.singletonList(IOUtil.getDefaultTmpDir()));
+
+        for (int i = 0; i < 2000; ++i) {
+            final ReadEndsForMarkDuplicates read = makeReadEnds(random, i, pairs, useBarcodes);
+            expected.add(read);
+            collection.add(read);
+        }
+        collection.doneAdding();
+
+        Collections.sort(expected, new MarkDuplicates.ReadEndsMDComparator(useBarcodes));
+
+        final Iterator<ReadEndsForMarkDuplicates> iterator = collection.iterator();
+        for (final ReadEndsForMarkDuplicates read : expected) {
+            Assert.assertTrue(iterator.hasNext());
+            assertReadEndsEqual(iterator.next(), read, useBarcodes);
+        }
+        Assert.assertFalse(iterator.hasNext());
+        collection.cleanup();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testPairInFragmentCollection() {
+        final ReadEndsForMarkDuplicatesSortingCollection collection = new ReadEndsForMarkDuplicatesSortingCollection(
+                false, false, 10, Collections.singletonList(IOUtil.getDefaultTmpDir()));
+        collection.add(makeReadEnds(new Random(1), 0, true, false));
+    }
+
+    @Test
+    public void testSharedOffHeapBudget() {
+        final ReadEndsForMarkDuplicatesSortingCollection.OffHeapBudget budget = new ReadEndsForMarkDuplicatesSortingCollection.OffHeapBudget(Long.MAX_VALUE);
+        final long initial = budget.getAvailable();
+        Assert.assertTrue(initial <= ReadEndsForMarkDuplicatesSortingCollection.OffHeapBudget.getMaxDirectMemory());
+
+        final ReadEndsForMarkDuplicatesSortingCollection pairs = new ReadEndsForMarkDuplicatesSortingCollection(
+                true, false, 10, budget, Collections.singletonList(IOUtil.getDefaultTmpDir()));
+        final ReadEndsForMarkDuplicatesSortingCollection frags = new ReadEndsForMarkDuplicatesSortingCollection(
+                false, false, 10, budget, Collections.singletonList(IOUtil.getDefaultTmpDir()));
+        pairs.add(makeReadEnds(new Random(1), 0, true, false));
+        frags.add(makeReadEnds(new Random(2), 1, false, false));
+        Assert.assertEquals(budget.getAvailable(), initial - 10 * ReadEndsForMarkDuplicatesSortingCollection.getRecordSize(true, false)
+                - 10 * ReadEndsForMarkDuplicatesSortingCollection.getRecordSize(false, false));
+
+        pairs.cleanup();
+        frags.cleanup();
+        Assert.assertEquals(budget.getAvailable(), initial);
+        Assert.assertFalse(budget.tryReserve(initial + 1));
+    }
+
+    /** Makes read ends with few distinct positions and libraries so that the later comparisons get exercised. */
+    private static ReadEndsForMarkDuplicates makeReadEnds(final Random random, final long index, final boolean pair, final boolean useBarcodes) {
+        final ReadEndsForMarkDuplicates read;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes readWithBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            readWithBarcodes.barcode = random.nextInt(3) - 1;
+            readWithBarcodes.readOneBarcode = random.nextInt(2);
+            readWithBarcodes.readTwoBarcode = random.nextInt(2);
+            read = readWithBarcodes;
+        } else {
+            read = new ReadEndsForMarkDuplicates();
+        }
+
+        read.libraryId = (short) random.nextInt(2);
+        read.read1ReferenceIndex = random.nextInt(2);
+        read.read1Coordinate = random.nextInt(20) + 1;
+        read.read1IndexInFile = index;
+        read.score = (short) random.nextInt(Short.MAX_VALUE);
+        read.readGroup = (short) random.nextInt(4);
+        read.tile = (short) (random.nextInt(100) + 1);
+        read.x = random.nextInt(Short.MAX_VALUE);
+        read.y = random.nextInt(Short.MAX_VALUE);
+
+        if (pair) {
+            read.orientation = (byte) (ReadEnds.FF + random.nextInt(4));
+            read.orientationForOpticalDuplicates = (byte) (ReadEnds.FF + random.nextInt(4));
+            read.read2ReferenceIndex = random.nextInt(2);
+            read.read2Coordinate = random.nextInt(20) + 1;
+            read.read2IndexInFile = random.nextInt(1000000);
+        } else {
+            read.orientation = random.nextBoolean() ? ReadEnds.F : ReadEnds.R;
+            read.read2ReferenceIndex = random.nextBoolean() ? -1 : random.nextInt(2);
+        }
+        return read;
+    }
+
+    private static void assertReadEndsEqual(final ReadEndsForMarkDuplicates actual, final ReadEndsForMarkDuplicates expected, final boolean useBarcodes) {
+        Assert.assertEquals(actual.libraryId, expected.libraryId);
+        Assert.assertEquals(actual.orientation, expected.orientation);
+        Assert.assertEquals(actual.read1ReferenceIndex, expected.read1ReferenceIndex);
+        Assert.assertEquals(actual.read1Coordinate, expected.read1Coordinate);
+        Assert.assertEquals(actual.read1IndexInFile, expected.read1IndexInFile);
+        Assert.assertEquals(actual.read2ReferenceIndex, expected.read2ReferenceIndex);
+        Assert.assertEquals(actual.read2Coordinate, expected.read2Coordinate);
+        Assert.assertEquals(actual.read2IndexInFile, expected.read2IndexInFile);
+        Assert.assertEquals(actual.score, expected.score);
+        Assert.assertEquals(actual.readGroup, expected.readGroup);
+        Assert.assertEquals(actual.tile, expected.tile);
+        Assert.assertEquals(actual.x, expected.x);
+        Assert.assertEquals(actual.y, expected.y);
+        Assert.assertEquals(actual.orientationForOpticalDuplicates, expected.orientationForOpticalDuplicates);
+
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes actualWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) actual;
+            final ReadEndsForMarkDuplicatesWithBarcodes expectedWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) expected;
+            Assert.assertEquals(actualWithBarcodes.barcode, expectedWithBarcodes.barcode);
+            Assert.assertEquals(actualWithBarcodes.readOneBarcode, expectedWithBarcodes.readOneBarcode);
+            Assert.assertEquals(actualWithBarcodes.readTwoBarcode, expectedWithBarcodes.readTwoBarcode);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package picard.sam.markduplicates.util;
+
+import com.google.common.hash.Hashing;
+import com.sun.management.UnixOperatingSystemMXBean;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that FingerprintReadEndsForMarkDuplicatesMap matches up mates exactly as the in-memory, string-keyed map does,
+ * whether or not it spills to disk.
+ */
+public class FingerprintReadEndsForMarkDuplicatesMapTest {
+
+    /** One read as seen by MarkDuplicates: where it is, its key, and where its mate is. */
+    private static class Read {
+        final int sequence;
+        final int position;
+        final String key;
+        final int mateSequence;
+
+        Read(final int sequence, final int position, final String key, final int mateSequence) {
+            this.sequence = sequence;
+            this.position = position;
+            this.key = key;
+            this.mateSequence = mateSequence;
+        }
+    }
+
+    @DataProvider(name = "maps")
+    public Object[][] maps() {
+        final List<Object[]> tests = new ArrayList<>();
+        for (final boolean useBarcodes : new boolean[]{true, false}) {
+            for (final boolean queryNameOrder : new boolean[]{true, false}) {
+                for (final int maxRecordsInRam : new int[]{1, 50, 100000}) {
+                    tests.add(new Object[]{useBarcodes, queryNameOrder, maxRecordsInRam});
+                }
+            }
+        }
+        return tests.toArray(new Object[tests.size()][]);
+    }
+
+    @Test(dataProvider = "maps")
+    public void testMatchesMemoryBasedMap(final boolean useBarcodes, final boolean queryNameOrder, final int maxRecordsInRam) {
+        final Random random = new Random(maxRecordsInRam);
+        final List<Read> reads = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            final String key = "RG" + random.nextInt(3) + ":READ:" + i;
+            final int sequence = random.nextInt(20);
+            // Most mates are nearby, some are chimeric, and a few never turn up
+            final int mateSequence = random.nextInt(4) == 0 ? random.nextInt(20) : sequence;
+            reads.add(new Read(sequence, random.nextInt(100000), key, mateSequence));
+            if (random.nextInt(50) != 0) reads.add(new Read(mateSequence, random.nextInt(100000), key, sequence));
+        }
+        if (!queryNameOrder) {
+            reads.sort(Comparator.comparingInt((Read read) -> read.sequence).thenComparingInt(read -> read.position));
+        }
+
+        final ReadEndsForMarkDuplicatesMap expected = new MemoryBasedReadEndsForMarkDuplicatesMap();
+        final FingerprintReadEndsForMarkDuplicatesMap actual = new FingerprintReadEndsForMarkDuplicatesMap(
+                useBarcodes, maxRecordsInRam, Collections.singletonList(IOUtil.getDefaultTmpDir()));
+
+        int matched = 0;
+        for (final Read read : reads) {
+            final ReadEndsForMarkDuplicates expectedEnds = expected.remove(read.sequence, read.key);
+            final ReadEndsForMarkDuplicates actualEnds = actual.remove(read.sequence, read.key);
+            if (expectedEnds == null) {
+                Assert.assertNull(actualEnds);
+                final ReadEndsForMarkDuplicates ends = makeReadEnds(random, read, useBarcodes);
+                expected.put(read.mateSequence, read.key, ends);
+                actual.put(read.mateSequence, read.key, ends);
+            } else {
+                Assert.assertNotNull(actualEnds);
+                assertReadEndsEqual(actualEnds, expectedEnds, useBarcodes);
+                ++matched;
+            }
+            Assert.assertEquals(actual.size(), expected.size());
+            Assert.assertTrue(actual.sizeInRam() <= actual.size());
+        }
+        Assert.assertTrue(matched > 0);
+        Assert.assertTrue(actual.size() > 0);
+        actual.cleanup();
+    }
+
+    @Test
+    public void testFingerprintIsMurmur3() {
+        final FingerprintReadEndsForMarkDuplicatesMap map = new FingerprintReadEndsForMarkDuplicatesMap(
+                false, 10, Collections.singletonList(IOUtil.getDefaultTmpDir()));
+        final Random random = new Random(42);
+        for (int length = 0; length < 40; ++length) {
+            final StringBuilder key = new StringBuilder();
+            for (int i = 0; i < length; ++i) key.append((char) (random.nextInt(2) == 0 ? '!' + random.nextInt(94) : random.nextInt(Character.MAX_VALUE)));
+
+            final ByteBuffer expected = ByteBuffer.wrap(Hashing.murmur3_128().hashUnencodedChars(key).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+            final long[] actual = map.getFingerprint(key.toString());
+            Assert.assertEquals(actual[0], expected.getLong(0), "Key of length " + length);
+            Assert.assertEquals(actual[1], expected.getLong(8), "Key of length " + length);
+        }
+    }
+
+    @Test
+    public void testReloadSequenceSpanningManyPages() {
+        final FingerprintReadEndsForMarkDuplicatesMap map = new FingerprintReadEndsForMarkDuplicatesMap(
+                false, 1000, Collections.singletonList(IOUtil.getDefaultTmpDir()));
+        final Random random = new Random(7);
+        final int n = 200000;
+        final List<ReadEndsForMarkDuplicates> ends = new ArrayList<>(n);
+
+        // Everything is put on sequence 1 while sequence 0 is current, so it is all spilled and then read back at once
+        map.remove(0, "none");
+        for (int i = 0; i < n; ++i) {
+            final ReadEndsForMarkDuplicates readEnds = makeReadEnds(random, new Read(0, i, "READ:" + i, 1), false);
+            ends.add(readEnds);
+            map.put(1, "READ:" + i, readEnds);
+        }
+        Assert.assertTrue(map.sizeInRam() < n);
+
+        for (int i = n - 1; i >= 0; --i) {
+            final ReadEndsForMarkDuplicates readEnds = map.remove(1, "READ:" + i);
+            Assert.assertNotNull(readEnds);
+            assertReadEndsEqual(readEnds, ends.get(i), false);
+        }
+        Assert.assertEquals(map.size(), 0);
+        map.cleanup();
+    }
+
+    @Test
+    public void testManySpillsKeepFewFilesOpen() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof UnixOperatingSystemMXBean)) throw new SkipException("Open file descriptors cannot be counted here.");
+        final UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+
+        // Far more spills than a small MAX_FILE_HANDLES_FOR_READ_ENDS_MAP would allow open at once
+        final int maxFileHandles = 16;
+        final int n = 20 * maxFileHandles;
+        final FingerprintReadEndsForMarkDuplicatesMap map = new FingerprintReadEndsForMarkDuplicatesMap(
+                false, 1, Collections.singletonList(IOUtil.getDefaultTmpDir()));
+        final Random random = new Random(11);
+        final List<ReadEndsForMarkDuplicates> ends = new ArrayList<>(n);
+
+        // With room for one record in RAM, every put on another sequence than the current one spills a run of its own
+        final long openAtStart = unix.getOpenFileDescriptorCount();
+        map.remove(0, "none");
+        for (int i = 0; i < n; ++i) {
+            final ReadEndsForMarkDuplicates readEnds = makeReadEnds(random, new Read(0, i, "READ:" + i, 1 + i % 3), false);
+            ends.add(readEnds);
+            map.put(1 + i % 3, "READ:" + i, readEnds);
+        }
+        Assert.assertEquals(map.sizeInRam(), 0);
+        Assert.assertTrue(unix.getOpenFileDescriptorCount() - openAtStart < maxFileHandles);
+
+        for (int i = 0; i < n; ++i) {
+            final ReadEndsForMarkDuplicates readEnds = map.remove(1 + i % 3, "READ:" + i);
+            Assert.assertNotNull(readEnds);
+            assertReadEndsEqual(readEnds, ends.get(i), false);
+            Assert.assertTrue(unix.getOpenFileDescriptorCount() - openAtStart < maxFileHandles);
+        }
+        Assert.assertEquals(map.size(), 0);
+        map.cleanup();
+    }
+
+    private static ReadEndsForMarkDuplicates makeReadEnds(final Random random, final Read read, final boolean useBarcodes) {
+        final ReadEndsForMarkDuplicates ends;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes endsWithBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            endsWithBarcodes.barcode = random.nextInt();
+            endsWithBarcodes.readOneBarcode = random.nextInt();
+            endsWithBarcodes.readTwoBarcode = random.nextInt();
+            ends = endsWithBarcodes;
+        } else {
+            ends = new ReadEndsForMarkDuplicates();
+        }
+
+        ends.libraryId = (short) random.nextInt(3);
+        ends.orientation = random.nextBoolean() ? ReadEnds.F : ReadEnds.R;
+        ends.read1ReferenceIndex = read.sequence;
+        ends.read1Coordinate = read.position;
+        ends.read1IndexInFile = random.nextInt(Integer.MAX_VALUE);
+        ends.read2ReferenceIndex = read.mateSequence;
+        ends.score = (short) random.nextInt(Short.MAX_VALUE);
+        ends.readGroup = (short) random.nextInt(3);
+        ends.tile = (short) random.nextInt(2000);
+        ends.x = random.nextInt(Short.MAX_VALUE);
+        ends.y = random.nextInt(Short.MAX_VALUE);
+        return ends;
+    }
+
+    private static void assertReadEndsEqual(final ReadEndsForMarkDuplicates actual, final ReadEndsForMarkDuplicates expected, final boolean useBarcodes) {
+        Assert.assertEquals(actual.libraryId, expected.libraryId);
+        Assert.assertEquals(actual.orientation, expected.orientation);
+        Assert.assertEquals(actual.read1ReferenceIndex, expected.read1ReferenceIndex);
+        Assert.assertEquals(actual.read1Coordinate, expected.read1Coordinate);
+        Assert.assertEquals(actual.read1IndexInFile, expected.read1IndexInFile);
+        Assert.assertEquals(actual.read2ReferenceIndex, expected.read2ReferenceIndex);
+        Assert.assertEquals(actual.read2Coordinate, expected.read2Coordinate);
+        Assert.assertEquals(actual.read2IndexInFile, expected.read2IndexInFile);
+        Assert.assertEquals(actual.score, expected.score);
+        Assert.assertEquals(actual.readGroup, expected.readGroup);
+        Assert.assertEquals(actual.tile, expected.tile);
+        Assert.assertEquals(actual.x, expected.x);
+        Assert.assertEquals(actual.y, expected.y);
+        Assert.assertEquals(actual.orientationForOpticalDuplicates, expected.orientationForOpticalDuplicates);
+
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes actualWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) actual;
+            final ReadEndsForMarkDuplicatesWithBarcodes expectedWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) expected;
+            Assert.assertEquals(actualWithBarcodes.barcode, expectedWithBarcodes.barcode);
+            Assert.assertEquals(actualWithBarcodes.readOneBarcode, expectedWithBarcodes.readOneBarcode);
+            Assert.assertEquals(actualWithBarcodes.readTwoBarcode, expectedWithBarcodes.readTwoBarcode);
+        }
+    }
+}
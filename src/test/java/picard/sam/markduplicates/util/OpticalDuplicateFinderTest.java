@@ -1,6 +1,7 @@
 package picard.sam.markduplicates.util;
 
 import htsjdk.samtools.util.Log;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import org.testng.Assert;
 import picard.sam.util.PhysicalLocation;
@@ -125,6 +126,51 @@ public class OpticalDuplicateFinderTest {
         assertEquals(finder.findOpticalDuplicates(locs, locs.get(2)), new boolean[] {true, true, false});
     }
 
+    @DataProvider(name = "spatialIndexData")
+    public Object[][] spatialIndexData() {
+        return new Object[][] {
+                {10, 100, 200},
+                {100, 100, 500},
+                {1000, 100, 2000},
+                {1000, 0, 20},
+                {5000, 1, 50},
+                {5000, 100, 5000}
+        };
+    }
+
+    /** Tests that the spatial index flags exactly the same reads as comparing every pair of reads. */
+    @Test(dataProvider = "spatialIndexData")
+    public void testSpatialIndexMatchesPairwiseComparison(final int size, final int distance, final int maxCoordinate) {
+        final Log log = Log.getInstance(OpticalDuplicateFinderTest.class);
+        final OpticalDuplicateFinder finder = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, distance, log);
+        final Random random = new Random(size + distance);
+
+        for (int trial = 0; trial < 5; ++trial) {
+            final List<PhysicalLocation> locs = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) {
+                final int tile = random.nextInt(20) == 0 ? -1 : 1 + random.nextInt(2);
+                locs.add(loc(random.nextInt(2), tile, random.nextInt(maxCoordinate), random.nextInt(maxCoordinate)));
+            }
+
+            for (final PhysicalLocation keeper : Arrays.asList(null, locs.get(random.nextInt(size)), loc(0, 1, 0, 0))) {
+                assertEquals(finder.findOpticalDuplicatesWithSpatialIndex(locs, keeper),
+                        finder.findOpticalDuplicatesByPairwiseComparison(locs, keeper));
+            }
+        }
+    }
+
+    /** Helper method to create a physical location in the given read group. */
+    private PhysicalLocation loc(final int readGroup, final int tile, final int x, final int y) {
+        final PhysicalLocation l = new PhysicalLocationInt() {
+            @Override
+            public short getReadGroup() { return (short) readGroup; }
+        };
+        l.setTile((short) tile);
+        l.setX(x);
+        l.setY(y);
+        return l;
+    }
+
     /** Helper method to create a physical location. */
     private PhysicalLocation loc(final int tile, final int x, final int y) {
         final PhysicalLocation l = new PhysicalLocationInt() {
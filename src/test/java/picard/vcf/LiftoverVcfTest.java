@@ -10,6 +10,10 @@ import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.*;
 
 /**
@@ -167,4 +171,141 @@ public class LiftoverVcfTest extends CommandLineProgramTest {
             }
         }
     }
+
+    @Test
+    public void testThreadsGiveIdenticalOutputs() throws IOException {
+        final Random random = new Random(11);
+        final int contigLength = 20000;
+        final int numSamples = 200;
+        final String[] targetContigs = new String[2];
+        for (int i = 0; i < targetContigs.length; i++) {
+            final StringBuilder bases = new StringBuilder();
+            for (int j = 0; j < contigLength; j++) bases.append("ACGT".charAt(random.nextInt(4)));
+            targetContigs[i] = bases.toString();
+        }
+        final File reference = WindowedReferenceSequenceTest.writeReference("liftoverThreads", new String[]{"chr1", "chr2"}, targetContigs, true);
+
+        // src1 maps forward onto chr1 with a gap, src2 maps onto the reverse strand of chr2.
+        final File chain = new File(OUTPUT_DATA_PATH, "threads.over.chain");
+        try (final PrintWriter writer = new PrintWriter(new FileWriter(chain))) {
+            writer.println("chain 1000 src1 " + contigLength + " + 0 " + contigLength + " chr1 " + contigLength + " + 0 " + (contigLength - 100) + " 1");
+            writer.println("10000\t100\t0");
+            writer.println(contigLength - 10100);
+            writer.println();
+            writer.println("chain 1000 src2 " + contigLength + " + 0 " + contigLength + " chr2 " + contigLength + " - 0 " + contigLength + " 2");
+            writer.println(contigLength);
+            writer.println();
+        }
+
+        final File input = new File(OUTPUT_DATA_PATH, "threads.vcf");
+        try (final PrintWriter writer = new PrintWriter(new FileWriter(input))) {
+            writer.println("##fileformat=VCFv4.1");
+            writer.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+            writer.println("##contig=<ID=src1,length=" + contigLength + ">");
+            writer.println("##contig=<ID=src2,length=" + contigLength + ">");
+            // Many samples with sorted names, so that genotypes are decoded lazily and concurrent decoding would be caught.
+            final StringBuilder samples = new StringBuilder();
+            for (int sample = 0; sample < numSamples; sample++) samples.append(String.format("\tsample%03d", sample));
+            writer.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT" + samples);
+            for (int contig = 1; contig <= 2; contig++) {
+                for (int pos = 1; pos < contigLength - 5; pos += 1 + random.nextInt(3)) {
+                    final String ref = random.nextInt(10) == 0 ? "AC" : String.valueOf("ACGT".charAt(random.nextInt(4)));
+                    final String alt = ref.length() > 1 ? "A" : (ref.equals("T") ? "G" : "T");
+                    final StringBuilder genotypes = new StringBuilder();
+                    for (int sample = 0; sample < numSamples; sample++) genotypes.append(random.nextBoolean() ? "\t0/1" : "\t1/1");
+                    writer.println("src" + contig + "\t" + pos + "\t.\t" + ref + "\t" + alt + "\t50\tPASS\t.\tGT" + genotypes);
+                }
+            }
+        }
+
+        final List<String> outputs = new ArrayList<>();
+        for (final int threads : new int[]{1, 8}) {
+            final File liftOutputFile = new File(OUTPUT_DATA_PATH, "lift-threads" + threads + ".vcf");
+            final File rejectOutputFile = new File(OUTPUT_DATA_PATH, "reject-threads" + threads + ".vcf");
+            final String[] args = new String[]{
+                    "INPUT=" + input.getAbsolutePath(),
+                    "OUTPUT=" + liftOutputFile.getAbsolutePath(),
+                    "REJECT=" + rejectOutputFile.getAbsolutePath(),
+                    "CHAIN=" + chain.getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                    "CREATE_INDEX=false",
+                    "MAX_RECORDS_IN_RAM=5000",
+                    "THREADS=" + threads
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+            outputs.add(new String(Files.readAllBytes(liftOutputFile.toPath())));
+            outputs.add(new String(Files.readAllBytes(rejectOutputFile.toPath())));
+        }
+
+        Assert.assertTrue(outputs.get(0).split("\n").length > 1000);
+        Assert.assertTrue(outputs.get(1).split("\n").length > 1000);
+        Assert.assertEquals(outputs.get(2), outputs.get(0));
+        Assert.assertEquals(outputs.get(3), outputs.get(1));
+    }
+
+    @Test
+    public void testSpilledRecordsMatchRecordsKeptInRam() throws IOException {
+        final Random random = new Random(7);
+        final int contigLength = 2000;
+        final StringBuilder bases = new StringBuilder();
+        for (int i = 0; i < contigLength; i++) bases.append("ACGT".charAt(random.nextInt(4)));
+        final File reference = WindowedReferenceSequenceTest.writeReference("liftoverSpill", new String[]{"chr1"}, new String[]{bases.toString()}, true);
+
+        final File chain = new File(OUTPUT_DATA_PATH, "spill.over.chain");
+        try (final PrintWriter writer = new PrintWriter(new FileWriter(chain))) {
+            writer.println("chain 1000 src1 " + contigLength + " + 0 " + contigLength + " chr1 " + contigLength + " + 0 " + contigLength + " 1");
+            writer.println(contigLength);
+            writer.println();
+        }
+
+        // Records with typed INFO fields, filters and genotype fields, all of which must survive the temporary runs unchanged.
+        final File input = new File(OUTPUT_DATA_PATH, "spill.vcf");
+        try (final PrintWriter writer = new PrintWriter(new FileWriter(input))) {
+            writer.println("##fileformat=VCFv4.1");
+            writer.println("##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">");
+            writer.println("##INFO=<ID=AF,Number=A,Type=Float,Description=\"Allele frequency\">");
+            writer.println("##INFO=<ID=DB,Number=0,Type=Flag,Description=\"dbSNP\">");
+            writer.println("##FILTER=<ID=LowQual,Description=\"Low quality\">");
+            writer.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+            writer.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">");
+            writer.println("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">");
+            writer.println("##FORMAT=<ID=AD,Number=R,Type=Integer,Description=\"Allelic depths\">");
+            writer.println("##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Phred-scaled likelihoods\">");
+            writer.println("##FORMAT=<ID=FT,Number=1,Type=String,Description=\"Genotype filter\">");
+            writer.println("##contig=<ID=src1,length=" + contigLength + ">");
+            writer.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tsampleA\tsampleB");
+            for (int pos = 1; pos < contigLength - 5; pos += 1 + random.nextInt(5)) {
+                final String ref = String.valueOf(bases.charAt(pos - 1));
+                final String alt = ref.equals("T") ? "G,C" : "T";
+                final String info = "DP=" + random.nextInt(100) + ";AF=0.25" + (alt.length() > 1 ? ",0.125" : "") + (random.nextBoolean() ? ";DB" : "");
+                final String pl = alt.length() > 1 ? "0,10,100,20,200,300" : "0,10,100";
+                final String ad = alt.length() > 1 ? "5,3,1" : "5,3";
+                writer.println("src1\t" + pos + "\trs" + pos + "\t" + ref + "\t" + alt + "\t" + (random.nextBoolean() ? "50.5" : ".") +
+                        "\t" + (random.nextBoolean() ? "PASS" : "LowQual") + "\t" + info + "\tGT:GQ:DP:AD:PL:FT" +
+                        "\t0|1:" + random.nextInt(99) + ":8:" + ad + ":" + pl + ":PASS" +
+                        "\t./.:.:.:.:.:.");
+            }
+        }
+
+        final List<String> outputs = new ArrayList<>();
+        for (final int maxRecordsInRam : new int[]{1000000, 10}) {
+            final File liftOutputFile = new File(OUTPUT_DATA_PATH, "lift-spill" + maxRecordsInRam + ".vcf");
+            final File rejectOutputFile = new File(OUTPUT_DATA_PATH, "reject-spill" + maxRecordsInRam + ".vcf");
+            final String[] args = new String[]{
+                    "INPUT=" + input.getAbsolutePath(),
+                    "OUTPUT=" + liftOutputFile.getAbsolutePath(),
+                    "REJECT=" + rejectOutputFile.getAbsolutePath(),
+                    "CHAIN=" + chain.getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                    "CREATE_INDEX=false",
+                    "MAX_RECORDS_IN_RAM=" + maxRecordsInRam,
+                    "THREADS=4"
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+            outputs.add(new String(Files.readAllBytes(liftOutputFile.toPath())));
+        }
+
+        Assert.assertTrue(outputs.get(0).split("\n").length > 300);
+        Assert.assertEquals(outputs.get(1), outputs.get(0));
+    }
 }
@@ -10,7 +10,10 @@ import picard.cmdline.CommandLineProgram;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -93,6 +96,41 @@ public class SortVcfsTest extends AbstractVcfMergingClpTester {
         validateSortingResults(output, numberOfVariantContexts);
     }
 
+    @Test
+    public void testThreadsAndSpillingGiveIdenticalOutputs() throws IOException {
+        final List<File> inputs = Arrays.asList(
+                new File(TEST_DATA_PATH, "CEUTrio-indels.vcf"),
+                new File(TEST_DATA_PATH, "CEUTrio-indels-scrambled.1.vcf"),
+                new File(TEST_DATA_PATH, "CEUTrio-snps.vcf"));
+        final File inMemoryOutput = File.createTempFile("sort-in-memory-test-output.", ".vcf");
+        final File spilledOutput = File.createTempFile("sort-spilled-test-output.", ".vcf");
+        inMemoryOutput.deleteOnExit();
+        spilledOutput.deleteOnExit();
+
+        runClp(inputs, inMemoryOutput, Arrays.asList("CREATE_INDEX=false"), 0);
+        // Two records per thread gives well over RunFiles.MAX_RUNS_TO_MERGE temporary runs, which are merged in several passes
+        runClp(inputs, spilledOutput, Arrays.asList("CREATE_INDEX=false", "THREADS=3", "MAX_RECORDS_IN_RAM=7"), 0);
+        Assert.assertEquals(Files.readAllLines(spilledOutput.toPath()), Files.readAllLines(inMemoryOutput.toPath()));
+
+        // The records should come out in the order of a stable sort of all of the decoded records.
+        final List<VariantContext> expected = new ArrayList<VariantContext>();
+        VariantContextComparator comparator = null;
+        for (final File input : inputs) {
+            final VCFFileReader reader = new VCFFileReader(input, false);
+            if (comparator == null) comparator = reader.getFileHeader().getVCFRecordComparator();
+            for (final VariantContext variantContext : reader) expected.add(variantContext);
+            reader.close();
+        }
+        Collections.sort(expected, comparator);
+
+        final VCFFileReader outputReader = new VCFFileReader(spilledOutput, false);
+        int i = 0;
+        for (final VariantContext variantContext : outputReader) {
+            Assert.assertEquals(variantContext.toStringDecodeGenotypes(), expected.get(i++).toStringDecodeGenotypes());
+        }
+        outputReader.close();
+        Assert.assertEquals(i, expected.size());
+    }
 
     /**
      * Checks the ordering and total number of variant context entries in the specified output VCF file.
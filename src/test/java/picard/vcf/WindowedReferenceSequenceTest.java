@@ -0,0 +1,93 @@
+package picard.vcf;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Tests that {@link WindowedReferenceSequence} returns the same bases as the whole reference sequence.
+ */
+public class WindowedReferenceSequenceTest {
+    private static final File TEST_DIR = IOUtil.createTempDir("WindowedReferenceSequenceTest", null);
+    private static final int LINE_LENGTH = 60;
+
+    @AfterClass
+    public void teardown() {
+        IOUtil.deleteDirectoryTree(TEST_DIR);
+    }
+
+    @DataProvider(name = "windowConfigurations")
+    public Object[][] windowConfigurations() {
+        return new Object[][]{
+                // indexed, window size, max windows
+                {true, 100, 3},
+                {true, 7, 1},
+                {true, WindowedReferenceSequence.DEFAULT_WINDOW_SIZE, WindowedReferenceSequence.DEFAULT_MAX_WINDOWS},
+                {false, 100, 3}
+        };
+    }
+
+    @Test(dataProvider = "windowConfigurations")
+    public void testMatchesWholeSequence(final boolean indexed, final int windowSize, final int maxWindows) throws IOException {
+        final Random random = new Random(windowSize);
+        final String[] names = {"chr1", "chr2", "chr3"};
+        final String[] contigs = new String[names.length];
+        for (int i = 0; i < contigs.length; i++) {
+            final StringBuilder bases = new StringBuilder();
+            final int length = 1 + random.nextInt(1000);
+            for (int j = 0; j < length; j++) bases.append("ACGTNacgt".charAt(random.nextInt(9)));
+            contigs[i] = bases.toString();
+        }
+        final File fasta = writeReference("reference" + windowSize + indexed, names, contigs, indexed);
+
+        try (final WindowedReferenceSequence reference = new WindowedReferenceSequence(fasta, windowSize, maxWindows)) {
+            Assert.assertTrue(reference.hasContig("chr2"));
+            Assert.assertFalse(reference.hasContig("chr4"));
+            for (int n = 0; n < 2000; n++) {
+                final int i = random.nextInt(contigs.length);
+                final int start = 1 + random.nextInt(contigs[i].length());
+                final int end = start + random.nextInt(Math.min(contigs[i].length() - start + 1, 250));
+                Assert.assertEquals(reference.getBasesAsString(names[i], start, end), contigs[i].substring(start - 1, end));
+            }
+        }
+    }
+
+    /** Writes a FASTA file with a sequence dictionary and, if requested, a .fai index. */
+    static File writeReference(final String name, final String[] names, final String[] contigs, final boolean indexed) throws IOException {
+        final File fasta = new File(TEST_DIR, name + ".fasta");
+        final SAMFileHeader header = new SAMFileHeader();
+        try (final PrintWriter fastaWriter = new PrintWriter(new FileWriter(fasta));
+             final PrintWriter indexWriter = indexed ? new PrintWriter(new FileWriter(new File(fasta.getPath() + ".fai"))) : null) {
+            long offset = 0;
+            for (int i = 0; i < names.length; i++) {
+                final String headerLine = ">" + names[i];
+                fastaWriter.println(headerLine);
+                offset += headerLine.length() + 1;
+                if (indexWriter != null) {
+                    indexWriter.println(names[i] + "\t" + contigs[i].length() + "\t" + offset + "\t" + LINE_LENGTH + "\t" + (LINE_LENGTH + 1));
+                }
+                for (int j = 0; j < contigs[i].length(); j += LINE_LENGTH) {
+                    final String line = contigs[i].substring(j, Math.min(j + LINE_LENGTH, contigs[i].length()));
+                    fastaWriter.println(line);
+                    offset += line.length() + 1;
+                }
+                header.addSequence(new SAMSequenceRecord(names[i], contigs[i].length()));
+            }
+        }
+        try (final FileWriter dictWriter = new FileWriter(new File(TEST_DIR, name + ".dict"))) {
+            new SAMTextHeaderCodec().encode(dictWriter, header);
+        }
+        return fasta;
+    }
+}